@@ -46,6 +46,10 @@ public class ChannelClientConfiguration {
     private boolean enablePool = false;
     private boolean enableHeap = false;
 
+    private SimulatedNetwork simulatedNetwork = null;
+
+    private TrafficShaper trafficShaper = null;
+
     /**
      * @return The maximum number of permanent (long-lived) connections
      */
@@ -204,4 +208,40 @@ public class ChannelClientConfiguration {
 			return AlternativeCompositeByteBuf.UNPOOLED_DIRECT;
 		}
 	}
+
+    /**
+     * @return The simulated network the messages are sent over, or null if they are sent over the real network
+     */
+    public SimulatedNetwork simulatedNetwork() {
+        return simulatedNetwork;
+    }
+
+    /**
+     * @param simulatedNetwork
+     *            The simulated network to send the messages over instead of the real network, or null to use the real
+     *            network
+     * @return This class
+     */
+    public ChannelClientConfiguration simulatedNetwork(final SimulatedNetwork simulatedNetwork) {
+        this.simulatedNetwork = simulatedNetwork;
+        return this;
+    }
+
+    /**
+     * @return The shaper that limits the bandwidth of the outgoing messages, or null for no limit
+     */
+    public TrafficShaper trafficShaper() {
+        return trafficShaper;
+    }
+
+    /**
+     * @param trafficShaper
+     *            The shaper that limits the bandwidth of the outgoing messages, or null for no limit. Use the same
+     *            shaper for the server configuration, so that the requests and the replies share the limits.
+     * @return This class
+     */
+    public ChannelClientConfiguration trafficShaper(final TrafficShaper trafficShaper) {
+        this.trafficShaper = trafficShaper;
+        return this;
+    }
 }
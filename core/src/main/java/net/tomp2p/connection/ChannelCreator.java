@@ -335,6 +335,12 @@ public class ChannelCreator {
 			writeUDP.unlock();
 		}
 
+		if (channelClientConfiguration.simulatedNetwork() != null) {
+			// no channel has been opened, do not hand over to the global executor, as the simulated network expects
+			// the permits to be released in the calling thread
+			return shutdownFuture().done();
+		}
+
 		recipients.close().addListener(new GenericFutureListener<ChannelGroupFuture>() {
 			@Override
 			public void operationComplete(final ChannelGroupFuture future) throws Exception {
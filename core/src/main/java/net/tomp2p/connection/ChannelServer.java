@@ -363,6 +363,10 @@ public final class ChannelServer implements DiscoverNetworkListener{
 		}
 		handlers.put("encoder", new Pair<EventExecutorGroup, ChannelHandler>(null, new TomP2POutbound(
 		        channelServerConfiguration.signatureFactory(), channelServerConfiguration.byteBufAllocator())));
+		if (channelServerConfiguration.trafficShaper() != null) {
+			handlers.put("shaper",
+			        new Pair<EventExecutorGroup, ChannelHandler>(null, channelServerConfiguration.trafficShaper()));
+		}
 		handlers.put("dispatcher", new Pair<EventExecutorGroup, ChannelHandler>(null, dispatcher));
 		return channelServerConfiguration.pipelineFilter().filter(handlers, tcp, false);
 	}
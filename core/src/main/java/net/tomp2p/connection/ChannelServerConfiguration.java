@@ -38,6 +38,8 @@ public class ChannelServerConfiguration implements ConnectionConfiguration {
 
     private PipelineFilter pipelineFilter = null;
 
+    private TrafficShaper trafficShaper = null;
+
     //interface bindings
     private Bindings bindings = null;
 
@@ -165,6 +167,23 @@ public class ChannelServerConfiguration implements ConnectionConfiguration {
     /**
      * @return Set the factory for the signature
      */
+    /**
+     * @return The shaper that limits the bandwidth of the outgoing replies, or null for no limit
+     */
+    public TrafficShaper trafficShaper() {
+        return trafficShaper;
+    }
+
+    /**
+     * @param trafficShaper
+     *            The shaper that limits the bandwidth of the outgoing replies, or null for no limit
+     * @return This class
+     */
+    public ChannelServerConfiguration trafficShaper(final TrafficShaper trafficShaper) {
+        this.trafficShaper = trafficShaper;
+        return this;
+    }
+
     public SignatureFactory signatureFactory() {
         return signatureFactory;
     }
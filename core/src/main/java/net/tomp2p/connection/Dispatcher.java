@@ -34,6 +34,7 @@ import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import net.tomp2p.connection.PeerException.AbortCause;
+import net.tomp2p.futures.BaseFutureAdapter;
 import net.tomp2p.futures.FutureDone;
 import net.tomp2p.futures.FutureResponse;
 import net.tomp2p.message.Message;
@@ -433,6 +434,13 @@ public class Dispatcher extends SimpleChannelInboundHandler<Message> {
 	 */
 	public void addPendingRequest(final int messageId, final FutureResponse futureResponse, final int timeout, final ScheduledExecutorService scheduler) {
 		pendingRequests.put(messageId, futureResponse);
+		// the request may also fail before the slow peer answers
+		futureResponse.addListener(new BaseFutureAdapter<FutureResponse>() {
+			@Override
+			public void operationComplete(final FutureResponse future) throws Exception {
+				pendingRequests.remove(messageId);
+			}
+		});
 		
 		// schedule the timeout of pending request
     	scheduler.schedule(new Runnable() {
@@ -28,8 +28,12 @@ import net.tomp2p.peers.PeerMap;
 import net.tomp2p.peers.PeerStatusListener;
 import net.tomp2p.peers.RTT;
 import net.tomp2p.rpc.BloomfilterFactory;
+import net.tomp2p.storage.DataCodec;
+import net.tomp2p.storage.DataCodecs;
 import net.tomp2p.storage.DigestStorage;
 import net.tomp2p.storage.DigestTracker;
+import net.tomp2p.storage.JavaDataCodec;
+import net.tomp2p.utils.TokenBucket;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -49,7 +53,10 @@ public class PeerBean {
     private PeerMap peerMap;
     private List<PeerStatusListener> peerStatusListeners = new ArrayList<PeerStatusListener>(1);
     private BloomfilterFactory bloomfilterFactory;
+    private DataCodec dataCodec = JavaDataCodec.INSTANCE;
+    private final DataCodecs dataCodecs = new DataCodecs();
     private MaintenanceTask maintenanceTask;
+    private TokenBucket requestBudget;
     private DigestStorage digestStorage;
     private DigestTracker digestTracker;
     private HolePInitiator holePunchInitiator;
@@ -178,6 +185,30 @@ public class PeerBean {
         return bloomfilterFactory;
     }
 
+    /**
+     * @param dataCodec
+     *            The codec to encode the objects of direct messages with
+     * @return This class
+     */
+    public PeerBean dataCodec(final DataCodec dataCodec) {
+        this.dataCodec = dataCodec;
+        return this;
+    }
+
+    /**
+     * @return The codec to encode the objects of direct messages with
+     */
+    public DataCodec dataCodec() {
+        return dataCodec;
+    }
+
+    /**
+     * @return The codecs this peer can decode objects of direct messages with
+     */
+    public DataCodecs dataCodecs() {
+        return dataCodecs;
+    }
+
     public PeerBean maintenanceTask(MaintenanceTask maintenanceTask) {
         this.maintenanceTask = maintenanceTask;
         return this;
@@ -186,6 +217,24 @@ public class PeerBean {
     public MaintenanceTask maintenanceTask() {
         return maintenanceTask;
     }
+
+    /**
+     * @param requestBudget
+     *            The number of incoming requests this peer handles per second, the requests above this budget are
+     *            denied. Null for no limit.
+     * @return This class
+     */
+    public PeerBean requestBudget(final TokenBucket requestBudget) {
+        this.requestBudget = requestBudget;
+        return this;
+    }
+
+    /**
+     * @return The number of incoming requests this peer handles per second, or null for no limit
+     */
+    public TokenBucket requestBudget() {
+        return requestBudget;
+    }
     
     public PeerBean digestStorage(DigestStorage digestStorage) {
         this.digestStorage = digestStorage;
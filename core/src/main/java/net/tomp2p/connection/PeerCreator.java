@@ -61,6 +61,9 @@ public class PeerCreator {
 
 	private final boolean master;
 
+	// true if this peer has its own reservation, which is shut down with this peer
+	private final boolean ownReservation;
+
 	private final FutureDone<Void> futureServerDone = new FutureDone<Void>();
 
 	/**
@@ -107,7 +110,11 @@ public class PeerCreator {
 		Reservation reservation = new Reservation(workerGroup, channelClientConfiguration);
 		connectionBean = new ConnectionBean(p2pId, dispatcher, sender, channelServer, reservation,
 		        channelClientConfiguration, timer);
+		if (channelClientConfiguration.simulatedNetwork() != null) {
+			channelClientConfiguration.simulatedNetwork().register(self, dispatcher);
+		}
 		this.master = true;
+		this.ownReservation = true;
 	}
 
 	/**
@@ -121,10 +128,38 @@ public class PeerCreator {
 	 *            The key pair or null
 	 */
 	public PeerCreator(final PeerCreator parent, final Number160 peerId, final KeyPair keyPair) {
+		this(parent, peerId, keyPair, null);
+	}
+
+	/**
+	 * Creates a slave peer that will attach itself to a master peer and that
+	 * reserves its connections with its own budget.
+	 * 
+	 * @param parent
+	 *            The parent peer
+	 * @param peerId
+	 *            The id of this peer
+	 * @param keyPair
+	 *            The key pair or null
+	 * @param reservation
+	 *            The reservation with the budget of this peer, whose parent is
+	 *            the reservation of the parent peer, or null to use the
+	 *            reservation of the parent peer. It is shut down together with
+	 *            this peer.
+	 */
+	public PeerCreator(final PeerCreator parent, final Number160 peerId, final KeyPair keyPair,
+	        final Reservation reservation) {
 		parent.childConnections.add(this);
 		this.workerGroup = parent.workerGroup;
 		this.bossGroup = parent.bossGroup;
-		this.connectionBean = parent.connectionBean;
+		this.ownReservation = reservation != null;
+		if (reservation == null) {
+			this.connectionBean = parent.connectionBean;
+		} else {
+			final ConnectionBean shared = parent.connectionBean;
+			this.connectionBean = new ConnectionBean(shared.p2pId(), shared.dispatcher(), shared.sender(),
+			        shared.channelServer(), reservation, shared.resourceConfiguration(), shared.timer());
+		}
 		this.peerBean = new PeerBean(keyPair);
 		PeerAddress self = parent.peerBean().serverPeerAddress().changePeerId(peerId);
 		this.peerBean.serverPeerAddress(self);
@@ -153,7 +188,20 @@ public class PeerCreator {
 			for (PeerCreator peerCreator : childConnections) {
 				peerCreator.shutdown();
 			}
-			return futureServerDone.done();
+			if (!ownReservation) {
+				return futureServerDone.done();
+			}
+			// the budget of this peer
+			connectionBean.reservation().shutdown().addListener(new BaseFutureAdapter<FutureDone<Void>>() {
+				@Override
+				public void operationComplete(final FutureDone<Void> future) throws Exception {
+					futureServerDone.done();
+				}
+			});
+			return futureServerDone;
+		}
+		if (connectionBean.resourceConfiguration().simulatedNetwork() != null) {
+			connectionBean.resourceConfiguration().simulatedNetwork().unregister(peerBean.serverPeerAddress());
 		}
 		// shutdown the timer
 		connectionBean.timer().shutdown();
@@ -137,6 +137,7 @@ public class RequestHandler<K extends FutureResponse> extends SimpleChannelInbou
      * @return The future that was added in the constructor
      */
     public K sendUDP(final ChannelCreator channelCreator) {
+        expectSlowResponse();
         connectionBean.sender().sendUDP(this, futureResponse, message, channelCreator, idleUDPSeconds, false);
         return futureResponse;
     }
@@ -185,12 +186,14 @@ public class RequestHandler<K extends FutureResponse> extends SimpleChannelInbou
      * @return The future that was added in the constructor
      */
     public K sendTCP(final ChannelCreator channelCreator) {
+        expectSlowResponse();
         connectionBean.sender().sendTCP(this, futureResponse, message, channelCreator, idleTCPSeconds,
                 connectionTimeoutTCPMillis, null);
         return futureResponse;
     }
     
     public K sendTCP(final PeerConnection peerConnection) {
+        expectSlowResponse();
         connectionBean.sender().sendTCP(this, futureResponse, message, null, idleTCPSeconds,
                 connectionTimeoutTCPMillis, peerConnection);
         return futureResponse;
@@ -204,11 +207,23 @@ public class RequestHandler<K extends FutureResponse> extends SimpleChannelInbou
      * @return The future that was added in the constructor
      */
     public K sendTCP(final ChannelCreator channelCreator, final PeerConnection peerConnection) {
+        expectSlowResponse();
         connectionBean.sender().sendTCP(this, futureResponse, message, channelCreator, idleTCPSeconds,
                 connectionTimeoutTCPMillis, peerConnection);
         return futureResponse;
     }
 
+    /**
+     * A slow peer answers later over its relay peer. The relay peer may forward the request and the late response
+     * before we even got its partially ok, thus, we wait for the late response before the request is sent.
+     */
+    private void expectSlowResponse() {
+        if (message.recipient().isRelayed() && message.recipient().isSlow()) {
+            connectionBean.dispatcher().addPendingRequest(message.messageId(), futureResponse,
+                    slowResponseTimeoutSeconds, connectionBean.timer());
+        }
+    }
+
     @Override
     public void exceptionCaught(final ChannelHandlerContext ctx, final Throwable cause) throws Exception {
         LOG.debug("Error originating from: {}, cause {}", futureResponse.request(), cause);
@@ -301,8 +316,7 @@ public class RequestHandler<K extends FutureResponse> extends SimpleChannelInbou
         // support slow, unreachable devices which cannot respond instantly
         if(this.message.recipient().isRelayed() && this.message.recipient().isSlow() && responseMessage.type() == Message.Type.PARTIALLY_OK) {
         	LOG.debug("Received partially ok by the relay peer. Wait for answer of the unreachable peer.");
-        	// wait for the (real) answer of the unreachable peer.
-        	connectionBean.dispatcher().addPendingRequest(message.messageId(), futureResponse, slowResponseTimeoutSeconds, connectionBean.timer());
+        	// the pending request for the (real) answer of the unreachable peer has been added before sending
         	// close the channel to the relay peer
         	ctx.close();
         	return;
@@ -18,19 +18,20 @@ package net.tomp2p.connection;
 
 import io.netty.channel.EventLoopGroup;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.concurrent.BlockingQueue;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.atomic.AtomicLong;
 
 import net.tomp2p.futures.BaseFutureAdapter;
 import net.tomp2p.futures.FutureChannelCreator;
@@ -42,7 +43,13 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Reserves a block of connections.
+ * Reserves a block of connections. The permits are allocated without blocking: a reservation that cannot be served
+ * is queued and granted as soon as other reservations release enough permits. Thus, a reservation that needs many
+ * permits does not stall the reservations behind it, a smaller reservation that fits is granted first. To not
+ * starve a large reservation, it can be bypassed only {@link #MAX_BYPASS} times, after that the released permits are
+ * kept for it. Reservations with {@link Priority#HIGH}, such as pings, are served before {@link Priority#NORMAL}
+ * ones. A high priority reservation that is granted while normal ones wait bypasses them as well, thus, a normal
+ * reservation that has been bypassed too often is served before the high priority ones. The futures are completed by a single thread, as before, but this thread never waits for permits.
  * 
  * @author Thomas Bocek
  * 
@@ -51,32 +58,59 @@ public class Reservation {
 	
 	private static final Logger LOG = LoggerFactory.getLogger(Reservation.class);
 
+	/**
+	 * How many times a queued reservation can be bypassed by a later reservation that fits.
+	 */
+	public static final int MAX_BYPASS = 32;
+
+	/**
+	 * The priority class of a reservation.
+	 */
+	public enum Priority {
+		/**
+		 * Small, latency sensitive requests, e.g., pings of the maintenance
+		 */
+		HIGH,
+		/**
+		 * Regular user traffic
+		 */
+		NORMAL
+	}
+
 	private final int maxPermitsUDP;
 	private final int maxPermitsTCP;
 	private final int maxPermitsPermanentTCP;
 
-	private final Semaphore semaphoreUPD;
-	private final Semaphore semaphoreTCP;
-	private final Semaphore semaphorePermanentTCP;
-
 	private final ChannelClientConfiguration channelClientConfiguration;
 
-	private final BlockingQueue<Runnable> queue = new LinkedBlockingQueue<Runnable>();
-	// single thread
-	private final ExecutorService executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, queue);
+	// the reservation that grants the permits of this reservation as well, null if this reservation has its own
+	private final Reservation parent;
+
+	// single thread to complete the futures, it never blocks on permits
+	private final ExecutorService executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+	        new LinkedBlockingQueue<Runnable>());
 	private final EventLoopGroup workerGroup;
 
-	// we should be fair, otherwise we see connection timeouts due to unfairness
-	// if busy
-	private final ReadWriteLock readWriteLock = new ReentrantReadWriteLock(true);
-	private final Lock read = readWriteLock.readLock();
-	private final Lock write = readWriteLock.writeLock();
+	// guards the permits, the queues and the shutdown flag, never held while completing a future
+	private final Object lock = new Object();
+	private int availableUDP;
+	private int availableTCP;
+	private int availablePermanentTCP;
+	private final Deque<WaitReservation> queueHigh = new ArrayDeque<WaitReservation>();
+	private final Deque<WaitReservation> queueNormal = new ArrayDeque<WaitReservation>();
 	private boolean shutdown = false;
+	private boolean shutdownDone = false;
+
 	private final Collection<ChannelCreator> channelCreators = Collections
 	        .synchronizedList(new ArrayList<ChannelCreator>());
 
 	private final FutureDone<Void> futureReservationDone = new FutureDone<Void>();
 
+	// statistics
+	private final AtomicLong granted = new AtomicLong();
+	private final AtomicLong totalWaitNanos = new AtomicLong();
+	private final AtomicLong maxWaitNanos = new AtomicLong();
+
 	/**
 	 * Creates a new reservation class with the 3 permits.
 	 * 
@@ -94,18 +128,95 @@ public class Reservation {
 		this.maxPermitsUDP = channelClientConfiguration.maxPermitsUDP();
 		this.maxPermitsTCP = channelClientConfiguration.maxPermitsTCP();
 		this.maxPermitsPermanentTCP = channelClientConfiguration.maxPermitsPermanentTCP();
-		this.semaphoreUPD = new Semaphore(maxPermitsUDP);
-		this.semaphoreTCP = new Semaphore(maxPermitsTCP);
-		this.semaphorePermanentTCP = new Semaphore(maxPermitsPermanentTCP);
+		this.availableUDP = maxPermitsUDP;
+		this.availableTCP = maxPermitsTCP;
+		this.availablePermanentTCP = maxPermitsPermanentTCP;
 		this.channelClientConfiguration = channelClientConfiguration;
+		this.parent = null;
+	}
+
+	/**
+	 * Creates a reservation that limits the permits of one peer that shares the
+	 * connections of another peer. A reservation is first queued against the
+	 * permits of this reservation and then against the permits of the parent,
+	 * thus, a peer cannot take more than its budget from the peers it shares
+	 * the connections with. This reservation does not use a thread on its own.
+	 * 
+	 * @param parent
+	 *            The reservation that creates the channels
+	 * @param maxPermitsUDP
+	 *            The number of maximum short-lived UDP connections
+	 * @param maxPermitsTCP
+	 *            The number of maximum short-lived TCP connections
+	 * @param maxPermitsPermanentTCP
+	 *            The number of maximum permanent TCP connections
+	 */
+	public Reservation(final Reservation parent, final int maxPermitsUDP, final int maxPermitsTCP,
+	        final int maxPermitsPermanentTCP) {
+		if (maxPermitsUDP > parent.maxPermitsUDP || maxPermitsTCP > parent.maxPermitsTCP
+		        || maxPermitsPermanentTCP > parent.maxPermitsPermanentTCP) {
+			throw new IllegalArgumentException("The budget cannot be larger than the permits of the parent");
+		}
+		this.workerGroup = parent.workerGroup;
+		this.maxPermitsUDP = maxPermitsUDP;
+		this.maxPermitsTCP = maxPermitsTCP;
+		this.maxPermitsPermanentTCP = maxPermitsPermanentTCP;
+		this.availableUDP = maxPermitsUDP;
+		this.availableTCP = maxPermitsTCP;
+		this.availablePermanentTCP = maxPermitsPermanentTCP;
+		this.channelClientConfiguration = parent.channelClientConfiguration;
+		this.parent = parent;
+	}
+
+	/**
+	 * @return The reservation that grants the permits of this reservation as
+	 *         well, or null if this reservation has its own permits
+	 */
+	public Reservation parent() {
+		return parent;
 	}
 
 	/**
-	 * @return The pending number of requests that are scheduled but not
-	 *         executed yet.
+	 * @return The pending number of requests that are queued but not
+	 *         granted yet.
 	 */
 	public int pendingRequests() {
-		return queue.size();
+		synchronized (lock) {
+			return queueHigh.size() + queueNormal.size();
+		}
+	}
+
+	/**
+	 * @param priority
+	 *            The priority class
+	 * @return The pending number of requests of this priority class
+	 */
+	public int pendingRequests(final Priority priority) {
+		synchronized (lock) {
+			return priority == Priority.HIGH ? queueHigh.size() : queueNormal.size();
+		}
+	}
+
+	/**
+	 * @return The number of reservations that have been granted
+	 */
+	public long grantedRequests() {
+		return granted.get();
+	}
+
+	/**
+	 * @return The average time in milliseconds a reservation waited for its permits
+	 */
+	public double averageWaitMillis() {
+		final long count = granted.get();
+		return count == 0 ? 0 : totalWaitNanos.get() / (count * 1000000d);
+	}
+
+	/**
+	 * @return The longest time in milliseconds a reservation waited for its permits
+	 */
+	public long maxWaitMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get());
 	}
 
 	/**
@@ -147,6 +258,22 @@ public class Reservation {
 		return create(nrConnectionsUDP, nrConnectionsTCP);
 	}
 
+	/**
+	 * Create a connection creator for short-lived connections with normal
+	 * priority. Always call {@link ChannelCreator#shutdown()} to release all
+	 * resources. This needs to be done in any case, whetere
+	 * FutureChannelCreator return failed or success!
+	 * 
+	 * @param permitsUDP
+	 *            The number of short-lived UDP connections
+	 * @param permitsTCP
+	 *            The number of short-lived TCP connections
+	 * @return The future channel creator
+	 */
+	public FutureChannelCreator create(final int permitsUDP, final int permitsTCP) {
+		return create(permitsUDP, permitsTCP, Priority.NORMAL);
+	}
+
 	/**
 	 * Create a connection creator for short-lived connections. Always call
 	 * {@link ChannelCreator#shutdown()} to release all resources. This needs to
@@ -157,9 +284,11 @@ public class Reservation {
 	 *            The number of short-lived UDP connections
 	 * @param permitsTCP
 	 *            The number of short-lived TCP connections
+	 * @param priority
+	 *            The priority class of this reservation
 	 * @return The future channel creator
 	 */
-	public FutureChannelCreator create(final int permitsUDP, final int permitsTCP) {
+	public FutureChannelCreator create(final int permitsUDP, final int permitsTCP, final Priority priority) {
 		if (permitsUDP > maxPermitsUDP) {
 			throw new IllegalArgumentException("cannot aquire more UDP connections (" + permitsUDP + ") than maximum "
 			        + maxPermitsUDP);
@@ -169,28 +298,16 @@ public class Reservation {
 			        + maxPermitsTCP);
 		}
 		final FutureChannelCreator futureChannelCreator = new FutureChannelCreator();
-		read.lock();
-		try {
-			if (shutdown) {
-				return futureChannelCreator.failed("shutting down");
+		final FutureDone<Void> futureChannelCreationDone = new FutureDone<Void>();
+		futureChannelCreationDone.addListener(new BaseFutureAdapter<FutureDone<Void>>() {
+			@Override
+			public void operationComplete(final FutureDone<Void> future) throws Exception {
+				// release the permits in all cases, otherwise we may see inconsistencies
+				release(permitsUDP, permitsTCP, 0);
 			}
-
-			FutureDone<Void> futureChannelCreationDone = new FutureDone<Void>();
-			futureChannelCreationDone.addListener(new BaseFutureAdapter<FutureDone<Void>>() {
-				@Override
-				public void operationComplete(final FutureDone<Void> future) throws Exception {
-					// release the permits in all cases, otherwise we may see inconsistencies
-					semaphoreUPD.release(permitsUDP);
-					semaphoreTCP.release(permitsTCP);
-				}
-			});
-			executor.execute(new WaitReservation(futureChannelCreator, futureChannelCreationDone, permitsUDP,
-			        permitsTCP));
-			return futureChannelCreator;
-
-		} finally {
-			read.unlock();
-		}
+		});
+		return enqueue(new WaitReservation(futureChannelCreator, futureChannelCreationDone, permitsUDP, permitsTCP,
+		        0, priority));
 	}
 
 	/**
@@ -206,26 +323,150 @@ public class Reservation {
 			        + ") than maximum " + maxPermitsPermanentTCP);
 		}
 		final FutureChannelCreator futureChannelCreator = new FutureChannelCreator();
-		read.lock();
-		try {
+		final FutureDone<Void> futureChannelCreationDone = new FutureDone<Void>();
+		futureChannelCreationDone.addListener(new BaseFutureAdapter<FutureDone<Void>>() {
+			@Override
+			public void operationComplete(final FutureDone<Void> future) throws Exception {
+				// release the permits in all cases, otherwise we may see
+				// inconsitencies
+				release(0, 0, permitsPermanentTCP);
+			}
+		});
+		return enqueue(new WaitReservation(futureChannelCreator, futureChannelCreationDone, 0, 0,
+		        permitsPermanentTCP, Priority.NORMAL));
+	}
+
+	private FutureChannelCreator enqueue(final WaitReservation waitReservation) {
+		final List<WaitReservation> grantedReservations;
+		synchronized (lock) {
 			if (shutdown) {
-				return futureChannelCreator.failed("shutting down");
+				return waitReservation.futureChannelCreator.failed("shutting down");
 			}
-			FutureDone<Void> futureChannelCreationDone = new FutureDone<Void>();
-			futureChannelCreationDone.addListener(new BaseFutureAdapter<FutureDone<Void>>() {
-				@Override
-				public void operationComplete(final FutureDone<Void> future) throws Exception {
-					// release the permits in all cases, otherwise we may see
-					// inconsitencies
-					semaphorePermanentTCP.release(permitsPermanentTCP);
+			if (waitReservation.priority == Priority.HIGH) {
+				queueHigh.add(waitReservation);
+			} else {
+				queueNormal.add(waitReservation);
+			}
+			grantedReservations = dispatch();
+		}
+		complete(grantedReservations);
+		return waitReservation.futureChannelCreator;
+	}
+
+	private void release(final int permitsUDP, final int permitsTCP, final int permitsPermanentTCP) {
+		final List<WaitReservation> grantedReservations;
+		final boolean done;
+		synchronized (lock) {
+			availableUDP += permitsUDP;
+			availableTCP += permitsTCP;
+			availablePermanentTCP += permitsPermanentTCP;
+			grantedReservations = dispatch();
+			done = checkShutdownDone();
+		}
+		complete(grantedReservations);
+		if (done) {
+			futureReservationDone.done();
+		}
+	}
+
+	/**
+	 * Grants the queued reservations that fit into the available permits. Needs to be called while holding the
+	 * lock.
+	 * 
+	 * @return The reservations that have been granted, to be completed without holding the lock
+	 */
+	private List<WaitReservation> dispatch() {
+		if (shutdown) {
+			return Collections.emptyList();
+		}
+		List<WaitReservation> grantedReservations = null;
+		// a reservation that could not be served and has been bypassed too often stops all later reservations
+		boolean starving = false;
+		final List<WaitReservation> blocked = new ArrayList<WaitReservation>(0);
+		// a starving normal reservation goes before the high priority ones
+		final boolean highFirst = !isStarving(queueNormal);
+		// high priority reservations granted before the normal ones are visited, each of them bypasses all normal
+		// reservations that are left waiting
+		int grantedHigh = 0;
+		for (final Deque<WaitReservation> queue : highFirst ? Arrays.asList(queueHigh, queueNormal) : Arrays.asList(
+		        queueNormal, queueHigh)) {
+			for (final Iterator<WaitReservation> iterator = queue.iterator(); iterator.hasNext() && !starving;) {
+				final WaitReservation waitReservation = iterator.next();
+				if (waitReservation.permitsUDP <= availableUDP && waitReservation.permitsTCP <= availableTCP
+				        && waitReservation.permitsPermanentTCP <= availablePermanentTCP) {
+					availableUDP -= waitReservation.permitsUDP;
+					availableTCP -= waitReservation.permitsTCP;
+					availablePermanentTCP -= waitReservation.permitsPermanentTCP;
+					iterator.remove();
+					for (final WaitReservation blockedReservation : blocked) {
+						blockedReservation.bypassed++;
+					}
+					if (highFirst && queue == queueHigh) {
+						grantedHigh++;
+					}
+					if (grantedReservations == null) {
+						grantedReservations = new ArrayList<WaitReservation>(1);
+					}
+					grantedReservations.add(waitReservation);
+				} else if (waitReservation.bypassed >= MAX_BYPASS) {
+					starving = true;
+				} else {
+					blocked.add(waitReservation);
 				}
-			});
-			executor.execute(new WaitReservationPermanent(futureChannelCreator, futureChannelCreationDone,
-			        permitsPermanentTCP));
-			return futureChannelCreator;
-		} finally {
-			read.unlock();
+			}
+		}
+		if (grantedHigh > 0) {
+			for (final WaitReservation waitReservation : queueNormal) {
+				waitReservation.bypassed += grantedHigh;
+			}
+		}
+		if (grantedReservations == null) {
+			return Collections.emptyList();
+		}
+		return grantedReservations;
+	}
+
+	private static boolean isStarving(final Deque<WaitReservation> queue) {
+		for (final WaitReservation waitReservation : queue) {
+			if (waitReservation.bypassed >= MAX_BYPASS) {
+				return true;
+			}
 		}
+		return false;
+	}
+
+	private void complete(final List<WaitReservation> grantedReservations) {
+		for (final WaitReservation waitReservation : grantedReservations) {
+			final long waitNanos = System.nanoTime() - waitReservation.created;
+			granted.incrementAndGet();
+			totalWaitNanos.addAndGet(waitNanos);
+			long max;
+			while ((max = maxWaitNanos.get()) < waitNanos && !maxWaitNanos.compareAndSet(max, waitNanos)) {
+				// retry
+			}
+			if (parent != null || channelClientConfiguration.simulatedNetwork() != null) {
+				// grant in the calling thread, so that the order of the simulated messages does not depend on the
+				// scheduling of the executor. A child reservation does not block, it queues at the parent.
+				waitReservation.run();
+				continue;
+			}
+			try {
+				executor.execute(waitReservation);
+			} catch (RejectedExecutionException e) {
+				// shutdown in the meantime, give back the permits
+				waitReservation.futureChannelCreator.failed("shutting down");
+				waitReservation.futureChannelCreationShutdown.done();
+			}
+		}
+	}
+
+	private boolean checkShutdownDone() {
+		if (shutdown && !shutdownDone && availableUDP == maxPermitsUDP && availableTCP == maxPermitsTCP
+		        && availablePermanentTCP == maxPermitsPermanentTCP) {
+			shutdownDone = true;
+			return true;
+		}
+		return false;
 	}
 
 	/**
@@ -234,64 +475,39 @@ public class Reservation {
 	 * @return The future when the shutdown is complete
 	 */
 	public FutureDone<Void> shutdown() {
-		write.lock();
-		try {
+		final List<WaitReservation> pending;
+		synchronized (lock) {
 			if (shutdown) {
 				return futureReservationDone.failed("already shutting down");
 			}
 			shutdown = true;
-		} finally {
-			write.unlock();
+			pending = new ArrayList<WaitReservation>(queueHigh);
+			pending.addAll(queueNormal);
+			queueHigh.clear();
+			queueNormal.clear();
 		}
 
-		// fast shutdown for those that are in the queue is not required. We
-		// could let the executor finish since the
-		// shutdown flag is set and the future will be set as well to
-		// "shutting down":
-
-		for (Runnable r : executor.shutdownNow()) {
-			if (r instanceof WaitReservation) {
-				WaitReservation wr = (WaitReservation) r;
-				wr.futureChannelCreator().failed("shutting down");
-			} else {
-				WaitReservationPermanent wr = (WaitReservationPermanent) r;
-				wr.futureChannelCreator().failed("shutting down");
-			}
+		// the granted reservations that are not completed yet will fail, as the shutdown flag is set
+		executor.shutdown();
+		for (final WaitReservation waitReservation : pending) {
+			waitReservation.futureChannelCreator.failed("shutting down");
 		}
-		
+
 		final Collection<ChannelCreator> copyChannelCreators;
 		synchronized (channelCreators) {
 			copyChannelCreators = new ArrayList<ChannelCreator>(channelCreators);
 		}
-		
 
-		// the channelCreator does not change anymore from here on
-		final int size = copyChannelCreators.size();
-		if (size == 0) {
+		// the channelCreator does not change anymore from here on, once all permits are back, we are done
+		for (final ChannelCreator channelCreator : copyChannelCreators) {
+			channelCreator.shutdown();
+		}
+		final boolean done;
+		synchronized (lock) {
+			done = checkShutdownDone();
+		}
+		if (done) {
 			futureReservationDone.done();
-		} else {
-			final AtomicInteger completeCounter = new AtomicInteger(0);
-			for (final ChannelCreator channelCreator : copyChannelCreators) {
-				// this is very important that we set first the listener and
-				// then call shutdown. Otherwise, the order of
-				// the listener calls is not guaranteed and we may call this
-				// listener before the semphore.release,
-				// causing an exception.
-				channelCreator.shutdownFuture().addListener(new BaseFutureAdapter<FutureDone<Void>>() {
-					@Override
-					public void operationComplete(final FutureDone<Void> future) throws Exception {
-						if (completeCounter.incrementAndGet() == size) {
-							// we can block here as we block in
-							// GlobalEventExecutor.INSTANCE
-							semaphoreUPD.acquireUninterruptibly(maxPermitsUDP);
-							semaphoreTCP.acquireUninterruptibly(maxPermitsTCP);
-							semaphorePermanentTCP.acquireUninterruptibly(maxPermitsPermanentTCP);
-							futureReservationDone.done();
-						}
-					}
-				});
-				channelCreator.shutdown();
-			}
 		}
 		// wait for completion
 		return futureReservationDone;
@@ -315,9 +531,8 @@ public class Reservation {
 	}
 
 	/**
-	 * Tries to reserve a channel creator. If too many channel already created,
-	 * wait until channels are closed. This waiter is for the short-lived
-	 * connections.
+	 * A queued reservation. Once the permits are granted, it creates the
+	 * {@link ChannelCreator} and completes the future.
 	 * 
 	 * @author Thomas Bocek
 	 * 
@@ -327,10 +542,15 @@ public class Reservation {
 		private final FutureDone<Void> futureChannelCreationShutdown;
 		private final int permitsUDP;
 		private final int permitsTCP;
+		private final int permitsPermanentTCP;
+		private final Priority priority;
+		private final long created = System.nanoTime();
+		// guarded by lock
+		private int bypassed = 0;
 
 		/**
 		 * Creates a reservation that returns a {@link ChannelCreator} in a
-		 * future once we have the semaphore.
+		 * future once we have the permits.
 		 * 
 		 * @param futureChannelCreator
 		 *            The status of the creating
@@ -342,116 +562,89 @@ public class Reservation {
 		 *            The number of permits for UDP
 		 * @param permitsTCP
 		 *            The number of permits for TCP
+		 * @param permitsPermanentTCP
+		 *            The number of permits for permanent TCP connections
+		 * @param priority
+		 *            The priority class
 		 */
 		public WaitReservation(final FutureChannelCreator futureChannelCreator,
-		        final FutureDone<Void> futureChannelCreationShutdown, final int permitsUDP, final int permitsTCP) {
+		        final FutureDone<Void> futureChannelCreationShutdown, final int permitsUDP, final int permitsTCP,
+		        final int permitsPermanentTCP, final Priority priority) {
 			this.futureChannelCreator = futureChannelCreator;
 			this.futureChannelCreationShutdown = futureChannelCreationShutdown;
 			this.permitsUDP = permitsUDP;
 			this.permitsTCP = permitsTCP;
+			this.permitsPermanentTCP = permitsPermanentTCP;
+			this.priority = priority;
 		}
 
 		@Override
 		public void run() {
-			final ChannelCreator channelCreator;
-			read.lock();
-			try {
-				if (shutdown) {
-					futureChannelCreator.failed("shutting down");
-					return;
-				}
-
-				try {
-					semaphoreUPD.acquire(permitsUDP);
-				} catch (InterruptedException e) {
-					futureChannelCreator.failed(e);
-					return;
-				}
-				try {
-					semaphoreTCP.acquire(permitsTCP);
-				} catch (InterruptedException e) {
-					semaphoreUPD.release(permitsUDP);
-					futureChannelCreator.failed(e);
-					return;
+			if (parent != null) {
+				reserveAtParent();
+				return;
+			}
+			ChannelCreator channelCreator = null;
+			synchronized (lock) {
+				if (!shutdown) {
+					// a permanent reservation has only TCP permits
+					channelCreator = new ChannelCreator(workerGroup, futureChannelCreationShutdown, permitsUDP,
+					        permitsTCP + permitsPermanentTCP, channelClientConfiguration);
+					addToSet(channelCreator);
 				}
-
-				channelCreator = new ChannelCreator(workerGroup, futureChannelCreationShutdown, permitsUDP, permitsTCP,
-				        channelClientConfiguration);
-				addToSet(channelCreator);
-			} finally {
-				read.unlock();
+			}
+			if (channelCreator == null) {
+				futureChannelCreator.failed("shutting down");
+				// give back the permits
+				futureChannelCreationShutdown.done();
+				return;
 			}
 			futureChannelCreator.reserved(channelCreator);
 		}
 
-		private FutureChannelCreator futureChannelCreator() {
-			return futureChannelCreator;
-		}
-
-	}
-
-	/**
-	 * Tries to reserve a channel creator. If too many channel already created,
-	 * wait until channels are closed. This waiter is for the long-lived
-	 * connections.
-	 * 
-	 * @author Thomas Bocek
-	 * 
-	 */
-	private final class WaitReservationPermanent implements Runnable {
-		private final FutureChannelCreator futureChannelCreator;
-		private final FutureDone<Void> futureChannelCreationShutdown;
-		private final int permitsPermanentTCP;
-
 		/**
-		 * Creates a reservation that returns a {@link ChannelCreator} in a
-		 * future once we have the semaphore.
-		 * 
-		 * @param futureChannelCreator
-		 *            The status of the creating
-		 * @param futureChannelCreationShutdown
-		 *            The {@link ChannelCreator} shutdown feature needs to be
-		 *            passed since we need it for {@link Reservation#shutdown()}
-		 *            .
-		 * @param permitsPermanentTCP
-		 *            The number of permits
+		 * Reserves the permits at the parent and hands out the channel creator
+		 * of the parent. Once it is shut down, the permits of both
+		 * reservations are released.
 		 */
-		private WaitReservationPermanent(final FutureChannelCreator futureChannelCreator,
-		        final FutureDone<Void> futureChannelCreationShutdown, final int permitsPermanentTCP) {
-			this.futureChannelCreator = futureChannelCreator;
-			this.futureChannelCreationShutdown = futureChannelCreationShutdown;
-			this.permitsPermanentTCP = permitsPermanentTCP;
-		}
-
-		@Override
-		public void run() {
-			ChannelCreator channelCreator;
-			read.lock();
-			try {
-				if (shutdown) {
-					futureChannelCreator.failed("shutting down");
-					return;
-				}
-
-				try {
-					semaphorePermanentTCP.acquire(permitsPermanentTCP);
-				} catch (InterruptedException e) {
-					futureChannelCreator.failed(e);
-					return;
-				}
-
-				channelCreator = new ChannelCreator(workerGroup, futureChannelCreationShutdown, 0, permitsPermanentTCP,
-				        channelClientConfiguration);
-				addToSet(channelCreator);
-			} finally {
-				read.unlock();
+		private void reserveAtParent() {
+			final FutureChannelCreator futureParent;
+			if (permitsPermanentTCP > 0) {
+				futureParent = parent.createPermanent(permitsPermanentTCP);
+			} else {
+				futureParent = parent.create(permitsUDP, permitsTCP, priority);
 			}
-			futureChannelCreator.reserved(channelCreator);
-		}
-
-		private FutureChannelCreator futureChannelCreator() {
-			return futureChannelCreator;
+			futureParent.addListener(new BaseFutureAdapter<FutureChannelCreator>() {
+				@Override
+				public void operationComplete(final FutureChannelCreator future) throws Exception {
+					if (future.isFailed()) {
+						futureChannelCreator.failed(future);
+						// give back the permits
+						futureChannelCreationShutdown.done();
+						return;
+					}
+					final ChannelCreator channelCreator = future.channelCreator();
+					channelCreator.shutdownFuture().addListener(new BaseFutureAdapter<FutureDone<Void>>() {
+						@Override
+						public void operationComplete(final FutureDone<Void> future) throws Exception {
+							futureChannelCreationShutdown.done();
+						}
+					});
+					final boolean added;
+					synchronized (lock) {
+						added = !shutdown;
+						if (added) {
+							addToSet(channelCreator);
+						}
+					}
+					if (!added) {
+						futureChannelCreator.failed("shutting down");
+						channelCreator.shutdown();
+						return;
+					}
+					futureChannelCreator.reserved(channelCreator);
+				}
+			});
 		}
 	}
-
 }
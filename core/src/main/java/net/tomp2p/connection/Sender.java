@@ -161,6 +161,11 @@ public class Sender {
 		// RTT calculation
 		futureResponse.startRTTMeasurement(false);
 
+		if (isSimulated(message)) {
+			channelClientConfiguration.simulatedNetwork().send(handler, futureResponse, message, idleTCPSeconds, false);
+			return;
+		}
+
 		final ChannelFuture channelFuture;
 		if (peerConnection != null && peerConnection.channelFuture() != null && peerConnection.channelFuture().channel().isActive()) {
 			channelFuture = sendTCPPeerConnection(peerConnection, handler, channelCreator, futureResponse);
@@ -447,6 +452,19 @@ public class Sender {
 		});
 	}
 
+	/**
+	 * Messages to other peers are sent over the simulated network if one is configured. Messages to ourself are
+	 * handled as usual.
+	 * 
+	 * @param message
+	 *            The message to send
+	 * @return True if the message is sent over the simulated network
+	 */
+	private boolean isSimulated(final Message message) {
+		return channelClientConfiguration.simulatedNetwork() != null
+		        && !message.recipient().peerId().equals(message.sender().peerId());
+	}
+
 	private ChannelFuture sendTCPCreateChannel(InetSocketAddress recipient, ChannelCreator channelCreator, PeerConnection peerConnection,
 			ChannelHandler handler, TimeoutFactory timeoutHandler, int connectTimeoutMillis, FutureResponse futureResponse) {
 
@@ -467,6 +485,10 @@ public class Sender {
 				"encoder",
 				new Pair<EventExecutorGroup, ChannelHandler>(null, new TomP2POutbound(channelClientConfiguration.signatureFactory(),
 						channelClientConfiguration.byteBufAllocator())));
+		if (channelClientConfiguration.trafficShaper() != null) {
+			handlers.put("shaper",
+					new Pair<EventExecutorGroup, ChannelHandler>(null, channelClientConfiguration.trafficShaper()));
+		}
 
 		if (peerConnection != null) {
 			// we expect replies on this connection
@@ -595,6 +617,16 @@ public class Sender {
 		// RTT calculation
 		futureResponse.startRTTMeasurement(true);
 
+		if (isSimulated(message)) {
+			if (broadcast) {
+				futureResponse.failed("Layer 2 broadcasts are not simulated");
+			} else {
+				channelClientConfiguration.simulatedNetwork().send(handler, futureResponse, message, idleUDPSeconds,
+				        true);
+			}
+			return;
+		}
+
 		try {
 			ChannelFuture channelFuture = null;
 			switch (sendBehavior.udpSendBehavior(message)) {
@@ -736,6 +768,10 @@ public class Sender {
 		handlers.put(
 				"encoder",
 				new Pair<EventExecutorGroup, ChannelHandler>(null, new TomP2POutbound(channelClientConfiguration.signatureFactory(), channelClientConfiguration.byteBufAllocator())));
+		if (channelClientConfiguration.trafficShaper() != null) {
+			handlers.put("shaper",
+					new Pair<EventExecutorGroup, ChannelHandler>(null, channelClientConfiguration.trafficShaper()));
+		}
 		if (!isFireAndForget) {
 			handlers.put("handler", new Pair<EventExecutorGroup, ChannelHandler>(null, handler));
 		}
@@ -0,0 +1,771 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.connection;
+
+import io.netty.channel.SimpleChannelInboundHandler;
+
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import net.tomp2p.futures.BaseFuture;
+import net.tomp2p.futures.BaseFutureAdapter;
+import net.tomp2p.futures.FutureDone;
+import net.tomp2p.futures.FutureResponse;
+import net.tomp2p.message.DataFilter;
+import net.tomp2p.message.DataFilterTTL;
+import net.tomp2p.message.Message;
+import net.tomp2p.message.Message.Type;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.peers.RTT;
+import net.tomp2p.rpc.DispatchHandler;
+import net.tomp2p.storage.Data;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An in-memory network with virtual time. If set in the {@link ChannelClientConfiguration}, the {@link Sender} hands
+ * the messages to other peers to this network instead of opening channels. The network delivers a copy of the message
+ * to the {@link Dispatcher} of the recipient, as if it had been decoded from the wire, and the reply back to the
+ * {@link FutureResponse} of the sender. Latency, jitter, loss, the uplink bandwidth of a peer and a restricted cone NAT
+ * are simulated.
+ * <p>
+ * Messages are events ordered by their virtual delivery time and the order in which they have been scheduled. The
+ * events are processed by the thread that calls {@link #run(BaseFuture)}, {@link #runUntil(long)} or
+ * {@link #runUntilIdle()}, without waiting for the latency to pass. Since the {@link Reservation} grants and the
+ * {@link ChannelCreator} releases in the calling thread if a simulated network is configured, an operation started
+ * from the thread that runs the network is processed deterministically for a given seed. Timers and executors of the
+ * peers, such as the maintenance, still run in real time and should be disabled.
+ * <p>
+ * The peers typically share one master peer, which is the only peer with a real socket. Every master peer registers
+ * its {@link Dispatcher} in this network.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class SimulatedNetwork {
+
+	private static final Logger LOG = LoggerFactory.getLogger(SimulatedNetwork.class);
+
+	private static final DataFilter RESPONSE_FILTER = new DataFilterTTL();
+
+	private final Map<InetSocketAddress, Dispatcher> dispatchers = new ConcurrentHashMap<InetSocketAddress, Dispatcher>();
+
+	private final Lock lock = new ReentrantLock();
+	private final Condition scheduled = lock.newCondition();
+
+	// guarded by lock
+	private final PriorityQueue<Event> events = new PriorityQueue<Event>();
+	private final Random random;
+	private final Map<Number160, Long> uplinkBandwidth = new HashMap<Number160, Long>();
+	private final Map<Number160, Long> uplinkBusyMicros = new HashMap<Number160, Long>();
+	private final Map<Number160, Map<Number160, Long>> natMappings = new HashMap<Number160, Map<Number160, Long>>();
+	private final Set<Number160> offline = new HashSet<Number160>();
+	private long nowMicros = 0;
+	private long sequence = 0;
+
+	private volatile int latencyMillis = 50;
+	private volatile int jitterMillis = 0;
+	private volatile double lossRate = 0;
+	private volatile long bandwidth = 0;
+	private volatile int natTimeoutMillis = 30 * 1000;
+	private volatile int idleMillis = 5 * 1000;
+
+	// statistics, guarded by lock
+	private long messagesSent = 0;
+	private long messagesDelivered = 0;
+	private long messagesLost = 0;
+	private long messagesBlocked = 0;
+	private long bytesSent = 0;
+
+	/**
+	 * Creates a simulated network.
+	 *
+	 * @param seed
+	 *            The seed for the jitter and the loss. The same seed and the same operations result in the same
+	 *            schedule
+	 */
+	public SimulatedNetwork(final long seed) {
+		this.random = new Random(seed);
+	}
+
+	/**
+	 * @return The one way latency in milliseconds
+	 */
+	public int latencyMillis() {
+		return latencyMillis;
+	}
+
+	/**
+	 * @param latencyMillis
+	 *            The one way latency in milliseconds, the default is 50
+	 * @return This class
+	 */
+	public SimulatedNetwork latencyMillis(final int latencyMillis) {
+		this.latencyMillis = latencyMillis;
+		return this;
+	}
+
+	/**
+	 * @return The maximum random delay in milliseconds that is added to the latency of every message
+	 */
+	public int jitterMillis() {
+		return jitterMillis;
+	}
+
+	/**
+	 * @param jitterMillis
+	 *            The maximum random delay in milliseconds that is added to the latency of every message
+	 * @return This class
+	 */
+	public SimulatedNetwork jitterMillis(final int jitterMillis) {
+		this.jitterMillis = jitterMillis;
+		return this;
+	}
+
+	/**
+	 * @return The probability that a message is lost
+	 */
+	public double lossRate() {
+		return lossRate;
+	}
+
+	/**
+	 * @param lossRate
+	 *            The probability that a message is lost, between 0 and 1
+	 * @return This class
+	 */
+	public SimulatedNetwork lossRate(final double lossRate) {
+		if (lossRate < 0 || lossRate > 1) {
+			throw new IllegalArgumentException("The loss rate needs to be between 0 and 1");
+		}
+		this.lossRate = lossRate;
+		return this;
+	}
+
+	/**
+	 * @return The uplink bandwidth of the peers in bytes per second, 0 for unlimited
+	 */
+	public long bandwidth() {
+		return bandwidth;
+	}
+
+	/**
+	 * @param bandwidth
+	 *            The uplink bandwidth of the peers in bytes per second, 0 for unlimited. A peer sends one message
+	 *            after the other, thus, messages wait until the previous messages have been sent
+	 * @return This class
+	 */
+	public SimulatedNetwork bandwidth(final long bandwidth) {
+		this.bandwidth = bandwidth;
+		return this;
+	}
+
+	/**
+	 * @param peerId
+	 *            The peer
+	 * @param bandwidth
+	 *            The uplink bandwidth of this peer in bytes per second, 0 for unlimited
+	 * @return This class
+	 */
+	public SimulatedNetwork bandwidth(final Number160 peerId, final long bandwidth) {
+		lock.lock();
+		try {
+			uplinkBandwidth.put(peerId, bandwidth);
+		} finally {
+			lock.unlock();
+		}
+		return this;
+	}
+
+	/**
+	 * @return The time in milliseconds a NAT keeps a mapping after the last outgoing message
+	 */
+	public int natTimeoutMillis() {
+		return natTimeoutMillis;
+	}
+
+	/**
+	 * @param natTimeoutMillis
+	 *            The time in milliseconds a NAT keeps a mapping after the last outgoing message
+	 * @return This class
+	 */
+	public SimulatedNetwork natTimeoutMillis(final int natTimeoutMillis) {
+		this.natTimeoutMillis = natTimeoutMillis;
+		return this;
+	}
+
+	/**
+	 * Puts a peer behind a restricted cone NAT. A request to this peer is only delivered if this peer has sent a
+	 * message to the requester within the NAT timeout.
+	 *
+	 * @param peerId
+	 *            The peer
+	 * @param behindNAT
+	 *            True to put the peer behind a NAT
+	 * @return This class
+	 */
+	public SimulatedNetwork behindNAT(final Number160 peerId, final boolean behindNAT) {
+		lock.lock();
+		try {
+			if (!behindNAT) {
+				natMappings.remove(peerId);
+			} else if (!natMappings.containsKey(peerId)) {
+				natMappings.put(peerId, new HashMap<Number160, Long>());
+			}
+		} finally {
+			lock.unlock();
+		}
+		return this;
+	}
+
+	/**
+	 * Takes a peer offline or brings it back. The messages from and to an offline peer are dropped.
+	 *
+	 * @param peerId
+	 *            The peer
+	 * @param offline
+	 *            True to take the peer offline
+	 * @return This class
+	 */
+	public SimulatedNetwork offline(final Number160 peerId, final boolean offline) {
+		lock.lock();
+		try {
+			if (offline) {
+				this.offline.add(peerId);
+			} else {
+				this.offline.remove(peerId);
+			}
+		} finally {
+			lock.unlock();
+		}
+		return this;
+	}
+
+	/**
+	 * @return The real time in milliseconds {@link #run(BaseFuture)} waits for a new message if no event is left
+	 */
+	public int idleMillis() {
+		return idleMillis;
+	}
+
+	/**
+	 * @param idleMillis
+	 *            The real time in milliseconds {@link #run(BaseFuture)} waits for a new message if no event is left,
+	 *            e.g., because an operation has been started from another thread
+	 * @return This class
+	 */
+	public SimulatedNetwork idleMillis(final int idleMillis) {
+		this.idleMillis = idleMillis;
+		return this;
+	}
+
+	/**
+	 * Registers the dispatcher of a master peer. This is done by the {@link PeerCreator}.
+	 *
+	 * @param peerAddress
+	 *            The address of the master peer
+	 * @param dispatcher
+	 *            The dispatcher that handles the messages to this address
+	 */
+	public void register(final PeerAddress peerAddress, final Dispatcher dispatcher) {
+		dispatchers.put(peerAddress.createSocketUDP(), dispatcher);
+	}
+
+	/**
+	 * @param peerAddress
+	 *            The address of the master peer that has been shut down
+	 */
+	public void unregister(final PeerAddress peerAddress) {
+		dispatchers.remove(peerAddress.createSocketUDP());
+	}
+
+	/**
+	 * @return The virtual time in milliseconds since the network has been created
+	 */
+	public long currentTimeMillis() {
+		lock.lock();
+		try {
+			return nowMicros / 1000;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return The number of events that have not been processed yet
+	 */
+	public int pendingEvents() {
+		lock.lock();
+		try {
+			return events.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return The number of requests and replies that have been sent
+	 */
+	public long messagesSent() {
+		lock.lock();
+		try {
+			return messagesSent;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return The number of requests and replies that reached their recipient
+	 */
+	public long messagesDelivered() {
+		lock.lock();
+		try {
+			return messagesDelivered;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return The number of requests and replies that have been lost or sent from or to an offline peer
+	 */
+	public long messagesLost() {
+		lock.lock();
+		try {
+			return messagesLost;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return The number of requests that have been dropped by a NAT
+	 */
+	public long messagesBlocked() {
+		lock.lock();
+		try {
+			return messagesBlocked;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return The estimated number of bytes that have been sent
+	 */
+	public long bytesSent() {
+		lock.lock();
+		try {
+			return bytesSent;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Processes the events until the future is completed. If no event is left, this method waits for
+	 * {@link #idleMillis()} in real time for new messages.
+	 *
+	 * @param future
+	 *            The future to wait for
+	 * @return True if the future has been completed, false if no event was left
+	 */
+	public boolean run(final BaseFuture future) {
+		future.addListener(new BaseFutureAdapter<BaseFuture>() {
+			@Override
+			public void operationComplete(final BaseFuture future) throws Exception {
+				signal();
+			}
+		});
+		while (!future.isCompleted()) {
+			final Event event = poll(Long.MAX_VALUE, System.currentTimeMillis() + idleMillis, future);
+			if (event == null) {
+				break;
+			}
+			execute(event);
+		}
+		return future.isCompleted();
+	}
+
+	/**
+	 * Processes the events up to the given virtual time and sets the virtual time to it.
+	 *
+	 * @param timeMillis
+	 *            The virtual time in milliseconds
+	 * @return The number of processed events
+	 */
+	public int runUntil(final long timeMillis) {
+		int processed = 0;
+		Event event;
+		while ((event = poll(timeMillis * 1000, 0, null)) != null) {
+			execute(event);
+			processed++;
+		}
+		lock.lock();
+		try {
+			nowMicros = Math.max(nowMicros, timeMillis * 1000);
+		} finally {
+			lock.unlock();
+		}
+		return processed;
+	}
+
+	/**
+	 * Processes the events until no event is left. The timeouts of lost messages are events as well, thus, every
+	 * request is completed afterwards.
+	 *
+	 * @return The number of processed events
+	 */
+	public int runUntilIdle() {
+		int processed = 0;
+		Event event;
+		while ((event = poll(Long.MAX_VALUE, 0, null)) != null) {
+			execute(event);
+			processed++;
+		}
+		return processed;
+	}
+
+	/**
+	 * Sends a request. This is called by the {@link Sender}.
+	 *
+	 * @param handler
+	 *            The handler for the reply, null for fire and forget
+	 * @param futureResponse
+	 *            The future to set the reply
+	 * @param message
+	 *            The request
+	 * @param idleSeconds
+	 *            The virtual time in seconds until the request fails without a reply
+	 * @param udp
+	 *            True if the request is sent with UDP
+	 */
+	public void send(final SimpleChannelInboundHandler<Message> handler, final FutureResponse futureResponse,
+	        final Message message, final int idleSeconds, final boolean udp) {
+		final Number160 sender = message.sender().peerId();
+		final Number160 recipient = message.recipient().peerId();
+		lock.lock();
+		try {
+			final long sentMicros = nowMicros;
+			final long departureMicros = transmit(sender, message.estimateSize());
+			if (handler == null) {
+				// the sender does not wait for a reply
+				schedule(departureMicros, new Runnable() {
+					@Override
+					public void run() {
+						futureResponse.emptyResponse();
+					}
+				});
+			} else if (idleSeconds > 0) {
+				schedule(sentMicros + idleSeconds * 1000L * 1000L, new Runnable() {
+					@Override
+					public void run() {
+						futureResponse.failed("Timeout in the simulated network");
+					}
+				});
+			}
+			if (isLost(sender, recipient)) {
+				return;
+			}
+			schedule(departureMicros + latencyMicros(), new Runnable() {
+				@Override
+				public void run() {
+					deliverRequest(handler, futureResponse, message, sentMicros, udp);
+				}
+			});
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void deliverRequest(final SimpleChannelInboundHandler<Message> handler,
+	        final FutureResponse futureResponse, final Message message, final long sentMicros, final boolean udp) {
+		if (!passNAT(message.recipient().peerId(), message.sender().peerId())) {
+			LOG.debug("Request {} dropped by the NAT of the recipient", message);
+			return;
+		}
+		final Dispatcher dispatcher = dispatchers.get(message.recipient().createSocketUDP());
+		if (dispatcher == null) {
+			LOG.debug("No peer listens on the address of {}", message);
+			return;
+		}
+		final Message request = message.duplicate(new DataFilter() {
+			@Override
+			public Data filter(final Data data, final boolean isConvertMeta, final boolean isReply) {
+				final Data copyData = isConvertMeta ? data.duplicateMeta() : data.duplicate();
+				if (copyData.isSigned() && copyData.signature() == null) {
+					copyData.protectEntry(message.privateKey());
+				}
+				return copyData;
+			}
+		});
+		request.senderSocket(udp ? message.sender().createSocketUDP() : message.sender().createSocketTCP());
+		request.recipientSocket(udp ? message.recipient().createSocketUDP() : message.recipient().createSocketTCP());
+		request.udp(udp);
+
+		final PeerAddress self = dispatcher.peerBean().serverPeerAddress();
+		final DispatchHandler dispatchHandler = dispatcher.associatedHandler(request);
+		if (dispatchHandler == null) {
+			LOG.debug("No handler found for {}", request);
+			reply(handler, futureResponse, message, DispatchHandler.createResponseMessage(request, Type.UNKNOWN_ID,
+			        self), sentMicros, udp);
+			return;
+		}
+		dispatchHandler.forwardMessage(request, null, new Responder() {
+			@Override
+			public FutureDone<Void> response(final Message responseMessage) {
+				reply(handler, futureResponse, message, responseMessage, sentMicros, udp);
+				return new FutureDone<Void>().done();
+			}
+
+			@Override
+			public void failed(final Type type, final String reason) {
+				reply(handler, futureResponse, message, DispatchHandler.createResponseMessage(request, type, self),
+				        sentMicros, udp);
+			}
+
+			@Override
+			public void responseFireAndForget() {
+				LOG.debug("The reply handler was a fire-and-forget handler, we don't send any message back! {}",
+				        request);
+			}
+		});
+	}
+
+	private void reply(final SimpleChannelInboundHandler<Message> handler, final FutureResponse futureResponse,
+	        final Message message, final Message responseMessage, final long sentMicros, final boolean udp) {
+		if (handler == null) {
+			return;
+		}
+		// the reply goes back the way the request came, even if a master peer replies on behalf of another peer
+		final Number160 sender = message.recipient().peerId();
+		final Number160 recipient = message.sender().peerId();
+		lock.lock();
+		try {
+			final long departureMicros = transmit(sender, responseMessage.estimateSize());
+			if (isLost(sender, recipient)) {
+				return;
+			}
+			schedule(departureMicros + latencyMicros(), new Runnable() {
+				@Override
+				public void run() {
+					deliverReply(handler, futureResponse, message, responseMessage, sentMicros, udp);
+				}
+			});
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void deliverReply(final SimpleChannelInboundHandler<Message> handler,
+	        final FutureResponse futureResponse, final Message message, final Message responseMessage,
+	        final long sentMicros, final boolean udp) {
+		if (!passNAT(message.sender().peerId(), message.recipient().peerId())) {
+			LOG.debug("Reply {} dropped by the NAT of the recipient", responseMessage);
+			return;
+		}
+		if (futureResponse.isCompleted()) {
+			return;
+		}
+		final Message reply = responseMessage.duplicate(RESPONSE_FILTER);
+		reply.senderSocket(udp ? reply.sender().createSocketUDP() : reply.sender().createSocketTCP());
+		reply.udp(udp);
+		if (reply.type() == Type.UNKNOWN_ID || reply.type() == Type.EXCEPTION) {
+			futureResponse.failed("Message was not delivered successfully, the reply is " + reply.type() + ": "
+			        + futureResponse.request());
+			return;
+		}
+		if (handler instanceof RequestHandler && (reply.isOk() || reply.isNotOk())) {
+			final long rttMillis;
+			lock.lock();
+			try {
+				rttMillis = (nowMicros - sentMicros) / 1000;
+			} finally {
+				lock.unlock();
+			}
+			((RequestHandler<?>) handler).peerBean().notifyPeerFound(reply.sender(), null, null,
+			        new RTT(rttMillis, udp));
+		}
+		futureResponse.response(reply);
+	}
+
+	/**
+	 * Queues the message in the uplink of the sender. Needs to be called while holding the lock.
+	 *
+	 * @return The virtual time in microseconds the message has been sent
+	 */
+	private long transmit(final Number160 sender, final int size) {
+		messagesSent++;
+		bytesSent += size;
+		final Long peerBandwidth = uplinkBandwidth.get(sender);
+		final long senderBandwidth = peerBandwidth == null ? bandwidth : peerBandwidth;
+		if (senderBandwidth <= 0) {
+			return nowMicros;
+		}
+		final Long busyMicros = uplinkBusyMicros.get(sender);
+		final long startMicros = busyMicros == null ? nowMicros : Math.max(nowMicros, busyMicros);
+		final long doneMicros = startMicros + (size * 1000L * 1000L) / senderBandwidth;
+		uplinkBusyMicros.put(sender, doneMicros);
+		return doneMicros;
+	}
+
+	/**
+	 * Opens the NAT mapping of the sender and decides if the message is lost. Needs to be called while holding the
+	 * lock.
+	 */
+	private boolean isLost(final Number160 sender, final Number160 recipient) {
+		final Map<Number160, Long> mappings = natMappings.get(sender);
+		if (mappings != null) {
+			mappings.put(recipient, nowMicros);
+		}
+		if (offline.contains(sender) || offline.contains(recipient)
+		        || (lossRate > 0 && random.nextDouble() < lossRate)) {
+			messagesLost++;
+			return true;
+		}
+		return false;
+	}
+
+	private boolean passNAT(final Number160 recipient, final Number160 sender) {
+		lock.lock();
+		try {
+			if (offline.contains(recipient)) {
+				messagesLost++;
+				return false;
+			}
+			final Map<Number160, Long> mappings = natMappings.get(recipient);
+			if (mappings != null) {
+				final Long lastSentMicros = mappings.get(sender);
+				if (lastSentMicros == null || lastSentMicros + natTimeoutMillis * 1000L < nowMicros) {
+					messagesBlocked++;
+					return false;
+				}
+			}
+			messagesDelivered++;
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Needs to be called while holding the lock.
+	 */
+	private long latencyMicros() {
+		long micros = latencyMillis * 1000L;
+		if (jitterMillis > 0) {
+			micros += random.nextInt(jitterMillis * 1000 + 1);
+		}
+		return micros;
+	}
+
+	/**
+	 * Needs to be called while holding the lock.
+	 */
+	private void schedule(final long timeMicros, final Runnable task) {
+		events.add(new Event(timeMicros, sequence++, task));
+		scheduled.signalAll();
+	}
+
+	private void signal() {
+		lock.lock();
+		try {
+			scheduled.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Takes the next event and advances the virtual time.
+	 *
+	 * @param maxMicros
+	 *            Events after this virtual time are not taken
+	 * @param deadline
+	 *            The real time until this method waits for an event, 0 to not wait
+	 * @param future
+	 *            Stop waiting once this future is completed, may be null
+	 * @return The next event, or null if there is none
+	 */
+	private Event poll(final long maxMicros, final long deadline, final BaseFuture future) {
+		lock.lock();
+		try {
+			while (events.isEmpty()) {
+				final long waitMillis = deadline - System.currentTimeMillis();
+				if (waitMillis <= 0 || (future != null && future.isCompleted())) {
+					return null;
+				}
+				scheduled.await(waitMillis, TimeUnit.MILLISECONDS);
+			}
+			if (events.peek().timeMicros > maxMicros) {
+				return null;
+			}
+			final Event event = events.poll();
+			nowMicros = Math.max(nowMicros, event.timeMicros);
+			return event;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private static void execute(final Event event) {
+		try {
+			event.task.run();
+		} catch (Throwable t) {
+			LOG.error("Exception in the simulated network", t);
+		}
+	}
+
+	/**
+	 * A task that runs at a virtual time. Tasks with the same time run in the order they have been scheduled.
+	 */
+	private static final class Event implements Comparable<Event> {
+		private final long timeMicros;
+		private final long sequence;
+		private final Runnable task;
+
+		private Event(final long timeMicros, final long sequence, final Runnable task) {
+			this.timeMicros = timeMicros;
+			this.sequence = sequence;
+			this.task = task;
+		}
+
+		@Override
+		public int compareTo(final Event o) {
+			if (timeMicros != o.timeMicros) {
+				return timeMicros < o.timeMicros ? -1 : 1;
+			}
+			return sequence < o.sequence ? -1 : (sequence == o.sequence ? 0 : 1);
+		}
+	}
+}
@@ -0,0 +1,505 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.connection;
+
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.util.concurrent.EventExecutor;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import net.tomp2p.message.DataMap;
+import net.tomp2p.message.Message;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.rpc.RPC;
+import net.tomp2p.storage.Data;
+import net.tomp2p.utils.TokenBucket;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Limits the bandwidth of the outgoing messages with token buckets. There can
+ * be a global limit, a limit per traffic class, a limit per remote peer and a
+ * limit per local peer, if several peers share the connections. A message is
+ * sent once all the buckets it is charged to are not in debt anymore, thus, a
+ * message can be larger than the burst of a bucket. The
+ * messages that need to wait are queued per traffic class and the classes are
+ * served in the order of their priority, thus, user traffic preempts
+ * background transfers, but is never blocked by the limit of another class.
+ * This handler is placed right after the encoder in the pipeline of the
+ * client and the server and needs to be shared by both.
+ *
+ * @author Thomas Bocek
+ *
+ */
+@Sharable
+public class TrafficShaper extends ChannelOutboundHandlerAdapter {
+
+	private static final Logger LOG = LoggerFactory.getLogger(TrafficShaper.class);
+
+	private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+	/**
+	 * The traffic class of a message, in the order of the priority.
+	 */
+	public enum TrafficClass {
+		/**
+		 * Pings and other small messages that keep the peer map up to date
+		 */
+		MAINTENANCE,
+		/**
+		 * Regular user traffic
+		 */
+		USER,
+		/**
+		 * Background transfers of the replication
+		 */
+		REPLICATION
+	}
+
+	// guards the buckets, the queues and the statistics, never held while writing
+	private final Object lock = new Object();
+	private TokenBucket globalLimit = null;
+	private final Map<TrafficClass, TokenBucket> classLimits = new EnumMap<TrafficClass, TokenBucket>(
+	        TrafficClass.class);
+	private final Map<Number160, TokenBucket> remoteLimits = new HashMap<Number160, TokenBucket>();
+	private final Map<Number160, TokenBucket> localLimits = new HashMap<Number160, TokenBucket>();
+	private final Map<TrafficClass, Deque<PendingWrite>> queues = new EnumMap<TrafficClass, Deque<PendingWrite>>(
+	        TrafficClass.class);
+	private long queuedBytes = 0;
+	private long drainAtNanos = 0;
+	private boolean drainScheduled = false;
+
+	// statistics
+	private final RateMeter globalRate = new RateMeter();
+	private final Map<TrafficClass, RateMeter> classRates = new EnumMap<TrafficClass, RateMeter>(TrafficClass.class);
+
+	private final Runnable drain = new Runnable() {
+		@Override
+		public void run() {
+			drain();
+		}
+	};
+
+	public TrafficShaper() {
+		for (TrafficClass trafficClass : TrafficClass.values()) {
+			queues.put(trafficClass, new ArrayDeque<PendingWrite>());
+			classRates.put(trafficClass, new RateMeter());
+		}
+	}
+
+	/**
+	 * @param bytesPerSecond
+	 *            The bandwidth of all outgoing messages, or 0 for no limit
+	 * @return This class
+	 */
+	public TrafficShaper globalLimit(final long bytesPerSecond) {
+		synchronized (lock) {
+			globalLimit = createBucket(bytesPerSecond);
+		}
+		return this;
+	}
+
+	/**
+	 * @param trafficClass
+	 *            The traffic class
+	 * @param bytesPerSecond
+	 *            The bandwidth of the outgoing messages of this class, or 0
+	 *            for no limit
+	 * @return This class
+	 */
+	public TrafficShaper limit(final TrafficClass trafficClass, final long bytesPerSecond) {
+		synchronized (lock) {
+			putOrRemove(classLimits, trafficClass, createBucket(bytesPerSecond));
+		}
+		return this;
+	}
+
+	/**
+	 * @param remotePeer
+	 *            The remote peer
+	 * @param bytesPerSecond
+	 *            The bandwidth of the outgoing messages to this peer, or 0 for
+	 *            no limit
+	 * @return This class
+	 */
+	public TrafficShaper limit(final PeerAddress remotePeer, final long bytesPerSecond) {
+		synchronized (lock) {
+			putOrRemove(remoteLimits, remotePeer.peerId(), createBucket(bytesPerSecond));
+		}
+		return this;
+	}
+
+	/**
+	 * Limits the bandwidth of one of the peers that share the connections of
+	 * a master peer, so that it cannot take the bandwidth of the other peers.
+	 * 
+	 * @param localPeer
+	 *            The peer that sends the messages
+	 * @param bytesPerSecond
+	 *            The bandwidth of the outgoing messages of this peer, or 0 for
+	 *            no limit
+	 * @return This class
+	 */
+	public TrafficShaper localLimit(final PeerAddress localPeer, final long bytesPerSecond) {
+		synchronized (lock) {
+			putOrRemove(localLimits, localPeer.peerId(), createBucket(bytesPerSecond));
+		}
+		return this;
+	}
+
+	/**
+	 * @return The number of bytes sent in the last second
+	 */
+	public long rate() {
+		synchronized (lock) {
+			return globalRate.rate(System.nanoTime());
+		}
+	}
+
+	/**
+	 * @param trafficClass
+	 *            The traffic class
+	 * @return The number of bytes of this class sent in the last second
+	 */
+	public long rate(final TrafficClass trafficClass) {
+		synchronized (lock) {
+			return classRates.get(trafficClass).rate(System.nanoTime());
+		}
+	}
+
+	/**
+	 * @return The number of messages that wait to be sent
+	 */
+	public int queueSize() {
+		synchronized (lock) {
+			int size = 0;
+			for (Deque<PendingWrite> queue : queues.values()) {
+				size += queue.size();
+			}
+			return size;
+		}
+	}
+
+	/**
+	 * @param trafficClass
+	 *            The traffic class
+	 * @return The number of messages of this class that wait to be sent
+	 */
+	public int queueSize(final TrafficClass trafficClass) {
+		synchronized (lock) {
+			return queues.get(trafficClass).size();
+		}
+	}
+
+	/**
+	 * @return The estimated number of bytes of the messages that wait to be
+	 *         sent
+	 */
+	public long queuedBytes() {
+		synchronized (lock) {
+			return queuedBytes;
+		}
+	}
+
+	@Override
+	public void write(final ChannelHandlerContext ctx, final Object msg, final ChannelPromise promise)
+	        throws Exception {
+		if (!(msg instanceof Message)) {
+			ctx.write(msg, promise);
+			return;
+		}
+		final Message message = (Message) msg;
+		final PendingWrite pendingWrite = new PendingWrite(ctx, message, promise, trafficClass(message),
+		        size(message));
+		synchronized (lock) {
+			final long waitNanos = waitNanos(pendingWrite);
+			if (waitNanos == 0 && !queued(pendingWrite.trafficClass)) {
+				charge(pendingWrite);
+			} else {
+				LOG.debug("shape {} of class {}, wait {} ns", message, pendingWrite.trafficClass, waitNanos);
+				queues.get(pendingWrite.trafficClass).add(pendingWrite);
+				queuedBytes += pendingWrite.size;
+				scheduleDrain(ctx.executor(), waitNanos);
+				return;
+			}
+		}
+		ctx.write(msg, promise);
+	}
+
+	/**
+	 * Returns the traffic class of a message. The replies are in the class of
+	 * their requests. Override this method to classify the messages
+	 * differently.
+	 *
+	 * @param message
+	 *            The message to send
+	 * @return The traffic class of the message
+	 */
+	protected TrafficClass trafficClass(final Message message) {
+		final byte command = message.command();
+		if (command == RPC.Commands.PING.getNr() || command == RPC.Commands.QUIT.getNr()
+		        || command == RPC.Commands.LOCAL_ANNOUNCE.getNr() || command == RPC.Commands.PEX.getNr()) {
+			return TrafficClass.MAINTENANCE;
+		}
+		if (command == RPC.Commands.REPLICA_PUT.getNr() || command == RPC.Commands.SYNC.getNr()
+		        || command == RPC.Commands.SYNC_INFO.getNr()) {
+			return TrafficClass.REPLICATION;
+		}
+		return TrafficClass.USER;
+	}
+
+	/**
+	 * Returns the size of a message, which is not known before encoding. The
+	 * estimation of the message does not include the size of the data, which
+	 * is added here.
+	 *
+	 * @param message
+	 *            The message to send
+	 * @return The estimated size of the message in bytes
+	 */
+	protected int size(final Message message) {
+		int size = message.estimateSize();
+		for (DataMap dataMap : message.dataMapList()) {
+			for (Data data : dataMap.dataMap().values()) {
+				size += data.length();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Sends the queued messages that are allowed to be sent. Needs to be
+	 * called without holding the lock.
+	 */
+	private void drain() {
+		final List<PendingWrite> ready = new ArrayList<PendingWrite>();
+		final List<PendingWrite> closed = new ArrayList<PendingWrite>(0);
+		synchronized (lock) {
+			drainScheduled = false;
+			long nextNanos = Long.MAX_VALUE;
+			EventExecutor executor = null;
+			classes: for (Deque<PendingWrite> queue : queues.values()) {
+				for (Iterator<PendingWrite> iterator = queue.iterator(); iterator.hasNext();) {
+					final PendingWrite pendingWrite = iterator.next();
+					if (!pendingWrite.ctx.channel().isOpen()) {
+						iterator.remove();
+						queuedBytes -= pendingWrite.size;
+						closed.add(pendingWrite);
+						continue;
+					}
+					final long waitNanos = waitNanos(pendingWrite);
+					if (waitNanos == 0) {
+						iterator.remove();
+						queuedBytes -= pendingWrite.size;
+						charge(pendingWrite);
+						ready.add(pendingWrite);
+						continue;
+					}
+					nextNanos = Math.min(nextNanos, waitNanos);
+					executor = pendingWrite.ctx.executor();
+					if (globalLimit != null && globalLimit.debtNanos() > 0) {
+						// the lower classes cannot pass either
+						break classes;
+					}
+					final TokenBucket classLimit = classLimits.get(pendingWrite.trafficClass);
+					if (classLimit != null && classLimit.debtNanos() > 0) {
+						// this class is blocked, try the next one
+						break;
+					}
+					// only the remote or the local peer of this message is blocked, try the next message of this class
+				}
+			}
+			if (executor != null) {
+				scheduleDrain(executor, nextNanos);
+			}
+		}
+		for (PendingWrite pendingWrite : ready) {
+			pendingWrite.ctx.writeAndFlush(pendingWrite.message, pendingWrite.promise);
+		}
+		for (PendingWrite pendingWrite : closed) {
+			pendingWrite.promise.setFailure(new ClosedChannelException());
+		}
+	}
+
+	/**
+	 * Schedules a drain, unless a drain is scheduled earlier. Needs to be
+	 * called while holding the lock.
+	 */
+	private void scheduleDrain(final EventExecutor executor, final long delayNanos) {
+		final long atNanos = System.nanoTime() + delayNanos;
+		if (drainScheduled && drainAtNanos - atNanos <= 0) {
+			return;
+		}
+		try {
+			executor.schedule(drain, delayNanos, TimeUnit.NANOSECONDS);
+			drainScheduled = true;
+			drainAtNanos = atNanos;
+		} catch (RejectedExecutionException e) {
+			// shutting down, the channels are closed and the messages fail with the next drain, if any
+			LOG.debug("cannot schedule the traffic shaping", e);
+		}
+	}
+
+	/**
+	 * @return True if a message of this or of a higher priority class waits.
+	 *         Needs to be called while holding the lock.
+	 */
+	private boolean queued(final TrafficClass trafficClass) {
+		for (TrafficClass other : TrafficClass.values()) {
+			if (!queues.get(other).isEmpty()) {
+				return true;
+			}
+			if (other == trafficClass) {
+				return false;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return The time in nanoseconds until all the buckets of this message
+	 *         are paid back. Needs to be called while holding the lock.
+	 */
+	private long waitNanos(final PendingWrite pendingWrite) {
+		long waitNanos = 0;
+		for (TokenBucket tokenBucket : buckets(pendingWrite)) {
+			waitNanos = Math.max(waitNanos, tokenBucket.debtNanos());
+		}
+		return waitNanos;
+	}
+
+	/**
+	 * Takes the tokens for a message from all its buckets. Needs to be called
+	 * while holding the lock.
+	 */
+	private void charge(final PendingWrite pendingWrite) {
+		for (TokenBucket tokenBucket : buckets(pendingWrite)) {
+			tokenBucket.reserve(pendingWrite.size);
+		}
+		final long now = System.nanoTime();
+		globalRate.add(pendingWrite.size, now);
+		classRates.get(pendingWrite.trafficClass).add(pendingWrite.size, now);
+	}
+
+	private List<TokenBucket> buckets(final PendingWrite pendingWrite) {
+		final TokenBucket classLimit = classLimits.get(pendingWrite.trafficClass);
+		final Message message = pendingWrite.message;
+		final TokenBucket remoteLimit = message.recipient() == null ? null : remoteLimits.get(message.recipient()
+		        .peerId());
+		final TokenBucket localLimit = message.sender() == null ? null : localLimits.get(message.sender().peerId());
+		if (globalLimit == null && classLimit == null && remoteLimit == null && localLimit == null) {
+			return Collections.emptyList();
+		}
+		final List<TokenBucket> buckets = new ArrayList<TokenBucket>(4);
+		if (globalLimit != null) {
+			buckets.add(globalLimit);
+		}
+		if (classLimit != null) {
+			buckets.add(classLimit);
+		}
+		if (remoteLimit != null) {
+			buckets.add(remoteLimit);
+		}
+		if (localLimit != null) {
+			buckets.add(localLimit);
+		}
+		return buckets;
+	}
+
+	/**
+	 * Creates a bucket with a burst of a tenth of a second.
+	 */
+	private static TokenBucket createBucket(final long bytesPerSecond) {
+		if (bytesPerSecond <= 0) {
+			return null;
+		}
+		return new TokenBucket(bytesPerSecond, Math.max(1, bytesPerSecond / 10));
+	}
+
+	private static <K> void putOrRemove(final Map<K, TokenBucket> map, final K key, final TokenBucket tokenBucket) {
+		if (tokenBucket == null) {
+			map.remove(key);
+		} else {
+			map.put(key, tokenBucket);
+		}
+	}
+
+	/**
+	 * A message that waits for its tokens.
+	 */
+	private static class PendingWrite {
+		private final ChannelHandlerContext ctx;
+		private final Message message;
+		private final ChannelPromise promise;
+		private final TrafficClass trafficClass;
+		private final int size;
+
+		public PendingWrite(final ChannelHandlerContext ctx, final Message message, final ChannelPromise promise,
+		        final TrafficClass trafficClass, final int size) {
+			this.ctx = ctx;
+			this.message = message;
+			this.promise = promise;
+			this.trafficClass = trafficClass;
+			this.size = size;
+		}
+	}
+
+	/**
+	 * Counts the bytes sent in the last complete second.
+	 */
+	private static class RateMeter {
+		private long windowStart = System.nanoTime();
+		private long windowBytes = 0;
+		private long rate = 0;
+
+		public void add(final long bytes, final long now) {
+			roll(now);
+			windowBytes += bytes;
+		}
+
+		public long rate(final long now) {
+			roll(now);
+			return rate;
+		}
+
+		private void roll(final long now) {
+			final long elapsed = now - windowStart;
+			if (elapsed >= NANOS_PER_SECOND) {
+				// if more than one window passed, nothing has been sent in the last one
+				rate = elapsed < 2 * NANOS_PER_SECOND ? windowBytes : 0;
+				windowBytes = 0;
+				windowStart = now;
+			}
+		}
+	}
+}
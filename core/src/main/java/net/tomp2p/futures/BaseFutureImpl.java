@@ -19,7 +19,13 @@ import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 import net.tomp2p.connection.ConnectionBean;
 
@@ -29,25 +35,51 @@ import org.slf4j.LoggerFactory;
 /**
  * The base for all BaseFuture implementations. Be aware of possible deadlocks. Never await from a listener. This class
  * is heavily inspired by MINA and Netty.
+ * <p>
+ * The result of a future is set by the subclasses while holding the lock, followed by a call to
+ * {@link #notifyListeners()} outside of the lock. The progress of a future is kept in a single atomic state word: it
+ * holds the flags for a published result and for notified listeners, and the number of threads that wait in an
+ * await*() method. Listeners are kept in a lock-free stack, thus, adding a listener and checking the outcome of a
+ * future never locks. The lock is only used to park threads that await a result. A future is also a
+ * {@link java.util.concurrent.Future}, where {@link #get()} returns the future itself. Cancelling it through
+ * {@link #cancel(boolean)} completes it as failed, after which {@link #get()} throws a
+ * {@link java.util.concurrent.CancellationException}.
  * 
  * @param <K>
  *            The class that extends BaseFuture and is used to return back the type for method calls. E.g, if K is
  *            FutureDHT await() returns FutureDHT.
  * @author Thomas Bocek
  */
-public abstract class BaseFutureImpl<K extends BaseFuture> implements BaseFuture {
+public abstract class BaseFutureImpl<K extends BaseFuture> implements BaseFuture, Future<K> {
     private static final Logger LOG = LoggerFactory.getLogger(BaseFutureImpl.class);
 
-    // Listeners that gets notified if the future finished
-    private final List<BaseFutureListener<? extends BaseFuture>> listeners = 
-            new ArrayList<BaseFutureListener<? extends BaseFuture>>(1);
+    // the result is set and visible to all threads
+    private static final int DONE = 1;
+    // all listeners have been called
+    private static final int LISTENERS_DONE = 2;
+    // the number of threads that wait for this future is stored above the flags
+    private static final int WAITER = 4;
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<BaseFutureImpl> STATE = AtomicIntegerFieldUpdater.newUpdater(
+            BaseFutureImpl.class, "state");
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<BaseFutureImpl, Node> LISTENERS = AtomicReferenceFieldUpdater
+            .newUpdater(BaseFutureImpl.class, Node.class, "listeners");
+
+    // marks the listener stack as notified, listeners added afterwards are called immediately
+    private static final Node NOTIFIED = new Node(null, null);
+
+    // Listeners that gets notified if the future finished, as a stack of nodes
+    private volatile Node listeners = null;
+
+    private volatile int state = 0;
 
     // While a future is running, the process may add cancellations for faster
     // cancel operations, e.g. cancel connection attempt
     private final List<Cancel> cancels = new ArrayList<Cancel>(0);
 
-    private final CountDownLatch listenersFinished = new CountDownLatch(1);
-
     protected final Object lock;
 
     // set the ready flag if operation completed
@@ -55,13 +87,13 @@ public abstract class BaseFutureImpl<K extends BaseFuture> implements BaseFuture
 
     // by default false, change in case of success. An unfinished operation is
     // always set to failed
-    protected FutureType type = FutureType.INIT;
+    protected volatile FutureType type = FutureType.INIT;
 
-    protected String reason = "unknown";
+    protected volatile String reason = "unknown";
 
     private K self;
 
-    private boolean cancel = false;
+    private volatile boolean cancel = false;
 
     /**
      * Default constructor that sets the lock object, which is used for synchronization to this instance.
@@ -88,105 +120,103 @@ public abstract class BaseFutureImpl<K extends BaseFuture> implements BaseFuture
 
     @Override
     public K await() throws InterruptedException {
-        synchronized (lock) {
-            checkDeadlock();
-            while (!completed) {
-                lock.wait();
-            }
-            return self;
-        }
+        await0(DONE, 0, true);
+        return self;
     }
 
     @Override
     public K awaitUninterruptibly() {
-        synchronized (lock) {
-            checkDeadlock();
-            while (!completed) {
-                try {
-                    lock.wait();
-                } catch (final InterruptedException e) {
-                   LOG.debug("interrupted, but ignoring", e);
-                }
-            }
-            return self;
+        try {
+            await0(DONE, 0, false);
+        } catch (final InterruptedException e) {
+            throw new RuntimeException("This should never ever happen.");
         }
+        return self;
     }
 
     @Override
     public boolean await(final long timeoutMillis) throws InterruptedException {
-        return await0(timeoutMillis, true);
+        if (timeoutMillis <= 0) {
+            return isCompleted();
+        }
+        return await0(DONE, timeoutMillis, true);
     }
 
     @Override
     public boolean awaitUninterruptibly(final long timeoutMillis) {
+        if (timeoutMillis <= 0) {
+            return isCompleted();
+        }
         try {
-            return await0(timeoutMillis, false);
+            return await0(DONE, timeoutMillis, false);
         } catch (final InterruptedException e) {
             throw new RuntimeException("This should never ever happen.");
         }
     }
 
     /**
-     * Internal await operation that also checks for potential deadlocks.
+     * Internal await operation that also checks for potential deadlocks. The calling thread registers itself in the
+     * state word, such that only futures with waiting threads need to enter the lock when they complete.
      * 
+     * @param flag
+     *            The flag in the state word to wait for
      * @param timeoutMillis
-     *            The time to wait
+     *            The time to wait, 0 to wait forever
      * @param interrupt
      *            Flag to indicate if the method can throw an InterruptedException
-     * @return True if this future has finished in timeoutMillis time, false otherwise
+     * @return True if the flag has been set in timeoutMillis time, false otherwise
      * @throws InterruptedException
      *             If the flag interrupt is true and this thread has been interrupted.
      */
-    private boolean await0(final long timeoutMillis, final boolean interrupt) throws InterruptedException {
+    private boolean await0(final int flag, final long timeoutMillis, final boolean interrupt)
+            throws InterruptedException {
+        if ((state & flag) != 0) {
+            return true;
+        }
+        checkDeadlock();
         final long startTime = (timeoutMillis <= 0) ? 0 : System.currentTimeMillis();
         long waitTime = timeoutMillis;
         synchronized (lock) {
-            if (completed) {
-                return completed;
-            } else if (waitTime <= 0) {
-                return completed;
-            }
-            checkDeadlock();
-            while (true) {
-                try {
-                    lock.wait(waitTime);
-                } catch (final InterruptedException e) {
-                    if (interrupt) {
-                        throw e;
+            STATE.addAndGet(this, WAITER);
+            try {
+                while ((state & flag) == 0) {
+                    try {
+                        lock.wait(waitTime);
+                    } catch (final InterruptedException e) {
+                        if (interrupt) {
+                            throw e;
+                        }
+                        LOG.debug("interrupted, but ignoring", e);
                     }
-                }
-                if (completed) {
-                    return true;
-                } else {
-                    waitTime = timeoutMillis - (System.currentTimeMillis() - startTime);
-                    if (waitTime <= 0) {
-                        return completed;
+                    if (timeoutMillis > 0 && (state & flag) == 0) {
+                        waitTime = timeoutMillis - (System.currentTimeMillis() - startTime);
+                        if (waitTime <= 0) {
+                            return false;
+                        }
                     }
                 }
+                return true;
+            } finally {
+                STATE.addAndGet(this, -WAITER);
             }
         }
     }
 
     @Override
     public boolean isCompleted() {
-        synchronized (lock) {
-            return completed;
-        }
+        return (state & DONE) != 0;
     }
 
     @Override
     public boolean isSuccess() {
-        synchronized (lock) {
-            return completed && (type == FutureType.OK);
-        }
+        // the type is written before the state, thus, it is visible once the state is done
+        return (state & DONE) != 0 && (type == FutureType.OK);
     }
 
     @Override
     public boolean isFailed() {
-        synchronized (lock) {
-            // failed means failed or canceled
-            return completed && (type != FutureType.OK);
-        }
+        // failed means failed or canceled
+        return (state & DONE) != 0 && (type != FutureType.OK);
     }
 
     @Override
@@ -235,31 +265,28 @@ public abstract class BaseFutureImpl<K extends BaseFuture> implements BaseFuture
 
     @Override
     public String failedReason() {
-        final StringBuffer sb = new StringBuffer("Future (compl/canc):");
-        synchronized (lock) {
-            sb.append(completed).append("/")
-            	.append(cancel).append(", ").append(type.name())
-            	.append(", ").append(reason);
-            return sb.toString();
-        }
+        // the type and the reason are written before the state, thus, they are visible once the state is done
+        final StringBuilder sb = new StringBuilder("Future (compl/canc):");
+        sb.append(isCompleted()).append("/")
+        	.append(cancel).append(", ").append(type.name())
+        	.append(", ").append(reason);
+        return sb.toString();
     }
 
     @Override
     public FutureType type() {
-        synchronized (lock) {
-            return type;
-        }
+        return type;
     }
 
     /**
-     * Make sure that the calling method has synchronized (lock).
+     * Make sure that the calling method has synchronized (lock). The result is not visible to other threads until
+     * {@link #notifyListeners()} is called.
      * 
-     * @return True if notified. It will notify if completed is not set yet.
+     * @return True if this call completed the future. It will return false if completed is already set.
      */
     protected boolean completedAndNotify() {
         if (!completed) {
             completed = true;
-            lock.notifyAll();
             return true;
         } else {
             return false;
@@ -268,52 +295,43 @@ public abstract class BaseFutureImpl<K extends BaseFuture> implements BaseFuture
 
     @Override
     public K awaitListeners() throws InterruptedException {
-    	boolean wait = false;
-    	synchronized (lock) {
-    		if(listeners.size() > 0) {
-    			wait = true;
-    		}
-    	}
-    	if(wait) {
-    		listenersFinished.await();
-    	}
+        if (listeners != null) {
+            await0(LISTENERS_DONE, 0, true);
+        }
         return self;
     }
     
     @Override
     public K awaitListenersUninterruptibly() {
-    	boolean wait = false;
-    	synchronized (lock) {
-    		if(listeners.size() > 0) {
-    			wait = true;
-    		}
-    	}
-    	while(wait) {
-    		try {
-    			listenersFinished.await();
-    			wait = false;
-    		} catch (InterruptedException e) {
-                LOG.debug("interrupted, but ignoring", e);
+        if (listeners != null) {
+            try {
+                await0(LISTENERS_DONE, 0, false);
+            } catch (final InterruptedException e) {
+                throw new RuntimeException("This should never ever happen.");
             }
-    	}
+        }
         return self;
     }
     
     @Override
     public K addListener(final BaseFutureListener<? extends BaseFuture> listener) {
-        boolean notifyNow = false;
-        synchronized (lock) {
-            if (completed) {
-                notifyNow = true;
+        Node node = null;
+        while (true) {
+            final Node head = listeners;
+            if (head == NOTIFIED) {
+                // called only once
+                callOperationComplete(listener);
+                return self;
+            }
+            if (node == null) {
+                node = new Node(listener, head);
             } else {
-                listeners.add(listener);
+                node.next = head;
+            }
+            if (LISTENERS.compareAndSet(this, head, node)) {
+                return self;
             }
         }
-        // called only once
-        if (notifyNow) {
-            callOperationComplete(listener);
-        }
-        return self;
     }
 
     /**
@@ -350,32 +368,62 @@ public abstract class BaseFutureImpl<K extends BaseFuture> implements BaseFuture
     }
 
     /**
-     * Always call this from outside synchronized(lock)!
+     * Always call this from outside synchronized(lock)! Publishes the result, wakes up the waiting threads and calls
+     * the listeners in the order they were added.
      */
     protected void notifyListeners() {
-        // if this is synchronized, it will deadlock, so do not lock this!
-        // There won't be any visibility problem or concurrent modification
-        // because 'ready' flag will be checked against both addListener and
-        // removeListener calls.
-        for (final BaseFutureListener<? extends BaseFuture> listener : listeners) {
-            callOperationComplete(listener);
-        }
-        listenersFinished.countDown();
-        listeners.clear();
+        setState(DONE);
         // all events are one time events. It cannot happen that you get
-        // notified twice
+        // notified twice, since the stack can only be taken once
+        Node head = LISTENERS.getAndSet(this, NOTIFIED);
+        if (head == NOTIFIED) {
+            return;
+        }
+        // the stack is in reverse order
+        Node reversed = null;
+        while (head != null) {
+            final Node next = head.next;
+            head.next = reversed;
+            reversed = head;
+            head = next;
+        }
+        for (Node node = reversed; node != null; node = node.next) {
+            final BaseFutureListener<? extends BaseFuture> listener = node.listener;
+            if (listener != null) {
+                callOperationComplete(listener);
+            }
+        }
+        setState(LISTENERS_DONE);
+    }
+
+    private void setState(final int flag) {
+        while (true) {
+            final int current = state;
+            if ((current & flag) != 0) {
+                return;
+            }
+            if (STATE.compareAndSet(this, current, current | flag)) {
+                if (current >= WAITER) {
+                    synchronized (lock) {
+                        lock.notifyAll();
+                    }
+                }
+                return;
+            }
+        }
     }
 
     @Override
     public K removeListener(final BaseFutureListener<? extends BaseFuture> listener) {
-        synchronized (lock) {
-            if (!completed) {
-                listeners.remove(listener);
+        // the node stays in the stack, but the listener will not be called
+        for (Node node = listeners; node != null && node != NOTIFIED; node = node.next) {
+            if (listener.equals(node.listener)) {
+                node.listener = null;
+                break;
             }
         }
         return self;
     }
-
     @Override
     public K addCancel(final Cancel cancelListener) {
         synchronized (cancels) {
@@ -416,4 +464,87 @@ public abstract class BaseFutureImpl<K extends BaseFuture> implements BaseFuture
             }
         }
     }
+
+    @Override
+    public boolean cancel(final boolean mayInterruptIfRunning) {
+        if (isCompleted()) {
+            return false;
+        }
+        cancel();
+        // the cancel listeners may have failed this future already, in that case this call does nothing
+        failed("Future has been canceled");
+        return isCancelled();
+    }
+
+    /**
+     * @return True if this future has been canceled and thus completed as failed. A future that has been canceled but
+     *         completed with success before the cancellation took effect is not canceled.
+     */
+    @Override
+    public boolean isCancelled() {
+        return cancel && isFailed();
+    }
+
+    @Override
+    public boolean isDone() {
+        return isCompleted();
+    }
+
+    /**
+     * Waits for this future to finish.
+     * 
+     * @return This future
+     * @throws ExecutionException
+     *             If this future failed, the failed reason is the message of the exception
+     * @throws CancellationException
+     *             If this future has been canceled
+     */
+    @Override
+    public K get() throws InterruptedException, ExecutionException {
+        await();
+        return result();
+    }
+
+    /**
+     * Waits at most the given time for this future to finish.
+     * 
+     * @return This future
+     * @throws ExecutionException
+     *             If this future failed, the failed reason is the message of the exception
+     * @throws CancellationException
+     *             If this future has been canceled
+     * @throws TimeoutException
+     *             If this future did not finish in time
+     */
+    @Override
+    public K get(final long timeout, final TimeUnit unit) throws InterruptedException, ExecutionException,
+            TimeoutException {
+        if (!await(Math.max(1, unit.toMillis(timeout)))) {
+            throw new TimeoutException(failedReason());
+        }
+        return result();
+    }
+
+    private K result() throws ExecutionException {
+        if (isCancelled()) {
+            throw new CancellationException(failedReason());
+        }
+        if (isFailed()) {
+            throw new ExecutionException(failedReason(), null);
+        }
+        return self;
+    }
+
+    /**
+     * A node in the lock-free listener stack.
+     */
+    private static final class Node {
+        private volatile BaseFutureListener<? extends BaseFuture> listener;
+        private Node next;
+
+        private Node(final BaseFutureListener<? extends BaseFuture> listener, final Node next) {
+            this.listener = listener;
+            this.next = next;
+        }
+    }
 }
@@ -3,24 +3,38 @@ package net.tomp2p.futures;
 import java.io.IOException;
 
 import net.tomp2p.message.Buffer;
+import net.tomp2p.storage.DataCodecs;
 
 
 public class FutureDirect extends FutureWrapper2<FutureDirect, FutureResponse> {
     
     private final FutureResponse futureResponse;
+    private final DataCodecs dataCodecs;
     
     public FutureDirect(String failed) {
     	super(new FutureResponse(null));
     	self(this);
     	this.futureResponse = wrappedFuture();
+    	this.dataCodecs = DataCodecs.builtIn();
     	futureResponse.failed(failed);
     	failed(failed);
     }
     
     public FutureDirect(FutureResponse futureResponse) {
+    	this(futureResponse, DataCodecs.builtIn());
+    }
+
+    /**
+     * @param futureResponse
+     *            The future of the direct message
+     * @param dataCodecs
+     *            The codecs of the sender, used to decode the object of the reply
+     */
+    public FutureDirect(FutureResponse futureResponse, DataCodecs dataCodecs) {
     	super(futureResponse);
     	self(this);
         this.futureResponse = futureResponse;
+        this.dataCodecs = dataCodecs;
         waitFor();
     }
     
@@ -32,7 +46,7 @@ public class FutureDirect extends FutureWrapper2<FutureDirect, FutureResponse> {
     
     public Object object() throws ClassNotFoundException, IOException {
         synchronized (lock) {
-            return buffer() != null ? buffer().object() : null;
+            return buffer() != null ? buffer().object(dataCodecs) : null;
         }
     }
     
@@ -140,17 +140,20 @@ public class FutureResponse extends BaseFutureImpl<FutureResponse> {
     }
     
     public FutureResponse responseNow() {
+        final boolean nothingSet;
         synchronized (lock) {
-        	if (!reponseLater && !completed) {
-        		failed("No future set beforehand, probably an early shutdown / timeout, or use setFailedLater() or setResponseLater()");
-        		return this;
-        	}
-            if (!super.completedAndNotify()) {
+            nothingSet = !reponseLater && !completed;
+            if (!nothingSet && !super.completedAndNotify()) {
                 return this;
             }
         }
+        if (nothingSet) {
+            // not under the lock, the listeners may lock other futures
+            failed("No future set beforehand, probably an early shutdown / timeout, or use setFailedLater() or setResponseLater()");
+            return this;
+        }
         notifyListeners();
-        return this; 
+        return this;
     }
     
     protected boolean completedAndNotify() {
@@ -5,7 +5,7 @@ import io.netty.buffer.CompositeByteBuf;
 
 import java.io.IOException;
 
-import net.tomp2p.utils.Utils;
+import net.tomp2p.storage.DataCodecs;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -73,8 +73,20 @@ public class Buffer {
         return this;
     }
     
+    /**
+     * @return The object, decoded with the codecs of TomP2P
+     */
     public Object object() throws ClassNotFoundException, IOException {
-        return Utils.decodeJavaObject(buffer.duplicate().readerIndex(0));
+        return object(DataCodecs.builtIn());
+    }
+
+    /**
+     * @param dataCodecs
+     *            The codecs the object can be encoded with, usually the codecs of the peer
+     * @return The object
+     */
+    public Object object(final DataCodecs dataCodecs) throws ClassNotFoundException, IOException {
+        return dataCodecs.decode(buffer.duplicate().readerIndex(0));
     }
     
     @Override
@@ -34,6 +34,7 @@ import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.Number640;
 import net.tomp2p.peers.PeerAddress;
 import net.tomp2p.peers.PeerSocketAddress;
+import net.tomp2p.rpc.BlockedBloomFilter;
 import net.tomp2p.rpc.SimpleBloomFilter;
 import net.tomp2p.storage.AlternativeCompositeByteBuf;
 import net.tomp2p.storage.Data;
@@ -254,7 +255,11 @@ public class Decoder {
 				if (buf.readableBytes() < size) {
 					return false;
 				}
-				message.bloomFilter(new SimpleBloomFilter<Number160>(buf));
+				if (BlockedBloomFilter.isBlocked(buf)) {
+					message.bloomFilter(new BlockedBloomFilter<Number160>(buf));
+				} else {
+					message.bloomFilter(new SimpleBloomFilter<Number160>(buf));
+				}
 				lastContent = contentTypes.poll();
 				break;
 			case SET_NEIGHBORS:
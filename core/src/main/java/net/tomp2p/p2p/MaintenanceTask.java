@@ -9,18 +9,28 @@ import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import net.tomp2p.connection.PeerException;
+import net.tomp2p.connection.PeerException.AbortCause;
 import net.tomp2p.futures.BaseFuture;
 import net.tomp2p.futures.BaseFutureAdapter;
 import net.tomp2p.futures.FutureDone;
 import net.tomp2p.peers.Maintainable;
+import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.PeerAddress;
 import net.tomp2p.peers.PeerStatistic;
+import net.tomp2p.peers.PeerStatusListener;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Pings the peers that need to be checked. A task can be shared by several peers that run in the same JVM: the peers
+ * that are attached to a task with {@link #init(Peer, MaintenanceTask)} do not have a timer on their own, but are
+ * maintained round robin by the timer of the task they are attached to. If several of these peers want to check the
+ * same remote peer, only one ping is sent and its outcome is reported to all of them.
+ */
 public class MaintenanceTask implements Runnable {
-    
+
     private static final Logger LOG = LoggerFactory.getLogger(MaintenanceTask.class);
     private static final int MAX_PING = 5;
     private static final AtomicInteger COUNTER = new AtomicInteger(0);
@@ -35,49 +45,146 @@ public class MaintenanceTask implements Runnable {
 
     private boolean shutdown = false;
 
+    // the task that runs this task, all the fields below are only used in the master and guarded by its lock
+    private MaintenanceTask master = this;
+
     private final Object lock = new Object();
-    
+
     private ScheduledFuture<?> scheduledFuture;
 
+    private final List<MaintenanceTask> tenants = new ArrayList<MaintenanceTask>();
+
+    private final Map<Number160, BaseFuture> pingsInFlight = new HashMap<Number160, BaseFuture>();
+
+    private int nextTenant = 0;
+
+    private long pingsSent = 0;
+
+    private long pingsShared = 0;
+
     public void init(Peer peer, ScheduledExecutorService timer) {
         this.peer = peer;
+        synchronized (lock) {
+            tenants.add(this);
+        }
         scheduledFuture = timer.scheduleAtFixedRate(this, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
     }
 
+    /**
+     * Attaches this task to the task of another peer, which maintains this peer as well. The interval of the other task
+     * is used.
+     *
+     * @param peer
+     *            The peer that is maintained by this task
+     * @param master
+     *            The task that has a timer and runs this task
+     */
+    public void init(Peer peer, MaintenanceTask master) {
+        this.peer = peer;
+        this.master = master.master;
+        synchronized (this.master.lock) {
+            this.master.tenants.add(this);
+        }
+    }
+
     @Override
     public void run() {
         synchronized (lock) {
-            //make sure we only have 5 ping in parallel
-            if (shutdown || COUNTER.get() > MAX_PING) {
+            if (shutdown) {
                 return;
             }
-            for (Maintainable maintainable : maintainables) {
-                PeerStatistic peerStatatistic = maintainable.nextForMaintenance(runningFutures.values());
-                if(peerStatatistic == null) {
-                    continue;
+            final int size = tenants.size();
+            int served = 0;
+            for (; served < size; served++) {
+                //make sure we only have 5 ping in parallel
+                if (COUNTER.get() > MAX_PING) {
+                    break;
                 }
-                BaseFuture future;
-                if(peerStatatistic.isLocal()) {
-                	future = peer.localAnnounce().ping().peerAddress(peerStatatistic.peerAddress()).start();
-                	LOG.debug("maintenance local ping from {} to {}", peer.peerAddress(), peerStatatistic.peerAddress());
-                } else { 
-                	future = peer.ping().peerAddress(peerStatatistic.peerAddress()).start();
-                	LOG.debug("maintenance ping from {} to {}", peer.peerAddress(), peerStatatistic.peerAddress());
+                tenants.get((nextTenant + served) % size).maintain();
+            }
+            // the next round starts with the first peer that did not get its turn, or with the next peer if all got
+            // their turn, so that no peer is always the last one
+            if (size > 0) {
+                nextTenant = (nextTenant + (served == size ? 1 : served)) % size;
+            }
+        }
+    }
+
+    private void maintain() {
+        if (shutdown) {
+            return;
+        }
+        for (Maintainable maintainable : maintainables) {
+            PeerStatistic peerStatatistic = maintainable.nextForMaintenance(runningFutures.values());
+            if(peerStatatistic == null) {
+                continue;
+            }
+            final PeerAddress remotePeer = peerStatatistic.peerAddress();
+            if(peerStatatistic.isLocal()) {
+            	final BaseFuture future = peer.localAnnounce().ping().peerAddress(remotePeer).start();
+            	LOG.debug("maintenance local ping from {} to {}", peer.peerAddress(), remotePeer);
+            	ping(future, remotePeer, false);
+                continue;
+            }
+            final BaseFuture running = master.pingsInFlight.get(remotePeer.peerId());
+            if (running != null) {
+                LOG.debug("maintenance ping from {} to {} shares a running ping", peer.peerAddress(), remotePeer);
+                share(running, remotePeer);
+            } else {
+                final BaseFuture future = peer.ping().peerAddress(remotePeer).start();
+                LOG.debug("maintenance ping from {} to {}", peer.peerAddress(), remotePeer);
+                ping(future, remotePeer, true);
+            }
+        }
+    }
+
+    private void ping(final BaseFuture future, final PeerAddress remotePeer, final boolean shareable) {
+        peer.notifyAutomaticFutures(future);
+        runningFutures.put(future, remotePeer);
+        if (shareable) {
+            master.pingsInFlight.put(remotePeer.peerId(), future);
+        }
+        master.pingsSent++;
+        COUNTER.incrementAndGet();
+        future.addListener(new BaseFutureAdapter<BaseFuture>() {
+            @Override
+            public void operationComplete(BaseFuture future) throws Exception {
+            	synchronized (master.lock) {
+                    runningFutures.remove(future);
+                    if (master.pingsInFlight.get(remotePeer.peerId()) == future) {
+                        master.pingsInFlight.remove(remotePeer.peerId());
+                    }
+                    COUNTER.decrementAndGet();
                 }
-                peer.notifyAutomaticFutures(future);
-                runningFutures.put(future, peerStatatistic.peerAddress());
-                COUNTER.incrementAndGet();
-                future.addListener(new BaseFutureAdapter<BaseFuture>() {
-                    @Override
-                    public void operationComplete(BaseFuture future) throws Exception {
-                    	synchronized (lock) {
-                            runningFutures.remove(future);
-                            COUNTER.decrementAndGet();
+            }
+        });
+    }
+
+    /**
+     * Uses the ping of another peer to check the remote peer. The outcome of the ping is reported to the peer status
+     * listeners of this peer, since the reply only reaches the peer that sent the ping.
+     */
+    private void share(final BaseFuture future, final PeerAddress remotePeer) {
+        runningFutures.put(future, remotePeer);
+        master.pingsShared++;
+        future.addListener(new BaseFutureAdapter<BaseFuture>() {
+            @Override
+            public void operationComplete(BaseFuture future) throws Exception {
+                synchronized (master.lock) {
+                    runningFutures.remove(future);
+                }
+                if (future.isSuccess()) {
+                    peer.peerBean().notifyPeerFound(remotePeer, null, null, null);
+                } else {
+                    synchronized (peer.peerBean().peerStatusListeners()) {
+                        for (PeerStatusListener peerStatusListener : peer.peerBean().peerStatusListeners()) {
+                            peerStatusListener.peerFailed(remotePeer, new PeerException(AbortCause.PROBABLY_OFFLINE,
+                                    "shared maintenance ping failed"));
                         }
                     }
-                });
+                }
             }
-        }
+        });
     }
 
     public FutureDone<Void> shutdown() {
@@ -86,8 +193,9 @@ public class MaintenanceTask implements Runnable {
     		//TODO: check if synchronized is really necessary here
     	}
         final FutureDone<Void> futureShutdown = new FutureDone<Void>();
-        synchronized (lock) {
+        synchronized (master.lock) {
             shutdown = true;
+            master.tenants.remove(this);
             final int max = runningFutures.size();
             if(max == 0) {
                 futureShutdown.done();
@@ -116,8 +224,36 @@ public class MaintenanceTask implements Runnable {
         this.intervalMillis = intervalMillis;
         return this;
     }
-    
+
     public void addMaintainable(Maintainable maintainable) {
         maintainables.add(maintainable);
     }
+
+    /**
+     * @return The number of peers that are maintained by the timer of this task
+     */
+    public int tenants() {
+        synchronized (master.lock) {
+            return master.tenants.size();
+        }
+    }
+
+    /**
+     * @return The number of pings sent by all the peers that share the timer of this task
+     */
+    public long pingsSent() {
+        synchronized (master.lock) {
+            return master.pingsSent;
+        }
+    }
+
+    /**
+     * @return The number of pings that were not sent by the peers that share the timer of this task, because another
+     *         of these peers was already checking the same remote peer
+     */
+    public long pingsShared() {
+        synchronized (master.lock) {
+            return master.pingsShared;
+        }
+    }
 }
@@ -41,7 +41,9 @@ import net.tomp2p.connection.PeerCreator;
 import net.tomp2p.connection.PingBuilderFactory;
 import net.tomp2p.connection.PipelineFilter;
 import net.tomp2p.connection.Ports;
+import net.tomp2p.connection.Reservation;
 import net.tomp2p.connection.SendBehavior;
+import net.tomp2p.connection.TrafficShaper;
 import net.tomp2p.p2p.builder.PingBuilder;
 import net.tomp2p.peers.LocalMap;
 import net.tomp2p.peers.Number160;
@@ -55,7 +57,10 @@ import net.tomp2p.rpc.DirectDataRPC;
 import net.tomp2p.rpc.NeighborRPC;
 import net.tomp2p.rpc.PingRPC;
 import net.tomp2p.rpc.QuitRPC;
+import net.tomp2p.storage.DataCodec;
+import net.tomp2p.storage.JavaDataCodec;
 import net.tomp2p.utils.Pair;
+import net.tomp2p.utils.TokenBucket;
 import net.tomp2p.utils.Utils;
 
 /**
@@ -118,8 +123,12 @@ public class PeerBuilder {
 	private Boolean behindFirewall = null;
 	private BroadcastHandler broadcastHandler;
 	private BloomfilterFactory bloomfilterFactory;
+	private DataCodec dataCodec = null;
 	private ScheduledExecutorService scheduledExecutorService = null;
 	private MaintenanceTask maintenanceTask = null;
+	private Reservation reservation = null;
+	private TokenBucket requestBudget = null;
+	private TrafficShaper trafficShaper = null;
 	private Random random = null;
 	private List<PeerInit> toInitialize = new ArrayList<PeerInit>(1);
 	private SendBehavior sendBehavior;
@@ -202,6 +211,11 @@ public class PeerBuilder {
 		if (channelClientConfiguration == null) {
 			channelClientConfiguration = createDefaultChannelClientConfiguration();
 		}
+		if (trafficShaper != null) {
+			// the requests and the replies share the limits
+			channelServerConfiguration.trafficShaper(trafficShaper);
+			channelClientConfiguration.trafficShaper(trafficShaper);
+		}
 		if (keyPair == null) {
 			keyPair = EMPTY_KEY_PAIR;
 		}
@@ -229,8 +243,11 @@ public class PeerBuilder {
 		}
 		
 		final PeerCreator peerCreator;
+		if (reservation != null && masterPeer == null) {
+			throw new IllegalArgumentException("A reservation with a budget needs a master peer");
+		}
 		if (masterPeer != null) {
-			peerCreator = new PeerCreator(masterPeer.peerCreator(), peerId, keyPair);
+			peerCreator = new PeerCreator(masterPeer.peerCreator(), peerId, keyPair, reservation);
 		} else {
 			peerCreator = new PeerCreator(p2pID, peerId, keyPair, channelServerConfiguration,
 			        channelClientConfiguration, scheduledExecutorService, sendBehavior);
@@ -250,13 +267,22 @@ public class PeerBuilder {
 
 		peerBean.peerMap(peerMap);
 		peerBean.keyPair(keyPair);
+		peerBean.requestBudget(requestBudget);
 
 		if (bloomfilterFactory == null) {
-			peerBean.bloomfilterFactory(new DefaultBloomfilterFactory());
+			bloomfilterFactory = new DefaultBloomfilterFactory();
+		}
+		peerBean.bloomfilterFactory(bloomfilterFactory);
+
+		if (dataCodec == null) {
+			dataCodec = JavaDataCodec.INSTANCE;
 		}
+		// the replies of other peers are encoded with the codec of the request
+		peerBean.dataCodecs().register(dataCodec);
+		peerBean.dataCodec(dataCodec);
 
 		if (broadcastHandler == null) {
-			broadcastHandler = new DefaultBroadcastHandler(peer, new Random());
+			broadcastHandler = new DefaultBroadcastHandler(peer, random == null ? new Random() : random);
 		}
 		
 		//Set/enable RPC
@@ -302,7 +328,13 @@ public class PeerBuilder {
 		}
 
 		if (maintenanceTask != null) {
-			maintenanceTask.init(peer, connectionBean.timer());
+			final MaintenanceTask masterTask = masterPeer == null ? null : masterPeer.peerBean().maintenanceTask();
+			if (masterTask != null) {
+				// all the peers that share the connections are maintained by the timer of the master peer
+				maintenanceTask.init(peer, masterTask);
+			} else {
+				maintenanceTask.init(peer, connectionBean.timer());
+			}
 			maintenanceTask.addMaintainable(peerMap);
 			maintenanceTask.addMaintainable(localMap);
 		}
@@ -484,6 +516,21 @@ public class PeerBuilder {
 		return this;
 	}
 
+	public DataCodec dataCodec() {
+		return dataCodec;
+	}
+
+	/**
+	 * @param dataCodec
+	 *            The codec to encode the objects of direct messages with. The default is Java serialization. The
+	 *            other peers need to register this codec in their {@link PeerBean#dataCodecs()} to decode the objects.
+	 * @return This class
+	 */
+	public PeerBuilder dataCodec(DataCodec dataCodec) {
+		this.dataCodec = dataCodec;
+		return this;
+	}
+
 	public MaintenanceTask maintenanceTask() {
 		return maintenanceTask;
 	}
@@ -493,6 +540,61 @@ public class PeerBuilder {
 		return this;
 	}
 
+	/**
+	 * @return The reservation with the budget of this peer, or null to use the reservation of the master peer
+	 */
+	public Reservation reservation() {
+		return reservation;
+	}
+
+	/**
+	 * @param reservation
+	 *            The reservation with the budget of this peer, created with the reservation of the master peer as
+	 *            parent. This peer cannot take more connections than this budget from the peers it shares the
+	 *            connections with. Only used together with {@link #masterPeer(Peer)}.
+	 * @return This class
+	 */
+	public PeerBuilder reservation(Reservation reservation) {
+		this.reservation = reservation;
+		return this;
+	}
+
+	/**
+	 * @return The number of incoming requests this peer handles per second, or null for no limit
+	 */
+	public TokenBucket requestBudget() {
+		return requestBudget;
+	}
+
+	/**
+	 * @param requestBudget
+	 *            The number of incoming requests this peer handles per second, the requests above this budget are
+	 *            denied. Used to keep a busy peer from taking the CPU of the peers it shares the connections with.
+	 * @return This class
+	 */
+	public PeerBuilder requestBudget(TokenBucket requestBudget) {
+		this.requestBudget = requestBudget;
+		return this;
+	}
+
+	/**
+	 * @return The shaper that limits the bandwidth of the outgoing messages, or null for no limit
+	 */
+	public TrafficShaper trafficShaper() {
+		return trafficShaper;
+	}
+
+	/**
+	 * @param trafficShaper
+	 *            The shaper that limits the bandwidth of the outgoing requests and replies. Only used for a peer
+	 *            without a master peer, the other peers share the connections and the shaper of their master peer.
+	 * @return This class
+	 */
+	public PeerBuilder trafficShaper(TrafficShaper trafficShaper) {
+		this.trafficShaper = trafficShaper;
+		return this;
+	}
+
 	public Random random() {
 		return random;
 	}
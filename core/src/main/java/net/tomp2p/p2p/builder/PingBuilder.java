@@ -24,6 +24,7 @@ import net.tomp2p.connection.DefaultConnectionConfiguration;
 import net.tomp2p.connection.PeerConnection;
 import net.tomp2p.connection.Ports;
 import net.tomp2p.connection.RequestHandler;
+import net.tomp2p.connection.Reservation.Priority;
 import net.tomp2p.futures.BaseFuture;
 import net.tomp2p.futures.BaseFutureAdapter;
 import net.tomp2p.futures.FutureChannelCreator;
@@ -171,8 +172,9 @@ public class PingBuilder {
     private FuturePing ping(PeerAddress peerAddress, final boolean isUDP) {
     	final FuturePing futurePing = new FuturePing();
         final RequestHandler<FutureResponse> request = peer.pingRPC().ping(peerAddress, connectionConfiguration);
+        // pings are small and used by the maintenance, they should not wait behind bulk requests
         if (isUDP) {
-            FutureChannelCreator fcc = peer.connectionBean().reservation().create(1, 0);
+            FutureChannelCreator fcc = peer.connectionBean().reservation().create(1, 0, Priority.HIGH);
             Utils.addReleaseListener(fcc, futurePing);
             fcc.addListener(new BaseFutureAdapter<FutureChannelCreator>() {
                 @Override
@@ -188,7 +190,7 @@ public class PingBuilder {
 				
             });
         } else {
-            FutureChannelCreator fcc = peer.connectionBean().reservation().create(0, 1);
+            FutureChannelCreator fcc = peer.connectionBean().reservation().create(0, 1, Priority.HIGH);
             Utils.addReleaseListener(fcc, futurePing);
             fcc.addListener(new BaseFutureAdapter<FutureChannelCreator>() {
                 @Override
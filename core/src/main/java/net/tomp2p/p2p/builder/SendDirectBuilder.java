@@ -208,7 +208,7 @@ public class SendDirectBuilder implements ConnectionConfiguration, SendDirectBui
 			});
 		}
 
-		return new FutureDirect(request.futureResponse());
+		return new FutureDirect(request.futureResponse(), peer.peerBean().dataCodecs());
 	}
 
 	private static void sendDirectRequest(final RequestHandler<FutureResponse> request, final PeerConnection peerConnection) {
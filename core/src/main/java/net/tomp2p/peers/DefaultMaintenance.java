@@ -99,7 +99,7 @@ public class DefaultMaintenance implements Maintenance {
     }
 
     @Override
-    public Maintenance init(final List<Map<Number160, PeerStatistic>> peerMapVerified,
+    public Maintenance init(final Number160 self, final List<Map<Number160, PeerStatistic>> peerMapVerified,
             final List<Map<Number160, PeerStatistic>> peerMapNonVerified,
             final ConcurrentCacheMap<Number160, PeerAddress> offlineMap, 
             final ConcurrentCacheMap<Number160, PeerAddress> shutdownMap, 
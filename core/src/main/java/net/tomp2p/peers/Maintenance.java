@@ -32,8 +32,11 @@ import net.tomp2p.utils.ConcurrentCacheMap;
 public interface Maintenance {
 
     /**
-     * Initializes the maintenance class. This may result in a new class
+     * Initializes the maintenance class. This may result in a new class. If the returned class implements
+     * {@link PeerMapChangeListener}, it will be registered with the {@link PeerMap} and gets notified of changes.
      * 
+     * @param self
+     *            The peer ID of the peer map, used to find the bag of a peer
      * @param peerMapVerified
      *            The map with the bags of verified peers
      * @param peerMapNonVerified
@@ -44,7 +47,7 @@ public interface Maintenance {
      * @param shutdownMap The map with the peers that friendly quit
      * @return A new or the same maintenance class
      */
-    Maintenance init(List<Map<Number160, PeerStatistic>> peerMapVerified,
+    Maintenance init(Number160 self, List<Map<Number160, PeerStatistic>> peerMapVerified,
             List<Map<Number160, PeerStatistic>> peerMapNonVerified,
             ConcurrentCacheMap<Number160, PeerAddress> offlineMap, 
             ConcurrentCacheMap<Number160, PeerAddress> shutdownMap, ConcurrentCacheMap<Number160, PeerAddress> exceptionMap);
@@ -329,6 +329,20 @@ public final class Number160 extends Number implements Comparable<Number160> {
         return bits;
     }
 
+    /**
+     * Checks if a bit is set. The bit 0 is the least significant bit, the bit 159 the most significant bit.
+     *
+     * @param bit
+     *            The index of the bit to test
+     * @return True if the bit is set
+     */
+    public boolean testBit(final int bit) {
+        if (bit < 0 || bit >= BITS) {
+            throw new IllegalArgumentException("bit index must be between 0 and " + (BITS - 1));
+        }
+        return (this.val[INT_ARRAY_SIZE - 1 - (bit >>> 5)] & (1 << (bit & 31))) != 0;
+    }
+
     @Override
     public String toString() {
         return toString(true);
@@ -77,6 +77,9 @@ public class PeerMap implements PeerStatusListener, Maintainable {
 
     private PeerStatisticComparator peerStatisticComparator;
 
+    // optional index over the verified peers for fast close peer queries, null if not used
+    private final PeerTrie peerTrie;
+
     /**
      * Creates the bag for the peers. This peer knows a lot about close peers and the further away the peers are, the
      * less known they are. Distance is measured with XOR of the peer ID. The distance of peer with ID 0x12 and peer
@@ -104,11 +107,14 @@ public class PeerMap implements PeerStatusListener, Maintainable {
                 peerMapConfiguration.shutdownTimeout(), totalNumberOfVerifiedBags());
         this.exceptionMap = new ConcurrentCacheMap<Number160, PeerAddress>(
                 peerMapConfiguration.exceptionTimeout(), totalNumberOfVerifiedBags());
-        this.maintenance = peerMapConfiguration.maintenance().init(peerMapVerified, peerMapOverflow,
+        this.maintenance = peerMapConfiguration.maintenance().init(self, peerMapVerified, peerMapOverflow,
                 offlineMap, shutdownMap, exceptionMap);
+        if (maintenance instanceof PeerMapChangeListener) {
+            addPeerMapChangeListener((PeerMapChangeListener) maintenance);
+        }
         this.peerVerification = peerMapConfiguration.isPeerVerification();
         this.peerStatisticComparator = peerMapConfiguration.getPeerStatisticComparator();
-
+        this.peerTrie = peerMapConfiguration.isPeerTrie() ? new PeerTrie() : null;
     }
 
     private int totalNumberOfVerifiedBags() {
@@ -342,6 +348,9 @@ public class PeerMap implements PeerStatusListener, Maintainable {
                         peerStatistic.successfullyChecked();
                         peerStatistic.addRTT(roundTripTime);
                         map.put(remotePeer.peerId(), peerStatistic);
+                        if (peerTrie != null) {
+                            peerTrie.put(peerStatistic);
+                        }
                         insterted = true;
                     }
                 }
@@ -419,6 +428,9 @@ public class PeerMap implements PeerStatusListener, Maintainable {
                 synchronized (tmp) {
                     peerStatistic = tmp.remove(remotePeer.peerId());
                     if (peerStatistic != null) {
+                        if (peerTrie != null) {
+                            peerTrie.remove(remotePeer.peerId());
+                        }
                         removed = true;
                     }
                 }
@@ -514,7 +526,8 @@ public class PeerMap implements PeerStatusListener, Maintainable {
 
     /**
      * Returns close peer from the set to a given key. This method is tread-safe. You can use the returned set as its a
-     * copy of the actual PeerMap and changes in the return set do not affect PeerMap. 
+     * copy of the actual PeerMap and changes in the return set do not affect PeerMap. If the {@link PeerTrie} is
+     * enabled, the atLeast XOR-closest peers are returned without locking any bag.
      * 
      * @param id
      *            The key that should be close to the keys in the map
@@ -523,6 +536,15 @@ public class PeerMap implements PeerStatusListener, Maintainable {
      * @return A sorted set with close peers first in this set. Use set.first() to get the closest peer
      */
     public NavigableSet<PeerStatistic> closePeers(final Number160 id, final int atLeast) {
+        if (peerTrie != null) {
+            Comparator<PeerStatistic> comparator = peerStatisticComparator.getComparator(id);
+            if (comparator == null) {
+                comparator = createXORStatisticComparator(id);
+            }
+            final NavigableSet<PeerStatistic> set = new TreeSet<PeerStatistic>(comparator);
+            set.addAll(peerTrie.closePeers(id, atLeast));
+            return set;
+        }
     	return closePeers(self(), id, atLeast, peerMapVerified, peerStatisticComparator.getComparator(id));
     }
 
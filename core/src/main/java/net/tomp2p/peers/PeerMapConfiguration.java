@@ -41,6 +41,7 @@ public class PeerMapConfiguration {
     private Maintenance maintenance;
     private boolean peerVerification;
     private PeerStatisticComparator peerStatisticComparator;
+    private boolean peerTrie;
 
     /**
      * Constructor with reasonable defaults.
@@ -58,6 +59,7 @@ public class PeerMapConfiguration {
         offlineCount = 3;
         maintenance = new DefaultMaintenance(4, new int[] { 2, 4, 8, 16, 32, 64 });
         peerVerification = true;
+        peerTrie = false;
         setPeerStatisticComparator(new DefaultPeerStatisticComparator());
     }
 
@@ -326,4 +328,24 @@ public class PeerMapConfiguration {
         this.peerStatisticComparator = peerStatisticComparator;
         return this;
     }
+
+    /**
+     * @return True if the verified peers are additionally indexed in a {@link PeerTrie}, which answers close peer
+     *         queries without locking the bags
+     */
+    public boolean isPeerTrie() {
+        return peerTrie;
+    }
+
+    /**
+     * @param peerTrie
+     *            True if the verified peers should additionally be indexed in a {@link PeerTrie}. With this index,
+     *            {@link PeerMap#closePeers(Number160, int)} returns exactly the requested number of XOR-closest peers
+     *            instead of whole bags. This is useful for peers with large bags.
+     * @return this class
+     */
+    public PeerMapConfiguration peerTrie(final boolean peerTrie) {
+        this.peerTrie = peerTrie;
+        return this;
+    }
 }
@@ -15,6 +15,7 @@
  */
 package net.tomp2p.peers;
 
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
@@ -224,6 +225,28 @@ public class PeerStatistic {
         return sum / rttCache.size();
     }
 
+    /**
+     * Get a percentile of the last 5 RTTs, e.g. 0.95 for the RTT that 95% of the measurements do not exceed. With
+     * only 5 measurements, any percentile above 0.8 is the maximum.
+     *
+     * @param percentile
+     *            The percentile between 0 and 1
+     * @return The RTT in milliseconds or -1 if cache is empty.
+     */
+    public long getPercentileRTT(final double percentile) {
+        if (rttCache.isEmpty())
+            return -1;
+
+        final long[] rtts = new long[rttCache.size()];
+        int i = 0;
+        for (Iterator<RTT> iterator = rttCache.iterator(); iterator.hasNext() && i < rtts.length; ) {
+            rtts[i++] = iterator.next().getRtt();
+        }
+        Arrays.sort(rtts, 0, i);
+        final int index = (int) Math.ceil(percentile * i) - 1;
+        return rtts[Math.max(0, Math.min(i - 1, index))];
+    }
+
     /**
      * How many RTT measurements are in the cache
      *
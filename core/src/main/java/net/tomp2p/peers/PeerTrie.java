@@ -0,0 +1,184 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.peers;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A binary (patricia) trie over peer IDs that answers "which peers are closest to this key" in XOR distance. The trie
+ * is immutable and every modification copies the path from the root to the changed leaf, thus, readers never lock and
+ * never see a partially updated trie. Writers are serialized. An insert or remove costs O(log n) new nodes, a query for
+ * the k closest peers visits O(k + log n) nodes, independent of the size of the Kademlia bags.
+ *
+ * @author Thomas Bocek
+ */
+public class PeerTrie {
+
+    private final Object lock = new Object();
+
+    private volatile Node root = null;
+
+    /**
+     * Adds or replaces a peer in the trie. This method is thread-safe.
+     *
+     * @param peerStatistic
+     *            The peer to add
+     */
+    public void put(final PeerStatistic peerStatistic) {
+        synchronized (lock) {
+            root = put(root, new Leaf(peerStatistic));
+        }
+    }
+
+    /**
+     * Removes a peer from the trie. This method is thread-safe.
+     *
+     * @param peerId
+     *            The peer ID to remove
+     * @return True if the peer was in the trie
+     */
+    public boolean remove(final Number160 peerId) {
+        synchronized (lock) {
+            final Node oldRoot = root;
+            root = remove(oldRoot, peerId);
+            return root != oldRoot;
+        }
+    }
+
+    /**
+     * @return The number of peers in this trie
+     */
+    public int size() {
+        final Node current = root;
+        return current == null ? 0 : current.size;
+    }
+
+    /**
+     * Returns the peers closest to the key in XOR distance. This method does not lock.
+     *
+     * @param key
+     *            The key the peers should be close to
+     * @param atMost
+     *            The maximum number of peers to return
+     * @return A list of peers, with the closest peer first
+     */
+    public List<PeerStatistic> closePeers(final Number160 key, final int atMost) {
+        final Node current = root;
+        final List<PeerStatistic> result = new ArrayList<PeerStatistic>(Math.min(atMost,
+                current == null ? 0 : current.size));
+        collect(current, key, atMost, result);
+        return result;
+    }
+
+    private static void collect(final Node node, final Number160 key, final int atMost,
+            final List<PeerStatistic> result) {
+        if (node == null || result.size() >= atMost) {
+            return;
+        }
+        if (node instanceof Leaf) {
+            result.add(((Leaf) node).peerStatistic);
+            return;
+        }
+        final Inner inner = (Inner) node;
+        // all peers in this subtree share the bits above inner.bit, so the subtree that has the same bit as the key
+        // is closer in XOR distance than the other one.
+        if (key.testBit(inner.bit)) {
+            collect(inner.one, key, atMost, result);
+            collect(inner.zero, key, atMost, result);
+        } else {
+            collect(inner.zero, key, atMost, result);
+            collect(inner.one, key, atMost, result);
+        }
+    }
+
+    private static Node put(final Node node, final Leaf leaf) {
+        if (node == null) {
+            return leaf;
+        }
+        final int diff = node.key.xor(leaf.key).bitLength() - 1;
+        if (diff == -1) {
+            // same key, replace the leaf
+            return leaf;
+        }
+        if (node instanceof Leaf || diff > ((Inner) node).bit) {
+            // the new peer branches off above this node
+            return leaf.key.testBit(diff) ? new Inner(diff, node, leaf) : new Inner(diff, leaf, node);
+        }
+        final Inner inner = (Inner) node;
+        if (leaf.key.testBit(inner.bit)) {
+            return new Inner(inner.bit, inner.zero, put(inner.one, leaf));
+        } else {
+            return new Inner(inner.bit, put(inner.zero, leaf), inner.one);
+        }
+    }
+
+    private static Node remove(final Node node, final Number160 key) {
+        if (node == null) {
+            return null;
+        }
+        if (node instanceof Leaf) {
+            return node.key.equals(key) ? null : node;
+        }
+        final Inner inner = (Inner) node;
+        if (key.testBit(inner.bit)) {
+            final Node one = remove(inner.one, key);
+            if (one == inner.one) {
+                return node;
+            }
+            return one == null ? inner.zero : new Inner(inner.bit, inner.zero, one);
+        } else {
+            final Node zero = remove(inner.zero, key);
+            if (zero == inner.zero) {
+                return node;
+            }
+            return zero == null ? inner.one : new Inner(inner.bit, zero, inner.one);
+        }
+    }
+
+    private static abstract class Node {
+        // any key of this subtree, all keys share the bits above the branching bit
+        final Number160 key;
+        final int size;
+
+        Node(final Number160 key, final int size) {
+            this.key = key;
+            this.size = size;
+        }
+    }
+
+    private static final class Leaf extends Node {
+        final PeerStatistic peerStatistic;
+
+        Leaf(final PeerStatistic peerStatistic) {
+            super(peerStatistic.peerAddress().peerId(), 1);
+            this.peerStatistic = peerStatistic;
+        }
+    }
+
+    private static final class Inner extends Node {
+        final int bit;
+        final Node zero;
+        final Node one;
+
+        Inner(final int bit, final Node zero, final Node one) {
+            super(zero.key, zero.size + one.size);
+            this.bit = bit;
+            this.zero = zero;
+            this.one = one;
+        }
+    }
+}
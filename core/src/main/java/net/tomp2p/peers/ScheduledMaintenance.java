@@ -0,0 +1,298 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.peers;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import net.tomp2p.utils.ConcurrentCacheMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A maintenance implementation that keeps a schedule of all peers, sorted by the time the next check is due. While
+ * {@link DefaultMaintenance} scans all bags for every pick, this class keeps the schedule up to date with the
+ * notifications from the {@link PeerMap}, thus, a pick costs O(log n). The number of peers returned for maintenance
+ * can be limited per second, so that a short interval in the {@link net.tomp2p.p2p.MaintenanceTask} does not result
+ * in a ping storm.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class ScheduledMaintenance implements Maintenance, PeerMapChangeListener {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ScheduledMaintenance.class);
+
+    private final int peerUrgency;
+    private final int[] intervalSeconds;
+    private final int maxPingsPerSecond;
+
+    private final Number160 self;
+    private final List<Map<Number160, PeerStatistic>> peerMapVerified;
+    private final List<Map<Number160, PeerStatistic>> peerMapNonVerified;
+
+    // guarded by this
+    private final TreeSet<Entry> schedule = new TreeSet<Entry>();
+    private final Map<Number160, Entry> entries = new HashMap<Number160, Entry>();
+    private long currentSecond = 0;
+    private int pingsInCurrentSecond = 0;
+
+    private ScheduledMaintenance(final Number160 self, final List<Map<Number160, PeerStatistic>> peerMapVerified,
+            final List<Map<Number160, PeerStatistic>> peerMapNonVerified, final int peerUrgency,
+            final int[] intervalSeconds, final int maxPingsPerSecond) {
+        this.self = self;
+        this.peerMapVerified = peerMapVerified;
+        this.peerMapNonVerified = peerMapNonVerified;
+        this.peerUrgency = peerUrgency;
+        this.intervalSeconds = intervalSeconds;
+        this.maxPingsPerSecond = maxPingsPerSecond;
+    }
+
+    /**
+     * Constructor that initializes the maps as null references. To use this class init must be called that creates a
+     * new class with the private constructor.
+     *
+     * @param peerUrgency
+     *            The number of peers that should be in the verified map. If the number is lower, urgency is set to yes
+     *            and we are looking for peers in the non verified map
+     * @param intervalSeconds
+     *            The number of intervals to test a peer. The longer a peer is available the less often we need to check
+     * @param maxPingsPerSecond
+     *            The maximum number of peers returned for maintenance per second, -1 for no limit
+     */
+    public ScheduledMaintenance(final int peerUrgency, final int[] intervalSeconds, final int maxPingsPerSecond) {
+        this(null, null, null, peerUrgency, intervalSeconds, maxPingsPerSecond);
+    }
+
+    @Override
+    public Maintenance init(final Number160 self, final List<Map<Number160, PeerStatistic>> peerMapVerified,
+            final List<Map<Number160, PeerStatistic>> peerMapNonVerified,
+            final ConcurrentCacheMap<Number160, PeerAddress> offlineMap,
+            final ConcurrentCacheMap<Number160, PeerAddress> shutdownMap,
+            final ConcurrentCacheMap<Number160, PeerAddress> exceptionMap) {
+        return new ScheduledMaintenance(self, peerMapVerified, peerMapNonVerified, peerUrgency, intervalSeconds,
+                maxPingsPerSecond);
+    }
+
+    /**
+     * Returns the peer with the earliest due check. Peers from the non-verified map are only returned if their bag in
+     * the verified map has less than peerUrgency peers, otherwise their check is postponed and the next due peer is
+     * considered.
+     *
+     * @return The next peer to check if its still alive or null if no check is due or the budget is used up.
+     */
+    @Override
+    public synchronized PeerStatistic nextForMaintenance(final Collection<PeerAddress> notInterestedAddresses) {
+        if (self == null) {
+            throw new IllegalArgumentException("did not initialize this maintenance class");
+        }
+        final long now = System.currentTimeMillis();
+        final long second = TimeUnit.MILLISECONDS.toSeconds(now);
+        if (second != currentSecond) {
+            currentSecond = second;
+            pingsInCurrentSecond = 0;
+        }
+        if (maxPingsPerSecond >= 0 && pingsInCurrentSecond >= maxPingsPerSecond) {
+            return null;
+        }
+        final long retryMillis = TimeUnit.SECONDS.toMillis(intervalSeconds.length == 0 ? 1 : intervalSeconds[0]);
+        final List<Entry> postponed = new ArrayList<Entry>();
+        Entry next = null;
+        final Iterator<Entry> iterator = schedule.iterator();
+        while (iterator.hasNext()) {
+            final Entry entry = iterator.next();
+            if (entry.due > now) {
+                break;
+            }
+            if (!isInMap(entry)) {
+                // lazy removal, we are not notified if a peer is evicted from the non-verified map
+                iterator.remove();
+                entries.remove(entry.peerStatistic.peerAddress().peerId());
+                continue;
+            }
+            if (notInterestedAddresses.contains(entry.peerStatistic.peerAddress())) {
+                continue;
+            }
+            iterator.remove();
+            if (!entry.verified && !isUrgent(entry.bag)) {
+                // postpone this check, but keep looking for a due verified or urgent peer
+                postponed.add(entry);
+                continue;
+            }
+            next = entry;
+            break;
+        }
+        for (Entry entry : postponed) {
+            schedule(new Entry(entry.peerStatistic, entry.verified, entry.bag, now + retryMillis));
+        }
+        if (next == null) {
+            return null;
+        }
+        // the peer is rescheduled with the outcome of the check, until then we retry later
+        schedule(new Entry(next.peerStatistic, next.verified, next.bag, now + retryMillis));
+        pingsInCurrentSecond++;
+        LOG.debug("check peer {}, verified: {}", next.peerStatistic.peerAddress(), next.verified);
+        return next.peerStatistic;
+    }
+
+    /**
+     * @return The number of peers in the schedule
+     */
+    public synchronized int scheduled() {
+        return schedule.size();
+    }
+
+    @Override
+    public void peerInserted(final PeerAddress peerAddress, final boolean verified) {
+        final int bag = PeerMap.classMember(self, peerAddress.peerId());
+        final Map<Number160, PeerStatistic> map = verified ? peerMapVerified.get(bag) : peerMapNonVerified.get(bag);
+        final PeerStatistic peerStatistic;
+        synchronized (map) {
+            peerStatistic = map.get(peerAddress.peerId());
+        }
+        if (peerStatistic != null) {
+            reschedule(peerStatistic, verified, bag);
+        }
+    }
+
+    @Override
+    public void peerRemoved(final PeerAddress peerAddress, final PeerStatistic storedPeerAddress) {
+        synchronized (this) {
+            final Entry entry = entries.remove(peerAddress.peerId());
+            if (entry != null) {
+                schedule.remove(entry);
+            }
+        }
+    }
+
+    @Override
+    public void peerUpdated(final PeerAddress peerAddress, final PeerStatistic storedPeerAddress) {
+        // updates are only reported for the verified map
+        reschedule(storedPeerAddress, true, PeerMap.classMember(self, peerAddress.peerId()));
+    }
+
+    private synchronized void reschedule(final PeerStatistic peerStatistic, final boolean verified, final int bag) {
+        final Entry old = entries.get(peerStatistic.peerAddress().peerId());
+        if (old != null) {
+            schedule.remove(old);
+        }
+        schedule(new Entry(peerStatistic, verified, bag, nextCheck(peerStatistic, intervalSeconds)));
+    }
+
+    private void schedule(final Entry entry) {
+        entries.put(entry.peerStatistic.peerAddress().peerId(), entry);
+        schedule.add(entry);
+    }
+
+    private boolean isInMap(final Entry entry) {
+        final Map<Number160, PeerStatistic> map = entry.verified ? peerMapVerified.get(entry.bag) : peerMapNonVerified
+                .get(entry.bag);
+        synchronized (map) {
+            return map.get(entry.peerStatistic.peerAddress().peerId()) == entry.peerStatistic;
+        }
+    }
+
+    /**
+     * Indicates if it is urgent to search for a peer. This means that we have not enough peers in the verified map and
+     * we need to get one from the non-verified map.
+     *
+     * @param bagIndex
+     *            The number of the bagindex
+     * @return True, if we need urgently a peer from the non-verified map
+     */
+    protected boolean isUrgent(final int bagIndex) {
+        final Map<Number160, PeerStatistic> map = peerMapVerified.get(bagIndex);
+        synchronized (map) {
+            return map.size() < peerUrgency;
+        }
+    }
+
+    /**
+     * Calculates the time when a peer needs its next maintenance check. This is the same interval as used in
+     * {@link DefaultMaintenance#needMaintenance(PeerStatistic, int[])}.
+     *
+     * @param peerStatatistic
+     *            The peer with its statistics
+     * @param intervalSeconds
+     *            The intervals to test a peer
+     * @return The time in milliseconds when the next check is due
+     */
+    public static long nextCheck(final PeerStatistic peerStatatistic, final int[] intervalSeconds) {
+        if (intervalSeconds.length == 0) {
+            return peerStatatistic.lastSeenOnline();
+        }
+        final long onlineSec = TimeUnit.MILLISECONDS.toSeconds(peerStatatistic.onlineTime());
+        int interval = intervalSeconds[intervalSeconds.length - 1];
+        if (onlineSec <= 0) {
+            interval = intervalSeconds[0];
+        } else {
+            for (int i = 0; i < intervalSeconds.length; i++) {
+                if (intervalSeconds[i] >= onlineSec) {
+                    interval = intervalSeconds[i];
+                    break;
+                }
+            }
+        }
+        return peerStatatistic.lastSeenOnline() + TimeUnit.SECONDS.toMillis(interval) + 1;
+    }
+
+    private static final class Entry implements Comparable<Entry> {
+        private final PeerStatistic peerStatistic;
+        private final boolean verified;
+        private final int bag;
+        private final long due;
+
+        private Entry(final PeerStatistic peerStatistic, final boolean verified, final int bag, final long due) {
+            this.peerStatistic = peerStatistic;
+            this.verified = verified;
+            this.bag = bag;
+            this.due = due;
+        }
+
+        @Override
+        public int compareTo(final Entry o) {
+            if (due != o.due) {
+                return due < o.due ? -1 : 1;
+            }
+            // close peers are more important
+            if (bag != o.bag) {
+                return bag < o.bag ? -1 : 1;
+            }
+            return peerStatistic.peerAddress().peerId().compareTo(o.peerStatistic.peerAddress().peerId());
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof Entry)) {
+                return false;
+            }
+            return compareTo((Entry) obj) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return peerStatistic.peerAddress().peerId().hashCode() ^ (int) due;
+        }
+    }
+}
@@ -0,0 +1,534 @@
+/*
+ * Copyright 2012 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.rpc;
+
+import io.netty.buffer.ByteBuf;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+import net.tomp2p.peers.Number160;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A blocked Bloom Filter. All k bits of an element are set within a block of
+ * 8 longs, which is one or two cache lines, instead of k random places of the
+ * whole filter as in {@link SimpleBloomFilter}. Each probe sets one bit in the
+ * next long of the block, the bit is selected by the next 6 bits of the hash.
+ * Thus, the probes do not depend on each other and need no hashing of their
+ * own. At most 16 probes are used. Filters smaller than a block use k random
+ * places. The block and the bits are derived from a single 64 bit hash. For a
+ * {@link Number160}, which is mostly a hash already, this hash is taken from
+ * its bits. The bits are stored in a long[] in the same order as they are sent
+ * over the wire, thus, the filter is read from and written to a ByteBuf a long
+ * at a time.
+ * <p>
+ * The bits of an element are not the same as in a {@link SimpleBloomFilter},
+ * thus, the two filters cannot be mixed. On the wire, the number of expected
+ * elements of a blocked filter is sent inverted, which makes it negative, and
+ * the {@link net.tomp2p.message.Decoder} creates a filter of the right kind. A
+ * peer that does not know blocked filters reads them as filters with no hash
+ * functions, which contain every element. This is the worst false positive
+ * rate, but never a false negative. Blocked filters are used by setting a
+ * {@link BlockedBloomfilterFactory} in the PeerBuilder.
+ * 
+ * @author Thomas Bocek
+ * @param <E>
+ *            The type of object the BloomFilter should contain
+ */
+public class BlockedBloomFilter<E> extends SimpleBloomFilter<E> {
+
+	private static final Logger LOG = LoggerFactory.getLogger(BlockedBloomFilter.class);
+
+	private static final long serialVersionUID = 6125327496519745021L;
+
+	/**
+	 * The number of bits of a block, 8 longs or 64 bytes.
+	 */
+	public static final int BLOCK_BITS = 512;
+
+	private static final int BLOCK_WORDS = BLOCK_BITS / Long.SIZE;
+
+	private static final int LONG_BYTES = Long.SIZE / Byte.SIZE;
+
+	private static final long GOLDEN_RATIO = 0x9e3779b97f4a7c15L;
+
+	// the bits of a probe in a long: 6, thus, 8 probes use 48 bits of a hash
+	private static final int PROBE_BITS = 6;
+
+	private static final int PROBE_MASK = (1 << PROBE_BITS) - 1;
+
+	private static final int MAX_PROBES = 2 * BLOCK_WORDS;
+
+	private final int k;
+
+	private final long[] words;
+
+	private final int byteArraySize, bitArraySize, expectedElements;
+
+	// the number of positions a block can start at, in longs
+	private final int blocks;
+
+	/**
+	 * Construct an empty BlockedBloomFilter. You must specify the number of bits
+	 * in the Bloom Filter, and also you should specify the number of items you
+	 * expect to add. The latter is used to choose some optimal internal values
+	 * to minimize the false-positive rate (which can be estimated with
+	 * expectedFalsePositiveRate()).
+	 * 
+	 * @param byteArraySize
+	 *            The number of bits in multiple of 8 in the bit array (often
+	 *            called 'm' in the context of bloom filters).
+	 * @param expectedElements
+	 *            The typical number of items you expect to be added to the
+	 *            filter (often called 'n').
+	 */
+	public BlockedBloomFilter(final int byteArraySize, final int expectedElements) {
+		this(byteArraySize, expectedElements, new long[words(byteArraySize)]);
+	}
+
+	// inspired by https://github.com/magnuss/java-bloomfilter
+	public BlockedBloomFilter(final double falsePositiveProbability, final int expectedElements) {
+		// the bits of the parent are not used
+		super(0, 0);
+		final double c = Math.ceil(-(Math.log(falsePositiveProbability) / Math.log(2.0))) / Math.log(2.0);
+		this.expectedElements = expectedElements;
+		int tmpBitArraySize = (int) Math.ceil(c * expectedElements);
+		this.byteArraySize = ((tmpBitArraySize + 7) / 8);
+		this.bitArraySize = byteArraySize * Byte.SIZE;
+		double hf = (bitArraySize / (double) expectedElements) * Math.log(2.0);
+		// k may be larger as we may have increased the byte array size to match
+		// a byte
+		this.k = (int) Math.ceil(hf);
+		this.words = new long[words(byteArraySize)];
+		this.blocks = blocks(bitArraySize);
+	}
+
+	/**
+	 * Constructs a BlockedBloomFilter out of existing data. The bits are read
+	 * directly into the backing long[].
+	 * 
+	 * @param channelBuffer
+	 *            The byte buffer with the data
+	 */
+	public BlockedBloomFilter(final ByteBuf channelBuffer) {
+		super(0, 0);
+		this.byteArraySize = channelBuffer.readUnsignedShort() - SIZE_HEADER;
+		this.bitArraySize = byteArraySize * Byte.SIZE;
+		int expectedElements = ~channelBuffer.readInt();
+		this.expectedElements = expectedElements;
+		double hf = (bitArraySize / (double) expectedElements) * Math.log(2.0);
+		this.k = (int) Math.ceil(hf);
+		this.words = new long[words(byteArraySize)];
+		this.blocks = blocks(bitArraySize);
+		final int fullWords = byteArraySize / LONG_BYTES;
+		for (int i = 0; i < fullWords; i++) {
+			words[i] = channelBuffer.readLong();
+		}
+		for (int i = fullWords * LONG_BYTES; i < byteArraySize; i++) {
+			words[i / LONG_BYTES] |= (long) channelBuffer.readUnsignedByte() << byteShift(i);
+		}
+	}
+
+	/**
+	 * Constructs a BlockedBloomFilter out of existing data. You must specify the
+	 * number of bits in the Bloom Filter, and also you should specify the
+	 * number of items you expect to add. The latter is used to choose some
+	 * optimal internal values to minimize the false-positive rate (which can be
+	 * estimated with expectedFalsePositiveRate()).
+	 * 
+	 * @param byteArraySize
+	 *            The number of bits in multiple of 8 in the bit array (often
+	 *            called 'm' in the context of bloom filters).
+	 * @param expectedElements
+	 *            he typical number of items you expect to be added to the
+	 *            filter (often called 'n').
+	 * @param bitSet
+	 *            The data that will be copied into the filter
+	 */
+	public BlockedBloomFilter(final int byteArraySize, final int expectedElements, final BitSet bitSet) {
+		this(byteArraySize, expectedElements, toWords(byteArraySize, bitSet));
+	}
+
+	private BlockedBloomFilter(final int byteArraySize, final int expectedElements, final long[] words) {
+		super(0, 0);
+		this.byteArraySize = byteArraySize;
+		this.bitArraySize = byteArraySize * Byte.SIZE;
+		this.expectedElements = expectedElements;
+		double hf = (bitArraySize / (double) expectedElements) * Math.log(2.0);
+		this.k = (int) Math.ceil(hf);
+		if (hf < 1.0) {
+			LOG.warn(
+			        "Bit size too small for storing all expected elements. For optimum result increase byteArraySize to {}",
+			        expectedElements / Math.log(2.0));
+		}
+		this.words = words;
+		this.blocks = blocks(bitArraySize);
+	}
+
+	/**
+	 * @param buf
+	 *            The buffer with a bloom filter at its reader index
+	 * @return True if the bloom filter in the buffer is a blocked filter
+	 */
+	public static boolean isBlocked(final ByteBuf buf) {
+		return buf.getInt(buf.readerIndex() + SIZE_HEADER - Integer.SIZE / Byte.SIZE) < 0;
+	}
+
+	private static int words(final int byteArraySize) {
+		return (byteArraySize + LONG_BYTES - 1) / LONG_BYTES;
+	}
+
+	/**
+	 * @return The shift of the byte at the given index in its long
+	 */
+	private static int byteShift(final int byteIndex) {
+		return (LONG_BYTES - 1 - byteIndex % LONG_BYTES) * Byte.SIZE;
+	}
+
+	/**
+	 * Blocks start at any long, thus, the bits at the end are used as well.
+	 * Filters smaller than a block have no blocks.
+	 */
+	private static int blocks(final int bitArraySize) {
+		if (bitArraySize < BLOCK_BITS) {
+			return 0;
+		}
+		return bitArraySize / Long.SIZE - BLOCK_WORDS + 1;
+	}
+
+	private static long[] toWords(final int byteArraySize, final BitSet bitSet) {
+		final long[] words = new long[words(byteArraySize)];
+		final int bitArraySize = byteArraySize * Byte.SIZE;
+		for (int i = bitSet.nextSetBit(0); i >= 0 && i < bitArraySize; i = bitSet.nextSetBit(i + 1)) {
+			words[i >>> 6] |= mask(i);
+		}
+		return words;
+	}
+
+	/**
+	 * The bits are stored from the most significant to the least significant
+	 * bit, as they are on the wire.
+	 */
+	private static long mask(final int bit) {
+		return 1L << (63 - (bit & 63));
+	}
+
+	/**
+	 * @param o
+	 *            The element
+	 * @return A 64 bit hash of the element. A {@link Number160} is hashed from
+	 *         its lowest 64 bits and its hash code, which covers all 160 bits.
+	 */
+	private static long hash(final Object o) {
+		long h;
+		if (o instanceof Number160) {
+			final Number160 number160 = (Number160) o;
+			h = number160.longValue() ^ (number160.hashCode() * GOLDEN_RATIO);
+		} else {
+			h = o.hashCode() * GOLDEN_RATIO;
+		}
+		// finalizer of murmur3
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/**
+	 * @return The first long of the block of this hash
+	 */
+	private int block(final long hash) {
+		// map the upper 32 bits to [0, blocks) without a division
+		return (int) (((hash >>> 32) * blocks) >>> 32);
+	}
+
+	/**
+	 * @return The shift of the bit of probe x in its long of the block, taken
+	 *         from 6 bits of the 48 upper bits of a second hash for the first 8
+	 *         probes and of a third hash for the next 8 probes. Thus, the probes
+	 *         do not depend on each other.
+	 */
+	private static int shift(final long hash2, final long hash3, final int x) {
+		final long bits = x < BLOCK_WORDS ? hash2 : hash3;
+		return (int) (bits >>> (Short.SIZE + (x & (BLOCK_WORDS - 1)) * PROBE_BITS)) & PROBE_MASK;
+	}
+
+	/**
+	 * @return The i-th bit of a filter smaller than a block, double hashing
+	 *         with the lower and the upper 32 bits of a second hash, mapped to
+	 *         [0, bitArraySize) without a division.
+	 */
+	private int bit(final long hash2, final int i) {
+		final int position = (int) hash2 + i * ((int) (hash2 >>> 32) | 1);
+		return (int) (((position & 0xffffffffL) * bitArraySize) >>> 32);
+	}
+
+	/**
+	 * Calculates the approximate probability of the contains() method returning
+	 * true for an object that had not previously been inserted into the bloom
+	 * filter. This is known as the "false positive probability".
+	 * 
+	 * @return The estimated false positive rate
+	 */
+	@Override
+	public double expectedFalsePositiveProbability() {
+		return Math.pow((1 - Math.exp(-k * (double) expectedElements / bitArraySize)), k);
+	}
+
+	/**
+	 * Returns the expected elements that was provided by the user.
+	 * 
+	 * @return The expected elements that was provided by the user
+	 */
+	@Override
+	public int expectedElements() {
+		return expectedElements;
+	}
+
+	/**
+	 * @param o
+	 *            Add element
+	 * @return This method will always return false
+	 * 
+	 * @see java.util.Set#add(java.lang.Object)
+	 */
+	@Override
+	public boolean add(final E o) {
+		if (bitArraySize == 0) {
+			return false;
+		}
+		final long hash = hash(o);
+		final long hash2 = hash * GOLDEN_RATIO;
+		if (blocks == 0) {
+			for (int x = 0; x < k; x++) {
+				final int bit = bit(hash2, x);
+				words[bit >>> 6] |= mask(bit);
+			}
+			return false;
+		}
+		final long hash3 = hash2 * GOLDEN_RATIO;
+		final int block = block(hash);
+		final int probes = Math.min(k, MAX_PROBES);
+		for (int x = 0; x < probes; x++) {
+			words[block + (x & (BLOCK_WORDS - 1))] |= 1L << shift(hash2, hash3, x);
+		}
+		return false;
+	}
+
+	/**
+	 * Clear the Bloom Filter.
+	 */
+	@Override
+	public void clear() {
+		Arrays.fill(words, 0L);
+	}
+
+	/**
+	 * @param o
+	 *            The object to compare
+	 * @return False indicates that o was definitely not added to this Bloom
+	 *         Filter, true indicates that it probably was. The probability can
+	 *         be estimated using the expectedFalsePositiveProbability() method.
+	 */
+	@Override
+	public boolean contains(final Object o) {
+		if(isVoid()) {
+			return false;
+		}
+		if (bitArraySize == 0) {
+			return true;
+		}
+		final long hash = hash(o);
+		final long hash2 = hash * GOLDEN_RATIO;
+		if (blocks == 0) {
+			for (int x = 0; x < k; x++) {
+				final int bit = bit(hash2, x);
+				if ((words[bit >>> 6] & mask(bit)) == 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+		final long[] words = this.words;
+		final long hash3 = hash2 * GOLDEN_RATIO;
+		final int block = block(hash);
+		final int probes = Math.min(k, MAX_PROBES);
+		for (int x = 0; x < probes; x++) {
+			// most checks of a scan are for elements that are not in the filter,
+			// these are mostly done after the first or second probe
+			if ((words[block + (x & (BLOCK_WORDS - 1))] & (1L << shift(hash2, hash3, x))) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	
+	/**
+	 * Returns if the bloom filter is empty and never can be filled
+	 * 
+	 * @return nothing
+	 */
+	@Override
+	public boolean isEmpty() {
+		for (int i = 0; i < words.length; i++) {
+			if (words[i] != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns if the bloom filter is empty and never can be filled
+	 * 
+	 * @return nothing
+	 */
+	@Override
+	public boolean isVoid() {
+		return byteArraySize == 0 && expectedElements == 0;
+	}
+
+	@Override
+	public boolean isFull() {
+		int cardinality = 0;
+		for (int i = 0; i < words.length; i++) {
+			cardinality += Long.bitCount(words[i]);
+		}
+		return cardinality == bitArraySize;
+	}
+
+	/**
+	 * @return the byte array size of the data (incl. header)
+	 */
+	@Override
+	public int size() {
+		return byteArraySize + SIZE_HEADER;
+	}
+
+	/**
+	 * Returns a copy of the bits of the bloom filter.
+	 * 
+	 * @return bloom filter as a bitset
+	 */
+	@Override
+	public BitSet getBitSet() {
+		final BitSet bitSet = new BitSet(bitArraySize);
+		for (int i = 0; i < bitArraySize; i++) {
+			if ((words[i >>> 6] & mask(i)) != 0) {
+				bitSet.set(i);
+			}
+		}
+		return bitSet;
+	}
+
+	/**
+	 * Converts data to a byte buffer. The first two bytes contain the size of
+	 * this bloom filter. Thus, the bloom filter can only be of length 65536.
+	 * The number of expected elements is written inverted, which marks the
+	 * filter as blocked.
+	 * 
+	 * @param buf
+	 *            The byte buffer where the bloom filter will be written.
+	 */
+	@Override
+	public void toByteBuf(final ByteBuf buf) {
+		buf.writeShort(byteArraySize + SIZE_HEADER);
+		buf.writeInt(~expectedElements);
+		final int fullWords = byteArraySize / LONG_BYTES;
+		for (int i = 0; i < fullWords; i++) {
+			buf.writeLong(words[i]);
+		}
+		for (int i = fullWords * LONG_BYTES; i < byteArraySize; i++) {
+			buf.writeByte((int) (words[i / LONG_BYTES] >>> byteShift(i)));
+		}
+	}
+
+	/**
+	 * @param toMerge
+	 *            Merge to bloom filters using OR
+	 * @return A new bloom filter that contains both sets.
+	 */
+	@Override
+	public BlockedBloomFilter<E> merge(final SimpleBloomFilter<E> toMerge) {
+		if (!(toMerge instanceof BlockedBloomFilter)) {
+			throw new IllegalArgumentException("a blocked bloom filter can only be merged with a blocked bloom filter");
+		}
+		final BlockedBloomFilter<E> other = (BlockedBloomFilter<E>) toMerge;
+		if (other.bitArraySize != bitArraySize) {
+			throw new RuntimeException("this is not supposed to happen");
+		}
+		final long[] mergedWords = new long[words.length];
+		for (int i = 0; i < words.length; i++) {
+			mergedWords[i] = words[i] | other.words[i];
+		}
+		return new BlockedBloomFilter<E>(byteArraySize, expectedElements, mergedWords);
+	}
+
+	@Override
+	public boolean equals(final Object obj) {
+		if (!(obj instanceof BlockedBloomFilter)) {
+			return false;
+		}
+		if (this == obj) {
+			return true;
+		}
+		@SuppressWarnings("unchecked")
+		BlockedBloomFilter<E> o = (BlockedBloomFilter<E>) obj;
+		return o.k == k && o.bitArraySize == bitArraySize && expectedElements == o.expectedElements
+		        && Arrays.equals(words, o.words);
+	}
+
+	@Override
+	public int hashCode() {
+		final int magic = 31;
+		int hash = 7;
+		hash = magic * hash + Arrays.hashCode(words);
+		hash = magic * hash + k;
+		hash = magic * hash + expectedElements;
+		hash = magic * hash + bitArraySize;
+		return hash;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		int length = bitArraySize;
+		while (length > 0 && (words[(length - 1) >>> 6] & mask(length - 1)) == 0) {
+			length--;
+		}
+		for (int i = 0; i < length; i++) {
+			sb.append((words[i >>> 6] & mask(i)) != 0 ? "1" : "0");
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public BlockedBloomFilter<E> setAll() {
+		final int fullWords = bitArraySize / Long.SIZE;
+		Arrays.fill(words, 0, fullWords, -1L);
+		if (fullWords < words.length) {
+			words[fullWords] = -1L << (Long.SIZE - bitArraySize % Long.SIZE);
+		}
+	    return this;
+    }
+}
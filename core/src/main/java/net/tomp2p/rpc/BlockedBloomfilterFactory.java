@@ -0,0 +1,25 @@
+package net.tomp2p.rpc;
+
+import net.tomp2p.peers.Number160;
+
+/**
+ * Creates {@link BlockedBloomFilter}s with the same size as the {@link DefaultBloomfilterFactory}.
+ */
+public class BlockedBloomfilterFactory implements BloomfilterFactory {
+
+    @Override
+    public SimpleBloomFilter<Number160> createContentKeyBloomFilter() {
+        return new BlockedBloomFilter<Number160>(0.01d, 1000);
+    }
+
+    @Override
+    public SimpleBloomFilter<Number160> createVersionKeyBloomFilter() {
+        return new BlockedBloomFilter<Number160>(0.01d, 1000);
+    }
+
+    @Override
+    public SimpleBloomFilter<Number160> createContentBloomFilter() {
+        return new BlockedBloomFilter<Number160>(0.01d, 1000);
+    }
+
+}
@@ -30,7 +30,8 @@ import net.tomp2p.message.Buffer;
 import net.tomp2p.message.Message;
 import net.tomp2p.message.Message.Type;
 import net.tomp2p.peers.PeerAddress;
-import net.tomp2p.utils.Utils;
+import net.tomp2p.storage.DataCodec;
+import net.tomp2p.storage.DataCodecs;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -81,7 +82,7 @@ public class DirectDataRPC extends DispatchHandler {
         } else {
             byte[] me;
             try {
-                me = Utils.encodeJavaObject(sendDirectBuilder.object());
+                me = DataCodecs.encode(sendDirectBuilder.object(), peerBean().dataCodec());
                 message.buffer(new Buffer(Unpooled.wrappedBuffer(me)));
             } catch (IOException e) {
                 futureResponse.failed("cannot convert object", e);
@@ -157,7 +158,9 @@ public class DirectDataRPC extends DispatchHandler {
                     responseMessage.buffer(replyBuffer);
                 }
             } else { // no streaming here when we deal with objects
-                Object obj = Utils.decodeJavaObject(requestBuffer.buffer());
+                // reply with the codec of the requester, the requester may not know our codec
+                final DataCodec dataCodec = peerBean().dataCodecs().codecOf(requestBuffer.buffer());
+                Object obj = DataCodecs.decode(requestBuffer.buffer(), dataCodec);
                 LOG.debug("handling {}", obj);
 
                 Object reply = objectDataReply2.reply(message.sender(), obj);
@@ -167,7 +170,7 @@ public class DirectDataRPC extends DispatchHandler {
                 } else if (reply == obj) {
                     responseMessage.type(Type.OK);
                 } else {
-                    byte[] me = Utils.encodeJavaObject(reply);
+                    byte[] me = DataCodecs.encode(reply, dataCodec);
                     responseMessage.buffer(new Buffer(Unpooled.wrappedBuffer(me)));
                 }
             }
@@ -25,6 +25,7 @@ import net.tomp2p.message.Message.Type;
 import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.PeerAddress;
 import net.tomp2p.peers.PeerStatusListener;
+import net.tomp2p.utils.TokenBucket;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -161,7 +162,19 @@ public abstract class DispatchHandler {
     	if(requestMessage.command() != RPC.Commands.LOCAL_ANNOUNCE.getNr()) {
     		peerBean.notifyPeerFound(requestMessage.sender(), requestMessage.sender(), peerConnection, null);
     	}
-        
+
+    	// a peer that shares the resources with other peers does not handle more requests than its budget
+    	final TokenBucket requestBudget = peerBean.requestBudget();
+    	if (requestBudget != null && !requestBudget.tryAcquire(1)) {
+    		LOG.debug("request budget of {} exceeded, deny {}", peerBean.serverPeerAddress(), requestMessage);
+    		if (requestMessage.isFireAndForget()) {
+    			responder.responseFireAndForget();
+    		} else {
+    			responder.response(createResponseMessage(requestMessage, Type.DENIED));
+    		}
+    		return;
+    	}
+
         try {
             handleResponse(requestMessage, peerConnection, sign, responder);
         } catch (Throwable e) {
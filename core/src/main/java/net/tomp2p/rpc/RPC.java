@@ -30,7 +30,11 @@ public class RPC {
 		GCM(),
 		LOCAL_ANNOUNCE(),
 		REPLICA_PUT(), 
-		DIGEST_ALL_BLOOMFILTER();
+		DIGEST_ALL_BLOOMFILTER(),
+		GET_RANGE(),
+		SEARCH(),
+		MAP_REDUCE(),
+		PUT_VERSIONED();
 	public byte getNr() {
 		return (byte) ordinal();
 	}
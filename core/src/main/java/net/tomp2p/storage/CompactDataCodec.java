@@ -0,0 +1,344 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.storage;
+
+import io.netty.buffer.ByteBuf;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import net.tomp2p.peers.Number160;
+import net.tomp2p.utils.Utils;
+
+/**
+ * A compact binary codec for graphs of primitives, strings, byte arrays, {@link Number160} and collections of them.
+ * Each value is written as a one byte tag followed by its content, integers and lengths are written as variable
+ * length numbers. Lists are decoded as {@link ArrayList}, sets and maps keep their iteration order. Other objects are
+ * written with Java serialization, subclasses can provide a more compact format by overriding
+ * {@link #encodeOther(Object, ByteBuf)} and {@link #decodeOther(int, ByteBuf)}. References are not tracked, thus,
+ * the graph must not contain cycles.
+ *
+ * @author Thomas Bocek
+ */
+public class CompactDataCodec implements DataCodec {
+
+    public static final int ID = 2;
+
+    public static final CompactDataCodec INSTANCE = new CompactDataCodec();
+
+    /**
+     * The maximum length of a string, a byte array or a collection. Payloads come from other peers, thus, every
+     * length is checked before memory is allocated for it.
+     */
+    public static final int MAX_LENGTH = 64 * 1024 * 1024;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    protected static final int NULL = 0;
+    protected static final int TRUE = 1;
+    protected static final int FALSE = 2;
+    protected static final int BYTE = 3;
+    protected static final int SHORT = 4;
+    protected static final int INT = 5;
+    protected static final int LONG = 6;
+    protected static final int FLOAT = 7;
+    protected static final int DOUBLE = 8;
+    protected static final int CHAR = 9;
+    protected static final int STRING = 10;
+    protected static final int BYTES = 11;
+    protected static final int NUMBER160 = 12;
+    protected static final int LIST = 13;
+    protected static final int SET = 14;
+    protected static final int MAP = 15;
+    protected static final int SERIALIZED = 16;
+    /**
+     * The first tag subclasses can use in {@link #encodeOther(Object, ByteBuf)}.
+     */
+    protected static final int FIRST_CUSTOM_TAG = 32;
+
+    @Override
+    public int id() {
+        return ID;
+    }
+
+    @Override
+    public void encode(final Object object, final ByteBuf buf) throws IOException {
+        writeValue(object, buf);
+    }
+
+    @Override
+    public Object decode(final ByteBuf buf) throws IOException, ClassNotFoundException {
+        return readValue(buf);
+    }
+
+    /**
+     * Writes a value with its tag.
+     *
+     * @param object
+     *            The value to write
+     * @param buf
+     *            The buffer to write to
+     * @throws IOException
+     *             If the value cannot be written
+     */
+    public void writeValue(final Object object, final ByteBuf buf) throws IOException {
+        if (object == null) {
+            buf.writeByte(NULL);
+        } else if (object instanceof Boolean) {
+            buf.writeByte(((Boolean) object) ? TRUE : FALSE);
+        } else if (object instanceof Integer) {
+            buf.writeByte(INT);
+            writeVarLong(zigZag((Integer) object), buf);
+        } else if (object instanceof Long) {
+            buf.writeByte(LONG);
+            writeVarLong(zigZag((Long) object), buf);
+        } else if (object instanceof String) {
+            buf.writeByte(STRING);
+            final byte[] me = ((String) object).getBytes(UTF8);
+            writeVarInt(me.length, buf);
+            buf.writeBytes(me);
+        } else if (object instanceof byte[]) {
+            buf.writeByte(BYTES);
+            final byte[] me = (byte[]) object;
+            writeVarInt(me.length, buf);
+            buf.writeBytes(me);
+        } else if (object instanceof Byte) {
+            buf.writeByte(BYTE);
+            buf.writeByte((Byte) object);
+        } else if (object instanceof Short) {
+            buf.writeByte(SHORT);
+            buf.writeShort((Short) object);
+        } else if (object instanceof Float) {
+            buf.writeByte(FLOAT);
+            buf.writeFloat((Float) object);
+        } else if (object instanceof Double) {
+            buf.writeByte(DOUBLE);
+            buf.writeDouble((Double) object);
+        } else if (object instanceof Character) {
+            buf.writeByte(CHAR);
+            buf.writeChar((Character) object);
+        } else if (object instanceof Number160) {
+            buf.writeByte(NUMBER160);
+            buf.writeBytes(((Number160) object).toByteArray());
+        } else if (object instanceof List) {
+            buf.writeByte(LIST);
+            writeCollection((List<?>) object, buf);
+        } else if (object instanceof Set) {
+            buf.writeByte(SET);
+            writeCollection((Set<?>) object, buf);
+        } else if (object instanceof Map) {
+            buf.writeByte(MAP);
+            final Map<?, ?> map = (Map<?, ?>) object;
+            writeVarInt(map.size(), buf);
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                writeValue(entry.getKey(), buf);
+                writeValue(entry.getValue(), buf);
+            }
+        } else {
+            encodeOther(object, buf);
+        }
+    }
+
+    /**
+     * Reads a value written with {@link #writeValue(Object, ByteBuf)}.
+     *
+     * @param buf
+     *            The buffer to read from
+     * @return The value
+     * @throws IOException
+     *             If the buffer does not contain a valid value
+     * @throws ClassNotFoundException
+     *             If the class of a serialized object is not known
+     */
+    public Object readValue(final ByteBuf buf) throws IOException, ClassNotFoundException {
+        final int tag = buf.readUnsignedByte();
+        switch (tag) {
+        case NULL:
+            return null;
+        case TRUE:
+            return Boolean.TRUE;
+        case FALSE:
+            return Boolean.FALSE;
+        case BYTE:
+            return buf.readByte();
+        case SHORT:
+            return buf.readShort();
+        case INT:
+            return (int) unZigZag(readVarLong(buf));
+        case LONG:
+            return unZigZag(readVarLong(buf));
+        case FLOAT:
+            return buf.readFloat();
+        case DOUBLE:
+            return buf.readDouble();
+        case CHAR:
+            return buf.readChar();
+        case STRING:
+            final byte[] string = new byte[readLength(buf, 1)];
+            buf.readBytes(string);
+            return new String(string, UTF8);
+        case BYTES:
+            final byte[] me = new byte[readLength(buf, 1)];
+            buf.readBytes(me);
+            return me;
+        case NUMBER160:
+            final byte[] number = new byte[Number160.BYTE_ARRAY_SIZE];
+            buf.readBytes(number);
+            return new Number160(number);
+        case LIST:
+            // every value has at least its tag
+            final int listSize = readLength(buf, 1);
+            final List<Object> list = new ArrayList<Object>(listSize);
+            for (int i = 0; i < listSize; i++) {
+                list.add(readValue(buf));
+            }
+            return list;
+        case SET:
+            final int setSize = readLength(buf, 1);
+            final Set<Object> set = new LinkedHashSet<Object>(capacity(setSize));
+            for (int i = 0; i < setSize; i++) {
+                set.add(readValue(buf));
+            }
+            return set;
+        case MAP:
+            final int mapSize = readLength(buf, 2);
+            final Map<Object, Object> map = new LinkedHashMap<Object, Object>(capacity(mapSize));
+            for (int i = 0; i < mapSize; i++) {
+                final Object key = readValue(buf);
+                map.put(key, readValue(buf));
+            }
+            return map;
+        case SERIALIZED:
+            final int length = readLength(buf, 1);
+            final Object object = Utils.decodeJavaObject(buf.slice(buf.readerIndex(), length));
+            buf.skipBytes(length);
+            return object;
+        default:
+            return decodeOther(tag, buf);
+        }
+    }
+
+    /**
+     * Writes an object that is not supported by this codec. The default implementation uses Java serialization.
+     *
+     * @param object
+     *            The object to write
+     * @param buf
+     *            The buffer to write to
+     * @throws IOException
+     *             If the object cannot be written
+     */
+    protected void encodeOther(final Object object, final ByteBuf buf) throws IOException {
+        buf.writeByte(SERIALIZED);
+        final byte[] me = Utils.encodeJavaObject(object);
+        writeVarInt(me.length, buf);
+        buf.writeBytes(me);
+    }
+
+    /**
+     * Reads an object written with {@link #encodeOther(Object, ByteBuf)}.
+     *
+     * @param tag
+     *            The tag of the object, already read
+     * @param buf
+     *            The buffer to read from
+     * @return The object
+     * @throws IOException
+     *             If the tag is unknown
+     * @throws ClassNotFoundException
+     *             If the class of the object is not known
+     */
+    protected Object decodeOther(final int tag, final ByteBuf buf) throws IOException, ClassNotFoundException {
+        throw new IOException("unknown tag " + tag);
+    }
+
+    private void writeCollection(final Collection<?> collection, final ByteBuf buf) throws IOException {
+        writeVarInt(collection.size(), buf);
+        for (Object item : collection) {
+            writeValue(item, buf);
+        }
+    }
+
+    private static int capacity(final int size) {
+        return Math.max(4, (int) (size / 0.75f) + 1);
+    }
+
+    private static long zigZag(final long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(final long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    public static void writeVarInt(final int value, final ByteBuf buf) {
+        writeVarLong(value & 0xFFFFFFFFL, buf);
+    }
+
+    public static int readVarInt(final ByteBuf buf) throws IOException {
+        final long value = readVarLong(buf);
+        if (value > Integer.MAX_VALUE) {
+            throw new IOException("length too large: " + value);
+        }
+        return (int) value;
+    }
+
+    /**
+     * Reads a length and checks it against {@link #MAX_LENGTH} and the bytes left in the buffer.
+     *
+     * @param buf
+     *            The buffer to read from
+     * @param minBytes
+     *            The minimum number of bytes each element takes in the buffer
+     * @return The length
+     * @throws IOException
+     *             If the length is larger than the buffer can hold
+     */
+    public static int readLength(final ByteBuf buf, final int minBytes) throws IOException {
+        final int length = readVarInt(buf);
+        if (length > MAX_LENGTH || (long) length * minBytes > buf.readableBytes()) {
+            throw new IOException("length " + length + " exceeds the " + buf.readableBytes() + " bytes left");
+        }
+        return length;
+    }
+
+    private static void writeVarLong(long value, final ByteBuf buf) {
+        while ((value & ~0x7FL) != 0) {
+            buf.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buf.writeByte((int) value);
+    }
+
+    private static long readVarLong(final ByteBuf buf) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final int b = buf.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("malformed variable length number");
+    }
+}
@@ -0,0 +1,304 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.storage;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A codec that compresses the payload of another codec. The value is compressed once when the {@link Data} object is
+ * created. Since the compressed form is the payload, it is stored, replicated and sent as it is, and only the peer
+ * that calls {@link Data#object()} decompresses it.
+ * <p>
+ * Small values that are similar to each other, e.g. JSON documents, compress much better with a preset dictionary,
+ * see {@link #trainDictionary(Collection, int)}. The peers that read such values need to register a codec with the
+ * same id and the same dictionary. A payload that does not become smaller is stored uncompressed.
+ *
+ * @author Thomas Bocek
+ */
+public class CompressedDataCodec implements DataCodec {
+
+    public static final int ID = 4;
+
+    /**
+     * The maximum size of a dictionary, the window of deflate.
+     */
+    public static final int MAX_DICTIONARY_SIZE = 32 * 1024;
+
+    /**
+     * The maximum size of a value before compression. Larger values are stored uncompressed, since a peer does not
+     * allocate more than this for a compressed value it receives.
+     */
+    public static final int MAX_PLAIN_LENGTH = CompactDataCodec.MAX_LENGTH;
+
+    // deflate cannot compress better than about 1:1032
+    private static final int MAX_RATIO = 1032;
+
+    private static final int STORED = 0;
+    private static final int DEFLATED = 1;
+
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    // creating a deflater allocates the native buffers of zlib, which is more expensive than compressing small values.
+    // The pools are bounded and a deflater that does not fit is ended, such that no native memory is left behind.
+    private static final int POOL_SIZE = Runtime.getRuntime().availableProcessors();
+
+    private static final BlockingQueue<Inflater> INFLATERS = new ArrayBlockingQueue<Inflater>(POOL_SIZE);
+
+    // after the pool size, which the constructor needs
+    public static final CompressedDataCodec INSTANCE = new CompressedDataCodec(JavaDataCodec.INSTANCE);
+
+    private final int id;
+    private final DataCodec dataCodec;
+    private final int level;
+    private final byte[] dictionary;
+
+    private final BlockingQueue<Deflater> deflaters = new ArrayBlockingQueue<Deflater>(POOL_SIZE);
+
+    /**
+     * Compresses fast without dictionary.
+     *
+     * @param dataCodec
+     *            The codec that encodes the objects before compression
+     */
+    public CompressedDataCodec(final DataCodec dataCodec) {
+        this(ID, dataCodec, Deflater.BEST_SPEED, null);
+    }
+
+    /**
+     * @param id
+     *            The id of this codec, use a different id for every dictionary
+     * @param dataCodec
+     *            The codec that encodes the objects before compression
+     * @param level
+     *            The level of compression, from {@link Deflater#BEST_SPEED} to {@link Deflater#BEST_COMPRESSION}
+     * @param dictionary
+     *            The preset dictionary or null
+     */
+    public CompressedDataCodec(final int id, final DataCodec dataCodec, final int level, final byte[] dictionary) {
+        if (dictionary != null && dictionary.length > MAX_DICTIONARY_SIZE) {
+            throw new IllegalArgumentException("the dictionary must not be larger than " + MAX_DICTIONARY_SIZE);
+        }
+        this.id = id;
+        this.dataCodec = dataCodec;
+        this.level = level;
+        this.dictionary = dictionary;
+    }
+
+    @Override
+    public int id() {
+        return id;
+    }
+
+    /**
+     * @return The codec that encodes the objects before compression
+     */
+    public DataCodec dataCodec() {
+        return dataCodec;
+    }
+
+    @Override
+    public void encode(final Object object, final ByteBuf buf) throws IOException {
+        // the inner payload keeps its marker, such that a peer with another inner codec can still decode it
+        final byte[] plain = DataCodecs.encode(object, dataCodec);
+        if (plain.length > MAX_PLAIN_LENGTH) {
+            buf.writeByte(STORED);
+            buf.writeBytes(plain);
+            return;
+        }
+        final Deflater deflater = acquireDeflater();
+        try {
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary);
+            }
+            deflater.setInput(plain);
+            deflater.finish();
+            final byte[] compressed = new byte[plain.length];
+            int length = 0;
+            while (!deflater.finished() && length < compressed.length) {
+                length += deflater.deflate(compressed, length, compressed.length - length);
+            }
+            if (deflater.finished() && length < plain.length) {
+                buf.writeByte(DEFLATED);
+                CompactDataCodec.writeVarInt(plain.length, buf);
+                buf.writeBytes(compressed, 0, length);
+            } else {
+                buf.writeByte(STORED);
+                buf.writeBytes(plain);
+            }
+        } finally {
+            releaseDeflater(deflater);
+        }
+    }
+
+    @Override
+    public Object decode(final ByteBuf buf) throws IOException, ClassNotFoundException {
+        final int method = buf.readUnsignedByte();
+        if (method == STORED) {
+            return decodePlain(buf);
+        } else if (method != DEFLATED) {
+            throw new IOException("unknown compression method " + method);
+        }
+        final int plainLength = CompactDataCodec.readVarInt(buf);
+        if (plainLength > MAX_PLAIN_LENGTH || (long) plainLength > (long) buf.readableBytes() * MAX_RATIO) {
+            throw new IOException("the compressed value cannot have " + plainLength + " bytes");
+        }
+        final byte[] compressed = new byte[buf.readableBytes()];
+        buf.readBytes(compressed);
+        // one byte more, such that the inflater can reach the end of the stream
+        final byte[] plain = new byte[plainLength + 1];
+        final Inflater inflater = acquireInflater();
+        try {
+            inflater.setInput(compressed);
+            int length = 0;
+            while (!inflater.finished()) {
+                final int read = inflater.inflate(plain, length, plain.length - length);
+                length += read;
+                if (read > 0) {
+                    continue;
+                }
+                if (inflater.needsDictionary()) {
+                    if (dictionary == null || inflater.getAdler() != adler(dictionary)) {
+                        throw new IOException("the value was compressed with another dictionary");
+                    }
+                    inflater.setDictionary(dictionary);
+                } else if (inflater.needsInput() || length == plain.length) {
+                    throw new IOException("the compressed value is corrupt");
+                }
+            }
+            if (length != plainLength) {
+                throw new IOException("the compressed value is corrupt");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        } finally {
+            releaseInflater(inflater);
+        }
+        return decodePlain(Unpooled.wrappedBuffer(plain, 0, plainLength));
+    }
+
+    private Object decodePlain(final ByteBuf buf) throws IOException, ClassNotFoundException {
+        if (DataCodecs.isEncodedWith(buf, dataCodec)) {
+            return DataCodecs.decode(buf, dataCodec);
+        }
+        // compressed by a peer with another inner codec, only the codecs of TomP2P are known to every peer
+        return DataCodecs.builtIn().decode(buf);
+    }
+
+    private Deflater acquireDeflater() {
+        final Deflater deflater = deflaters.poll();
+        return deflater != null ? deflater : new Deflater(level);
+    }
+
+    private void releaseDeflater(final Deflater deflater) {
+        deflater.reset();
+        if (!deflaters.offer(deflater)) {
+            deflater.end();
+        }
+    }
+
+    private static Inflater acquireInflater() {
+        final Inflater inflater = INFLATERS.poll();
+        return inflater != null ? inflater : new Inflater();
+    }
+
+    private static void releaseInflater(final Inflater inflater) {
+        inflater.reset();
+        if (!INFLATERS.offer(inflater)) {
+            inflater.end();
+        }
+    }
+
+    private static int adler(final byte[] dictionary) {
+        final Adler32 adler32 = new Adler32();
+        adler32.update(dictionary);
+        return (int) adler32.getValue();
+    }
+
+    /**
+     * Builds a dictionary from sample values. The dictionary consists of the substrings that occur most often in the
+     * samples. The most frequent substrings are placed at the end, since deflate encodes short distances with less
+     * bits.
+     *
+     * @param samples
+     *            Typical values, as encoded by the inner codec
+     * @param size
+     *            The maximum size of the dictionary, at most {@link #MAX_DICTIONARY_SIZE}
+     * @return The dictionary
+     */
+    public static byte[] trainDictionary(final Collection<byte[]> samples, final int size) {
+        final int max = Math.min(size, MAX_DICTIONARY_SIZE);
+        final int gram = 12;
+        final Map<String, int[]> counts = new HashMap<String, int[]>();
+        for (byte[] sample : samples) {
+            final String string = new String(sample, ISO_8859_1);
+            for (int i = 0; i + gram <= string.length(); i++) {
+                final String key = string.substring(i, i + gram);
+                final int[] count = counts.get(key);
+                if (count == null) {
+                    counts.put(key, new int[] { 1 });
+                } else {
+                    count[0]++;
+                }
+            }
+        }
+        final List<Map.Entry<String, int[]>> entries = new ArrayList<Map.Entry<String, int[]>>(counts.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, int[]>>() {
+            @Override
+            public int compare(final Map.Entry<String, int[]> o1, final Map.Entry<String, int[]> o2) {
+                return o2.getValue()[0] - o1.getValue()[0];
+            }
+        });
+        // most frequent first, they are moved to the end at the end
+        final List<String> selected = new ArrayList<String>();
+        final StringBuilder sb = new StringBuilder();
+        int length = 0;
+        for (Map.Entry<String, int[]> entry : entries) {
+            if (entry.getValue()[0] < 2 || length + gram > max) {
+                break;
+            }
+            final String key = entry.getKey();
+            if (sb.indexOf(key) >= 0) {
+                continue;
+            }
+            sb.append(key);
+            selected.add(key);
+            length += gram;
+        }
+        Collections.reverse(selected);
+        final StringBuilder dictionary = new StringBuilder(length);
+        for (String key : selected) {
+            dictionary.append(key);
+        }
+        return dictionary.toString().getBytes(ISO_8859_1);
+    }
+}
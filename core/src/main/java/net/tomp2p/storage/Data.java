@@ -149,6 +149,22 @@ public class Data {
 		this(Utils.encodeJavaObject(object));
 	}
 
+	/**
+	 * Creates a data object with an object encoded by a codec. Any peer that has registered the codec in
+	 * its {@link DataCodecs} can read the object with {@link #object(DataCodecs)}, the codecs of TomP2P can be read
+	 * with {@link #object()}.
+	 * 
+	 * @param object
+	 *            The object to encode
+	 * @param dataCodec
+	 *            The codec to encode the object with
+	 * @throws IOException
+	 *             If the codec cannot encode the object
+	 */
+	public Data(final Object object, final DataCodec dataCodec) throws IOException {
+		this(DataCodecs.encode(object, dataCodec));
+	}
+
 	public Data(final byte[] buffer) {
 		this(buffer, 0, buffer.length);
 	}
@@ -488,8 +504,20 @@ public class Data {
 		return buffer.toByteBuf();
 	}
 
+	/**
+	 * @return The object, decoded with the codecs of TomP2P
+	 */
 	public Object object() throws ClassNotFoundException, IOException {
-		return Utils.decodeJavaObject(buffer);
+		return object(DataCodecs.builtIn());
+	}
+
+	/**
+	 * @param dataCodecs
+	 *            The codecs the object can be encoded with, e.g. the codecs of the peer that reads the object
+	 * @return The object
+	 */
+	public Object object(final DataCodecs dataCodecs) throws ClassNotFoundException, IOException {
+		return dataCodecs.decode(buffer.toByteBuf());
 	}
 
 	public long validFromMillis() {
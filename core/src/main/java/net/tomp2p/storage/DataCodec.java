@@ -0,0 +1,61 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.storage;
+
+import io.netty.buffer.ByteBuf;
+
+import java.io.IOException;
+
+/**
+ * Converts application objects into the payload of a {@link Data} object or a direct message and back. The codec
+ * that encoded a payload is identified by its id, which is written in front of the payload (see {@link DataCodecs}).
+ * Thus, a peer can decode payloads of any registered codec, regardless of the codec it uses for encoding.
+ *
+ * @author Thomas Bocek
+ */
+public interface DataCodec {
+
+    /**
+     * @return The id of this codec, between 1 and 255. The id 0 is reserved for Java serialization, which is written
+     *         without id for compatibility with existing peers.
+     */
+    int id();
+
+    /**
+     * Encodes an object.
+     *
+     * @param object
+     *            The object to encode
+     * @param buf
+     *            The buffer to write the object to
+     * @throws IOException
+     *             If the object cannot be encoded with this codec
+     */
+    void encode(Object object, ByteBuf buf) throws IOException;
+
+    /**
+     * Decodes an object that was encoded with {@link #encode(Object, ByteBuf)}.
+     *
+     * @param buf
+     *            The buffer to read the object from
+     * @return The decoded object
+     * @throws IOException
+     *             If the buffer does not contain a valid object
+     * @throws ClassNotFoundException
+     *             If the class of the object is not known
+     */
+    Object decode(ByteBuf buf) throws IOException, ClassNotFoundException;
+}
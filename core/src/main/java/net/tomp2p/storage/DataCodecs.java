@@ -0,0 +1,196 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.storage;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The registry of the {@link DataCodec}s a peer can decode. All 8 bits of the {@link Data} header are in use, thus,
+ * the codec is marked in the payload: a payload encoded with a codec starts with the marker byte {@link #MARKER}
+ * followed by the id of the codec. A payload encoded with Java serialization starts with its stream magic 0xACED and
+ * is written without marker, such that peers without codec support can still read it.
+ * <p>
+ * Each peer has its own registry (see {@link net.tomp2p.connection.PeerBean#dataCodecs()}), such that peers in the
+ * same JVM can use different codecs with the same id. The registry of {@link #builtIn()} only knows the codecs of
+ * TomP2P and cannot be changed.
+ *
+ * @author Thomas Bocek
+ */
+public final class DataCodecs {
+
+    /**
+     * The first byte of a payload encoded with a codec other than Java serialization.
+     */
+    public static final int MARKER = 0xCD;
+
+    private static final DataCodecs BUILT_IN = new DataCodecs(false);
+
+    private final AtomicReferenceArray<DataCodec> codecs = new AtomicReferenceArray<DataCodec>(256);
+    private final boolean modifiable;
+
+    /**
+     * Creates a registry with the codecs of TomP2P.
+     */
+    public DataCodecs() {
+        this(true);
+    }
+
+    private DataCodecs(final boolean modifiable) {
+        codecs.set(JavaDataCodec.ID, JavaDataCodec.INSTANCE);
+        codecs.set(RawDataCodec.ID, RawDataCodec.INSTANCE);
+        codecs.set(CompactDataCodec.ID, CompactDataCodec.INSTANCE);
+        codecs.set(CompressedDataCodec.ID, CompressedDataCodec.INSTANCE);
+        this.modifiable = modifiable;
+    }
+
+    /**
+     * @return The registry with the codecs of TomP2P, used to decode objects without peer
+     */
+    public static DataCodecs builtIn() {
+        return BUILT_IN;
+    }
+
+    /**
+     * Registers a codec, such that payloads encoded with this codec can be decoded.
+     *
+     * @param dataCodec
+     *            The codec to register, replaces a codec with the same id
+     * @return This class
+     */
+    public DataCodecs register(final DataCodec dataCodec) {
+        if (!modifiable) {
+            throw new UnsupportedOperationException("the built-in codecs cannot be changed");
+        }
+        final int id = dataCodec.id();
+        if (id < 0 || id > 255) {
+            throw new IllegalArgumentException("the id of a codec must be between 0 and 255");
+        }
+        codecs.set(id, dataCodec);
+        return this;
+    }
+
+    /**
+     * @param id
+     *            The id of the codec
+     * @return The codec or null if no codec with this id is registered
+     */
+    public DataCodec codec(final int id) {
+        return codecs.get(id);
+    }
+
+    /**
+     * Encodes an object with a codec, including the marker for codecs other than Java serialization.
+     *
+     * @param object
+     *            The object to encode
+     * @param dataCodec
+     *            The codec to use
+     * @return The encoded object
+     * @throws IOException
+     *             If the codec cannot encode the object
+     */
+    public static byte[] encode(final Object object, final DataCodec dataCodec) throws IOException {
+        final ByteBuf buf = Unpooled.buffer();
+        if (dataCodec.id() != JavaDataCodec.ID) {
+            buf.writeByte(MARKER);
+            buf.writeByte(dataCodec.id());
+        }
+        dataCodec.encode(object, buf);
+        final byte[] me = new byte[buf.readableBytes()];
+        buf.readBytes(me);
+        return me;
+    }
+
+    /**
+     * @param buf
+     *            The payload, the reader index is not changed
+     * @return The codec that encoded this payload
+     * @throws IOException
+     *             If the payload was encoded with a codec that is not registered
+     */
+    public DataCodec codecOf(final ByteBuf buf) throws IOException {
+        if (!hasMarker(buf)) {
+            return JavaDataCodec.INSTANCE;
+        }
+        final int id = buf.getUnsignedByte(buf.readerIndex() + 1);
+        final DataCodec dataCodec = codecs.get(id);
+        if (dataCodec == null) {
+            throw new IOException("no codec registered with id " + id);
+        }
+        return dataCodec;
+    }
+
+    /**
+     * Decodes a payload with the codec that encoded it.
+     *
+     * @param buf
+     *            The payload
+     * @return The decoded object
+     * @throws IOException
+     *             If the payload cannot be decoded
+     * @throws ClassNotFoundException
+     *             If the class of the object is not known
+     */
+    public Object decode(final ByteBuf buf) throws IOException, ClassNotFoundException {
+        return decode(buf, codecOf(buf));
+    }
+
+    /**
+     * Decodes a payload that must have been encoded with the given codec.
+     *
+     * @param buf
+     *            The payload
+     * @param dataCodec
+     *            The codec that encoded the payload
+     * @return The decoded object
+     * @throws IOException
+     *             If the payload was encoded with another codec or cannot be decoded
+     * @throws ClassNotFoundException
+     *             If the class of the object is not known
+     */
+    public static Object decode(final ByteBuf buf, final DataCodec dataCodec) throws IOException,
+            ClassNotFoundException {
+        if (!isEncodedWith(buf, dataCodec)) {
+            throw new IOException("the payload was not encoded with the codec " + dataCodec.id());
+        }
+        if (dataCodec.id() != JavaDataCodec.ID) {
+            buf.skipBytes(2);
+        }
+        return dataCodec.decode(buf);
+    }
+
+    /**
+     * @param buf
+     *            The payload, the reader index is not changed
+     * @param dataCodec
+     *            The codec
+     * @return True if the marker of the payload has the id of the codec
+     */
+    public static boolean isEncodedWith(final ByteBuf buf, final DataCodec dataCodec) {
+        if (dataCodec.id() == JavaDataCodec.ID) {
+            return !hasMarker(buf);
+        }
+        return hasMarker(buf) && buf.getUnsignedByte(buf.readerIndex() + 1) == dataCodec.id();
+    }
+
+    private static boolean hasMarker(final ByteBuf buf) {
+        return buf.readableBytes() >= 2 && buf.getUnsignedByte(buf.readerIndex()) == MARKER;
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.storage;
+
+import io.netty.buffer.ByteBuf;
+
+import java.io.IOException;
+
+import net.tomp2p.utils.Utils;
+
+/**
+ * The codec that uses Java serialization. This is the default codec, as every peer can decode it.
+ *
+ * @author Thomas Bocek
+ */
+public class JavaDataCodec implements DataCodec {
+
+    /**
+     * The id of this codec, the payload is written without marker.
+     */
+    public static final int ID = 0;
+
+    public static final JavaDataCodec INSTANCE = new JavaDataCodec();
+
+    @Override
+    public int id() {
+        return ID;
+    }
+
+    @Override
+    public void encode(final Object object, final ByteBuf buf) throws IOException {
+        buf.writeBytes(Utils.encodeJavaObject(object));
+    }
+
+    @Override
+    public Object decode(final ByteBuf buf) throws IOException, ClassNotFoundException {
+        return Utils.decodeJavaObject(buf);
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.storage;
+
+import io.netty.buffer.ByteBuf;
+
+import java.io.IOException;
+
+/**
+ * The codec for byte arrays, the bytes are written as they are.
+ *
+ * @author Thomas Bocek
+ */
+public class RawDataCodec implements DataCodec {
+
+    public static final int ID = 1;
+
+    public static final RawDataCodec INSTANCE = new RawDataCodec();
+
+    @Override
+    public int id() {
+        return ID;
+    }
+
+    @Override
+    public void encode(final Object object, final ByteBuf buf) throws IOException {
+        if (!(object instanceof byte[])) {
+            throw new IOException("the raw codec only encodes byte arrays, got " + object);
+        }
+        buf.writeBytes((byte[]) object);
+    }
+
+    @Override
+    public Object decode(final ByteBuf buf) throws IOException {
+        final byte[] me = new byte[buf.readableBytes()];
+        buf.readBytes(me);
+        return me;
+    }
+}
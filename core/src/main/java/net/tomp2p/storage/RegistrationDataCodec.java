@@ -0,0 +1,206 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.storage;
+
+import io.netty.buffer.ByteBuf;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A codec for application classes that are registered with an id. Instead of the class name and the class
+ * description of Java serialization, only the id of the class is written, followed by its fields. The fields are
+ * written either with a {@link Serializer} or, by default, in the order of their names with the
+ * {@link CompactDataCodec} format, which supports registered classes in fields and collections as well. All peers
+ * that exchange such objects need to register the same classes with the same ids, thus, this codec needs its own id.
+ *
+ * @author Thomas Bocek
+ */
+public class RegistrationDataCodec extends CompactDataCodec {
+
+    public static final int ID = 3;
+
+    private static final int MAX_REGISTRATIONS = 1024;
+
+    /**
+     * Writes and reads the fields of a registered class.
+     *
+     * @param <T>
+     *            The registered class
+     */
+    public interface Serializer<T> {
+        void write(T object, ByteBuf buf, RegistrationDataCodec codec) throws IOException;
+
+        T read(ByteBuf buf, RegistrationDataCodec codec) throws IOException, ClassNotFoundException;
+    }
+
+    private final int id;
+    private final Map<Class<?>, Integer> ids = new ConcurrentHashMap<Class<?>, Integer>();
+    private final AtomicReferenceArray<Serializer<?>> serializers = new AtomicReferenceArray<Serializer<?>>(
+            MAX_REGISTRATIONS);
+
+    public RegistrationDataCodec() {
+        this(ID);
+    }
+
+    /**
+     * @param id
+     *            The codec id, if peers use different sets of registrations
+     */
+    public RegistrationDataCodec(final int id) {
+        this.id = id;
+    }
+
+    @Override
+    public int id() {
+        return id;
+    }
+
+    /**
+     * Registers a class, the fields are written with reflection. The class needs a constructor without arguments.
+     *
+     * @param clazz
+     *            The class to register
+     * @param classId
+     *            The id of the class, between 0 and 1023
+     * @return This class
+     */
+    public <T> RegistrationDataCodec register(final Class<T> clazz, final int classId) {
+        return register(clazz, classId, new FieldSerializer<T>(clazz));
+    }
+
+    /**
+     * Registers a class with its serializer.
+     *
+     * @param clazz
+     *            The class to register
+     * @param classId
+     *            The id of the class, between 0 and 1023
+     * @param serializer
+     *            The serializer of the class
+     * @return This class
+     */
+    public <T> RegistrationDataCodec register(final Class<T> clazz, final int classId, final Serializer<T> serializer) {
+        if (classId < 0 || classId >= MAX_REGISTRATIONS) {
+            throw new IllegalArgumentException("the class id must be between 0 and " + (MAX_REGISTRATIONS - 1));
+        }
+        serializers.set(classId, serializer);
+        ids.put(clazz, classId);
+        return this;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    protected void encodeOther(final Object object, final ByteBuf buf) throws IOException {
+        final Integer classId = ids.get(object.getClass());
+        if (classId == null) {
+            super.encodeOther(object, buf);
+            return;
+        }
+        buf.writeByte(FIRST_CUSTOM_TAG);
+        writeVarInt(classId, buf);
+        ((Serializer<Object>) serializers.get(classId)).write(object, buf, this);
+    }
+
+    @Override
+    protected Object decodeOther(final int tag, final ByteBuf buf) throws IOException, ClassNotFoundException {
+        if (tag != FIRST_CUSTOM_TAG) {
+            return super.decodeOther(tag, buf);
+        }
+        final int classId = readVarInt(buf);
+        final Serializer<?> serializer = classId < MAX_REGISTRATIONS ? serializers.get(classId) : null;
+        if (serializer == null) {
+            throw new ClassNotFoundException("no class registered with id " + classId);
+        }
+        return serializer.read(buf, this);
+    }
+
+    /**
+     * Writes the non-static, non-transient fields of a class, including the fields of its super classes.
+     */
+    private static final class FieldSerializer<T> implements Serializer<T> {
+        private final Constructor<T> constructor;
+        private final Field[] fields;
+
+        private FieldSerializer(final Class<T> clazz) {
+            try {
+                this.constructor = clazz.getDeclaredConstructor();
+                this.constructor.setAccessible(true);
+            } catch (NoSuchMethodException e) {
+                throw new IllegalArgumentException("the class " + clazz + " needs a constructor without arguments", e);
+            }
+            final List<Field> list = new ArrayList<Field>();
+            for (Class<?> c = clazz; c != null && c != Object.class; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    final int modifiers = field.getModifiers();
+                    if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers)) {
+                        continue;
+                    }
+                    field.setAccessible(true);
+                    list.add(field);
+                }
+            }
+            // the order must be the same on every peer
+            Collections.sort(list, new Comparator<Field>() {
+                @Override
+                public int compare(final Field o1, final Field o2) {
+                    final int diff = o1.getName().compareTo(o2.getName());
+                    return diff != 0 ? diff : o1.getDeclaringClass().getName()
+                            .compareTo(o2.getDeclaringClass().getName());
+                }
+            });
+            this.fields = list.toArray(new Field[list.size()]);
+        }
+
+        @Override
+        public void write(final T object, final ByteBuf buf, final RegistrationDataCodec codec) throws IOException {
+            try {
+                for (Field field : fields) {
+                    codec.writeValue(field.get(object), buf);
+                }
+            } catch (IllegalAccessException e) {
+                throw new IOException(e);
+            }
+        }
+
+        @Override
+        public T read(final ByteBuf buf, final RegistrationDataCodec codec) throws IOException,
+                ClassNotFoundException {
+            try {
+                final T object = constructor.newInstance();
+                for (Field field : fields) {
+                    field.set(object, codec.readValue(buf));
+                }
+                return object;
+            } catch (IOException e) {
+                throw e;
+            } catch (ClassNotFoundException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2012 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.utils;
+
+/**
+ * A clock with a resolution of a few milliseconds. The time is updated by a daemon thread, thus, reading it is a
+ * volatile read instead of a system call. This is precise enough for timeouts of seconds.
+ *
+ * @author Thomas Bocek
+ */
+public final class CoarseClock {
+
+    /**
+     * The time between two updates of the clock.
+     */
+    public static final int RESOLUTION_MILLIS = 10;
+
+    private static volatile long now = System.currentTimeMillis();
+
+    static {
+        final Thread ticker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    now = System.currentTimeMillis();
+                    try {
+                        Thread.sleep(RESOLUTION_MILLIS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }, "TOMP2P - clock");
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    private CoarseClock() {
+    }
+
+    /**
+     * @return The current time in milliseconds, at most {@link #RESOLUTION_MILLIS} behind
+     */
+    public static long currentTimeMillis() {
+        return now;
+    }
+}
@@ -20,22 +20,33 @@ import java.util.Collection;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * A map with expiration and more or less LRU. Since the maps are separated in segments, the LRU is done for each
- * segment. A segment is chosen based on the hash of the key. If one segments is more loaded than another, then an entry
- * of the loaded segment may get evicted before an entry used least recently from an other segment. The expiration is
- * done best effort. There is no thread checking for timed out entries since the cache has a fixed size. Once an entry
- * times out, it remains in the map until it either is accessed or evicted. A test showed that for the default entry
- * size of 1024, this map has a size of 967 if 1024 items are inserted. This is due to the segmentation and hashing.
- * 
+ * A map with expiration and a bounded size. The entries are stored in a {@link ConcurrentHashMap}, thus, reads and
+ * writes do not block each other. Which entry is evicted is decided by W-TinyLFU: new entries enter a small LRU
+ * window, and an entry that leaves the window is only admitted to the main space if it has been used more often
+ * recently than the entry it would evict (see {@link FrequencySketch}). The main space is a segmented LRU, entries
+ * used twice are protected. Thus, a scan of entries used only once does not flush the popular entries.
+ * <p>
+ * Reads are recorded in a lossy buffer and writes in a queue. The buffers are applied to the eviction policy by the
+ * thread that gets the eviction lock, other threads do not wait. Entries expire after the time to live since they
+ * were written. They are removed in the order they were written, and an expired entry is never returned. The time is
+ * read from the {@link CoarseClock}, which lags behind by up to its resolution, thus, entries expire up to one
+ * resolution early instead of late.
+ *
  * @author Thomas Bocek
  * @param <K>
  *            the type of the key
@@ -46,12 +57,12 @@ public class ConcurrentCacheMap<K, V> implements ConcurrentMap<K, V> {
     private static final Logger LOGGER = LoggerFactory.getLogger(ConcurrentCacheMap.class);
 
     /**
-     * Number of segments that can be accessed concurrently.
+     * Number of read buffers, reads of threads that use different buffers do not contend.
      */
     public static final int SEGMENT_NR = 16;
 
     /**
-     * Max. number of entries that the map can hold until the least recently used gets replaced
+     * Max. number of entries that the map can hold until an entry gets evicted
      */
     public static final int MAX_ENTRIES = 1024;
 
@@ -60,39 +71,67 @@ public class ConcurrentCacheMap<K, V> implements ConcurrentMap<K, V> {
      */
     public static final int DEFAULT_TIME_TO_LIVE = 60;
 
-    private final CacheMap<K, ExpiringObject>[] segments;
+    private static final int READ_BUFFER_SIZE = 16;
+    private static final int READ_BUFFER_MASK = READ_BUFFER_SIZE - 1;
+    // the counters of the read buffers are in different cache lines
+    private static final int COUNTER_PADDING = 8;
+
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    private final ConcurrentHashMap<K, Node<K, V>> data = new ConcurrentHashMap<K, Node<K, V>>();
 
-    private final int timeToLiveSeconds;
+    private final long timeToLiveMillis;
 
     private final boolean refreshTimeout;
 
     private final AtomicInteger removedCounter = new AtomicInteger();
 
+    private final AtomicReferenceArray<Node<K, V>> readBuffer = new AtomicReferenceArray<Node<K, V>>(SEGMENT_NR
+            * READ_BUFFER_SIZE);
+    private final AtomicLongArray readCounter = new AtomicLongArray(SEGMENT_NR * COUNTER_PADDING);
+    private final Queue<Node<K, V>> writeBuffer = new ConcurrentLinkedQueue<Node<K, V>>();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+
+    // guarded by evictionLock
+    private final long[] readDrained = new long[SEGMENT_NR];
+    private final FrequencySketch sketch;
+    private final AccessOrder<K, V> window = new AccessOrder<K, V>();
+    private final AccessOrder<K, V> probation = new AccessOrder<K, V>();
+    private final AccessOrder<K, V> protect = new AccessOrder<K, V>();
+    private final WriteOrder<K, V> writeOrder = new WriteOrder<K, V>();
+    private final int maxEntries;
+    private final int maxWindow;
+    private final int maxProtected;
+    private int size;
+    private int windowSize;
+    private int protectedSize;
+
+    private volatile RemovalListener<K, V> removalListener;
+
     /**
-     * Creates a new instance of ConcurrentCacheMap using the supplied values and a {@link CacheMap} for the internal
-     * data structure.
+     * Creates a new instance of ConcurrentCacheMap using the default values.
      */
     public ConcurrentCacheMap() {
         this(DEFAULT_TIME_TO_LIVE, MAX_ENTRIES, true);
     }
 
     /**
-     * Creates a new instance of ConcurrentCacheMap using the supplied values and a {@link CacheMap} for the internal
-     * data structure.
-     * 
+     * Creates a new instance of ConcurrentCacheMap using the supplied values.
+     *
      * @param timeToLive
      *            The time-to-live value (seconds)
      * @param maxEntries
-     *            Set the maximum number of entries until items gets replaced with LRU
+     *            Set the maximum number of entries until items gets evicted
      */
     public ConcurrentCacheMap(final int timeToLiveSeconds, final int maxEntries) {
         this(timeToLiveSeconds, maxEntries, true);
     }
 
     /**
-     * Creates a new instance of ConcurrentCacheMap using the supplied values and a {@link CacheMap} for the internal
-     * data structure.
-     * 
+     * Creates a new instance of ConcurrentCacheMap using the supplied values.
+     *
      * @param timeToLiveSeconds
      *            The time-to-live value (seconds)
      * @param maxEntries
@@ -100,196 +139,232 @@ public class ConcurrentCacheMap<K, V> implements ConcurrentMap<K, V> {
      * @param refreshTimeout
      *            If set to true, timeout will be reset in case of {@link #putIfAbsent(Object, Object)}
      */
-    @SuppressWarnings("unchecked")
     public ConcurrentCacheMap(final int timeToLiveSeconds, final int maxEntries, final boolean refreshTimeout) {
-        this.segments = new CacheMap[SEGMENT_NR];
-        final int maxEntriesPerSegment = maxEntries / SEGMENT_NR;
-        for (int i = 0; i < SEGMENT_NR; i++) {
-            // set the cachemap to true, since it should behave as a regular map
-            segments[i] = new CacheMap<K, ExpiringObject>(maxEntriesPerSegment, true);
-        }
-        this.timeToLiveSeconds = timeToLiveSeconds;
+        this.timeToLiveMillis = TimeUnit.MILLISECONDS.convert(timeToLiveSeconds, TimeUnit.SECONDS);
         this.refreshTimeout = refreshTimeout;
+        this.maxEntries = Math.max(0, maxEntries);
+        // 1% of the entries are in the window, 80% of the main space is protected
+        this.maxWindow = Math.min(this.maxEntries, Math.max(1, this.maxEntries / 100));
+        this.maxProtected = (this.maxEntries - maxWindow) * 8 / 10;
+        this.sketch = new FrequencySketch(this.maxEntries);
+    }
+
+    /**
+     * Is notified when an entry expired or was evicted. Entries removed with {@link ConcurrentCacheMap#remove(Object)}
+     * are not reported.
+     *
+     * @param <K>
+     *            the type of the key
+     * @param <V>
+     *            the type of the value
+     */
+    public interface RemovalListener<K, V> {
+        /**
+         * Called after the entry has been removed from the map. The eviction lock may be held, thus, this method
+         * should return quickly.
+         *
+         * @param key
+         *            The key of the removed entry
+         * @param value
+         *            The value of the removed entry
+         */
+        void removed(K key, V value);
     }
 
     /**
-     * Returns the segment based on the key.
-     * 
-     * @param key
-     *            The key where the hash code identifies the segment
-     * @return The cache map that corresponds to this segment
+     * @param removalListener
+     *            The listener that is notified about expired and evicted entries, or null to not be notified
+     * @return This class
      */
-    private CacheMap<K, ExpiringObject> segment(final Object key) {
-        return segments[(key.hashCode() & Integer.MAX_VALUE) % SEGMENT_NR];
+    public ConcurrentCacheMap<K, V> removalListener(final RemovalListener<K, V> removalListener) {
+        this.removalListener = removalListener;
+        return this;
     }
 
     @Override
     public V put(final K key, final V value) {
-        final ExpiringObject newValue = new ExpiringObject(value, System.currentTimeMillis());
-        final CacheMap<K, ExpiringObject> segment = segment(key);
-        ExpiringObject oldValue;
-        synchronized (segment) {
-            oldValue = segment.put(key, newValue);
-        }
-        if (oldValue == null || oldValue.isExpired()) {
-            return null;
+        final long now = CoarseClock.currentTimeMillis();
+        while (true) {
+            Node<K, V> node = data.get(key);
+            if (node == null) {
+                final Node<K, V> created = new Node<K, V>(key, value, now);
+                node = data.putIfAbsent(key, created);
+                if (node == null) {
+                    afterWrite(created);
+                    return null;
+                }
+            }
+            final V oldValue;
+            final boolean expired;
+            synchronized (node) {
+                if (!node.alive) {
+                    // removed in the meantime
+                    continue;
+                }
+                oldValue = node.value;
+                expired = isExpired(node, now);
+                node.value = checkValue(value);
+                node.writeTime = now;
+            }
+            if (expired) {
+                notifyRemoved(key, oldValue);
+            }
+            afterWrite(node);
+            return expired ? null : oldValue;
         }
-        return oldValue.getValue();
     }
 
     @Override
     /**
-     * This does not reset the timer!
+     * This does not reset the timer, unless refreshTimeout is set!
      */
     public V putIfAbsent(final K key, final V value) {
-        final CacheMap<K, ExpiringObject> segment = segment(key);
-        final ExpiringObject newValue = new ExpiringObject(value, System.currentTimeMillis());
-        ExpiringObject oldValue = null;
-        synchronized (segment) {
-            if (!segment.containsKey(key)) {
-                oldValue = segment.put(key, newValue);
-            } else {
-                oldValue = segment.get(key);
-                if (oldValue.isExpired()) {
-                    segment.put(key, newValue);
-                } else if (refreshTimeout) {
-                    oldValue = new ExpiringObject(oldValue.getValue(), System.currentTimeMillis());
-                    segment.put(key, oldValue);
+        final long now = CoarseClock.currentTimeMillis();
+        while (true) {
+            Node<K, V> node = data.get(key);
+            if (node == null) {
+                final Node<K, V> created = new Node<K, V>(key, value, now);
+                node = data.putIfAbsent(key, created);
+                if (node == null) {
+                    afterWrite(created);
+                    return null;
                 }
             }
+            final V oldValue;
+            V expiredValue = null;
+            synchronized (node) {
+                if (!node.alive) {
+                    continue;
+                }
+                if (isExpired(node, now)) {
+                    expiredValue = node.value;
+                    node.value = checkValue(value);
+                    node.writeTime = now;
+                    oldValue = null;
+                } else {
+                    oldValue = node.value;
+                    if (refreshTimeout) {
+                        node.writeTime = now;
+                    }
+                }
+            }
+            if (expiredValue != null) {
+                notifyRemoved(key, expiredValue);
+            }
+            if (oldValue == null || refreshTimeout) {
+                afterWrite(node);
+            } else {
+                afterRead(node);
+            }
+            return oldValue;
         }
-        if (oldValue == null || oldValue.isExpired()) {
-            return null;
-        }
-        return oldValue.getValue();
     }
 
-    @SuppressWarnings("unchecked")
     @Override
     public V get(final Object key) {
-        final CacheMap<K, ExpiringObject> segment = segment(key);
-        final ExpiringObject oldValue;
-        synchronized (segment) {
-            oldValue = segment.get(key);
-        }
-        if (oldValue != null) {
-            if (expire(segment, (K) key, oldValue)) {
-                return null;
-            } else {
-                if (LOGGER.isDebugEnabled()) {
-                    LOGGER.debug("get: " + key + ";" + oldValue.getValue());
-                }
-                return oldValue.getValue();
+        final Node<K, V> node = data.get(key);
+        if (node == null) {
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("get not found: " + key);
             }
+            return null;
+        }
+        final V value = node.value;
+        if (expire(node, CoarseClock.currentTimeMillis())) {
+            return null;
         }
+        afterRead(node);
         if (LOGGER.isDebugEnabled()) {
-            LOGGER.debug("get not found: " + key);
+            LOGGER.debug("get: " + key + ";" + value);
         }
-        return null;
+        return value;
     }
 
     @Override
     public V remove(final Object key) {
-        final CacheMap<K, ExpiringObject> segment = segment(key);
-        final ExpiringObject oldValue;
-        synchronized (segment) {
-            oldValue = segment.remove(key);
-        }
-        if (oldValue == null || oldValue.isExpired()) {
+        final Node<K, V> node = data.get(key);
+        if (node == null) {
             return null;
         }
-        return oldValue.getValue();
+        final V oldValue;
+        final boolean expired;
+        synchronized (node) {
+            if (!node.alive) {
+                return null;
+            }
+            node.alive = false;
+            oldValue = node.value;
+            expired = isExpired(node, CoarseClock.currentTimeMillis());
+        }
+        data.remove(key, node);
+        afterWrite(node);
+        return expired ? null : oldValue;
     }
 
-    @SuppressWarnings("unchecked")
     @Override
     public boolean remove(final Object key, final Object value) {
-        final CacheMap<K, ExpiringObject> segment = segment(key);
-        final ExpiringObject oldValue;
-        boolean removed = false;
-        synchronized (segment) {
-            oldValue = segment.get(key);
-            if (oldValue != null && oldValue.equals(value) && !oldValue.isExpired()) {
-                removed = segment.remove(key) != null;
-            }
+        final Node<K, V> node = data.get(key);
+        if (node == null) {
+            return false;
         }
-        if (oldValue != null) {
-            expire(segment, (K) key, oldValue);
+        synchronized (node) {
+            if (!node.alive || isExpired(node, CoarseClock.currentTimeMillis()) || !node.value.equals(value)) {
+                return false;
+            }
+            node.alive = false;
         }
-        return removed;
+        data.remove(key, node);
+        afterWrite(node);
+        return true;
     }
 
-    @SuppressWarnings("unchecked")
     @Override
     public boolean containsKey(final Object key) {
-        final CacheMap<K, ExpiringObject> segment = segment(key);
-        final ExpiringObject oldValue;
-        synchronized (segment) {
-            oldValue = segment.get(key);
-        }
-        if (oldValue != null) {
-            if (!expire(segment, (K) key, oldValue)) {
-                return true;
-            }
-        }
-        return false;
+        final Node<K, V> node = data.get(key);
+        return node != null && !expire(node, CoarseClock.currentTimeMillis());
     }
 
     @Override
     public boolean containsValue(final Object value) {
-        for (final CacheMap<K, ExpiringObject> segment : segments) {
-            synchronized (segment) {
-                expireSegment(segment);
-                if (segment.containsValue(value)) {
-                    return true;
-                }
+        final long now = CoarseClock.currentTimeMillis();
+        for (final Node<K, V> node : data.values()) {
+            if (!expire(node, now) && node.value.equals(value)) {
+                return true;
             }
         }
         return false;
     }
 
+    /**
+     * @return The number of entries. Expired entries are removed first, unless another thread holds the eviction
+     *         lock. Then they may still be counted, use {@link #cleanUp()} for an exact count.
+     */
     @Override
     public int size() {
-        int size = 0;
-        for (final CacheMap<K, ExpiringObject> segment : segments) {
-            synchronized (segment) {
-                expireSegment(segment);
-                size += segment.size();
-            }
-        }
-        return size;
+        tryToDrain();
+        return data.size();
     }
 
     @Override
     public boolean isEmpty() {
-        for (final CacheMap<K, ExpiringObject> segment : segments) {
-            synchronized (segment) {
-                expireSegment(segment);
-                if (!segment.isEmpty()) {
-                    return false;
-                }
-            }
-        }
-        return true;
+        return size() == 0;
     }
 
     @Override
     public void clear() {
-        for (final CacheMap<K, ExpiringObject> segment : segments) {
-            synchronized (segment) {
-                segment.clear();
-            }
+        for (final K key : data.keySet()) {
+            remove(key);
         }
     }
 
     @Override
     public int hashCode() {
         int hashCode = 0;
-        for (final CacheMap<K, ExpiringObject> segment : segments) {
-            synchronized (segment) {
-                expireSegment(segment);
+        final long now = CoarseClock.currentTimeMillis();
+        for (final Node<K, V> node : data.values()) {
+            if (!expire(node, now)) {
                 // as seen in AbstractMap
-                hashCode += segment.hashCode();
+                hashCode += node.key.hashCode() ^ node.value.hashCode();
             }
         }
         return hashCode;
@@ -298,10 +373,10 @@ public class ConcurrentCacheMap<K, V> implements ConcurrentMap<K, V> {
     @Override
     public Set<K> keySet() {
         final Set<K> retVal = new HashSet<K>();
-        for (final CacheMap<K, ExpiringObject> segment : segments) {
-            synchronized (segment) {
-                expireSegment(segment);
-                retVal.addAll(segment.keySet());
+        final long now = CoarseClock.currentTimeMillis();
+        for (final Node<K, V> node : data.values()) {
+            if (!expire(node, now)) {
+                retVal.add(node.key);
             }
         }
         return retVal;
@@ -340,21 +415,11 @@ public class ConcurrentCacheMap<K, V> implements ConcurrentMap<K, V> {
 				};
         	}
         };
-        for (final CacheMap<K, ExpiringObject> segment : segments) {
-            synchronized (segment) {
-                final Iterator<ExpiringObject> iterator = segment.values().iterator();
-                while (iterator.hasNext()) {
-                    final ExpiringObject expiringObject = iterator.next();
-                    if (expiringObject.isExpired()) {
-                        iterator.remove();
-                        if (LOGGER.isDebugEnabled()) {
-                            LOGGER.debug("remove in entrySet " + expiringObject.getValue());
-                        }
-                        removedCounter.incrementAndGet();
-                    } else {
-                        retVal.add(expiringObject.getValue());
-                    }
-                }
+        final long now = CoarseClock.currentTimeMillis();
+        for (final Node<K, V> node : data.values()) {
+            final V value = node.value;
+            if (!expire(node, now)) {
+                retVal.add(value);
             }
         }
         return retVal;
@@ -371,7 +436,7 @@ public class ConcurrentCacheMap<K, V> implements ConcurrentMap<K, V> {
         	    return new Iterator<Map.Entry<K,V>>() {
 
         	    	private K currentKey = null;
-        	    	
+
 					@Override
                     public boolean hasNext() {
 	                    return orig.hasNext();
@@ -394,36 +459,26 @@ public class ConcurrentCacheMap<K, V> implements ConcurrentMap<K, V> {
 				};
         	}
         };
-        for (final CacheMap<K, ExpiringObject> segment : segments) {
-            synchronized (segment) {
-                final Iterator<Map.Entry<K, ExpiringObject>> iterator = segment.entrySet().iterator();
-                while (iterator.hasNext()) {
-                    final Map.Entry<K, ExpiringObject> entry = iterator.next();
-                    if (entry.getValue().isExpired()) {
-                        iterator.remove();
-                        if (LOGGER.isDebugEnabled()) {
-                            LOGGER.debug("remove in entrySet " + entry.getValue().getValue());
-                        }
-                        removedCounter.incrementAndGet();
-                    } else {
-                        retVal.add(new Map.Entry<K, V>() {
-                            @Override
-                            public K getKey() {
-                                return entry.getKey();
-                            }
-
-                            @Override
-                            public V getValue() {
-                                return entry.getValue().getValue();
-                            }
-
-                            @Override
-                            public V setValue(final V value) {
-                                throw new UnsupportedOperationException("not supported");
-                            }
-                        });
+        final long now = CoarseClock.currentTimeMillis();
+        for (final Node<K, V> node : data.values()) {
+            final V value = node.value;
+            if (!expire(node, now)) {
+                retVal.add(new Map.Entry<K, V>() {
+                    @Override
+                    public K getKey() {
+                        return node.key;
                     }
-                }
+
+                    @Override
+                    public V getValue() {
+                        return value;
+                    }
+
+                    @Override
+                    public V setValue(final V value) {
+                        throw new UnsupportedOperationException("not supported");
+                    }
+                });
             }
         }
         return retVal;
@@ -431,153 +486,394 @@ public class ConcurrentCacheMap<K, V> implements ConcurrentMap<K, V> {
 
     @Override
     public boolean replace(final K key, final V oldValue, final V newValue) {
-        final ExpiringObject oldValue2 = new ExpiringObject(oldValue, 0L);
-        final ExpiringObject newValue2 = new ExpiringObject(newValue, System.currentTimeMillis());
-        final CacheMap<K, ExpiringObject> segment = segment(key);
-        final ExpiringObject oldValue3;
-        boolean replaced = false;
-        synchronized (segment) {
-            oldValue3 = segment.get(key);
-            if (oldValue3 != null && !oldValue3.isExpired() && oldValue2.getValue().equals(oldValue3.getValue())) {
-                segment.put(key, newValue2);
-                replaced = true;
-            }
+        final Node<K, V> node = data.get(key);
+        if (node == null) {
+            return false;
         }
-        if (oldValue3 != null) {
-            expire(segment, key, oldValue3);
+        final long now = CoarseClock.currentTimeMillis();
+        synchronized (node) {
+            if (!node.alive || isExpired(node, now) || !node.value.equals(oldValue)) {
+                return false;
+            }
+            node.value = checkValue(newValue);
+            node.writeTime = now;
         }
-        return replaced;
+        afterWrite(node);
+        return true;
     }
 
     @Override
     public V replace(final K key, final V value) {
-        final ExpiringObject newValue = new ExpiringObject(value, System.currentTimeMillis());
-        final CacheMap<K, ExpiringObject> segment = segment(key);
-        final ExpiringObject oldValue;
-        synchronized (segment) {
-            oldValue = segment.get(key);
-            if (oldValue != null && !oldValue.isExpired()) {
-                segment.put(key, newValue);
+        final Node<K, V> node = data.get(key);
+        if (node == null) {
+            return null;
+        }
+        final long now = CoarseClock.currentTimeMillis();
+        final V oldValue;
+        synchronized (node) {
+            if (!node.alive || isExpired(node, now)) {
+                return null;
             }
+            oldValue = node.value;
+            node.value = checkValue(value);
+            node.writeTime = now;
         }
-        if (oldValue == null) {
-            return null;
+        afterWrite(node);
+        return oldValue;
+    }
+
+    /**
+     * @return The number of expired objects
+     */
+    public int expiredCounter() {
+        return removedCounter.get();
+    }
+
+    /**
+     * Applies the pending reads and writes to the eviction policy, and removes the expired entries.
+     */
+    public void cleanUp() {
+        evictionLock.lock();
+        try {
+            maintenance();
+        } finally {
+            evictionLock.unlock();
         }
-        if (expire(segment, key, oldValue)) {
-            return null;
+    }
+
+    private boolean isExpired(final Node<K, V> node, final long now) {
+        // the coarse clock may lag behind more at this read than at the write
+        return now + CoarseClock.RESOLUTION_MILLIS >= node.writeTime + timeToLiveMillis;
+    }
+
+    private static <V> V checkValue(final V value) {
+        if (value == null) {
+            throw new IllegalArgumentException("An expiring object cannot be null.");
         }
-        return oldValue.getValue();
+        return value;
     }
 
     /**
-     * Expires a key in a segment. If a key value pair is expired, it will get removed.
-     * 
-     * @param segment
-     *            The segment
-     * @param key
-     *            The key
-     * @param value
-     *            The value
+     * Expires an entry. If the entry is expired, it will get removed.
+     *
+     * @param node
+     *            The entry
+     * @param now
+     *            The current time
      * @return True if expired, otherwise false.
      */
-    private boolean expire(final CacheMap<K, ExpiringObject> segment, final K key, final ExpiringObject value) {
-        if (value.isExpired()) {
-            synchronized (segment) {
-                final ExpiringObject tmp = segment.get(key);
-                if (tmp != null && tmp.equals(value)) {
-                    segment.remove(key);
-                    if (LOGGER.isDebugEnabled()) {
-                        LOGGER.debug("remove in expire " + value.getValue());
-                    }
-                    removedCounter.incrementAndGet();
+    private boolean expire(final Node<K, V> node, final long now) {
+        if (!isExpired(node, now)) {
+            return false;
+        }
+        final V value;
+        synchronized (node) {
+            if (!node.alive || !isExpired(node, now)) {
+                return !node.alive;
+            }
+            node.alive = false;
+            value = node.value;
+        }
+        data.remove(node.key, node);
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("remove in expire " + value);
+        }
+        removedCounter.incrementAndGet();
+        notifyRemoved(node.key, value);
+        afterWrite(node);
+        return true;
+    }
+
+    private void notifyRemoved(final K key, final V value) {
+        final RemovalListener<K, V> listener = removalListener;
+        if (listener != null) {
+            listener.removed(key, value);
+        }
+    }
+
+    /**
+     * Records a read in the buffer of this thread. If the buffer is full, the buffers are drained, if no other thread
+     * does it already. A read may be lost if the buffer is overwritten.
+     */
+    private void afterRead(final Node<K, V> node) {
+        final int stripe = (int) Thread.currentThread().getId() & (SEGMENT_NR - 1);
+        final long index = readCounter.getAndIncrement(stripe * COUNTER_PADDING);
+        readBuffer.lazySet(stripe * READ_BUFFER_SIZE + (int) (index & READ_BUFFER_MASK), node);
+        if ((index & READ_BUFFER_MASK) == READ_BUFFER_MASK) {
+            tryToDrain();
+        }
+    }
+
+    /**
+     * Records that an entry was added, changed, or removed. The write is applied by this thread or by the thread that
+     * holds the lock.
+     */
+    private void afterWrite(final Node<K, V> node) {
+        writeBuffer.add(node);
+        if (evictionLock.isHeldByCurrentThread()) {
+            // expired during the maintenance, which drains the buffer
+            return;
+        }
+        while (!writeBuffer.isEmpty() && tryToDrain()) {
+            // writes may have been added after the drain
+        }
+    }
+
+    private boolean tryToDrain() {
+        if (!evictionLock.tryLock()) {
+            return false;
+        }
+        try {
+            maintenance();
+        } finally {
+            evictionLock.unlock();
+        }
+        return true;
+    }
+
+    // guarded by evictionLock
+    private void maintenance() {
+        drainReadBuffer();
+        drainWriteBuffer();
+        expireEntries(CoarseClock.currentTimeMillis());
+        evictEntries();
+    }
+
+    private void drainReadBuffer() {
+        for (int stripe = 0; stripe < SEGMENT_NR; stripe++) {
+            final long end = readCounter.get(stripe * COUNTER_PADDING);
+            for (long i = Math.max(readDrained[stripe], end - READ_BUFFER_SIZE); i < end; i++) {
+                final int index = stripe * READ_BUFFER_SIZE + (int) (i & READ_BUFFER_MASK);
+                final Node<K, V> node = readBuffer.get(index);
+                // a read recorded in the meantime may be lost
+                readBuffer.lazySet(index, null);
+                if (node != null && node.linked) {
+                    onAccess(node);
                 }
             }
-            return true;
+            readDrained[stripe] = end;
+        }
+    }
+
+    private void drainWriteBuffer() {
+        Node<K, V> node;
+        while ((node = writeBuffer.poll()) != null) {
+            if (!node.alive) {
+                if (node.linked) {
+                    unlink(node);
+                }
+            } else if (node.linked) {
+                // updated
+                onAccess(node);
+                writeOrder.moveToBack(node);
+            } else {
+                // added
+                sketch.increment(node.key);
+                node.queue = WINDOW;
+                node.linked = true;
+                window.add(node);
+                writeOrder.add(node);
+                windowSize++;
+                size++;
+            }
+        }
+    }
+
+    private void onAccess(final Node<K, V> node) {
+        sketch.increment(node.key);
+        if (node.queue == WINDOW) {
+            window.moveToBack(node);
+        } else if (node.queue == PROBATION) {
+            // used twice, protect it
+            probation.remove(node);
+            node.queue = PROTECTED;
+            protect.add(node);
+            protectedSize++;
+            while (protectedSize > maxProtected) {
+                final Node<K, V> demoted = protect.first();
+                protect.remove(demoted);
+                protectedSize--;
+                demoted.queue = PROBATION;
+                probation.add(demoted);
+            }
+        } else {
+            protect.moveToBack(node);
         }
-        return false;
+    }
+
+    private void unlink(final Node<K, V> node) {
+        if (node.queue == WINDOW) {
+            window.remove(node);
+            windowSize--;
+        } else if (node.queue == PROBATION) {
+            probation.remove(node);
+        } else {
+            protect.remove(node);
+            protectedSize--;
+        }
+        writeOrder.remove(node);
+        node.linked = false;
+        size--;
     }
 
     /**
-     * Fast expiration. Since the ExpiringObject is ordered the for loop can break early if a object is not expired.
-     * 
-     * @param segment
-     *            The segment
+     * Removes the expired entries, the entries are in the order they were written.
      */
-    private void expireSegment(final CacheMap<K, ExpiringObject> segment) {
-        final Iterator<ExpiringObject> iterator = segment.values().iterator();
-        while (iterator.hasNext()) {
-            final ExpiringObject expiringObject = iterator.next();
-            if (expiringObject.isExpired()) {
-                iterator.remove();
-                if (LOGGER.isDebugEnabled()) {
-                    LOGGER.debug("remove in expireAll " + expiringObject.getValue());
+    private void expireEntries(final long now) {
+        Node<K, V> node;
+        while ((node = writeOrder.first()) != null && isExpired(node, now)) {
+            if (node.alive && !expire(node, now)) {
+                // written again, its write is in the buffer
+                writeOrder.moveToBack(node);
+            } else {
+                unlink(node);
+            }
+        }
+    }
+
+    /**
+     * Moves the entries that do not fit into the window to the main space, and evicts either such a candidate or the
+     * least recently used entry of the main space, whichever was used less frequently.
+     */
+    private void evictEntries() {
+        Node<K, V> candidate = null;
+        while (windowSize > maxWindow) {
+            final Node<K, V> node = window.first();
+            window.remove(node);
+            windowSize--;
+            node.queue = PROBATION;
+            probation.add(node);
+            if (candidate == null) {
+                candidate = node;
+            }
+        }
+        while (size > maxEntries) {
+            final Node<K, V> victim = probation.first();
+            if (candidate == null || victim == null || victim == candidate) {
+                // no choice left, evict the least recently used entry
+                final Node<K, V> node = victim != null ? victim : (protect.first() != null ? protect.first()
+                        : window.first());
+                if (node == candidate) {
+                    candidate = probation.next(candidate);
                 }
-                removedCounter.incrementAndGet();
+                evict(node);
+            } else if (sketch.frequency(candidate.key) > sketch.frequency(victim.key)) {
+                evict(victim);
             } else {
-                break;
+                final Node<K, V> next = probation.next(candidate);
+                evict(candidate);
+                candidate = next;
             }
         }
     }
 
+    private void evict(final Node<K, V> node) {
+        final V value;
+        synchronized (node) {
+            node.alive = false;
+            value = node.value;
+        }
+        data.remove(node.key, node);
+        unlink(node);
+        notifyRemoved(node.key, value);
+    }
+
     /**
-     * @return The number of expired objects
+     * An entry, the links are guarded by the eviction lock.
      */
-    public int expiredCounter() {
-        return removedCounter.get();
+    private static final class Node<K, V> {
+        private final K key;
+        private volatile V value;
+        private volatile long writeTime;
+        // written while holding the lock of this node
+        private volatile boolean alive = true;
+
+        // guarded by evictionLock
+        private boolean linked = false;
+        private int queue;
+        private Node<K, V> prev;
+        private Node<K, V> next;
+        private Node<K, V> prevWrite;
+        private Node<K, V> nextWrite;
+
+        private Node(final K key, final V value, final long writeTime) {
+            this.key = key;
+            this.value = key == null ? value : checkValue(value);
+            this.writeTime = writeTime;
+        }
     }
 
     /**
-     * An object that also holds expriation information.
+     * A LRU list of entries, the least recently used entry is first.
      */
-    private class ExpiringObject {
-        private final V value;
+    private static final class AccessOrder<K, V> {
+        private final Node<K, V> head = new Node<K, V>(null, null, 0);
 
-        private final long lastAccessTime;
+        private AccessOrder() {
+            head.prev = head;
+            head.next = head;
+        }
 
-        /**
-         * Creates a new expiring object with the given time of access.
-         * 
-         * @param value
-         *            The value that is wrapped in this class
-         * @param lastAccessTime
-         *            The time of access
-         */
-        ExpiringObject(final V value, final long lastAccessTime) {
-            if (value == null) {
-                throw new IllegalArgumentException("An expiring object cannot be null.");
-            }
-            this.value = value;
-            this.lastAccessTime = lastAccessTime;
+        private Node<K, V> first() {
+            return head.next == head ? null : head.next;
         }
 
-        /**
-         * @return If entry is expired
-         */
-        public boolean isExpired() {
-            return System.currentTimeMillis() >= lastAccessTime + 
-            		(TimeUnit.MILLISECONDS.convert(timeToLiveSeconds, TimeUnit.SECONDS));
+        private Node<K, V> next(final Node<K, V> node) {
+            return node.next == head ? null : node.next;
         }
 
-        /**
-         * @return The wrapped value
-         */
-        public V getValue() {
-            return value;
+        private void add(final Node<K, V> node) {
+            node.prev = head.prev;
+            node.next = head;
+            head.prev.next = node;
+            head.prev = node;
         }
 
-        @Override
-        public boolean equals(final Object obj) {
-            if (!(obj instanceof ConcurrentCacheMap.ExpiringObject)) {
-                return false;
-            }
-            @SuppressWarnings("unchecked")
-            final ExpiringObject exp = (ExpiringObject) obj;
-            return value.equals(exp.value);
+        private void remove(final Node<K, V> node) {
+            node.prev.next = node.next;
+            node.next.prev = node.prev;
+            node.prev = null;
+            node.next = null;
+        }
+
+        private void moveToBack(final Node<K, V> node) {
+            remove(node);
+            add(node);
+        }
+    }
+
+    /**
+     * The entries in the order they were written, the entry that expires first is first.
+     */
+    private static final class WriteOrder<K, V> {
+        private final Node<K, V> head = new Node<K, V>(null, null, 0);
+
+        private WriteOrder() {
+            head.prevWrite = head;
+            head.nextWrite = head;
+        }
+
+        private Node<K, V> first() {
+            return head.nextWrite == head ? null : head.nextWrite;
+        }
+
+        private void add(final Node<K, V> node) {
+            node.prevWrite = head.prevWrite;
+            node.nextWrite = head;
+            head.prevWrite.nextWrite = node;
+            head.prevWrite = node;
+        }
+
+        private void remove(final Node<K, V> node) {
+            node.prevWrite.nextWrite = node.nextWrite;
+            node.nextWrite.prevWrite = node.prevWrite;
+            node.prevWrite = null;
+            node.nextWrite = null;
         }
 
-        @Override
-        public int hashCode() {
-            return value.hashCode();
+        private void moveToBack(final Node<K, V> node) {
+            remove(node);
+            add(node);
         }
     }
 }
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2012 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.utils;
+
+/**
+ * A token bucket that is refilled with a constant rate up to its capacity. Tokens can be taken if available, or
+ * reserved in advance, in which case the caller is told how long to wait until the tokens would have been available.
+ * This class is thread-safe.
+ *
+ * @author Thomas Bocek
+ */
+public class TokenBucket {
+
+    private static final long NANOS_PER_SECOND = 1000L * 1000L * 1000L;
+
+    private final long ratePerSecond;
+    private final long capacity;
+
+    // guarded by this
+    private double tokens;
+    private long lastRefillNanos;
+
+    /**
+     * Creates a full token bucket.
+     *
+     * @param ratePerSecond
+     *            The number of tokens added per second
+     * @param capacity
+     *            The maximum number of tokens, i.e., the largest burst
+     */
+    public TokenBucket(final long ratePerSecond, final long capacity) {
+        if (ratePerSecond <= 0 || capacity <= 0) {
+            throw new IllegalArgumentException("The rate and the capacity need to be positive");
+        }
+        this.ratePerSecond = ratePerSecond;
+        this.capacity = capacity;
+        this.tokens = capacity;
+        this.lastRefillNanos = System.nanoTime();
+    }
+
+    /**
+     * @return The number of tokens added per second
+     */
+    public long ratePerSecond() {
+        return ratePerSecond;
+    }
+
+    /**
+     * @return The maximum number of tokens
+     */
+    public long capacity() {
+        return capacity;
+    }
+
+    /**
+     * @return The number of tokens that can be taken now, negative if tokens have been reserved in advance
+     */
+    public synchronized long available() {
+        refill(System.nanoTime());
+        return (long) Math.floor(tokens);
+    }
+
+    /**
+     * Takes the tokens if they are available.
+     *
+     * @param amount
+     *            The number of tokens to take
+     * @return True if the tokens have been taken, false if not enough tokens are available
+     */
+    public synchronized boolean tryAcquire(final long amount) {
+        refill(System.nanoTime());
+        if (tokens < amount) {
+            return false;
+        }
+        tokens -= amount;
+        return true;
+    }
+
+    /**
+     * Takes the tokens, even if they are not available yet. The bucket goes into debt, which is paid back by the
+     * refill, thus, later calls wait for the debt as well.
+     *
+     * @param amount
+     *            The number of tokens to take
+     * @return The time in nanoseconds until the tokens would have been available, 0 if they are available now
+     */
+    public synchronized long reserve(final long amount) {
+        refill(System.nanoTime());
+        tokens -= amount;
+        return nanosUntilPaidBack();
+    }
+
+    /**
+     * @return The time in nanoseconds until the tokens that have been reserved in advance are paid back, 0 if the
+     *         bucket is not in debt
+     */
+    public synchronized long debtNanos() {
+        refill(System.nanoTime());
+        return nanosUntilPaidBack();
+    }
+
+    private long nanosUntilPaidBack() {
+        if (tokens >= 0) {
+            return 0;
+        }
+        return (long) Math.ceil(-tokens * NANOS_PER_SECOND / ratePerSecond);
+    }
+
+    private void refill(final long nowNanos) {
+        final long elapsedNanos = nowNanos - lastRefillNanos;
+        if (elapsedNanos > 0) {
+            tokens = Math.min(capacity, tokens + ((double) elapsedNanos * ratePerSecond) / NANOS_PER_SECOND);
+            lastRefillNanos = nowNanos;
+        }
+    }
+}
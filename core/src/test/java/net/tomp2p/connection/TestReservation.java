@@ -37,6 +37,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import net.tomp2p.futures.BaseFutureAdapter;
 import net.tomp2p.futures.FutureChannelCreator;
@@ -45,6 +46,7 @@ import net.tomp2p.p2p.PeerBuilder;
 import net.tomp2p.utils.Pair;
 
 import org.junit.After;
+import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -323,6 +325,214 @@ public class TestReservation {
 		f.awaitUninterruptibly();
 	}
 
+	/**
+	 * A reservation that needs many permits must not block smaller reservations behind it.
+	 * 
+	 * @throws InterruptedException .
+	 */
+	@Test
+	public void testReservationNoHeadOfLineBlocking() throws InterruptedException {
+		ChannelClientConfiguration c = PeerBuilder.createDefaultChannelClientConfiguration();
+		c.maxPermitsTCP(10);
+		Reservation r = new Reservation(workerGroup, c);
+		FutureChannelCreator bulk1 = r.create(0, 10).awaitUninterruptibly();
+		Assert.assertTrue(bulk1.isSuccess());
+		// needs to wait for bulk1
+		FutureChannelCreator bulk2 = r.create(0, 10);
+		// the UDP reservation does not need to wait for bulk2
+		FutureChannelCreator ping = r.create(1, 0).awaitUninterruptibly();
+		Assert.assertTrue(ping.isSuccess());
+		Assert.assertFalse(bulk2.isCompleted());
+		// queued after bulk2, but with higher priority
+		FutureChannelCreator pingTCP = r.create(0, 1, Reservation.Priority.HIGH);
+		Assert.assertEquals(2, r.pendingRequests());
+		Assert.assertEquals(1, r.pendingRequests(Reservation.Priority.HIGH));
+
+		bulk1.channelCreator().shutdown().awaitUninterruptibly();
+		pingTCP.awaitUninterruptibly();
+		Assert.assertTrue(pingTCP.isSuccess());
+		Assert.assertFalse(bulk2.isCompleted());
+		pingTCP.channelCreator().shutdown().awaitUninterruptibly();
+		bulk2.awaitUninterruptibly();
+		Assert.assertTrue(bulk2.isSuccess());
+		Assert.assertEquals(0, r.pendingRequests());
+		Assert.assertEquals(4, r.grantedRequests());
+
+		ping.channelCreator().shutdown().awaitUninterruptibly();
+		bulk2.channelCreator().shutdown().awaitUninterruptibly();
+		Assert.assertTrue(r.shutdown().awaitUninterruptibly().isSuccess());
+	}
+
+	/**
+	 * A large reservation can be bypassed only a limited number of times.
+	 * 
+	 * @throws InterruptedException .
+	 */
+	@Test
+	public void testReservationNoStarvation() throws InterruptedException {
+		ChannelClientConfiguration c = PeerBuilder.createDefaultChannelClientConfiguration();
+		c.maxPermitsTCP(2);
+		Reservation r = new Reservation(workerGroup, c);
+		FutureChannelCreator holder = r.create(0, 1).awaitUninterruptibly();
+		FutureChannelCreator bulk = r.create(0, 2);
+		for (int i = 0; i < Reservation.MAX_BYPASS; i++) {
+			FutureChannelCreator small = r.create(0, 1).awaitUninterruptibly();
+			Assert.assertTrue(small.isSuccess());
+			small.channelCreator().shutdown().awaitUninterruptibly();
+		}
+		// bypassed too often, the next small reservation needs to wait for the bulk reservation
+		FutureChannelCreator small = r.create(0, 1);
+		Assert.assertFalse(small.isCompleted());
+		holder.channelCreator().shutdown().awaitUninterruptibly();
+		bulk.awaitUninterruptibly();
+		Assert.assertTrue(bulk.isSuccess());
+		Assert.assertFalse(small.isCompleted());
+		bulk.channelCreator().shutdown().awaitUninterruptibly();
+		small.awaitUninterruptibly();
+		Assert.assertTrue(small.isSuccess());
+		small.channelCreator().shutdown().awaitUninterruptibly();
+		Assert.assertTrue(r.shutdown().awaitUninterruptibly().isSuccess());
+	}
+
+	/**
+	 * High priority reservations can bypass a waiting normal reservation only a limited number of times as well.
+	 * 
+	 * @throws InterruptedException .
+	 */
+	@Test
+	public void testReservationNoStarvationByHighPriority() throws InterruptedException {
+		ChannelClientConfiguration c = PeerBuilder.createDefaultChannelClientConfiguration();
+		c.maxPermitsTCP(2);
+		Reservation r = new Reservation(workerGroup, c);
+		FutureChannelCreator holder = r.create(0, 1).awaitUninterruptibly();
+		FutureChannelCreator bulk = r.create(0, 2);
+		for (int i = 0; i < Reservation.MAX_BYPASS; i++) {
+			FutureChannelCreator ping = r.create(0, 1, Reservation.Priority.HIGH).awaitUninterruptibly();
+			Assert.assertTrue(ping.isSuccess());
+			ping.channelCreator().shutdown().awaitUninterruptibly();
+		}
+		// bypassed too often, the next ping needs to wait for the bulk reservation
+		FutureChannelCreator ping = r.create(0, 1, Reservation.Priority.HIGH);
+		Assert.assertFalse(ping.isCompleted());
+		holder.channelCreator().shutdown().awaitUninterruptibly();
+		bulk.awaitUninterruptibly();
+		Assert.assertTrue(bulk.isSuccess());
+		Assert.assertFalse(ping.isCompleted());
+		bulk.channelCreator().shutdown().awaitUninterruptibly();
+		ping.awaitUninterruptibly();
+		Assert.assertTrue(ping.isSuccess());
+		ping.channelCreator().shutdown().awaitUninterruptibly();
+		Assert.assertTrue(r.shutdown().awaitUninterruptibly().isSuccess());
+	}
+
+	/**
+	 * A peer with a budget cannot take more permits than its budget, and
+	 * cannot block another peer with a budget.
+	 * 
+	 * @throws InterruptedException .
+	 */
+	@Test
+	public void testReservationBudget() throws InterruptedException {
+		ChannelClientConfiguration c = PeerBuilder.createDefaultChannelClientConfiguration();
+		c.maxPermitsTCP(10);
+		Reservation r = new Reservation(workerGroup, c);
+		Reservation budget1 = new Reservation(r, 1, 4, 1);
+		Reservation budget2 = new Reservation(r, 1, 4, 1);
+		FutureChannelCreator bulk1 = budget1.create(0, 4).awaitUninterruptibly();
+		Assert.assertTrue(bulk1.isSuccess());
+		// the parent has permits left, but the budget is used up
+		FutureChannelCreator next1 = budget1.create(0, 1);
+		Assert.assertFalse(next1.isCompleted());
+		Assert.assertEquals(1, budget1.pendingRequests());
+		Assert.assertEquals(0, r.pendingRequests());
+		FutureChannelCreator bulk2 = budget2.create(0, 4).awaitUninterruptibly();
+		Assert.assertTrue(bulk2.isSuccess());
+		bulk1.channelCreator().shutdown().awaitUninterruptibly();
+		next1.awaitUninterruptibly();
+		Assert.assertTrue(next1.isSuccess());
+		next1.channelCreator().shutdown().awaitUninterruptibly();
+		// shutting down the budget closes its channel creators and gives the permits back to the parent
+		Assert.assertTrue(budget2.shutdown().awaitUninterruptibly().isSuccess());
+		Assert.assertTrue(budget1.shutdown().awaitUninterruptibly().isSuccess());
+		FutureChannelCreator all = r.create(0, 10).awaitUninterruptibly();
+		Assert.assertTrue(all.isSuccess());
+		all.channelCreator().shutdown().awaitUninterruptibly();
+		Assert.assertTrue(r.shutdown().awaitUninterruptibly().isSuccess());
+	}
+
+	/**
+	 * Pings need to be served quickly, even if bulk requests use all TCP permits.
+	 * 
+	 * @throws InterruptedException .
+	 */
+	@Test
+	public void testReservationPingLatency() throws InterruptedException {
+		final int tcpMax = 20;
+		final int bulkHoldMillis = 20;
+		final int pings = 200;
+		ChannelClientConfiguration c = PeerBuilder.createDefaultChannelClientConfiguration();
+		c.maxPermitsTCP(tcpMax);
+		final Reservation r = new Reservation(workerGroup, c);
+		final AtomicBoolean running = new AtomicBoolean(true);
+		// bulk puts, each wants half of the TCP permits and holds them for a while
+		final List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < 4; i++) {
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					while (running.get()) {
+						FutureChannelCreator fcc = r.create(0, tcpMax / 2).awaitUninterruptibly();
+						if (!fcc.isSuccess()) {
+							return;
+						}
+						try {
+							Thread.sleep(bulkHoldMillis);
+						} catch (InterruptedException e) {
+							return;
+						} finally {
+							fcc.channelCreator().shutdown().awaitUninterruptibly();
+						}
+					}
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+		Thread.sleep(100);
+		long maxUDP = 0;
+		long totalUDP = 0;
+		long maxTCP = 0;
+		long totalTCP = 0;
+		for (int i = 0; i < pings; i++) {
+			long start = System.nanoTime();
+			FutureChannelCreator udp = r.create(1, 0, Reservation.Priority.HIGH).awaitUninterruptibly();
+			long time = System.nanoTime() - start;
+			maxUDP = Math.max(maxUDP, time);
+			totalUDP += time;
+			udp.channelCreator().shutdown().awaitUninterruptibly();
+
+			start = System.nanoTime();
+			FutureChannelCreator tcp = r.create(0, 1, Reservation.Priority.HIGH).awaitUninterruptibly();
+			time = System.nanoTime() - start;
+			maxTCP = Math.max(maxTCP, time);
+			totalTCP += time;
+			tcp.channelCreator().shutdown().awaitUninterruptibly();
+		}
+		running.set(false);
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		System.err.println("BENCHMARK: " + pings + " pings while bulk requests saturate " + tcpMax
+		        + " TCP permits. STAT: UDP avg " + (totalUDP / pings / 1000) + " us, max "
+		        + TimeUnit.NANOSECONDS.toMillis(maxUDP) + " ms; TCP avg " + (totalTCP / pings / 1000) + " us, max "
+		        + TimeUnit.NANOSECONDS.toMillis(maxTCP) + " ms; all reservations avg wait " + r.averageWaitMillis()
+		        + " ms, max wait " + r.maxWaitMillis() + " ms");
+		// an UDP ping never waits for TCP permits, a TCP ping at most for one bulk request
+		Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(totalUDP / pings) < bulkHoldMillis);
+		Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(totalTCP / pings) < 2 * bulkHoldMillis);
+		r.shutdown().awaitUninterruptibly();
+	}
+
 	private static class MyPipeLine implements PipelineFilter {
 
 		@Override
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.connection;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.local.LocalAddress;
+import io.netty.channel.local.LocalChannel;
+import io.netty.channel.local.LocalEventLoopGroup;
+import io.netty.channel.local.LocalServerChannel;
+
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import net.tomp2p.Utils2;
+import net.tomp2p.connection.TrafficShaper.TrafficClass;
+import net.tomp2p.message.Buffer;
+import net.tomp2p.message.Message;
+import net.tomp2p.message.Message.Type;
+import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.rpc.RPC;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test the traffic shaping of the outgoing messages. The messages are sent
+ * over the local transport of Netty, which passes the message objects to the
+ * other side.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class TestTrafficShaper {
+	private static final LocalAddress ADDRESS = new LocalAddress("shaper");
+	private static final int SIZE = 10000;
+
+	private EventLoopGroup group;
+	private Channel server;
+	private final List<Message> received = Collections.synchronizedList(new ArrayList<Message>());
+	private CountDownLatch latch;
+
+	@Before
+	public void createSink() throws InterruptedException {
+		group = new LocalEventLoopGroup();
+		server = new ServerBootstrap().group(group).channel(LocalServerChannel.class)
+		        .childHandler(new ChannelInitializer<LocalChannel>() {
+			        @Override
+			        protected void initChannel(final LocalChannel ch) throws Exception {
+				        ch.pipeline().addLast(new ChannelInboundHandlerAdapter() {
+					        @Override
+					        public void channelRead(final ChannelHandlerContext ctx, final Object msg) {
+						        received.add((Message) msg);
+						        latch.countDown();
+					        }
+				        });
+			        }
+		        }).bind(ADDRESS).sync().channel();
+	}
+
+	@After
+	public void shutdown() throws InterruptedException {
+		server.close().sync();
+		group.shutdownGracefully(0, 0, TimeUnit.SECONDS).await();
+	}
+
+	/**
+	 * The global limit is not exceeded.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testGlobalLimit() throws Exception {
+		final TrafficShaper shaper = new TrafficShaper().globalLimit(100000);
+		final Channel channel = connect(shaper);
+		final PeerAddress remote = Utils2.createAddress(1);
+		final int nr = 20;
+		latch = new CountDownLatch(nr);
+		final long start = System.currentTimeMillis();
+		for (int i = 0; i < nr; i++) {
+			channel.writeAndFlush(createMessage(RPC.Commands.PUT, remote, SIZE));
+		}
+		Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+		final long duration = System.currentTimeMillis() - start;
+		// 200KB with 100KB/s, the first 10KB are the burst
+		Assert.assertTrue(duration >= 1500);
+		Assert.assertEquals(0, shaper.queueSize());
+		Assert.assertEquals(0, shaper.queuedBytes());
+		Thread.sleep(1000);
+		Assert.assertTrue(shaper.rate() > 0);
+		Assert.assertTrue(shaper.rate() <= 150000);
+		Assert.assertEquals(shaper.rate(), shaper.rate(TrafficClass.USER));
+		channel.close().sync();
+	}
+
+	/**
+	 * User traffic overtakes the queued replication traffic.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testPriority() throws Exception {
+		final TrafficShaper shaper = new TrafficShaper().globalLimit(100000);
+		final Channel channel = connect(shaper);
+		final PeerAddress remote = Utils2.createAddress(1);
+		final int nr = 10;
+		latch = new CountDownLatch(nr + 1);
+		for (int i = 0; i < nr; i++) {
+			channel.writeAndFlush(createMessage(RPC.Commands.REPLICA_PUT, remote, SIZE));
+		}
+		final Message get = createMessage(RPC.Commands.GET, remote, 0);
+		final long start = System.nanoTime();
+		final ChannelFuture future = channel.writeAndFlush(get).sync();
+		final long latency = System.nanoTime() - start;
+		final int queued = shaper.queueSize(TrafficClass.REPLICATION);
+		Assert.assertTrue(queued > 0);
+		Assert.assertTrue(future.isSuccess());
+		Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+		// at most the replication message that was sent when the get arrived was in front of it
+		Assert.assertTrue(received.indexOf(get) <= 2);
+		System.err.println("BENCHMARK: get during " + nr + " replication messages of " + SIZE
+		        + " bytes with 100KB/s. STAT: get sent after " + TimeUnit.NANOSECONDS.toMillis(latency)
+		        + " ms, in order " + received.indexOf(get) + ", " + queued + " replication messages queued, "
+		        + (queued * SIZE / 100) + " ms without priority");
+		channel.close().sync();
+	}
+
+	/**
+	 * The limit of one remote peer or of one local peer does not block the
+	 * other peers.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testPeerLimit() throws Exception {
+		final PeerAddress slowRemote = Utils2.createAddress(1);
+		final PeerAddress fastRemote = Utils2.createAddress(2);
+		final PeerAddress slowLocal = Utils2.createAddress(3);
+		final TrafficShaper shaper = new TrafficShaper().limit(slowRemote, 20000).localLimit(slowLocal, 20000);
+		final Channel channel = connect(shaper);
+		final int nr = 5;
+		latch = new CountDownLatch(nr);
+		final List<Message> slow = new ArrayList<Message>();
+		for (int i = 0; i < nr; i++) {
+			final Message toSlowRemote = createMessage(RPC.Commands.PUT, slowRemote, SIZE);
+			final Message fromSlowLocal = createMessage(RPC.Commands.PUT, fastRemote, SIZE).sender(slowLocal);
+			slow.add(toSlowRemote);
+			slow.add(fromSlowLocal);
+			channel.writeAndFlush(toSlowRemote);
+			channel.writeAndFlush(fromSlowLocal);
+			channel.writeAndFlush(createMessage(RPC.Commands.PUT, fastRemote, SIZE));
+		}
+		Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+		// the messages to the other peer have not been waiting for the slow ones
+		int slowReceived = 0;
+		synchronized (received) {
+			for (Message message : received) {
+				if (slow.contains(message)) {
+					slowReceived++;
+				}
+			}
+		}
+		Assert.assertTrue(slowReceived < 2 * nr);
+		Assert.assertTrue(shaper.queueSize(TrafficClass.USER) > 0);
+		channel.close().sync();
+	}
+
+	private Channel connect(final TrafficShaper shaper) throws InterruptedException {
+		return new Bootstrap().group(group).channel(LocalChannel.class).handler(new ChannelInitializer<LocalChannel>() {
+			@Override
+			protected void initChannel(final LocalChannel ch) throws Exception {
+				ch.pipeline().addLast(shaper);
+			}
+		}).connect(ADDRESS).sync().channel();
+	}
+
+	private static Message createMessage(final RPC.Commands command, final PeerAddress recipient, final int size)
+	        throws UnknownHostException {
+		final Message message = new Message().command(command.getNr()).type(Type.REQUEST_1).recipient(recipient)
+		        .sender(Utils2.createAddress(0));
+		if (size > 0) {
+			message.buffer(new Buffer(Unpooled.wrappedBuffer(new byte[size])));
+		}
+		return message;
+	}
+}
@@ -16,15 +16,27 @@
 
 package net.tomp2p.futures;
 
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReferenceArray;
 
+import net.tomp2p.message.Message;
 import net.tomp2p.peers.Number160;
 
+import org.junit.Assert;
 import org.junit.Test;
 
 /**
@@ -42,6 +54,34 @@ public class TestFutures {
     private final Set<Integer> done = new HashSet<Integer>();
     private final ExecutorService e = Executors.newFixedThreadPool(10);
 
+    /**
+     * A failed response notifies the listeners without holding the lock of the future, since a listener may wait for
+     * an other thread that needs this lock.
+     * 
+     * @throws Exception .
+     */
+    @Test
+    public void testResponseNowFailed() throws Exception {
+        final FutureResponse futureResponse = new FutureResponse(new Message());
+        final CountDownLatch latch = new CountDownLatch(1);
+        futureResponse.addListener(new BaseFutureAdapter<FutureResponse>() {
+            @Override
+            public void operationComplete(final FutureResponse future) throws Exception {
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        future.responseMessage();
+                        latch.countDown();
+                    }
+                }).start();
+                latch.await(5, TimeUnit.SECONDS);
+            }
+        });
+        futureResponse.responseNow();
+        Assert.assertTrue(futureResponse.isFailed());
+        Assert.assertEquals(0, latch.getCount());
+    }
+
     /**
      * Tests the performance of sequential processing as a base.
      */
@@ -96,6 +136,195 @@ public class TestFutures {
         }
     }
 
+    /**
+     * Tests that listeners are called in the order they were added, exactly once, and immediately if the future is
+     * already done.
+     */
+    @Test
+    public void testListenerOrder() {
+        final List<Integer> calls = new ArrayList<Integer>();
+        final FutureDone<Void> futureDone = new FutureDone<Void>();
+        for (int i = 0; i < 3; i++) {
+            final int nr = i;
+            futureDone.addListener(new BaseFutureAdapter<FutureDone<Void>>() {
+                @Override
+                public void operationComplete(final FutureDone<Void> future) throws Exception {
+                    Assert.assertTrue(future.isSuccess());
+                    calls.add(nr);
+                }
+            });
+        }
+        BaseFutureAdapter<FutureDone<Void>> removed = new BaseFutureAdapter<FutureDone<Void>>() {
+            @Override
+            public void operationComplete(final FutureDone<Void> future) throws Exception {
+                calls.add(-1);
+            }
+        };
+        futureDone.addListener(removed);
+        futureDone.removeListener(removed);
+        futureDone.done();
+        futureDone.done();
+        futureDone.addListener(new BaseFutureAdapter<FutureDone<Void>>() {
+            @Override
+            public void operationComplete(final FutureDone<Void> future) throws Exception {
+                calls.add(3);
+            }
+        });
+        Assert.assertEquals(4, calls.size());
+        for (int i = 0; i < 4; i++) {
+            Assert.assertEquals(i, calls.get(i).intValue());
+        }
+    }
+
+    /**
+     * Tests that listeners added concurrently to the completion of a future are called exactly once.
+     * 
+     * @throws InterruptedException
+     */
+    @Test
+    public void testConcurrentListeners() throws InterruptedException {
+        final int threads = 4;
+        final int listeners = 1000;
+        for (int round = 0; round < 100; round++) {
+            final FutureDone<Void> futureDone = new FutureDone<Void>();
+            final AtomicInteger calls = new AtomicInteger();
+            final CountDownLatch start = new CountDownLatch(1);
+            final CountDownLatch finished = new CountDownLatch(threads);
+            for (int i = 0; i < threads; i++) {
+                e.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            start.await();
+                            for (int j = 0; j < listeners; j++) {
+                                futureDone.addListener(new BaseFutureAdapter<FutureDone<Void>>() {
+                                    @Override
+                                    public void operationComplete(final FutureDone<Void> future) throws Exception {
+                                        calls.incrementAndGet();
+                                    }
+                                });
+                            }
+                        } catch (InterruptedException ie) {
+                            Thread.currentThread().interrupt();
+                        } finally {
+                            finished.countDown();
+                        }
+                    }
+                });
+            }
+            start.countDown();
+            futureDone.done();
+            finished.await();
+            futureDone.awaitListeners();
+            Assert.assertEquals(threads * listeners, calls.get());
+        }
+    }
+
+    /**
+     * Tests the futures as {@link java.util.concurrent.Future}.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testGet() throws Exception {
+        final FutureDone<Integer> futureDone = new FutureDone<Integer>();
+        e.submit(new Runnable() {
+            @Override
+            public void run() {
+                futureDone.done(42);
+            }
+        });
+        Assert.assertEquals(42, futureDone.get().object().intValue());
+        Assert.assertTrue(futureDone.isDone());
+        Assert.assertFalse(futureDone.cancel(true));
+
+        FutureDone<Integer> futureFailed = new FutureDone<Integer>();
+        futureFailed.failed("test");
+        try {
+            futureFailed.get();
+            Assert.fail();
+        } catch (ExecutionException ee) {
+            Assert.assertTrue(ee.getMessage().contains("test"));
+        }
+
+        FutureDone<Integer> futureTimeout = new FutureDone<Integer>();
+        try {
+            futureTimeout.get(10, TimeUnit.MILLISECONDS);
+            Assert.fail();
+        } catch (TimeoutException te) {
+            Assert.assertFalse(futureTimeout.isDone());
+        }
+        Assert.assertTrue(futureTimeout.cancel(true));
+        Assert.assertTrue(futureTimeout.isCancelled());
+        Assert.assertTrue(futureTimeout.isDone());
+        Assert.assertTrue(futureTimeout.isFailed());
+        Assert.assertFalse(futureTimeout.cancel(true));
+        try {
+            futureTimeout.get();
+            Assert.fail();
+        } catch (CancellationException ce) {
+            Assert.assertTrue(ce.getMessage().contains("canceled"));
+        }
+
+        // a cancel listener that fails the future is the outcome of the cancellation
+        final FutureDone<Integer> futureCancel = new FutureDone<Integer>();
+        futureCancel.addCancel(new Cancel() {
+            @Override
+            public void cancel() {
+                futureCancel.failed("connection closed");
+            }
+        });
+        Assert.assertTrue(futureCancel.cancel(true));
+        Assert.assertTrue(futureCancel.isCancelled());
+        Assert.assertTrue(futureCancel.failedReason().contains("connection closed"));
+
+        // cancel() only notifies the cancel listeners, the future is not canceled until it fails
+        FutureDone<Integer> futureRunning = new FutureDone<Integer>();
+        futureRunning.cancel();
+        Assert.assertFalse(futureRunning.isCancelled());
+        futureRunning.done(1);
+        Assert.assertFalse(futureRunning.isCancelled());
+        Assert.assertEquals(1, futureRunning.get().object().intValue());
+    }
+
+    /**
+     * Measures the time and the allocated memory to create a future, add a listener and complete it.
+     */
+    @Test
+    public void testBenchmarkFutures() {
+        final int rounds = 1000000;
+        final AtomicInteger calls = new AtomicInteger();
+        final BaseFutureAdapter<FutureDone<Void>> listener = new BaseFutureAdapter<FutureDone<Void>>() {
+            @Override
+            public void operationComplete(final FutureDone<Void> future) throws Exception {
+                calls.incrementAndGet();
+            }
+        };
+        // warm up
+        for (int i = 0; i < rounds; i++) {
+            new FutureDone<Void>().addListener(listener).done();
+        }
+        final long allocatedBefore = allocatedBytes();
+        final long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            new FutureDone<Void>().addListener(listener).done();
+        }
+        final long nanos = System.nanoTime() - start;
+        final long allocated = allocatedBytes() - allocatedBefore;
+        Assert.assertEquals(2 * rounds, calls.get());
+        System.err.println("BENCHMARK: future with one listener. STAT: " + (nanos / rounds) + "ns, "
+                + (allocated / rounds) + " bytes per future");
+    }
+
+    private static long allocatedBytes() {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threadMXBean).getThreadAllocatedBytes(Thread.currentThread()
+                    .getId());
+        }
+        return 0;
+    }
+
     private void recursive(final AtomicReferenceArray<FutureTest> array, final Number160[] number160s, final int start,
             final int rounds, final int counter, final FutureDone<Void> futureDone) {
         int active = 0;
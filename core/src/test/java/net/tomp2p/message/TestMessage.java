@@ -55,6 +55,8 @@ import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.Number640;
 import net.tomp2p.peers.PeerAddress;
 import net.tomp2p.peers.PeerSocketAddress;
+import net.tomp2p.rpc.BlockedBloomFilter;
+import net.tomp2p.rpc.SimpleBloomFilter;
 import net.tomp2p.storage.AlternativeCompositeByteBuf;
 import net.tomp2p.storage.Data;
 import net.tomp2p.utils.Utils;
@@ -188,6 +190,31 @@ public class TestMessage {
 		compareMessage(m1, m2);
 	}
 
+	/**
+	 * Tests that simple and blocked bloom filters are decoded as the kind they were encoded.
+	 * 
+	 * @throws Exception .
+	 */
+	@Test
+	public void testEncodeDecodeBloomFilters() throws Exception {
+		Message m1 = Utils2.createDummyMessage();
+		Random rnd = new Random(42);
+		SimpleBloomFilter<Number160> simple = new SimpleBloomFilter<Number160>(0.01d, 100);
+		BlockedBloomFilter<Number160> blocked = new BlockedBloomFilter<Number160>(0.01d, 100);
+		for (int i = 0; i < 100; i++) {
+			Number160 key = new Number160(rnd);
+			simple.add(key);
+			blocked.add(key);
+		}
+		m1.bloomFilter(simple);
+		m1.bloomFilter(blocked);
+		Message m2 = encodeDecode(m1);
+		Assert.assertEquals(false, m2.bloomFilter(0) instanceof BlockedBloomFilter);
+		Assert.assertEquals(simple, m2.bloomFilter(0));
+		Assert.assertEquals(true, m2.bloomFilter(1) instanceof BlockedBloomFilter);
+		Assert.assertEquals(blocked, m2.bloomFilter(1));
+	}
+
 	/**
 	 * Tests neighbors and payload.
 	 * 
@@ -1,11 +1,16 @@
 package net.tomp2p.p2p;
 
 
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
 import net.tomp2p.connection.Bindings;
 import net.tomp2p.futures.FutureDirect;
 import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.PeerAddress;
 import net.tomp2p.rpc.ObjectDataReply;
+import net.tomp2p.storage.CompactDataCodec;
+import net.tomp2p.storage.DataCodecs;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -40,4 +45,39 @@ public class TestDirect {
 			}
 		}
 	}
+
+	@Test
+	public void testDirectMessageCodec() throws Exception {
+		Peer sender = null;
+		Peer recv1 = null;
+		try {
+			Bindings b = new Bindings();
+			sender = new PeerBuilder(new Number160("0x50")).bindings(b).ports(2424)
+					.dataCodec(CompactDataCodec.INSTANCE).start();
+			recv1 = new PeerBuilder(new Number160("0x20")).bindings(b).ports(8088).start();
+			final AtomicReference<Object> received = new AtomicReference<Object>();
+			recv1.objectDataReply(new ObjectDataReply() {
+				@Override
+				public Object reply(PeerAddress sender, Object request) throws Exception {
+					received.set(request);
+					return Arrays.asList("yes", 1L);
+				}
+			});
+
+			FutureDirect fd = sender.sendDirect(recv1.peerAddress()).object(Arrays.asList("test", 2))
+					.start().awaitUninterruptibly();
+			Assert.assertTrue(fd.isSuccess());
+			Assert.assertEquals(Arrays.asList("test", 2), received.get());
+			// the reply is encoded with the codec of the request
+			Assert.assertEquals(CompactDataCodec.INSTANCE, DataCodecs.builtIn().codecOf(fd.buffer().buffer()));
+			Assert.assertEquals(Arrays.asList("yes", 1L), fd.object());
+		} finally {
+			if (sender != null) {
+				sender.shutdown().await();
+			}
+			if (recv1 != null) {
+				recv1.shutdown().await();
+			}
+		}
+	}
 }
@@ -4,7 +4,9 @@ import java.util.Random;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import net.tomp2p.Utils2;
+import net.tomp2p.connection.SimulatedNetwork;
 import net.tomp2p.futures.BaseFuture;
+import net.tomp2p.peers.Number160;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -39,6 +41,122 @@ public class TestMaintenance {
         
     }
     
+    @Test
+    public void testSharedMaintenance() throws Exception {
+        final Random rnd = new Random(42L);
+        final SimulatedNetwork network = new SimulatedNetwork(42L);
+        Peer master = null;
+        Peer remote = null;
+        try {
+            // the timer does not fire during the test, we run the maintenance by hand
+            master = new PeerBuilder(new Number160(rnd)).ports(4001)
+                    .maintenanceTask(new MaintenanceTask().intervalMillis(Integer.MAX_VALUE))
+                    .channelClientConfiguration(
+                            PeerBuilder.createDefaultChannelClientConfiguration().simulatedNetwork(network))
+                    .start();
+            remote = new PeerBuilder(new Number160(rnd)).ports(4002).enableMaintenance(false)
+                    .channelClientConfiguration(
+                            PeerBuilder.createDefaultChannelClientConfiguration().simulatedNetwork(network))
+                    .start();
+            final Peer[] hosted = new Peer[5];
+            hosted[0] = master;
+            for (int i = 1; i < hosted.length; i++) {
+                hosted[i] = new PeerBuilder(new Number160(rnd)).masterPeer(master).start();
+            }
+            final MaintenanceTask maintenanceTask = master.peerBean().maintenanceTask();
+            Assert.assertEquals(hosted.length, maintenanceTask.tenants());
+            Assert.assertEquals(hosted.length, hosted[1].peerBean().maintenanceTask().tenants());
+            // all the hosted peers heard of the remote peer
+            for (int i = 0; i < hosted.length; i++) {
+                hosted[i].peerBean().peerMap()
+                        .peerFound(remote.peerAddress(), hosted[(i + 1) % hosted.length].peerAddress(), null, null);
+                Assert.assertFalse(hosted[i].peerBean().peerMap().contains(remote.peerAddress()));
+            }
+            maintenanceTask.run();
+            network.runUntilIdle();
+            // one ping verified the remote peer for all hosted peers
+            Assert.assertEquals(1, maintenanceTask.pingsSent());
+            Assert.assertEquals(hosted.length - 1, maintenanceTask.pingsShared());
+            // one request and its reply
+            Assert.assertEquals(2, network.messagesSent());
+            for (int i = 0; i < hosted.length; i++) {
+                Assert.assertTrue(hosted[i].peerBean().peerMap().contains(remote.peerAddress()));
+            }
+            // a peer that shuts down is not maintained anymore
+            hosted[1].shutdown().await();
+            Assert.assertEquals(hosted.length - 1, maintenanceTask.tenants());
+        } finally {
+            if (remote != null) {
+                remote.shutdown().await();
+            }
+            if (master != null) {
+                master.shutdown().await();
+            }
+        }
+    }
+
+    @Test
+    public void testSharedMaintenanceBenchmark() throws Exception {
+        final int nrHosted = 100;
+        final int nrRemote = 20;
+        final Random rnd = new Random(42L);
+        final SimulatedNetwork network = new SimulatedNetwork(42L);
+        Peer master = null;
+        Peer remoteMaster = null;
+        try {
+            master = new PeerBuilder(new Number160(rnd)).ports(4001)
+                    .maintenanceTask(new MaintenanceTask().intervalMillis(Integer.MAX_VALUE))
+                    .channelClientConfiguration(
+                            PeerBuilder.createDefaultChannelClientConfiguration().simulatedNetwork(network))
+                    .start();
+            remoteMaster = new PeerBuilder(new Number160(rnd)).ports(4002).enableMaintenance(false)
+                    .channelClientConfiguration(
+                            PeerBuilder.createDefaultChannelClientConfiguration().simulatedNetwork(network))
+                    .start();
+            final Peer[] remotes = new Peer[nrRemote];
+            remotes[0] = remoteMaster;
+            for (int i = 1; i < nrRemote; i++) {
+                remotes[i] = new PeerBuilder(new Number160(rnd)).masterPeer(remoteMaster).enableMaintenance(false)
+                        .start();
+            }
+            final Peer[] hosted = new Peer[nrHosted];
+            hosted[0] = master;
+            for (int i = 1; i < nrHosted; i++) {
+                hosted[i] = new PeerBuilder(new Number160(rnd)).masterPeer(master).start();
+            }
+            for (Peer peer : hosted) {
+                for (Peer remote : remotes) {
+                    peer.peerBean().peerMap().peerFound(remote.peerAddress(), master.peerAddress(), null, null);
+                }
+            }
+            final MaintenanceTask maintenanceTask = master.peerBean().maintenanceTask();
+            // run until no peer needs a check anymore
+            int rounds = 0;
+            long checks = -1;
+            while (checks != maintenanceTask.pingsSent() + maintenanceTask.pingsShared()) {
+                checks = maintenanceTask.pingsSent() + maintenanceTask.pingsShared();
+                maintenanceTask.run();
+                network.runUntilIdle();
+                rounds++;
+            }
+            for (Peer peer : hosted) {
+                Assert.assertTrue(peer.peerBean().peerMap().size() > 0);
+            }
+            System.err.println("BENCHMARK: " + nrHosted + " hosted peers check " + nrRemote
+                    + " remote peers with shared maintenance. STAT: " + checks + " checks in " + rounds
+                    + " rounds with " + maintenanceTask.pingsSent() + " pings, " + maintenanceTask.pingsShared()
+                    + " checks answered by a ping of another peer, " + network.messagesSent() + " messages");
+            Assert.assertTrue(maintenanceTask.pingsSent() < checks);
+        } finally {
+            if (remoteMaster != null) {
+                remoteMaster.shutdown().await();
+            }
+            if (master != null) {
+                master.shutdown().await();
+            }
+        }
+    }
+
     private static class Rep implements AutomaticFuture {
         
         private final AtomicInteger counter;
@@ -12,14 +12,18 @@ import java.util.TreeSet;
 
 import net.tomp2p.Utils2;
 import net.tomp2p.connection.ChannelCreator;
+import net.tomp2p.connection.ConnectionBean;
+import net.tomp2p.connection.SimulatedNetwork;
 import net.tomp2p.futures.FutureChannelCreator;
 import net.tomp2p.futures.FutureDone;
+import net.tomp2p.futures.FuturePing;
 import net.tomp2p.futures.FutureRouting;
 import net.tomp2p.message.Message.Type;
 import net.tomp2p.p2p.builder.RoutingBuilder;
 import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.PeerAddress;
 import net.tomp2p.peers.PeerMap;
+import net.tomp2p.peers.PeerMapConfiguration;
 import net.tomp2p.peers.PeerStatistic;
 import net.tomp2p.utils.Pair;
 import net.tomp2p.utils.Utils;
@@ -757,6 +761,180 @@ public class TestRouting {
         }
     }
 
+    @Test
+    public void testSimulatedNetwork() throws Exception {
+        // the same seed and the same operations result in the same schedule
+        final String first = simulate(500, 42L);
+        Assert.assertEquals(first, simulate(500, 42L));
+        Assert.assertFalse(first.equals(simulate(500, 43L)));
+    }
+
+    @Test
+    public void testSimulatedNetworkNAT() throws Exception {
+        final SimulatedNetwork network = new SimulatedNetwork(42L);
+        Peer[] peers = createSimulatedNodes(3, new Random(42L), 4001, network);
+        try {
+            network.behindNAT(peers[2].peerID(), true);
+            // an unsolicited request is dropped, the timeout passes in virtual time
+            long start = System.currentTimeMillis();
+            FuturePing futurePing = peers[1].ping().peerAddress(peers[2].peerAddress()).start();
+            Assert.assertTrue(network.run(futurePing));
+            Assert.assertFalse(futurePing.isSuccess());
+            Assert.assertEquals(1, network.messagesBlocked());
+            Assert.assertTrue(network.currentTimeMillis() >= ConnectionBean.DEFAULT_UDP_IDLE_SECONDS * 1000);
+            Assert.assertTrue(System.currentTimeMillis() - start < ConnectionBean.DEFAULT_UDP_IDLE_SECONDS * 1000);
+            // once the peer behind the NAT contacted us, it can be reached
+            futurePing = peers[2].ping().peerAddress(peers[1].peerAddress()).start();
+            Assert.assertTrue(network.run(futurePing));
+            Assert.assertTrue(futurePing.isSuccess());
+            futurePing = peers[1].ping().peerAddress(peers[2].peerAddress()).start();
+            Assert.assertTrue(network.run(futurePing));
+            Assert.assertTrue(futurePing.isSuccess());
+            // but not after the mapping timed out
+            network.runUntil(network.currentTimeMillis() + network.natTimeoutMillis() + 1);
+            futurePing = peers[1].ping().peerAddress(peers[2].peerAddress()).start();
+            Assert.assertTrue(network.run(futurePing));
+            Assert.assertFalse(futurePing.isSuccess());
+            Assert.assertEquals(2, network.messagesBlocked());
+            // offline peers do not answer
+            network.offline(peers[0].peerID(), true);
+            futurePing = peers[1].ping().peerAddress(peers[0].peerAddress()).start();
+            Assert.assertTrue(network.run(futurePing));
+            Assert.assertFalse(futurePing.isSuccess());
+        } finally {
+            peers[0].shutdown().await();
+        }
+    }
+
+    @Test
+    public void testSimulatedNetworkBenchmark() throws Exception {
+        final int nr = 2000;
+        final int lookups = 200;
+        Peer master = null;
+        try {
+            // the lookups over the real network on the loopback interface
+            final Random rnd = new Random(42L);
+            Peer[] peers = Utils2.createNonMaintenanceNodes(nr, rnd, 4001);
+            master = peers[0];
+            Utils2.perfectRouting(peers);
+            long start = System.nanoTime();
+            for (int i = 0; i < lookups; i++) {
+                final Peer peer = peers[rnd.nextInt(nr)];
+                final FutureChannelCreator fcc = peer.connectionBean().reservation().create(3, 0)
+                        .awaitUninterruptibly();
+                final FutureRouting futureRouting = peer.distributedRouting().route(lookup(new Number160(rnd)),
+                        Type.REQUEST_1, fcc.channelCreator());
+                Utils.addReleaseListener(fcc.channelCreator(), futureRouting);
+                Assert.assertTrue(futureRouting.awaitUninterruptibly().isSuccess());
+            }
+            final long real = System.nanoTime() - start;
+            master.shutdown().await();
+
+            // the same lookups over the simulated network
+            final SimulatedNetwork network = new SimulatedNetwork(42L).latencyMillis(40).jitterMillis(20);
+            peers = createSimulatedNodes(nr, new Random(42L), 4001, network);
+            master = peers[0];
+            Utils2.perfectRouting(peers);
+            start = System.nanoTime();
+            for (int i = 0; i < lookups; i++) {
+                final FutureRouting futureRouting = simulatedLookup(network, peers[rnd.nextInt(nr)],
+                        new Number160(rnd));
+                Assert.assertTrue(futureRouting.isSuccess());
+            }
+            final long simulated = System.nanoTime() - start;
+            System.err.println("BENCHMARK: " + lookups + " lookups on " + nr + " peers. STAT: loopback network "
+                    + (real / 1000000.0) + "ms, simulated network " + (simulated / 1000000.0) + "ms for "
+                    + network.currentTimeMillis() + "ms of virtual time with a latency of 40-60ms, "
+                    + network.messagesSent() + " messages");
+        } finally {
+            if (master != null) {
+                master.shutdown().await();
+            }
+        }
+    }
+
+    /**
+     * Bootstraps the peers over a simulated network with latency, loss and limited bandwidth, then looks up random
+     * keys and sends a broadcast.
+     * 
+     * @return The virtual time and the statistics of the network after these operations
+     */
+    private static String simulate(int nr, long seed) throws Exception {
+        final Random rnd = new Random(seed);
+        final SimulatedNetwork network = new SimulatedNetwork(seed).latencyMillis(40).jitterMillis(20)
+                .lossRate(0.01).bandwidth(100 * 1000);
+        Peer[] peers = createSimulatedNodes(nr, rnd, 4001, network);
+        try {
+            for (int i = 1; i < nr; i++) {
+                Assert.assertTrue(network.run(peers[i].bootstrap().peerAddress(peers[0].peerAddress()).start()));
+            }
+            int found = 0;
+            final int lookups = 50;
+            for (int i = 0; i < lookups; i++) {
+                final Number160 key = new Number160(rnd);
+                final FutureRouting futureRouting = simulatedLookup(network, peers[rnd.nextInt(nr)], key);
+                final SortedSet<PeerAddress> closest = new TreeSet<PeerAddress>(
+                        PeerMap.createXORAddressComparator(key));
+                for (Peer peer : peers) {
+                    closest.add(peer.peerAddress());
+                }
+                if (futureRouting.isSuccess() && closest.first().equals(futureRouting.potentialHits().first())) {
+                    found++;
+                }
+            }
+            Assert.assertTrue("found " + found, found >= lookups * 9 / 10);
+            peers[rnd.nextInt(nr)].broadcast(new Number160(rnd)).start();
+            network.runUntilIdle();
+            Assert.assertEquals(0, network.pendingEvents());
+            return "time " + network.currentTimeMillis() + "ms, sent " + network.messagesSent() + ", lost "
+                    + network.messagesLost() + ", bytes " + network.bytesSent() + ", found " + found;
+        } finally {
+            peers[0].shutdown().await();
+        }
+    }
+
+    private static FutureRouting simulatedLookup(SimulatedNetwork network, Peer peer, Number160 key) {
+        // the channel creator is granted in this thread
+        final FutureChannelCreator fcc = peer.connectionBean().reservation().create(3, 0);
+        Assert.assertTrue(fcc.isSuccess());
+        final FutureRouting futureRouting = peer.distributedRouting().route(lookup(key), Type.REQUEST_1,
+                fcc.channelCreator());
+        Utils.addReleaseListener(fcc.channelCreator(), futureRouting);
+        Assert.assertTrue(network.run(futureRouting));
+        return futureRouting;
+    }
+
+    private static RoutingBuilder lookup(Number160 key) {
+        RoutingBuilder routingBuilder = new RoutingBuilder();
+        routingBuilder.locationKey(key);
+        routingBuilder.maxDirectHits(Integer.MAX_VALUE);
+        routingBuilder.setMaxNoNewInfo(3);
+        routingBuilder.maxFailures(3);
+        routingBuilder.maxSuccess(20);
+        routingBuilder.parallel(3);
+        return routingBuilder;
+    }
+
+    private static Peer[] createSimulatedNodes(int nr, Random rnd, int port, SimulatedNetwork network)
+            throws Exception {
+        Peer[] peers = new Peer[nr];
+        for (int i = 0; i < nr; i++) {
+            final Number160 peerId = new Number160(rnd);
+            // the maintenance runs in real time and is disabled, thus, nobody would verify the peers that contacted
+            // us
+            final PeerBuilder peerBuilder = new PeerBuilder(peerId).enableMaintenance(false)
+                    .peerMap(new PeerMap(new PeerMapConfiguration(peerId).peerNoVerification()))
+                    .random(new Random(rnd.nextLong()));
+            if (i == 0) {
+                peers[0] = peerBuilder.ports(port).channelClientConfiguration(
+                        PeerBuilder.createDefaultChannelClientConfiguration().simulatedNetwork(network)).start();
+            } else {
+                peers[i] = peerBuilder.masterPeer(peers[0]).start();
+            }
+        }
+        return peers;
+    }
+
     private void printPeerMaps(Peer... peers) {
         for (Peer peer : peers) {
             System.out.println(peer.peerAddress().peerId().toString(true) + ":");
@@ -495,6 +495,85 @@ public class TestPeerMap {
         Assert.assertEquals(peerStatatistic.peerAddress(), pa3);
     }
 
+    @Test
+    public void testScheduledMaintenance() throws UnknownHostException, InterruptedException {
+        PeerMapConfiguration conf = new PeerMapConfiguration(ID);
+        conf.setFixedVerifiedBagSizes(10).setFixedOverflowBagSizes(10);
+        conf.offlineCount(1000).offlineTimeout(100);
+        conf.addMapPeerFilter(new DefaultPeerFilter());
+        conf.maintenance(new ScheduledMaintenance(4, new int[] { 1, 1 }, -1));
+
+        final PeerMap peerMap = new PeerMap(conf);
+
+        PeerAddress pa1 = Utils2.createAddress(Number160.createHash("peer 1"));
+        PeerAddress pa2 = Utils2.createAddress(Number160.createHash("peer 2"));
+
+        peerMap.peerFound(pa2, pa1, null, null);
+        List<PeerAddress> notInterested = new ArrayList<PeerAddress>();
+        PeerStatistic peerStatatistic = peerMap.nextForMaintenance(notInterested);
+        notInterested.add(peerStatatistic.peerAddress());
+        Assert.assertEquals(peerStatatistic.peerAddress(), pa2);
+        peerStatatistic = peerMap.nextForMaintenance(notInterested);
+        Assert.assertEquals(true, peerStatatistic == null);
+
+        PeerAddress pa3 = Utils2.createAddress(Number160.createHash("peer 3"));
+        peerMap.peerFound(pa3, null, null, null);
+        peerStatatistic = peerMap.nextForMaintenance(notInterested);
+        Assert.assertEquals(true, peerStatatistic == null);
+        Thread.sleep(1100);
+        peerStatatistic = peerMap.nextForMaintenance(notInterested);
+        Assert.assertEquals(peerStatatistic.peerAddress(), pa3);
+
+        peerMap.peerFailed(pa3, new PeerException(AbortCause.SHUTDOWN, "shutdown"));
+        Thread.sleep(1100);
+        peerStatatistic = peerMap.nextForMaintenance(notInterested);
+        Assert.assertEquals(true, peerStatatistic == null);
+    }
+
+    @Test
+    public void testScheduledMaintenanceBudget() throws UnknownHostException {
+        PeerMapConfiguration conf = new PeerMapConfiguration(ID);
+        conf.setFixedVerifiedBagSizes(10).setFixedOverflowBagSizes(10);
+        conf.offlineCount(1000).offlineTimeout(100);
+        conf.addMapPeerFilter(new DefaultPeerFilter());
+        conf.maintenance(new ScheduledMaintenance(4, new int[] { 1, 1 }, 2));
+        final PeerMap peerMap = new PeerMap(conf);
+        PeerAddress pa1 = Utils2.createAddress(Number160.createHash("peer 1"));
+        for (int i = 2; i < 10; i++) {
+            peerMap.peerFound(Utils2.createAddress(Number160.createHash("peer " + i)), pa1, null, null);
+        }
+        List<PeerAddress> notInterested = new ArrayList<PeerAddress>();
+        int counter = 0;
+        while (peerMap.nextForMaintenance(notInterested) != null) {
+            counter++;
+        }
+        // the budget may span two seconds
+        Assert.assertTrue(counter >= 2 && counter <= 4);
+    }
+
+    @Test
+    public void testScheduledMaintenancePostponed() throws UnknownHostException, InterruptedException {
+        PeerMapConfiguration conf = new PeerMapConfiguration(ID);
+        conf.setFixedVerifiedBagSizes(10).setFixedOverflowBagSizes(10);
+        conf.offlineCount(1000).offlineTimeout(100);
+        conf.addMapPeerFilter(new DefaultPeerFilter());
+        // never urgent, the overflow peers are always postponed
+        conf.maintenance(new ScheduledMaintenance(0, new int[] { 1, 1 }, -1));
+        final PeerMap peerMap = new PeerMap(conf);
+        PeerAddress pa1 = Utils2.createAddress(Number160.createHash("peer 1"));
+        // the overflow peers have not been seen online, so their checks are due before the check of the verified peer
+        for (int i = 2; i < 50; i++) {
+            peerMap.peerFound(Utils2.createAddress(Number160.createHash("peer " + i)), pa1, null, null);
+        }
+        peerMap.peerFound(pa1, null, null, null);
+        Assert.assertTrue(peerMap.allOverflow().size() > 1);
+        Thread.sleep(1100);
+        List<PeerAddress> notInterested = new ArrayList<PeerAddress>();
+        PeerStatistic peerStatatistic = peerMap.nextForMaintenance(notInterested);
+        Assert.assertEquals(pa1, peerStatatistic.peerAddress());
+        Assert.assertNull(peerMap.nextForMaintenance(notInterested));
+    }
+
     @Test
     public void testClose() throws UnknownHostException {
         for (int i = 1; i < 30; i++) {
@@ -528,4 +607,82 @@ public class TestPeerMap {
             }
         }
     }
+
+    @Test
+    public void testPeerTrie() {
+        Random rnd = new Random(42L);
+        PeerTrie peerTrie = new PeerTrie();
+        List<PeerAddress> peers = new ArrayList<PeerAddress>();
+        for (int i = 0; i < 2000; i++) {
+            PeerAddress r1 = new PeerAddress(new Number160(rnd));
+            peers.add(r1);
+            peerTrie.put(new PeerStatistic(r1));
+        }
+        for (int i = 0; i < 500; i++) {
+            Assert.assertTrue(peerTrie.remove(peers.remove(rnd.nextInt(peers.size())).peerId()));
+        }
+        Assert.assertFalse(peerTrie.remove(new Number160(rnd)));
+        Assert.assertEquals(peers.size(), peerTrie.size());
+        for (int i = 0; i < 100; i++) {
+            Number160 key = new Number160(rnd);
+            TreeSet<PeerAddress> set = new TreeSet<PeerAddress>(PeerMap.createXORAddressComparator(key));
+            set.addAll(peers);
+            Iterator<PeerAddress> iterator = set.iterator();
+            for (PeerStatistic peerStatistic : peerTrie.closePeers(key, 20)) {
+                Assert.assertEquals(iterator.next(), peerStatistic.peerAddress());
+            }
+        }
+    }
+
+    @Test
+    public void testPeerTrieClose() {
+        PeerMapConfiguration conf = new PeerMapConfiguration(ID);
+        conf.setFixedVerifiedBagSizes(10).setFixedOverflowBagSizes(10);
+        conf.offlineCount(1000).offlineTimeout(100).peerTrie(true);
+        conf.addMapPeerFilter(new DefaultPeerFilter()).maintenance(new DefaultMaintenance(0, new int[] {}));
+        final PeerMap peerMap = new PeerMap(conf);
+        Random rnd = new Random(42L);
+        for (int i = 0; i < 200; i++) {
+            peerMap.peerFound(new PeerAddress(new Number160(rnd)), null, null, null);
+        }
+        for (int i = 0; i < 100; i++) {
+            Number160 key = new Number160(rnd);
+            TreeSet<PeerAddress> set = new TreeSet<PeerAddress>(PeerMap.createXORAddressComparator(key));
+            set.addAll(peerMap.all());
+            NavigableSet<PeerStatistic> close = peerMap.closePeers(key, 5);
+            Assert.assertEquals(5, close.size());
+            Assert.assertEquals(set.first(), close.first().peerAddress());
+        }
+        PeerAddress first = peerMap.closePeers(1).first().peerAddress();
+        peerMap.peerFailed(first, new PeerException(AbortCause.SHUTDOWN, "shutdown"));
+        Assert.assertFalse(first.equals(peerMap.closePeers(1).first().peerAddress()));
+    }
+
+    @Test
+    public void testPeerTrieBenchmark() {
+        benchmarkClosePeers(10000, false);
+        benchmarkClosePeers(10000, true);
+        benchmarkClosePeers(100000, false);
+        benchmarkClosePeers(100000, true);
+    }
+
+    private void benchmarkClosePeers(final int nrPeers, final boolean peerTrie) {
+        PeerMapConfiguration conf = new PeerMapConfiguration(ID);
+        conf.setFixedVerifiedBagSizes(nrPeers).setFixedOverflowBagSizes(0);
+        conf.offlineCount(1000).offlineTimeout(100).peerTrie(peerTrie);
+        conf.addMapPeerFilter(new DefaultPeerFilter()).maintenance(new DefaultMaintenance(0, new int[] {}));
+        final PeerMap peerMap = new PeerMap(conf);
+        final Random rnd = new Random(42L);
+        for (int i = 0; i < nrPeers; i++) {
+            peerMap.peerFound(new PeerAddress(new Number160(rnd)), null, null, null);
+        }
+        final int rounds = peerTrie ? 10000 : 20;
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            peerMap.closePeers(new Number160(rnd), 20);
+        }
+        long micros = (System.nanoTime() - start) / 1000;
+        System.err.println("BENCHMARK: " + rounds + " closePeers(20) with " + nrPeers + " peers, trie=" + peerTrie
+                + " in " + (micros / 1000) + " ms. STAT: micros per query:" + (micros / rounds));
+    }
 }
@@ -19,6 +19,8 @@ package net.tomp2p.rpc;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
 
 import net.tomp2p.peers.Number160;
@@ -111,6 +113,119 @@ public class TestBloomFilter {
         Assert.assertEquals(bloomFilter, bloomFilter2);
     }
 
+    /**
+     * The bits of a blocked filter are written a long at a time, they have to be in the same order as the byte wise
+     * encoding, also if the size is not a multiple of a long.
+     */
+    @Test
+    public void testBlockedBloomfilterWireFormat() {
+        Random rnd = new Random(1);
+        final int filterSize = 1003;
+        final int expected = 500;
+        BlockedBloomFilter<Number160> bloomFilter = new BlockedBloomFilter<Number160>(filterSize, expected);
+        for (int i = 0; i < expected; i++) {
+            bloomFilter.add(new Number160(rnd));
+        }
+        ByteBuf buf = Unpooled.buffer();
+        bloomFilter.toByteBuf(buf);
+        Assert.assertEquals(filterSize + SimpleBloomFilter.SIZE_HEADER, buf.readableBytes());
+        Assert.assertEquals(true, BlockedBloomFilter.isBlocked(buf));
+
+        byte[] bytes = new byte[filterSize];
+        byte[] legacy = RPCUtils.toByteArray(bloomFilter.getBitSet());
+        System.arraycopy(legacy, 0, bytes, 0, legacy.length);
+        byte[] encoded = new byte[filterSize];
+        buf.getBytes(SimpleBloomFilter.SIZE_HEADER, encoded);
+        Assert.assertArrayEquals(bytes, encoded);
+
+        BlockedBloomFilter<Number160> bloomFilter2 = new BlockedBloomFilter<Number160>(buf);
+        Assert.assertEquals(bloomFilter, bloomFilter2);
+        Assert.assertEquals(bloomFilter, new BlockedBloomFilter<Number160>(filterSize, expected,
+                RPCUtils.fromByteArray(encoded)));
+        rnd = new Random(1);
+        for (int i = 0; i < expected; i++) {
+            Assert.assertEquals(true, bloomFilter2.contains(new Number160(rnd)));
+        }
+    }
+
+    /**
+     * A simple filter is not marked as blocked. A peer that reads a blocked filter as a simple filter finds every
+     * element in it, thus, it does not miss an element.
+     */
+    @Test
+    public void testBlockedBloomfilterAsSimple() {
+        Random rnd = new Random(2);
+        SimpleBloomFilter<Number160> simple = new SimpleBloomFilter<Number160>(0.01d, 100);
+        simple.add(new Number160(rnd));
+        ByteBuf buf = Unpooled.buffer();
+        simple.toByteBuf(buf);
+        Assert.assertEquals(false, BlockedBloomFilter.isBlocked(buf));
+
+        BlockedBloomFilter<Number160> blocked = new BlockedBloomFilter<Number160>(0.01d, 100);
+        blocked.add(new Number160(rnd));
+        buf = Unpooled.buffer();
+        blocked.toByteBuf(buf);
+        SimpleBloomFilter<Number160> read = new SimpleBloomFilter<Number160>(buf);
+        for (int i = 0; i < 100; i++) {
+            Assert.assertEquals(true, read.contains(new Number160(rnd)));
+        }
+    }
+
+    /**
+     * Filter checks as in a range scan of the storage: many keys are checked against a filter of a GET. Compares the
+     * blocked filter with a simple filter of the same size.
+     */
+    @Test
+    public void testBloomfilterBenchmark() {
+        final int expected = 10000;
+        final int checks = 1000000;
+        Random rnd = new Random(42);
+        SimpleBloomFilter<Number160> simple = new SimpleBloomFilter<Number160>(0.01d, expected);
+        BlockedBloomFilter<Number160> blocked = new BlockedBloomFilter<Number160>(0.01d, expected);
+        for (int i = 0; i < expected; i++) {
+            Number160 key = new Number160(rnd);
+            simple.add(key);
+            blocked.add(key);
+        }
+        // the keys of a scan are in the cache as they have just been compared, with many keys they are not
+        for (int nrKeys : new int[] { 1000, 100000 }) {
+            List<Number160> keys = new ArrayList<Number160>();
+            for (int i = 0; i < nrKeys; i++) {
+                keys.add(new Number160(rnd));
+            }
+            int hitsSimple = 0;
+            int hitsBlocked = 0;
+            long timeSimple = Long.MAX_VALUE;
+            long timeBlocked = Long.MAX_VALUE;
+            // the first rounds are the warmup, the best round is taken
+            for (int round = 0; round < 5; round++) {
+                hitsSimple = 0;
+                long start = System.nanoTime();
+                for (int i = 0; i < checks; i++) {
+                    if (simple.contains(keys.get(i % keys.size()))) {
+                        hitsSimple++;
+                    }
+                }
+                timeSimple = Math.min(timeSimple, System.nanoTime() - start);
+
+                hitsBlocked = 0;
+                start = System.nanoTime();
+                for (int i = 0; i < checks; i++) {
+                    if (blocked.contains(keys.get(i % keys.size()))) {
+                        hitsBlocked++;
+                    }
+                }
+                timeBlocked = Math.min(timeBlocked, System.nanoTime() - start);
+            }
+            System.err.println("BENCHMARK: bloomfilter contains, " + checks + " checks of " + nrKeys + " keys, bytes="
+                    + (simple.size() - SimpleBloomFilter.SIZE_HEADER) + " STAT: simple " + (timeSimple / checks)
+                    + "ns/check, fp=" + (hitsSimple / (double) checks) + ", blocked " + (timeBlocked / checks)
+                    + "ns/check, fp=" + (hitsBlocked / (double) checks) + ", speedup "
+                    + (timeSimple / (double) timeBlocked));
+            Assert.assertEquals(true, hitsBlocked / (double) checks < 0.03);
+        }
+    }
+
     /**
      * Test with a small set of additions.
      */
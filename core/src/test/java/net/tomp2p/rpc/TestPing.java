@@ -2,16 +2,22 @@ package net.tomp2p.rpc;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import net.tomp2p.connection.Bindings;
 import net.tomp2p.connection.ChannelCreator;
 import net.tomp2p.connection.DefaultConnectionConfiguration;
+import net.tomp2p.connection.RequestHandler;
 import net.tomp2p.futures.BaseFutureAdapter;
 import net.tomp2p.futures.FutureChannelCreator;
 import net.tomp2p.futures.FutureResponse;
+import net.tomp2p.message.Message.Type;
 import net.tomp2p.p2p.Peer;
 import net.tomp2p.p2p.PeerBuilder;
 import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.utils.TokenBucket;
 import net.tomp2p.utils.Utils;
 
 import org.junit.Assert;
@@ -53,6 +59,51 @@ public class TestPing {
         }
     }
 
+    @Test
+    public void testPingSlowPeer() throws Exception {
+        Peer sender = null;
+        Peer recv1 = null;
+        ChannelCreator cc = null;
+        try {
+            sender = new PeerBuilder(new Number160("0x9876")).p2pId(55).ports(2424).start();
+            recv1 = new PeerBuilder(new Number160("0x1234")).p2pId(55).ports(8088).start();
+
+            FutureChannelCreator fcc = sender.connectionBean().reservation().create(0, 1);
+            fcc.awaitUninterruptibly();
+            cc = fcc.channelCreator();
+
+            // a slow peer answers later over its relay peer
+            final PeerAddress slow = recv1.peerAddress().changeRelayed(true).changeSlow(true);
+            final RequestHandler<FutureResponse> requestHandler = sender.pingRPC().ping(slow,
+                    new DefaultConnectionConfiguration());
+            final int messageId = requestHandler.futureResponse().request().messageId();
+            final Map<Integer, FutureResponse> pendingRequests = sender.connectionBean().dispatcher()
+                    .getPendingRequests();
+            final AtomicBoolean pendingOnCompletion = new AtomicBoolean();
+            requestHandler.futureResponse().addListener(new BaseFutureAdapter<FutureResponse>() {
+                @Override
+                public void operationComplete(final FutureResponse future) throws Exception {
+                    pendingOnCompletion.set(pendingRequests.containsKey(messageId));
+                }
+            });
+            requestHandler.sendTCP(cc).awaitListenersUninterruptibly();
+            // the late response was expected before the request was sent
+            Assert.assertTrue(pendingOnCompletion.get());
+            // and not anymore after the request completed
+            Assert.assertFalse(pendingRequests.containsKey(messageId));
+        } finally {
+            if (cc != null) {
+                cc.shutdown().await();
+            }
+            if (sender != null) {
+                sender.shutdown().await();
+            }
+            if (recv1 != null) {
+                recv1.shutdown().await();
+            }
+        }
+    }
+
     @Test
     public void testPingTCP2() throws Exception {
         Peer sender = null;
@@ -164,6 +215,49 @@ public class TestPing {
         }
     }
 
+    @Test
+    public void testPingRequestBudget() throws Exception {
+        Peer sender = null;
+        Peer recv1 = null;
+        ChannelCreator cc = null;
+        try {
+            sender = new PeerBuilder(new Number160("0x9876")).p2pId(55).ports(2424).start();
+            recv1 = new PeerBuilder(new Number160("0x1234")).p2pId(55).ports(8088).start();
+            // a peer that shares the connections of recv1 handles two requests, then one per second
+            Peer hosted = new PeerBuilder(new Number160("0x5678")).p2pId(55).masterPeer(recv1)
+                    .requestBudget(new TokenBucket(1, 2)).start();
+            FutureChannelCreator fcc = sender.connectionBean().reservation().create(1, 0);
+            fcc.awaitUninterruptibly();
+            cc = fcc.channelCreator();
+            for (int i = 0; i < 2; i++) {
+                FutureResponse fr = sender.pingRPC().pingUDP(hosted.peerAddress(), cc,
+                        new DefaultConnectionConfiguration());
+                fr.awaitUninterruptibly();
+                Assert.assertEquals(true, fr.isSuccess());
+                Assert.assertEquals(Type.OK, fr.responseMessage().type());
+            }
+            FutureResponse fr = sender.pingRPC().pingUDP(hosted.peerAddress(), cc,
+                    new DefaultConnectionConfiguration());
+            fr.awaitUninterruptibly();
+            Assert.assertEquals(true, fr.isSuccess());
+            Assert.assertEquals(Type.DENIED, fr.responseMessage().type());
+            // the peer that hosts it is not affected
+            fr = sender.pingRPC().pingUDP(recv1.peerAddress(), cc, new DefaultConnectionConfiguration());
+            fr.awaitUninterruptibly();
+            Assert.assertEquals(Type.OK, fr.responseMessage().type());
+        } finally {
+            if (cc != null) {
+                cc.shutdown().await();
+            }
+            if (sender != null) {
+                sender.shutdown().await();
+            }
+            if (recv1 != null) {
+                recv1.shutdown().await();
+            }
+        }
+    }
+
     @Test
     public void testPingHandlerError() throws Exception {
         Peer sender = null;
@@ -4,13 +4,20 @@ import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 
 import java.io.IOException;
+import java.io.Serializable;
 import java.security.InvalidKeyException;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
 import java.security.NoSuchAlgorithmException;
 import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.UUID;
+import java.util.zip.Deflater;
 
 import net.tomp2p.connection.DSASignatureFactory;
 import net.tomp2p.peers.Number160;
@@ -311,6 +318,283 @@ public class TestData {
 		} catch (IllegalArgumentException e) {}
 	}
 
+	@Test
+	public void testDataCodecs() throws Exception {
+		Map<String, Object> map = new LinkedHashMap<String, Object>();
+		map.put("int", -42);
+		map.put("long", Long.MAX_VALUE);
+		map.put("double", 1.5d);
+		map.put("bytes", new byte[] { 1, 2, 3 });
+		map.put("key", Number160.createHash("key"));
+		map.put("list", Arrays.asList("a", null, Boolean.TRUE));
+		map.put("uuid", UUID.fromString("f81d4fae-7dec-11d0-a765-00a0c91e6bf6"));
+
+		Data data = encodeDecode(new Data(map, CompactDataCodec.INSTANCE));
+		@SuppressWarnings("unchecked")
+		Map<String, Object> map2 = (Map<String, Object>) data.object();
+		Assert.assertEquals(map.keySet(), map2.keySet());
+		Assert.assertEquals(-42, map2.get("int"));
+		Assert.assertEquals(Long.MAX_VALUE, map2.get("long"));
+		Assert.assertArrayEquals(new byte[] { 1, 2, 3 }, (byte[]) map2.get("bytes"));
+		Assert.assertEquals(map.get("key"), map2.get("key"));
+		Assert.assertEquals(map.get("list"), map2.get("list"));
+		Assert.assertEquals(map.get("uuid"), map2.get("uuid"));
+
+		// Java serialization is written without marker and still readable
+		Data javaData = new Data("test");
+		Assert.assertEquals(JavaDataCodec.INSTANCE, DataCodecs.builtIn().codecOf(javaData.buffer()));
+		Assert.assertEquals("test", encodeDecode(javaData).object());
+		Assert.assertEquals("test", new Data("test", JavaDataCodec.INSTANCE).object());
+		Assert.assertArrayEquals(new byte[] { 5, 6 },
+		        (byte[]) new Data(new byte[] { 5, 6 }, RawDataCodec.INSTANCE).object());
+	}
+
+	@Test
+	public void testRegistrationDataCodec() throws Exception {
+		RegistrationDataCodec codec = new RegistrationDataCodec(100).register(Item.class, 1);
+		DataCodecs dataCodecs = new DataCodecs().register(codec);
+		Item item = new Item("item", 7, Number160.createHash(7));
+		item.children.add(new Item("child", 8, null));
+
+		Data data = encodeDecode(new Data(item, codec));
+		Item item2 = (Item) data.object(dataCodecs);
+		Assert.assertEquals(item, item2);
+		Assert.assertEquals(item.children, item2.children);
+		// no class name on the wire
+		Assert.assertTrue(data.length() < new Data(new SerializableItem("item", 7, Number160.createHash(7))).length() / 4);
+
+		try {
+			new Data(item, new RegistrationDataCodec(101));
+			Assert.fail("the class is neither registered nor serializable");
+		} catch (IOException e) {
+			// expected
+		}
+		// a peer that does not know the class id
+		DataCodecs other = new DataCodecs().register(new RegistrationDataCodec(100));
+		try {
+			data.object(other);
+			Assert.fail("the class id is not registered");
+		} catch (ClassNotFoundException e) {
+			// expected
+		}
+		// registries are per peer, the other peer did not replace our codec
+		Assert.assertEquals(item, data.object(dataCodecs));
+		try {
+			data.object();
+			Assert.fail("the codec is not built in");
+		} catch (IOException e) {
+			// expected
+		}
+		try {
+			DataCodecs.builtIn().register(codec);
+			Assert.fail("the built-in codecs cannot be changed");
+		} catch (UnsupportedOperationException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testDataCodecBenchmark() throws Exception {
+		RegistrationDataCodec codec = new RegistrationDataCodec(102).register(Item.class, 1);
+		DataCodecs dataCodecs = new DataCodecs().register(codec);
+		List<Item> items = new ArrayList<Item>();
+		for (int i = 0; i < 100; i++) {
+			items.add(new Item("item " + i, i, Number160.createHash(i)));
+		}
+		List<SerializableItem> serializableItems = new ArrayList<SerializableItem>();
+		for (int i = 0; i < 100; i++) {
+			serializableItems.add(new SerializableItem("item " + i, i, Number160.createHash(i)));
+		}
+		final int rounds = 2000;
+		for (int j = 0; j < 2; j++) {
+			long start = System.nanoTime();
+			int length = 0;
+			for (int i = 0; i < rounds; i++) {
+				Data data = new Data(serializableItems);
+				length = data.length();
+				Assert.assertEquals(100, ((List<?>) data.object()).size());
+			}
+			long java = (System.nanoTime() - start) / rounds;
+			start = System.nanoTime();
+			int length2 = 0;
+			for (int i = 0; i < rounds; i++) {
+				Data data = new Data(items, codec);
+				length2 = data.length();
+				Assert.assertEquals(100, ((List<?>) data.object(dataCodecs)).size());
+			}
+			long registration = (System.nanoTime() - start) / rounds;
+			System.err.println("BENCHMARK: encode and decode 100 objects. STAT: java " + length + " bytes, "
+			        + java + " ns, registration codec " + length2 + " bytes, " + registration + " ns");
+		}
+	}
+
+	@Test
+	public void testCompressedDataCodec() throws Exception {
+		List<byte[]> samples = new ArrayList<byte[]>();
+		for (int i = 0; i < 200; i++) {
+			samples.add(json(i).getBytes("UTF-8"));
+		}
+		byte[] dictionary = CompressedDataCodec.trainDictionary(samples, 4096);
+		CompressedDataCodec codec = new CompressedDataCodec(110, RawDataCodec.INSTANCE, Deflater.BEST_COMPRESSION,
+		        dictionary);
+		DataCodecs dataCodecs = new DataCodecs().register(codec);
+
+		byte[] value = json(1000).getBytes("UTF-8");
+		Data plain = new Data(value);
+		Data compressed = new Data(value, new CompressedDataCodec(RawDataCodec.INSTANCE));
+		Data compressedDictionary = new Data(value, codec);
+		Assert.assertTrue(compressed.length() < plain.length());
+		Assert.assertTrue(compressedDictionary.length() < compressed.length());
+
+		// the compressed form is transferred as it is
+		Data transferred = encodeDecode(compressedDictionary);
+		Assert.assertEquals(compressedDictionary.length(), transferred.length());
+		Assert.assertArrayEquals(value, (byte[]) transferred.object(dataCodecs));
+		Assert.assertArrayEquals(value, (byte[]) encodeDecode(compressed).object());
+
+		// values that do not compress are stored
+		Data random = new Data(new byte[] { 42, 17, -3 }, codec);
+		Assert.assertArrayEquals(new byte[] { 42, 17, -3 }, (byte[]) random.object(dataCodecs));
+
+		// objects of other codecs
+		Assert.assertEquals(Arrays.asList("a", "b"),
+		        new Data(Arrays.asList("a", "b"), new CompressedDataCodec(CompactDataCodec.INSTANCE)).object());
+
+		// a peer without the dictionary
+		DataCodecs other = new DataCodecs().register(new CompressedDataCodec(110, RawDataCodec.INSTANCE,
+		        Deflater.BEST_COMPRESSION, null));
+		try {
+			compressedDictionary.object(other);
+			Assert.fail("the dictionary is missing");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testCompressedDataCodecBenchmark() throws Exception {
+		List<byte[]> samples = new ArrayList<byte[]>();
+		for (int i = 0; i < 200; i++) {
+			samples.add(json(i).getBytes("UTF-8"));
+		}
+		CompressedDataCodec fast = new CompressedDataCodec(111, RawDataCodec.INSTANCE, Deflater.BEST_SPEED, null);
+		CompressedDataCodec dictionary = new CompressedDataCodec(112, RawDataCodec.INSTANCE, Deflater.BEST_COMPRESSION,
+		        CompressedDataCodec.trainDictionary(samples, 8192));
+		DataCodecs dataCodecs = new DataCodecs().register(fast).register(dictionary);
+		final int rounds = 10000;
+		for (DataCodec codec : new DataCodec[] { RawDataCodec.INSTANCE, fast, dictionary }) {
+			long size = 0;
+			long compressed = 0;
+			long start = System.nanoTime();
+			for (int i = 0; i < rounds; i++) {
+				byte[] value = json(1000 + i).getBytes("UTF-8");
+				Data data = new Data(value, codec);
+				size += value.length;
+				compressed += data.length();
+				Assert.assertEquals(value.length, ((byte[]) data.object(dataCodecs)).length);
+			}
+			long nanos = (System.nanoTime() - start) / rounds;
+			System.err.println("BENCHMARK: compress and decompress " + rounds + " json values, codec " + codec.id()
+			        + ". STAT: ratio " + (compressed * 100 / size) + "%, " + nanos + " ns per value");
+		}
+	}
+
+	@Test
+	public void testCompactDataCodecLengths() throws Exception {
+		// a few bytes that announce a huge string, list, map and serialized object
+		int[] tags = { 10, 11, 13, 14, 15, 16 };
+		for (int tag : tags) {
+			ByteBuf buf = Unpooled.buffer();
+			buf.writeByte(DataCodecs.MARKER);
+			buf.writeByte(CompactDataCodec.ID);
+			buf.writeByte(tag);
+			CompactDataCodec.writeVarInt(Integer.MAX_VALUE, buf);
+			buf.writeBytes(new byte[] { 1, 2, 3 });
+			try {
+				new Data(buf.array(), 0, buf.writerIndex()).object();
+				Assert.fail("the length exceeds the payload for tag " + tag);
+			} catch (IOException e) {
+				// expected
+			}
+		}
+		// a length that fits exactly
+		Assert.assertEquals("abc", new Data(new byte[] { (byte) DataCodecs.MARKER, CompactDataCodec.ID, 10, 3, 'a',
+		        'b', 'c' }).object());
+	}
+
+	@Test
+	public void testCompressedDataCodecLength() throws Exception {
+		// deflated, announcing more plain bytes than allowed or than 3 compressed bytes can hold
+		for (int plainLength : new int[] { Integer.MAX_VALUE, CompressedDataCodec.MAX_PLAIN_LENGTH + 1, 1000000 }) {
+			ByteBuf buf = Unpooled.buffer();
+			buf.writeByte(DataCodecs.MARKER);
+			buf.writeByte(CompressedDataCodec.ID);
+			buf.writeByte(1);
+			CompactDataCodec.writeVarInt(plainLength, buf);
+			buf.writeBytes(new byte[] { 1, 2, 3 });
+			try {
+				new Data(buf.array(), 0, buf.writerIndex()).object();
+				Assert.fail("the plain length " + plainLength + " must be rejected");
+			} catch (IOException e) {
+				// expected
+			}
+		}
+		Data data = new Data("test", CompressedDataCodec.INSTANCE);
+		Assert.assertEquals("test", data.object());
+	}
+
+	private static String json(int i) {
+		return "{\"id\":" + i + ",\"type\":\"measurement\",\"sensor\":\"sensor-" + (i % 17)
+		        + "\",\"timestamp\":" + (1400000000000L + i * 1000L) + ",\"value\":" + (i * 31 % 1000) / 10.0
+		        + ",\"unit\":\"celsius\",\"location\":{\"building\":\"main\",\"floor\":" + (i % 5)
+		        + "},\"tags\":[\"indoor\",\"calibrated\"]}";
+	}
+
+	private static class Item {
+		private String name;
+		private int nr;
+		private Number160 key;
+		private List<Item> children = new ArrayList<Item>();
+
+		@SuppressWarnings("unused")
+		private Item() {
+		}
+
+		private Item(String name, int nr, Number160 key) {
+			this.name = name;
+			this.nr = nr;
+			this.key = key;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Item)) {
+				return false;
+			}
+			Item o = (Item) obj;
+			return name.equals(o.name) && nr == o.nr && (key == null ? o.key == null : key.equals(o.key));
+		}
+
+		@Override
+		public int hashCode() {
+			return name.hashCode() ^ nr;
+		}
+	}
+
+	private static class SerializableItem implements Serializable {
+		private static final long serialVersionUID = 1L;
+		private String name;
+		private int nr;
+		private Number160 key;
+		private List<SerializableItem> children = new ArrayList<SerializableItem>();
+
+		private SerializableItem(String name, int nr, Number160 key) {
+			this.name = name;
+			this.nr = nr;
+			this.key = key;
+		}
+	}
+
 	private Data encodeDecode(Data data) throws InvalidKeyException, SignatureException, IOException {
 	    
 		AlternativeCompositeByteBuf transfer = AlternativeCompositeByteBuf.compBuffer(AlternativeCompositeByteBuf.UNPOOLED_HEAP);
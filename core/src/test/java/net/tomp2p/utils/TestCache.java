@@ -16,8 +16,12 @@
 
 package net.tomp2p.utils;
 
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Random;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -207,4 +211,209 @@ public class TestCache {
 		Assert.assertEquals(1, test.size());
 
 	}
-}
\ No newline at end of file
+
+    @Test
+    public void testEviction() {
+        ConcurrentCacheMap<Integer, Integer> test = new ConcurrentCacheMap<Integer, Integer>(60, 100);
+        for (int i = 0; i < 1000; i++) {
+            test.put(i, i);
+        }
+        Assert.assertEquals(100, test.size());
+        // the most recent entry is in the window
+        Assert.assertEquals(Integer.valueOf(999), test.get(999));
+    }
+
+    @Test
+    public void testRemovalListener() throws InterruptedException {
+        final Map<Integer, Integer> removed = new HashMap<Integer, Integer>();
+        ConcurrentCacheMap<Integer, Integer> test = new ConcurrentCacheMap<Integer, Integer>(1, 100)
+                .removalListener(new ConcurrentCacheMap.RemovalListener<Integer, Integer>() {
+                    @Override
+                    public void removed(Integer key, Integer value) {
+                        removed.put(key, value);
+                    }
+                });
+        for (int i = 0; i < 1000; i++) {
+            test.put(i, i);
+        }
+        // evicted
+        Assert.assertEquals(900, removed.size());
+        test.remove(999);
+        Assert.assertFalse(removed.containsKey(999));
+        Thread.sleep(1100);
+        // expired
+        Assert.assertEquals(0, test.size());
+        Assert.assertEquals(999, removed.size());
+        for (Entry<Integer, Integer> entry : removed.entrySet()) {
+            Assert.assertEquals(entry.getKey(), entry.getValue());
+        }
+    }
+
+    @Test
+    public void testScanResistance() {
+        ConcurrentCacheMap<Integer, Integer> test = new ConcurrentCacheMap<Integer, Integer>(60, 100);
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 50; i++) {
+                if (test.get(i) == null) {
+                    test.put(i, i);
+                }
+            }
+        }
+        // a scan of entries that are used only once, while the popular entries are still used. With LRU, the
+        // popular entries would be evicted, since there are 5 new entries for each popular entry.
+        int hits = 0;
+        for (int i = 0; i < 10000; i++) {
+            test.put(1000 + i, i);
+            if (i % 5 == 0 && test.get((i / 5) % 50) != null) {
+                hits++;
+            }
+        }
+        Assert.assertTrue(hits > 1900);
+        Assert.assertEquals(100, test.size());
+    }
+
+    @Test
+    public void testCacheHitRateBenchmark() {
+        final int keys = 100000;
+        final int maxEntries = 1000;
+        final int ops = 1000000;
+        final Zipf zipf = new Zipf(keys, 0.99, 42);
+        final int[] zipfTrace = new int[ops];
+        for (int i = 0; i < ops; i++) {
+            zipfTrace[i] = zipf.next();
+        }
+        // half of the requests are for popular keys, the other half scan keys that are used only once
+        final int[] scanTrace = new int[ops];
+        for (int i = 0; i < ops; i++) {
+            scanTrace[i] = i % 2 == 0 ? zipfTrace[i] : keys + i;
+        }
+        // CacheMap keeps the insertion order, as the segments of the previous implementation did
+        System.err.println("BENCHMARK: hit rate zipf STAT: tinylfu "
+                + hitRate(new ConcurrentCacheMap<Integer, Integer>(60, maxEntries), zipfTrace) + ", lru "
+                + hitRate(lru(maxEntries), zipfTrace) + ", cachemap "
+                + hitRate(new CacheMap<Integer, Integer>(maxEntries, true), zipfTrace));
+        final double tinyLfu = hitRate(new ConcurrentCacheMap<Integer, Integer>(60, maxEntries), scanTrace);
+        final double lru = hitRate(lru(maxEntries), scanTrace);
+        System.err.println("BENCHMARK: hit rate zipf and scan STAT: tinylfu " + tinyLfu + ", lru " + lru
+                + ", cachemap " + hitRate(new CacheMap<Integer, Integer>(maxEntries, true), scanTrace));
+        Assert.assertTrue(tinyLfu > lru);
+    }
+
+    private static Map<Integer, Integer> lru(final int maxEntries) {
+        return new LinkedHashMap<Integer, Integer>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Integer, Integer> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    private static double hitRate(final Map<Integer, Integer> cache, final int[] trace) {
+        int hits = 0;
+        for (int key : trace) {
+            if (cache.get(key) != null) {
+                hits++;
+            } else {
+                cache.put(key, key);
+            }
+        }
+        return Math.round(hits * 1000.0 / trace.length) / 1000.0;
+    }
+
+    @Test
+    public void testCacheThroughputBenchmark() throws InterruptedException {
+        final int keys = 100000;
+        final Zipf zipf = new Zipf(keys, 0.99, 42);
+        final int[] trace = new int[1 << 20];
+        for (int i = 0; i < trace.length; i++) {
+            trace[i] = zipf.next();
+        }
+        final ConcurrentCacheMap<Integer, Integer> tinyLfu = new ConcurrentCacheMap<Integer, Integer>(60, 1000);
+        final Map<Integer, Integer> cacheMap = new CacheMap<Integer, Integer>(1000, true);
+        final Map<Integer, Integer> synchronizedCacheMap = new Map<Integer, Integer>() {
+            // like a segment of the previous implementation
+            @Override
+            public int size() { synchronized (cacheMap) { return cacheMap.size(); } }
+            @Override
+            public boolean isEmpty() { synchronized (cacheMap) { return cacheMap.isEmpty(); } }
+            @Override
+            public boolean containsKey(Object key) { synchronized (cacheMap) { return cacheMap.containsKey(key); } }
+            @Override
+            public boolean containsValue(Object value) { synchronized (cacheMap) { return cacheMap.containsValue(value); } }
+            @Override
+            public Integer get(Object key) { synchronized (cacheMap) { return cacheMap.get(key); } }
+            @Override
+            public Integer put(Integer key, Integer value) { synchronized (cacheMap) { return cacheMap.put(key, value); } }
+            @Override
+            public Integer remove(Object key) { synchronized (cacheMap) { return cacheMap.remove(key); } }
+            @Override
+            public void putAll(Map<? extends Integer, ? extends Integer> m) { synchronized (cacheMap) { cacheMap.putAll(m); } }
+            @Override
+            public void clear() { synchronized (cacheMap) { cacheMap.clear(); } }
+            @Override
+            public java.util.Set<Integer> keySet() { throw new UnsupportedOperationException(); }
+            @Override
+            public java.util.Collection<Integer> values() { throw new UnsupportedOperationException(); }
+            @Override
+            public java.util.Set<Entry<Integer, Integer>> entrySet() { throw new UnsupportedOperationException(); }
+        };
+        final int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        // warm up
+        throughput(tinyLfu, trace, threads);
+        throughput(synchronizedCacheMap, trace, threads);
+        System.err.println("BENCHMARK: cache ops/s with " + threads + " threads zipf STAT: tinylfu "
+                + throughput(tinyLfu, trace, threads) + ", synchronized cachemap "
+                + throughput(synchronizedCacheMap, trace, threads));
+    }
+
+    private static long throughput(final Map<Integer, Integer> cache, final int[] trace, final int threads)
+            throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(threads);
+        final long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            final int offset = t * (trace.length / threads);
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < trace.length; i++) {
+                        final int key = trace[(offset + i) & (trace.length - 1)];
+                        if (cache.get(key) == null) {
+                            cache.put(key, key);
+                        }
+                    }
+                    latch.countDown();
+                }
+            }).start();
+        }
+        latch.await();
+        return (long) trace.length * threads * 1000000000L / (System.nanoTime() - start);
+    }
+
+    /**
+     * Draws keys with a Zipf distribution, key 0 is the most popular.
+     */
+    private static class Zipf {
+        private final double[] cdf;
+        private final Random rnd;
+
+        Zipf(final int n, final double skew, final long seed) {
+            cdf = new double[n];
+            double sum = 0;
+            for (int i = 0; i < n; i++) {
+                sum += 1 / Math.pow(i + 1, skew);
+                cdf[i] = sum;
+            }
+            for (int i = 0; i < n; i++) {
+                cdf[i] /= sum;
+            }
+            rnd = new Random(seed);
+        }
+
+        int next() {
+            final int index = java.util.Arrays.binarySearch(cdf, rnd.nextDouble());
+            return index >= 0 ? index : Math.min(cdf.length - 1, -index - 1);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package net.tomp2p.dht;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import net.tomp2p.peers.Number160;
+import net.tomp2p.storage.CompactDataCodec;
+import net.tomp2p.storage.Data;
+
+/**
+ * Describes a large value that is stored in chunks. The chunks are stored under the hash of their content, thus,
+ * the same chunk of different values or of different versions of a value is stored only once.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class ChunkManifest {
+
+	private static final int VERSION = 1;
+
+	private final int length;
+	private final List<Number160> chunkKeys;
+	private final int[] chunkSizes;
+
+	public ChunkManifest(final int length, final List<Number160> chunkKeys, final int[] chunkSizes) {
+		if (chunkKeys.size() != chunkSizes.length) {
+			throw new IllegalArgumentException("Each chunk needs a size");
+		}
+		this.length = length;
+		this.chunkKeys = Collections.unmodifiableList(new ArrayList<Number160>(chunkKeys));
+		this.chunkSizes = chunkSizes.clone();
+	}
+
+	/**
+	 * @return The length of the value
+	 */
+	public int length() {
+		return length;
+	}
+
+	/**
+	 * @return The content hashes of the chunks in the order of the value, the same key may appear more than once
+	 */
+	public List<Number160> chunkKeys() {
+		return chunkKeys;
+	}
+
+	/**
+	 * @param index
+	 *            The index of the chunk
+	 * @return The size of the chunk
+	 */
+	public int chunkSize(final int index) {
+		return chunkSizes[index];
+	}
+
+	/**
+	 * @return The content hashes of the chunks without duplicates
+	 */
+	public Set<Number160> uniqueChunkKeys() {
+		return new LinkedHashSet<Number160>(chunkKeys);
+	}
+
+	/**
+	 * @return The manifest as data object
+	 * @throws IOException
+	 *             If the manifest cannot be encoded
+	 */
+	public Data toData() throws IOException {
+		final List<Integer> sizes = new ArrayList<Integer>(chunkSizes.length);
+		for (int size : chunkSizes) {
+			sizes.add(size);
+		}
+		return new Data(Arrays.<Object> asList(VERSION, length, chunkKeys, sizes), CompactDataCodec.INSTANCE);
+	}
+
+	/**
+	 * @param data
+	 *            A data object created with {@link #toData()}
+	 * @return The manifest
+	 * @throws IOException
+	 *             If the data object is not a manifest
+	 */
+	@SuppressWarnings("unchecked")
+	public static ChunkManifest fromData(final Data data) throws IOException {
+		try {
+			final List<Object> list = (List<Object>) data.object();
+			if (((Integer) list.get(0)).intValue() != VERSION) {
+				throw new IOException("Unknown manifest version " + list.get(0));
+			}
+			final List<Integer> sizes = (List<Integer>) list.get(3);
+			final int[] chunkSizes = new int[sizes.size()];
+			for (int i = 0; i < chunkSizes.length; i++) {
+				chunkSizes[i] = sizes.get(i);
+			}
+			return new ChunkManifest((Integer) list.get(1), (List<Number160>) list.get(2), chunkSizes);
+		} catch (ClassNotFoundException e) {
+			throw new IOException(e);
+		} catch (ClassCastException e) {
+			throw new IOException("Not a manifest", e);
+		} catch (IndexOutOfBoundsException e) {
+			throw new IOException("Not a manifest", e);
+		}
+	}
+}
@@ -0,0 +1,334 @@
+package net.tomp2p.dht;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import net.tomp2p.futures.BaseFuture;
+import net.tomp2p.futures.BaseFutureAdapter;
+import net.tomp2p.futures.FutureDone;
+import net.tomp2p.futures.FutureForkJoin;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
+import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.storage.Data;
+import net.tomp2p.utils.Utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stores large values in chunks. A value is split with content defined chunking (see {@link Chunker}) and each
+ * chunk is stored under the hash of its content. The value is stored as a {@link ChunkManifest} that lists the
+ * chunks. Thus, the chunks are spread over the peers responsible for their hashes, and they are uploaded and
+ * downloaded in parallel. The same chunk is only stored once, even if it is part of many values, and when a value
+ * is updated, only the chunks that are not in the previous manifest are uploaded.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class ChunkedDHT {
+
+	private static final Logger LOG = LoggerFactory.getLogger(ChunkedDHT.class);
+
+	private final PeerDHT peer;
+	private Chunker chunker = new Chunker();
+	private int parallel = 8;
+
+	private final AtomicLong chunksUploaded = new AtomicLong();
+	private final AtomicLong chunksSkipped = new AtomicLong();
+
+	public ChunkedDHT(final PeerDHT peer) {
+		this.peer = peer;
+	}
+
+	public Chunker chunker() {
+		return chunker;
+	}
+
+	/**
+	 * @param chunker
+	 *            The chunker, all peers that update the same values should use the same chunk sizes
+	 * @return This class
+	 */
+	public ChunkedDHT chunker(final Chunker chunker) {
+		this.chunker = chunker;
+		return this;
+	}
+
+	public int parallel() {
+		return parallel;
+	}
+
+	/**
+	 * @param parallel
+	 *            The number of chunks that are uploaded or downloaded at the same time
+	 * @return This class
+	 */
+	public ChunkedDHT parallel(final int parallel) {
+		this.parallel = parallel;
+		return this;
+	}
+
+	/**
+	 * @return The number of chunks this peer has uploaded
+	 */
+	public long chunksUploaded() {
+		return chunksUploaded.get();
+	}
+
+	/**
+	 * @return The number of chunks this peer did not upload, since they were already stored
+	 */
+	public long chunksSkipped() {
+		return chunksSkipped.get();
+	}
+
+	/**
+	 * Stores a large value. The chunks are stored first, then the manifest.
+	 *
+	 * @param locationKey
+	 *            The key of the value
+	 * @param value
+	 *            The value
+	 * @return The future that is done with the manifest of the value
+	 */
+	public FutureDone<ChunkManifest> put(final Number160 locationKey, final byte[] value) {
+		final FutureDone<ChunkManifest> futureDone = new FutureDone<ChunkManifest>();
+		final int[] ends = chunker.chunk(value);
+		final List<Number160> chunkKeys = new ArrayList<Number160>(ends.length);
+		final int[] chunkSizes = new int[ends.length];
+		final Map<Number160, Data> chunks = new HashMap<Number160, Data>();
+		int start = 0;
+		for (int i = 0; i < ends.length; i++) {
+			final int length = ends[i] - start;
+			final Number160 chunkKey = Utils.makeSHAHash(value, start, length);
+			chunkKeys.add(chunkKey);
+			chunkSizes[i] = length;
+			if (!chunks.containsKey(chunkKey)) {
+				chunks.put(chunkKey, new Data(value, start, length));
+			}
+			start = ends[i];
+		}
+		final ChunkManifest manifest = new ChunkManifest(value.length, chunkKeys, chunkSizes);
+
+		// the chunks of the previous version are already stored
+		manifest(locationKey).addListener(new BaseFutureAdapter<FutureDone<ChunkManifest>>() {
+			@Override
+			public void operationComplete(final FutureDone<ChunkManifest> future) throws Exception {
+				final Set<Number160> stored = new HashSet<Number160>();
+				if (future.isSuccess() && future.object() != null) {
+					stored.addAll(future.object().chunkKeys());
+				}
+				final List<Number160> missing = new ArrayList<Number160>();
+				for (Number160 chunkKey : chunks.keySet()) {
+					if (!stored.contains(chunkKey)) {
+						missing.add(chunkKey);
+					}
+				}
+				chunksSkipped.addAndGet(chunks.size() - missing.size());
+				LOG.debug("Uploading {} of {} chunks for {}", missing.size(), chunks.size(), locationKey);
+				final FutureDone<List<FuturePut>> futureChunks = forkJoin(missing, new ChunkRequest<FuturePut>() {
+					@Override
+					public FuturePut start(final Number160 chunkKey) {
+						return peer.put(chunkKey).data(chunkKey, chunks.get(chunkKey)).start();
+					}
+				});
+				futureChunks.addListener(new BaseFutureAdapter<FutureDone<List<FuturePut>>>() {
+					@Override
+					public void operationComplete(final FutureDone<List<FuturePut>> future) throws Exception {
+						if (future.isFailed()) {
+							futureDone.failed("Could not store the chunks", future);
+							return;
+						}
+						chunksUploaded.addAndGet(missing.size());
+						putManifest(locationKey, manifest, futureDone);
+					}
+				});
+			}
+		});
+		return futureDone;
+	}
+
+	private void putManifest(final Number160 locationKey, final ChunkManifest manifest,
+			final FutureDone<ChunkManifest> futureDone) throws IOException {
+		peer.put(locationKey).data(manifest.toData()).start()
+				.addListener(new BaseFutureAdapter<FuturePut>() {
+					@Override
+					public void operationComplete(final FuturePut future) throws Exception {
+						if (future.isSuccess()) {
+							futureDone.done(manifest);
+						} else {
+							futureDone.failed("Could not store the manifest", future);
+						}
+					}
+				});
+	}
+
+	/**
+	 * Gets the manifest of a large value.
+	 *
+	 * @param locationKey
+	 *            The key of the value
+	 * @return The future that is done with the manifest, or with null if no value is stored
+	 */
+	public FutureDone<ChunkManifest> manifest(final Number160 locationKey) {
+		final FutureDone<ChunkManifest> futureDone = new FutureDone<ChunkManifest>();
+		peer.get(locationKey).start().addListener(new BaseFutureAdapter<FutureGet>() {
+			@Override
+			public void operationComplete(final FutureGet future) throws Exception {
+				if (future.isFailed()) {
+					futureDone.failed("Could not get the manifest", future);
+				} else if (future.data() == null) {
+					futureDone.done(null);
+				} else {
+					try {
+						futureDone.done(ChunkManifest.fromData(future.data()));
+					} catch (IOException e) {
+						futureDone.failed(e);
+					}
+				}
+			}
+		});
+		return futureDone;
+	}
+
+	/**
+	 * Gets a large value. The manifest is fetched first, then the chunks in parallel.
+	 *
+	 * @param locationKey
+	 *            The key of the value
+	 * @return The future that is done with the value, or with null if no value is stored
+	 */
+	public FutureDone<byte[]> get(final Number160 locationKey) {
+		final FutureDone<byte[]> futureDone = new FutureDone<byte[]>();
+		manifest(locationKey).addListener(new BaseFutureAdapter<FutureDone<ChunkManifest>>() {
+			@Override
+			public void operationComplete(final FutureDone<ChunkManifest> future) throws Exception {
+				if (future.isFailed()) {
+					futureDone.failed(future);
+					return;
+				}
+				final ChunkManifest manifest = future.object();
+				if (manifest == null) {
+					futureDone.done(null);
+					return;
+				}
+				final List<Number160> chunkKeys = new ArrayList<Number160>(manifest.uniqueChunkKeys());
+				forkJoin(chunkKeys, new ChunkRequest<FutureGet>() {
+					@Override
+					public FutureGet start(final Number160 chunkKey) {
+						return peer.get(chunkKey).contentKey(chunkKey).start();
+					}
+				}).addListener(new BaseFutureAdapter<FutureDone<List<FutureGet>>>() {
+					@Override
+					public void operationComplete(final FutureDone<List<FutureGet>> future) throws Exception {
+						if (future.isFailed()) {
+							futureDone.failed("Could not get the chunks", future);
+							return;
+						}
+						final Map<Number160, byte[]> chunks = new HashMap<Number160, byte[]>();
+						for (int i = 0; i < chunkKeys.size(); i++) {
+							final byte[] chunk = verifiedChunk(chunkKeys.get(i), future.object().get(i));
+							if (chunk != null) {
+								chunks.put(chunkKeys.get(i), chunk);
+							}
+						}
+						assemble(manifest, chunks, futureDone);
+					}
+				});
+			}
+		});
+		return futureDone;
+	}
+
+	/**
+	 * Returns the content of a chunk that matches its key. The chunks of all replicas that answered are checked,
+	 * thus, a corrupt replica is skipped if an other replica has the correct chunk.
+	 *
+	 * @param chunkKey
+	 *            The key of the chunk, which is the SHA-1 hash of its content
+	 * @param futureGet
+	 *            The finished get of the chunk
+	 * @return The content of the chunk or null if no replica sent a chunk that matches its key
+	 */
+	private static byte[] verifiedChunk(final Number160 chunkKey, final FutureGet futureGet) {
+		final Map<PeerAddress, Map<Number640, Data>> rawData = futureGet.rawData();
+		if (rawData == null) {
+			return null;
+		}
+		for (Map.Entry<PeerAddress, Map<Number640, Data>> entry : rawData.entrySet()) {
+			for (Data chunk : entry.getValue().values()) {
+				final byte[] bytes = chunk.toBytes();
+				if (chunkKey.equals(Utils.makeSHAHash(bytes))) {
+					return bytes;
+				}
+				LOG.warn("Chunk {} from {} does not match its key", chunkKey, entry.getKey());
+			}
+		}
+		return null;
+	}
+
+	private static void assemble(final ChunkManifest manifest, final Map<Number160, byte[]> chunks,
+			final FutureDone<byte[]> futureDone) {
+		final byte[] value = new byte[manifest.length()];
+		int offset = 0;
+		for (int i = 0; i < manifest.chunkKeys().size(); i++) {
+			final byte[] chunk = chunks.get(manifest.chunkKeys().get(i));
+			if (chunk == null || chunk.length != manifest.chunkSize(i)) {
+				futureDone.failed("Chunk " + manifest.chunkKeys().get(i) + " is missing or corrupt");
+				return;
+			}
+			System.arraycopy(chunk, 0, value, offset, chunk.length);
+			offset += chunk.length;
+		}
+		futureDone.done(value);
+	}
+
+	private interface ChunkRequest<K extends BaseFuture> {
+		K start(Number160 chunkKey);
+	}
+
+	/**
+	 * Starts the requests for the chunks, with at most {@link #parallel()} requests at the same time.
+	 *
+	 * @return The future that is done with the finished requests in the order of the chunk keys
+	 */
+	private <K extends BaseFuture> FutureDone<List<K>> forkJoin(final List<Number160> chunkKeys,
+			final ChunkRequest<K> chunkRequest) {
+		final FutureDone<List<K>> futureDone = new FutureDone<List<K>>();
+		forkJoin(chunkKeys, 0, chunkRequest, new ArrayList<K>(chunkKeys.size()), futureDone);
+		return futureDone;
+	}
+
+	private <K extends BaseFuture> void forkJoin(final List<Number160> chunkKeys, final int from,
+			final ChunkRequest<K> chunkRequest, final List<K> results, final FutureDone<List<K>> futureDone) {
+		if (from >= chunkKeys.size()) {
+			futureDone.done(results);
+			return;
+		}
+		final int to = Math.min(chunkKeys.size(), from + Math.max(1, parallel));
+		final AtomicReferenceArray<K> forks = new AtomicReferenceArray<K>(to - from);
+		for (int i = from; i < to; i++) {
+			final K future = chunkRequest.start(chunkKeys.get(i));
+			forks.set(i - from, future);
+			results.add(future);
+		}
+		new FutureForkJoin<K>(forks).addListener(new BaseFutureAdapter<FutureForkJoin<K>>() {
+			@Override
+			public void operationComplete(final FutureForkJoin<K> future) throws Exception {
+				if (future.isSuccess()) {
+					forkJoin(chunkKeys, to, chunkRequest, results, futureDone);
+				} else {
+					futureDone.failed(future);
+				}
+			}
+		});
+	}
+}
@@ -0,0 +1,131 @@
+package net.tomp2p.dht;
+
+import java.util.Random;
+
+/**
+ * Splits a value into chunks at positions that depend on the content (FastCDC). A gear hash is rolled over the
+ * bytes, and a chunk ends where the hash matches a mask. Since the cut points move with the content, an insert or
+ * delete in a large value only changes the chunks around it, and the other chunks are found in the DHT already.
+ * Below the average size, a mask with more bits is used and above, a mask with less bits (normalized chunking),
+ * such that the chunk sizes stay close to the average.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class Chunker {
+
+	private static final long[] GEAR = new long[256];
+
+	static {
+		// the table must be the same on every peer, otherwise the same content is cut differently
+		final Random random = new Random(0x6765617248617368L);
+		for (int i = 0; i < GEAR.length; i++) {
+			GEAR[i] = random.nextLong();
+		}
+	}
+
+	private final int minSize;
+	private final int avgSize;
+	private final int maxSize;
+	private final long maskSmall;
+	private final long maskLarge;
+
+	/**
+	 * Creates a chunker with chunks of 2KB to 64KB and 8KB on average.
+	 */
+	public Chunker() {
+		this(2 * 1024, 8 * 1024, 64 * 1024);
+	}
+
+	/**
+	 * @param minSize
+	 *            The minimum size of a chunk, except for the last one
+	 * @param avgSize
+	 *            The average size of a chunk, a power of two
+	 * @param maxSize
+	 *            The maximum size of a chunk
+	 */
+	public Chunker(final int minSize, final int avgSize, final int maxSize) {
+		if (Integer.bitCount(avgSize) != 1 || avgSize < 64 || minSize > avgSize || maxSize < avgSize) {
+			throw new IllegalArgumentException("Chunk sizes must be min <= avg <= max and avg a power of two >= 64");
+		}
+		this.minSize = minSize;
+		this.avgSize = avgSize;
+		this.maxSize = maxSize;
+		final int bits = Integer.numberOfTrailingZeros(avgSize);
+		// the gear hash is shifted left, the upper bits depend on more bytes
+		this.maskSmall = mask(bits + 2);
+		this.maskLarge = mask(bits - 2);
+	}
+
+	private static long mask(final int bits) {
+		return ((1L << bits) - 1) << (64 - bits);
+	}
+
+	public int minSize() {
+		return minSize;
+	}
+
+	public int avgSize() {
+		return avgSize;
+	}
+
+	public int maxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * @param value
+	 *            The value to split
+	 * @return The end offsets of the chunks, the last one is the length of the value
+	 */
+	public int[] chunk(final byte[] value) {
+		int[] ends = new int[Math.max(4, value.length / avgSize * 2)];
+		int count = 0;
+		int offset = 0;
+		while (offset < value.length) {
+			offset += cut(value, offset, value.length - offset);
+			if (count == ends.length) {
+				final int[] tmp = new int[ends.length * 2];
+				System.arraycopy(ends, 0, tmp, 0, count);
+				ends = tmp;
+			}
+			ends[count++] = offset;
+		}
+		final int[] result = new int[count];
+		System.arraycopy(ends, 0, result, 0, count);
+		return result;
+	}
+
+	/**
+	 * @param value
+	 *            The value
+	 * @param offset
+	 *            The start of the next chunk
+	 * @param length
+	 *            The number of remaining bytes
+	 * @return The length of the next chunk
+	 */
+	public int cut(final byte[] value, final int offset, final int length) {
+		if (length <= minSize) {
+			return length;
+		}
+		final int end = Math.min(length, maxSize);
+		final int normal = Math.min(end, avgSize);
+		long hash = 0;
+		int i = minSize;
+		for (; i < normal; i++) {
+			hash = (hash << 1) + GEAR[value[offset + i] & 0xff];
+			if ((hash & maskSmall) == 0) {
+				return i + 1;
+			}
+		}
+		for (; i < end; i++) {
+			hash = (hash << 1) + GEAR[value[offset + i] & 0xff];
+			if ((hash & maskLarge) == 0) {
+				return i + 1;
+			}
+		}
+		return end;
+	}
+}
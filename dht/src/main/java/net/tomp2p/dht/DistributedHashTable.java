@@ -18,6 +18,7 @@ package net.tomp2p.dht;
 import io.netty.buffer.ByteBuf;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
@@ -224,6 +225,9 @@ public class DistributedHashTable {
     }
 
     public FuturePut put(final PutBuilder putBuilder) {
+        if (putBuilder.isVersioned()) {
+            return putVersioned(putBuilder);
+        }
         final int dataSize = UtilsDHT.dataSize(putBuilder);
         final FuturePut futureDHT = new FuturePut(putBuilder, putBuilder.requestP2PConfiguration()
                 .minimumResults(), dataSize);
@@ -303,7 +307,84 @@ public class DistributedHashTable {
         return futureDHT;
     }
 
+    /**
+     * Prepares a new version on the replicas, which only accept it if it is based on all their latest versions. If
+     * all replicas accepted, the version is confirmed on the same replicas, otherwise the conflict is resolved, see
+     * {@link VersionedPut}.
+     */
+    private FuturePut putVersioned(final PutBuilder putBuilder) {
+        final FuturePut futureDHT = new FuturePut(putBuilder, putBuilder.requestP2PConfiguration()
+                .minimumResults(), 1);
+        final Data data = putBuilder.data().getValue();
+        final Number640 key = VersionedPut.versionKey(putBuilder.data().getKey(), data);
+        final Data prepared = VersionedPut.prepared(data);
+        putBuilder.futureChannelCreator().addListener(new BaseFutureAdapter<FutureChannelCreator>() {
+            @Override
+            public void operationComplete(final FutureChannelCreator future) throws Exception {
+                if (future.isSuccess()) {
+
+                    final RoutingBuilder routingBuilder = createBuilder(putBuilder);
+                    final FutureRouting futureRouting = routing.route(routingBuilder, Type.REQUEST_1, future.channelCreator());
+
+                    futureDHT.futureRouting(futureRouting);
+                    futureRouting.addListener(new BaseFutureAdapter<FutureRouting>() {
+                        @Override
+                        public void operationComplete(final FutureRouting futureRouting) throws Exception {
+                            if (futureRouting.isSuccess()) {
+                                logger.debug("storing version {} on {}", key, futureRouting.potentialHits());
+
+                                parallelRequests(sequential(putBuilder.requestP2PConfiguration()),
+                                        EMPTY_NAVIGABLE_SET, futureRouting.potentialHits(), futureDHT, false,
+                                        future.channelCreator(), new OperationMapper<FuturePut>() {
+
+                                            Map<PeerAddress, Byte> rawStatus = new HashMap<PeerAddress, Byte>();
+                                            Map<PeerAddress, NavigableMap<Number640, Data>> rawConflicts = new HashMap<PeerAddress, NavigableMap<Number640, Data>>();
+
+                                            @Override
+                                            public FutureResponse create(final ChannelCreator channelCreator,
+                                                    final PeerAddress address) {
+                                                return storeRCP.putIfLatest(address, key, prepared, putBuilder,
+                                                        channelCreator);
+                                            }
+
+                                            @Override
+                                            public void response(final FuturePut futureDHT, FutureDone<Void> futuresCompleted) {
+                                                new VersionedPut(storeRCP, putBuilder, futureDHT, future.channelCreator(),
+                                                        futuresCompleted).start(key, data, rawStatus, rawConflicts);
+                                            }
+
+                                            @Override
+                                            public void interMediateResponse(final FutureResponse future) {
+                                                final PeerAddress recipient = future.request().recipient();
+                                                rawStatus.put(recipient, VersionedPut.status(future, key));
+                                                final NavigableMap<Number640, Data> conflicts = VersionedPut
+                                                        .conflicts(future);
+                                                if (conflicts != null) {
+                                                    rawConflicts.put(recipient, conflicts);
+                                                }
+                                            }
+                                        });
+                            } else {
+                                futureDHT.failed(futureRouting);
+                            }
+                        }
+                    });
+                    futureDHT.addFutureDHTReleaseListener(future.channelCreator());
+                } else {
+                    futureDHT.failed(future);
+                }
+            }
+        });
+        return futureDHT;
+    }
+
     public FutureGet get(final GetBuilder builder) {
+        if (builder.isMultiSource()) {
+            return getMultiSource(builder);
+        }
+        if (builder.isVersioned()) {
+            return getVersioned(builder);
+        }
 
         final FutureGet futureDHT = new FutureGet(builder, builder.requestP2PConfiguration()
                 .minimumResults(), new VotingSchemeDHT());
@@ -327,6 +408,7 @@ public class DistributedHashTable {
                                 RequestP2PConfiguration p2pConfiguration2 = adjustConfiguration(builder.requestP2PConfiguration, 
                                 		futureRouting.potentialHits().size());
                                         
+                                final HedgedRequests hedging = hedging(builder, futureDHT);
                                 // store in direct hits
                                 parallelRequests(
                                         p2pConfiguration2,
@@ -393,6 +475,186 @@ public class DistributedHashTable {
                                                 	rawStatus.put(future.request().recipient(), (byte) PutStatus.FAILED.ordinal());
                                                 }
                                             }
+                                        }, hedging);
+                            } else {
+                                futureDHT.failed(futureRouting);
+                            }
+                        }
+                    });
+                    futureDHT.addFutureDHTReleaseListener(future.channelCreator());
+                } else {
+                    futureDHT.failed(future);
+                }
+            }
+        });
+        return futureDHT;
+    }
+
+    private HedgedRequests hedging(final GetBuilder builder, final FutureGet futureDHT) {
+        if (builder.hedgingPolicy() == null) {
+            return null;
+        }
+        final HedgedRequests hedging = new HedgedRequests(builder.hedgingPolicy(), storeRCP.peerBean().peerMap(),
+                storeRCP.connectionBean().timer(), storeRCP.connectionBean().reservation(), builder.isForceUDP());
+        hedging.release(futureDHT);
+        return hedging;
+    }
+
+    /**
+     * Asks the replicas for the hash and the length of the value first, and downloads disjoint ranges of the value
+     * from the replicas that agree on the value in parallel, see {@link MultiSourceGet}.
+     */
+    private FutureGet getMultiSource(final GetBuilder builder) {
+
+        final FutureGet futureDHT = new FutureGet(builder, builder.requestP2PConfiguration()
+                .minimumResults(), builder.evaluationScheme());
+
+        builder.futureChannelCreator().addListener(new BaseFutureAdapter<FutureChannelCreator>() {
+            @Override
+            public void operationComplete(final FutureChannelCreator future) throws Exception {
+                if (future.isSuccess()) {
+
+                    final RoutingBuilder routingBuilder = createBuilder(builder);
+                    fillRoutingBuilder(builder, routingBuilder);
+                    final FutureRouting futureRouting = routing.route(routingBuilder, builder.isFastGet()? Type.REQUEST_2 : Type.REQUEST_1, future.channelCreator());
+
+                    futureDHT.futureRouting(futureRouting);
+                    futureRouting.addListener(new BaseFutureAdapter<FutureRouting>() {
+                        @Override
+                        public void operationComplete(FutureRouting futureRouting) throws Exception {
+                            if (futureRouting.isSuccess()) {
+                                logger.debug("found direct hits for multi source get: {}", futureRouting.directHits());
+
+                                RequestP2PConfiguration p2pConfiguration2 = adjustConfiguration(builder.requestP2PConfiguration,
+                                        futureRouting.potentialHits().size());
+
+                                parallelRequests(
+                                        p2pConfiguration2,
+                                        builder.isFastGet() ? futureRouting.directHits(): EMPTY_NAVIGABLE_SET,
+                                        futureRouting.potentialHits(),
+                                        futureDHT, true,
+                                        future.channelCreator(), new OperationMapper<FutureGet>() {
+                                            Map<PeerAddress, MultiSourceGet.RangeInfo> rawInfo = new HashMap<PeerAddress, MultiSourceGet.RangeInfo>();
+                                            Map<PeerAddress, Byte> rawStatus = new HashMap<PeerAddress, Byte>();
+
+                                            @Override
+                                            public FutureResponse create(ChannelCreator channelCreator,
+                                                    PeerAddress address) {
+                                                return storeRCP.getRangeInfo(address, builder, channelCreator);
+                                            }
+
+                                            @Override
+                                            public void response(FutureGet futureDHT, FutureDone<Void> futuresCompleted) {
+                                                new MultiSourceGet(storeRCP, builder, futureDHT, rawStatus,
+                                                        futuresCompleted).start(rawInfo);
+                                            }
+
+                                            @Override
+                                            public void interMediateResponse(FutureResponse future) {
+                                                if (future.isSuccess()) {
+                                                    MultiSourceGet.RangeInfo info = MultiSourceGet.RangeInfo
+                                                            .fromMessage(future.responseMessage());
+                                                    if (info != null) {
+                                                        rawInfo.put(future.request().recipient(), info);
+                                                        rawStatus.put(future.request().recipient(), (byte) PutStatus.OK.ordinal());
+                                                    } else {
+                                                        rawStatus.put(future.request().recipient(), (byte) PutStatus.NOT_FOUND.ordinal());
+                                                    }
+                                                } else {
+                                                    rawStatus.put(future.request().recipient(), (byte) PutStatus.FAILED.ordinal());
+                                                }
+                                            }
+                                        });
+                            } else {
+                                futureDHT.failed(futureRouting);
+                            }
+                        }
+                    });
+                    futureDHT.addFutureDHTReleaseListener(future.channelCreator());
+                } else {
+                    futureDHT.failed(future);
+                }
+            }
+        });
+        return futureDHT;
+    }
+
+    /**
+     * Asks one replica for the latest versions and the other replicas for the keys and hashes of their latest versions
+     * only. If all replicas agree, one round trip is enough, see {@link VersionedGet}.
+     */
+    private FutureGet getVersioned(final GetBuilder builder) {
+
+        final FutureGet futureDHT = new FutureGet(builder, builder.requestP2PConfiguration()
+                .minimumResults(), builder.evaluationScheme());
+
+        builder.futureChannelCreator().addListener(new BaseFutureAdapter<FutureChannelCreator>() {
+            @Override
+            public void operationComplete(final FutureChannelCreator future) throws Exception {
+                if (future.isSuccess()) {
+
+                    final RoutingBuilder routingBuilder = createBuilder(builder);
+                    fillRoutingBuilder(builder, routingBuilder);
+                    final FutureRouting futureRouting = routing.route(routingBuilder, builder.isFastGet()? Type.REQUEST_2 : Type.REQUEST_1, future.channelCreator());
+
+                    futureDHT.futureRouting(futureRouting);
+                    futureRouting.addListener(new BaseFutureAdapter<FutureRouting>() {
+                        @Override
+                        public void operationComplete(FutureRouting futureRouting) throws Exception {
+                            if (futureRouting.isSuccess()) {
+                                logger.debug("found direct hits for versioned get: {}", futureRouting.directHits());
+
+                                RequestP2PConfiguration p2pConfiguration2 = adjustConfiguration(
+                                        sequential(builder.requestP2PConfiguration), futureRouting.potentialHits().size());
+
+                                parallelRequests(
+                                        p2pConfiguration2,
+                                        builder.isFastGet() ? futureRouting.directHits(): EMPTY_NAVIGABLE_SET,
+                                        futureRouting.potentialHits(),
+                                        futureDHT, true,
+                                        future.channelCreator(), new OperationMapper<FutureGet>() {
+                                            Map<PeerAddress, Map<Number640, Data>> rawData = new HashMap<PeerAddress, Map<Number640, Data>>();
+                                            Map<PeerAddress, Map<Number640, Number160>> rawDigest = new HashMap<PeerAddress, Map<Number640, Number160>>();
+                                            Collection<PeerAddress> failed = new ArrayList<PeerAddress>();
+                                            boolean dataRequested = false;
+
+                                            @Override
+                                            public FutureResponse create(ChannelCreator channelCreator,
+                                                    PeerAddress address) {
+                                                // only the first replica sends the versions, the others the digest
+                                                if (!dataRequested) {
+                                                    dataRequested = true;
+                                                    return storeRCP.getLatest(address, builder, channelCreator,
+                                                            RPC.Commands.GET_LATEST);
+                                                }
+                                                return storeRCP.getLatestDigest(address, builder, channelCreator);
+                                            }
+
+                                            @Override
+                                            public void response(FutureGet futureDHT, FutureDone<Void> futuresCompleted) {
+                                                new VersionedGet(storeRCP, builder, futureDHT, future.channelCreator(),
+                                                        futuresCompleted).start(rawData, rawDigest, failed);
+                                            }
+
+                                            @Override
+                                            public void interMediateResponse(FutureResponse future) {
+                                                final PeerAddress recipient = future.request().recipient();
+                                                if (future.request().type() == Type.REQUEST_1) {
+                                                    final Map<Number640, Data> data = VersionedGet.data(future);
+                                                    if (data != null) {
+                                                        rawData.put(recipient, data);
+                                                    } else {
+                                                        failed.add(recipient);
+                                                    }
+                                                } else {
+                                                    final Map<Number640, Number160> digest = VersionedGet.digest(future);
+                                                    if (digest != null) {
+                                                        rawDigest.put(recipient, digest);
+                                                    } else {
+                                                        failed.add(recipient);
+                                                    }
+                                                }
+                                            }
                                         });
                             } else {
                                 futureDHT.failed(futureRouting);
@@ -611,10 +873,16 @@ public class DistributedHashTable {
         return futureDHT;
     }
 
-    //TODO: have two queues, direct queue + potential queue.
     private static <K extends FutureDHT<?>> void parallelRequests(RequestP2PConfiguration p2pConfiguration,
     		NavigableSet<PeerAddress> directHit, NavigableSet<PeerAddress> potentialHit, K future, boolean cancleOnFinish, ChannelCreator channelCreator,
             OperationMapper<K> operation) {
+        parallelRequests(p2pConfiguration, directHit, potentialHit, future, cancleOnFinish, channelCreator, operation, null);
+    }
+
+    //TODO: have two queues, direct queue + potential queue.
+    private static <K extends FutureDHT<?>> void parallelRequests(RequestP2PConfiguration p2pConfiguration,
+    		NavigableSet<PeerAddress> directHit, NavigableSet<PeerAddress> potentialHit, K future, boolean cancleOnFinish, ChannelCreator channelCreator,
+            OperationMapper<K> operation, HedgedRequests hedging) {
     	//the potential hits may contain same values as in directHit, so remove it from potentialHit
     	for(PeerAddress peerAddress:directHit) {
     		potentialHit.remove(peerAddress);
@@ -629,25 +897,37 @@ public class DistributedHashTable {
         loopRec(directHit, potentialHit, p2pConfiguration.minimumResults(), new AtomicInteger(0),
                 p2pConfiguration.maxFailure(), p2pConfiguration.parallelDiff(),
                 new AtomicReferenceArray<FutureResponse>(futures), future, cancleOnFinish, channelCreator,
-                operation);
+                operation, hedging);
     }
 
     private static <K extends FutureDHT<?>> void loopRec(final NavigableSet<PeerAddress> directHit, final NavigableSet<PeerAddress> potentialHit,
             final int min, final AtomicInteger nrFailure, final int maxFailure, final int parallelDiff,
             final AtomicReferenceArray<FutureResponse> futures, final K futureDHT,
             final boolean cancelOnFinish, final ChannelCreator channelCreator,
-            final OperationMapper<K> operation) {
+            final OperationMapper<K> operation, final HedgedRequests hedging) {
         // final int parallel=min+parallelDiff;
         int active = 0;
         for (int i = 0; i < min + parallelDiff; i++) {
             if (futures.get(i) == null) {
-                PeerAddress next = directHit.pollFirst();
-                if(next == null) {
-                	next = potentialHit.pollFirst();
-                }
+                PeerAddress next = pollFirst(directHit, potentialHit);
                 if (next != null) {
                     active++;
                     FutureResponse futureResponse = operation.create(channelCreator, next);
+                    if (hedging != null) {
+                        futureResponse = hedging.hedge(futureResponse, new HedgedRequests.Backup() {
+                            @Override
+                            public FutureResponse create(ChannelCreator backupChannelCreator) {
+                                // the backup goes to the next candidate, which is not asked otherwise
+                                PeerAddress backup = pollFirst(directHit, potentialHit);
+                                if (backup == null) {
+                                    return null;
+                                }
+                                FutureResponse backupResponse = operation.create(backupChannelCreator, backup);
+                                futureDHT.addRequests(backupResponse);
+                                return backupResponse;
+                            }
+                        });
+                    }
                     futures.set(i, futureResponse);
                     futureDHT.addRequests(futureResponse);
                 }
@@ -682,11 +962,25 @@ public class DistributedHashTable {
                     operation.response(futureDHT, future.futuresCompleted());
                 } else {
                     loopRec(directHit, potentialHit, min - future.successCounter(), nrFailure, maxFailure, parallelDiff,
-                            futures, futureDHT, cancelOnFinish, channelCreator, operation);
+                            futures, futureDHT, cancelOnFinish, channelCreator, operation, hedging);
                 }
             }
         });
     }
+
+    /**
+     * Takes the next peer to ask. This is synchronized, since backup requests take peers from a timer thread.
+     */
+    private static PeerAddress pollFirst(final NavigableSet<PeerAddress> directHit,
+            final NavigableSet<PeerAddress> potentialHit) {
+        synchronized (potentialHit) {
+            PeerAddress next = directHit.pollFirst();
+            if (next == null) {
+                next = potentialHit.pollFirst();
+            }
+            return next;
+        }
+    }
     
     private static RoutingBuilder createBuilder(BasicBuilder<?> builder) {
     	RoutingBuilder routingBuilder = builder.createBuilder(builder.requestP2PConfiguration(),
@@ -729,6 +1023,20 @@ public class DistributedHashTable {
         }
     }
 
+    /**
+     * A versioned put needs to confirm the version on exactly the replicas that prepared it, and a versioned get needs
+     * the answer of the replica that sends the data. Thus, no additional requests are sent in parallel, and a failed
+     * replica is replaced by the next one.
+     * 
+     * @param p2pConfiguration
+     *            The old configuration
+     * @return The configuration without parallel requests
+     */
+    private static RequestP2PConfiguration sequential(final RequestP2PConfiguration p2pConfiguration) {
+        return new RequestP2PConfiguration(p2pConfiguration.minimumResults(), p2pConfiguration.maxFailure(), 0,
+                p2pConfiguration.isForceUPD(), p2pConfiguration.isForceTCP());
+    }
+
     /**
      * Adjusts the number of minimum requests in the P2P configuration. When we query x peers for the get() operation
      * and they have y different data stored (y <= x), then set the minimum to y or to the value the user set if its
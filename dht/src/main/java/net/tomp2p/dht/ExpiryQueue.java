@@ -0,0 +1,186 @@
+package net.tomp2p.dht;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
+
+/**
+ * Tracks the expiration of the entries of a storage in time buckets, like a timer wheel. Expired entries are taken
+ * from the oldest buckets in slices of bounded size, grouped by location key, such that all expired entries of a
+ * location can be removed under one lock. The queue also counts the entries of each location, thus, it is known
+ * when the last entry of a location is gone without scanning the storage.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class ExpiryQueue {
+
+	public static final long DEFAULT_BUCKET_MILLIS = 1000;
+
+	private final long bucketMillis;
+
+	// guarded by this
+	private final Map<Number640, Long> expirations = new HashMap<Number640, Long>();
+	private final NavigableMap<Long, Set<Number640>> buckets = new TreeMap<Long, Set<Number640>>();
+	private final Map<Number160, Integer> references = new HashMap<Number160, Integer>();
+
+	public ExpiryQueue() {
+		this(DEFAULT_BUCKET_MILLIS);
+	}
+
+	/**
+	 * @param bucketMillis
+	 *            The time span of a bucket, entries in the same bucket expire together
+	 */
+	public ExpiryQueue(final long bucketMillis) {
+		if (bucketMillis <= 0) {
+			throw new IllegalArgumentException("The time span of a bucket must be positive");
+		}
+		this.bucketMillis = bucketMillis;
+	}
+
+	/**
+	 * Adds an entry or changes its expiration.
+	 *
+	 * @param key
+	 *            The key of the entry
+	 * @param expirationMillis
+	 *            The expiration of the entry, {@link Long#MAX_VALUE} if the entry does not expire
+	 */
+	public synchronized void add(final Number640 key, final long expirationMillis) {
+		final Long old = expirations.put(key, expirationMillis);
+		if (old == null) {
+			final Integer count = references.get(key.locationKey());
+			references.put(key.locationKey(), count == null ? 1 : count + 1);
+		} else {
+			removeFromBucket(key, old);
+		}
+		if (expirationMillis != Long.MAX_VALUE) {
+			final Long bucket = expirationMillis / bucketMillis;
+			Set<Number640> keys = buckets.get(bucket);
+			if (keys == null) {
+				keys = new LinkedHashSet<Number640>();
+				buckets.put(bucket, keys);
+			}
+			keys.add(key);
+		}
+	}
+
+	/**
+	 * @param key
+	 *            The key of the entry
+	 * @return True if the entry was tracked
+	 */
+	public synchronized boolean remove(final Number640 key) {
+		final Long old = expirations.remove(key);
+		if (old == null) {
+			return false;
+		}
+		removeFromBucket(key, old);
+		final Number160 locationKey = key.locationKey();
+		final int count = references.get(locationKey) - 1;
+		if (count == 0) {
+			references.remove(locationKey);
+		} else {
+			references.put(locationKey, count);
+		}
+		return true;
+	}
+
+	private void removeFromBucket(final Number640 key, final long expirationMillis) {
+		if (expirationMillis == Long.MAX_VALUE) {
+			return;
+		}
+		final Long bucket = expirationMillis / bucketMillis;
+		final Set<Number640> keys = buckets.get(bucket);
+		if (keys != null) {
+			keys.remove(key);
+			if (keys.isEmpty()) {
+				buckets.remove(bucket);
+			}
+		}
+	}
+
+	/**
+	 * @param key
+	 *            The key of the entry
+	 * @return The expiration of the entry, or null if the entry is not tracked
+	 */
+	public synchronized Long expiration(final Number640 key) {
+		return expirations.get(key);
+	}
+
+	/**
+	 * @param locationKey
+	 *            The location key
+	 * @return The number of entries stored under the location key
+	 */
+	public synchronized int references(final Number160 locationKey) {
+		final Integer count = references.get(locationKey);
+		return count == null ? 0 : count;
+	}
+
+	/**
+	 * @return The number of tracked entries
+	 */
+	public synchronized int size() {
+		return expirations.size();
+	}
+
+	/**
+	 * Takes expired entries out of their buckets. The entries are still tracked, they need to be removed with
+	 * {@link #remove(Number640)} once they have been removed from the storage. If an entry is added again in the
+	 * meantime, it is in a new bucket and {@link #expiration(Number640)} tells that it is no longer expired.
+	 *
+	 * @param now
+	 *            The current time
+	 * @param limit
+	 *            The maximum number of entries to take
+	 * @return The expired entries grouped by location key
+	 */
+	public synchronized SortedMap<Number160, List<Number640>> poll(final long now, final int limit) {
+		final SortedMap<Number160, List<Number640>> expired = new TreeMap<Number160, List<Number640>>();
+		int taken = 0;
+		final Iterator<Map.Entry<Long, Set<Number640>>> bucketIterator = buckets.headMap(now / bucketMillis, true)
+				.entrySet().iterator();
+		while (taken < limit && bucketIterator.hasNext()) {
+			final Set<Number640> keys = bucketIterator.next().getValue();
+			final Iterator<Number640> keyIterator = keys.iterator();
+			while (taken < limit && keyIterator.hasNext()) {
+				final Number640 key = keyIterator.next();
+				// the current bucket is only partially expired
+				if (expirations.get(key) > now) {
+					continue;
+				}
+				keyIterator.remove();
+				List<Number640> locationKeys = expired.get(key.locationKey());
+				if (locationKeys == null) {
+					locationKeys = new ArrayList<Number640>();
+					expired.put(key.locationKey(), locationKeys);
+				}
+				locationKeys.add(key);
+				taken++;
+			}
+			if (keys.isEmpty()) {
+				bucketIterator.remove();
+			}
+		}
+		return expired;
+	}
+
+	public synchronized void clear() {
+		expirations.clear();
+		buckets.clear();
+		references.clear();
+	}
+}
@@ -66,6 +66,14 @@ public class GetBuilder extends DHTBuilder<GetBuilder> implements SearchableBuil
     
     private boolean fastGet = true;
 
+    private boolean multiSource = false;
+
+    private boolean versioned = false;
+
+    private int rangeSize = 512 * 1024;
+
+    private HedgingPolicy hedgingPolicy = null;
+
     static {
         NUMBER_ZERO_CONTENT_KEYS.add(Number160.ZERO);
     }
@@ -294,6 +302,88 @@ public class GetBuilder extends DHTBuilder<GetBuilder> implements SearchableBuil
         return this;
     }
 
+    public boolean isMultiSource() {
+        return multiSource;
+    }
+
+    /**
+     * @param multiSource
+     *            Set to true to ask the replicas only for the hash and the length of the value first, and then to
+     *            download disjoint ranges of the value from the replicas in parallel. The value is verified against
+     *            the hash. This is useful for large values, since every replica sends only a part of the value.
+     * @return This class
+     */
+    public GetBuilder multiSource(boolean multiSource) {
+        this.multiSource = multiSource;
+        return this;
+    }
+
+    public GetBuilder multiSource() {
+        this.multiSource = true;
+        return this;
+    }
+
+    public boolean isVersioned() {
+        return versioned;
+    }
+
+    /**
+     * @param versioned
+     *            Set to true to get the latest versions with one round trip. Only one replica sends the latest
+     *            versions, the other replicas send the keys and hashes of their latest versions. If all replicas
+     *            agree, no further request is needed, see {@link VersionedGet}.
+     * @return This class
+     */
+    public GetBuilder versioned(boolean versioned) {
+        this.versioned = versioned;
+        return this;
+    }
+
+    public GetBuilder versioned() {
+        this.versioned = true;
+        return this;
+    }
+
+    public int rangeSize() {
+        return rangeSize;
+    }
+
+    /**
+     * @param rangeSize
+     *            The size of the ranges for a multi source get. A faster replica serves more ranges. Larger ranges
+     *            than {@link StorageRPC#MAX_RANGE_SIZE} are split.
+     * @return This class
+     */
+    public GetBuilder rangeSize(int rangeSize) {
+        this.rangeSize = rangeSize;
+        return this;
+    }
+
+    public HedgingPolicy hedgingPolicy() {
+        return hedgingPolicy;
+    }
+
+    /**
+     * @param hedgingPolicy
+     *            Set a policy to send a backup request to the next peer if a peer does not answer in time, null to
+     *            wait for the answers or the timeout
+     * @return This class
+     */
+    public GetBuilder hedgingPolicy(HedgingPolicy hedgingPolicy) {
+        this.hedgingPolicy = hedgingPolicy;
+        return this;
+    }
+
+    /**
+     * Sends backup requests with the default {@link HedgingPolicy}.
+     * 
+     * @return This class
+     */
+    public GetBuilder hedge() {
+        this.hedgingPolicy = new HedgingPolicy();
+        return this;
+    }
+
     public FutureGet start() {
         if (peer.peer().isShutdown()) {
             return FUTURE_SHUTDOWN;
@@ -314,7 +404,7 @@ public class GetBuilder extends DHTBuilder<GetBuilder> implements SearchableBuil
         if (evaluationScheme == null) {
             evaluationScheme = new VotingSchemeDHT();
         }
-		if (isGetLatest) {
+		if (isGetLatest || multiSource || versioned) {
 			if (contentKey == null) {
 				contentKey = Number160.ZERO;
 			}
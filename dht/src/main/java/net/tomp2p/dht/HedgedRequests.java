@@ -0,0 +1,240 @@
+package net.tomp2p.dht;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.tomp2p.connection.ChannelCreator;
+import net.tomp2p.connection.Reservation;
+import net.tomp2p.futures.BaseFutureAdapter;
+import net.tomp2p.futures.Cancel;
+import net.tomp2p.futures.FutureChannelCreator;
+import net.tomp2p.futures.FutureResponse;
+import net.tomp2p.message.Message;
+import net.tomp2p.peers.PeerMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends backup requests for the requests of one operation according to a {@link HedgingPolicy}. The backup requests
+ * use their own reservation, which is created with the first backup request and released when the operation is
+ * finished.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class HedgedRequests {
+
+	private static final Logger LOG = LoggerFactory.getLogger(HedgedRequests.class);
+
+	/**
+	 * Creates the backup request to the next candidate.
+	 */
+	public interface Backup {
+		/**
+		 * @param channelCreator
+		 *            The channel creator of the backup requests
+		 * @return The backup request or null if there is no candidate left
+		 */
+		FutureResponse create(ChannelCreator channelCreator);
+	}
+
+	private final HedgingPolicy policy;
+	private final PeerMap peerMap;
+	private final ScheduledExecutorService timer;
+	private final Reservation reservation;
+	private final boolean forceUDP;
+	private final AtomicInteger hedges = new AtomicInteger();
+
+	// guarded by this
+	private FutureChannelCreator futureChannelCreator;
+	private boolean released = false;
+
+	public HedgedRequests(final HedgingPolicy policy, final PeerMap peerMap, final ScheduledExecutorService timer,
+			final Reservation reservation, final boolean forceUDP) {
+		this.policy = policy;
+		this.peerMap = peerMap;
+		this.timer = timer;
+		this.reservation = reservation;
+		this.forceUDP = forceUDP;
+	}
+
+	/**
+	 * @return The number of backup requests that have been sent
+	 */
+	public int hedges() {
+		return hedges.get();
+	}
+
+	/**
+	 * Wraps a request. If the request is not answered within the delay of the policy, a backup request is sent.
+	 *
+	 * @param primary
+	 *            The request
+	 * @param backup
+	 *            Creates the backup request
+	 * @return The future that is done with the first successful answer
+	 */
+	public FutureResponse hedge(final FutureResponse primary, final Backup backup) {
+		final HedgedFutureResponse hedged = new HedgedFutureResponse(primary);
+		final long delay = policy.delayMillis(peerMap.getPeerStatistic(primary.request().recipient()));
+		timer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				if (hedged.isCompleted() || hedges.incrementAndGet() > policy.maxHedges()) {
+					return;
+				}
+				LOG.debug("No answer from {} after {}ms, sending a backup request", primary.request().recipient(),
+						delay);
+				final FutureChannelCreator futureChannelCreator = channelCreator();
+				if (futureChannelCreator == null) {
+					return;
+				}
+				futureChannelCreator.addListener(new BaseFutureAdapter<FutureChannelCreator>() {
+					@Override
+					public void operationComplete(final FutureChannelCreator future) throws Exception {
+						if (future.isSuccess() && !hedged.isCompleted()) {
+							final FutureResponse futureResponse = backup.create(future.channelCreator());
+							if (futureResponse != null) {
+								hedged.backup(futureResponse);
+							}
+						}
+					}
+				});
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+		return hedged;
+	}
+
+	private synchronized FutureChannelCreator channelCreator() {
+		if (released) {
+			return null;
+		}
+		if (futureChannelCreator == null) {
+			final int permits = policy.maxHedges();
+			futureChannelCreator = forceUDP ? reservation.create(permits, 0) : reservation.create(0, permits);
+		}
+		return futureChannelCreator;
+	}
+
+	/**
+	 * Releases the reservation of the backup requests, if there is one.
+	 *
+	 * @param futureDHT
+	 *            The operation, the reservation is released when it is finished
+	 */
+	public void release(final FutureDHT<?> futureDHT) {
+		futureDHT.addListener(new BaseFutureAdapter<FutureDHT<?>>() {
+			@Override
+			public void operationComplete(final FutureDHT<?> future) throws Exception {
+				final FutureChannelCreator futureChannelCreator;
+				synchronized (HedgedRequests.this) {
+					released = true;
+					futureChannelCreator = HedgedRequests.this.futureChannelCreator;
+				}
+				if (futureChannelCreator != null) {
+					futureChannelCreator.addListener(new BaseFutureAdapter<FutureChannelCreator>() {
+						@Override
+						public void operationComplete(final FutureChannelCreator future) throws Exception {
+							if (future.isSuccess()) {
+								UtilsDHT.addReleaseListener(future.channelCreator(), futureDHT);
+							}
+						}
+					});
+				}
+			}
+		});
+	}
+
+	/**
+	 * The future of a request and its backup request. It is done with the first successful answer, or if both
+	 * requests failed. The request of the answer is returned with {@link #request()}, thus, the answer is accounted
+	 * to the peer that sent it.
+	 */
+	private static class HedgedFutureResponse extends FutureResponse {
+
+		private final FutureResponse primary;
+		// guarded by lock
+		private FutureResponse backup;
+		private FutureResponse winner;
+		// set by the only thread that completes this future
+		private boolean decided = false;
+
+		HedgedFutureResponse(final FutureResponse primary) {
+			super(primary.request());
+			this.primary = primary;
+			addCancel(new Cancel() {
+				@Override
+				public void cancel() {
+					primary.cancel();
+					final FutureResponse backup;
+					synchronized (lock) {
+						backup = HedgedFutureResponse.this.backup;
+					}
+					if (backup != null) {
+						backup.cancel();
+					}
+				}
+			});
+			primary.addListener(new BaseFutureAdapter<FutureResponse>() {
+				@Override
+				public void operationComplete(final FutureResponse future) throws Exception {
+					done(future);
+				}
+			});
+		}
+
+		void backup(final FutureResponse backup) {
+			final boolean late;
+			synchronized (lock) {
+				late = decided;
+				if (!late) {
+					this.backup = backup;
+				}
+			}
+			if (late) {
+				backup.cancel();
+				return;
+			}
+			backup.addListener(new BaseFutureAdapter<FutureResponse>() {
+				@Override
+				public void operationComplete(final FutureResponse future) throws Exception {
+					done(future);
+				}
+			});
+		}
+
+		private void done(final FutureResponse future) {
+			final FutureResponse loser;
+			synchronized (lock) {
+				if (decided) {
+					return;
+				}
+				final FutureResponse other = future == primary ? backup : primary;
+				if (!future.isSuccess() && other != null && (!other.isCompleted() || other.isSuccess())) {
+					// wait for the other request, or let its listener complete this future with its answer
+					return;
+				}
+				decided = true;
+				winner = future;
+				loser = other;
+			}
+			if (future.isSuccess()) {
+				response(future.responseMessage());
+			} else {
+				failed("Hedged request failed", future);
+			}
+			if (loser != null && !loser.isCompleted()) {
+				loser.cancel();
+			}
+		}
+
+		@Override
+		public Message request() {
+			synchronized (lock) {
+				return winner == null ? super.request() : winner.request();
+			}
+		}
+	}
+}
@@ -0,0 +1,105 @@
+package net.tomp2p.dht;
+
+import net.tomp2p.peers.PeerStatistic;
+
+/**
+ * Tells when to send a backup request (a hedged request) to the next candidate if a peer is slow to answer. The
+ * delay is a percentile of the round trip times measured for that peer, such that only a slow answer triggers a
+ * backup. The first answer wins and the other request is cancelled. Thus, a degraded replica does not stall a get
+ * until the idle timeout fires.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class HedgingPolicy {
+
+	private double percentile = 0.95;
+	private double factor = 2.0;
+	private long minDelayMillis = 20;
+	private long defaultDelayMillis = 500;
+	private int maxHedges = 2;
+
+	public double percentile() {
+		return percentile;
+	}
+
+	/**
+	 * @param percentile
+	 *            The percentile of the round trip times of a peer, between 0 and 1
+	 * @return This class
+	 */
+	public HedgingPolicy percentile(final double percentile) {
+		this.percentile = percentile;
+		return this;
+	}
+
+	public double factor() {
+		return factor;
+	}
+
+	/**
+	 * @param factor
+	 *            The percentile of the round trip times is multiplied with this factor, the round trip times are
+	 *            measured for small messages
+	 * @return This class
+	 */
+	public HedgingPolicy factor(final double factor) {
+		this.factor = factor;
+		return this;
+	}
+
+	public long minDelayMillis() {
+		return minDelayMillis;
+	}
+
+	/**
+	 * @param minDelayMillis
+	 *            The minimum time to wait for an answer before a backup request is sent
+	 * @return This class
+	 */
+	public HedgingPolicy minDelayMillis(final long minDelayMillis) {
+		this.minDelayMillis = minDelayMillis;
+		return this;
+	}
+
+	public long defaultDelayMillis() {
+		return defaultDelayMillis;
+	}
+
+	/**
+	 * @param defaultDelayMillis
+	 *            The time to wait for an answer if no round trip time has been measured for a peer
+	 * @return This class
+	 */
+	public HedgingPolicy defaultDelayMillis(final long defaultDelayMillis) {
+		this.defaultDelayMillis = defaultDelayMillis;
+		return this;
+	}
+
+	public int maxHedges() {
+		return maxHedges;
+	}
+
+	/**
+	 * @param maxHedges
+	 *            The maximum number of backup requests of a single operation
+	 * @return This class
+	 */
+	public HedgingPolicy maxHedges(final int maxHedges) {
+		this.maxHedges = maxHedges;
+		return this;
+	}
+
+	/**
+	 * @param peerStatistic
+	 *            The statistic of the peer, may be null
+	 * @return The time to wait for an answer of the peer before a backup request is sent
+	 */
+	public long delayMillis(final PeerStatistic peerStatistic) {
+		final long rtt = peerStatistic == null ? -1 : peerStatistic.getPercentileRTT(percentile);
+		if (rtt < 0) {
+			return Math.max(minDelayMillis, defaultDelayMillis);
+		}
+		return Math.max(minDelayMillis, (long) (rtt * factor));
+	}
+}
@@ -0,0 +1,279 @@
+package net.tomp2p.dht;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import net.tomp2p.connection.ChannelCreator;
+import net.tomp2p.futures.BaseFutureAdapter;
+import net.tomp2p.futures.FutureChannelCreator;
+import net.tomp2p.futures.FutureDone;
+import net.tomp2p.futures.FutureResponse;
+import net.tomp2p.message.DataMap;
+import net.tomp2p.message.KeyCollection;
+import net.tomp2p.message.Message;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
+import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.rpc.DigestResult;
+import net.tomp2p.storage.Data;
+import net.tomp2p.utils.Utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Downloads a value from several replicas in parallel. The replicas have been asked for the key, the hash, and the
+ * length of the value. The replicas that agree with the majority serve disjoint ranges of the value. Each replica
+ * requests the next range as soon as its previous range arrived, thus, a fast replica serves more ranges than a slow
+ * one. If a replica fails, its range is served by another replica. The assembled value is verified against the hash.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class MultiSourceGet {
+
+	private static final Logger LOG = LoggerFactory.getLogger(MultiSourceGet.class);
+
+	private final StorageRPC storageRPC;
+	private final GetBuilder builder;
+	private final FutureGet futureGet;
+	private final Map<PeerAddress, Byte> rawStatus;
+	private final FutureDone<Void> futuresCompleted;
+
+	// guarded by this
+	private final LinkedList<Integer> pending = new LinkedList<Integer>();
+	private final LinkedList<PeerAddress> idle = new LinkedList<PeerAddress>();
+	private int remaining;
+	private boolean finished = false;
+
+	private RangeInfo info;
+	private List<PeerAddress> sources;
+	private byte[] value;
+	private int rangeSize;
+
+	public MultiSourceGet(final StorageRPC storageRPC, final GetBuilder builder, final FutureGet futureGet,
+			final Map<PeerAddress, Byte> rawStatus, final FutureDone<Void> futuresCompleted) {
+		this.storageRPC = storageRPC;
+		this.builder = builder;
+		this.futureGet = futureGet;
+		this.rawStatus = rawStatus;
+		this.futuresCompleted = futuresCompleted;
+	}
+
+	/**
+	 * Starts the download from the replicas that agree on the value.
+	 *
+	 * @param rawInfo
+	 *            The key, hash, and length of the value as reported by the replicas
+	 */
+	public void start(final Map<PeerAddress, RangeInfo> rawInfo) {
+		// majority vote, replicas with an other version are not asked
+		final Map<RangeInfo, List<PeerAddress>> votes = new HashMap<RangeInfo, List<PeerAddress>>();
+		for (Map.Entry<PeerAddress, RangeInfo> entry : rawInfo.entrySet()) {
+			List<PeerAddress> peers = votes.get(entry.getValue());
+			if (peers == null) {
+				peers = new ArrayList<PeerAddress>();
+				votes.put(entry.getValue(), peers);
+			}
+			peers.add(entry.getKey());
+		}
+		for (Map.Entry<RangeInfo, List<PeerAddress>> entry : votes.entrySet()) {
+			if (sources == null || entry.getValue().size() > sources.size()) {
+				info = entry.getKey();
+				sources = entry.getValue();
+			}
+		}
+		if (info == null) {
+			done(Collections.<PeerAddress, Map<Number640, Data>> emptyMap());
+			return;
+		}
+		value = new byte[info.length()];
+		final int maxRangeSize = Math.min(builder.rangeSize(), StorageRPC.MAX_RANGE_SIZE);
+		final int ranges = Math.min(Math.max(1, info.length()),
+				Math.max(sources.size(), (info.length() + maxRangeSize - 1) / maxRangeSize));
+		rangeSize = (info.length() + ranges - 1) / ranges;
+		remaining = (info.length() + rangeSize - 1) / rangeSize;
+		if (remaining == 0) {
+			assemble();
+			return;
+		}
+		for (int i = 0; i < remaining; i++) {
+			pending.add(i);
+		}
+		LOG.debug("Downloading {} bytes in {} ranges from {}", info.length(), remaining, sources);
+		final FutureChannelCreator futureChannelCreator = storageRPC.connectionBean().reservation()
+				.create(0, Math.min(sources.size(), remaining));
+		futureChannelCreator.addListener(new BaseFutureAdapter<FutureChannelCreator>() {
+			@Override
+			public void operationComplete(final FutureChannelCreator future) throws Exception {
+				if (future.isSuccess()) {
+					UtilsDHT.addReleaseListener(future.channelCreator(), futureGet);
+					synchronized (MultiSourceGet.this) {
+						idle.addAll(sources);
+					}
+					schedule(future.channelCreator());
+				} else {
+					futureGet.failed(future);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Gives every idle replica a pending range.
+	 */
+	private void schedule(final ChannelCreator channelCreator) {
+		while (true) {
+			final PeerAddress source;
+			final int range;
+			synchronized (this) {
+				if (finished || pending.isEmpty() || idle.isEmpty()) {
+					return;
+				}
+				source = idle.poll();
+				range = pending.poll();
+			}
+			request(channelCreator, source, range);
+		}
+	}
+
+	private void request(final ChannelCreator channelCreator, final PeerAddress source, final int range) {
+		final int offset = range * rangeSize;
+		final int length = Math.min(rangeSize, info.length() - offset);
+		final FutureResponse futureResponse = storageRPC.getRange(source, info.key(), offset, length, builder,
+				channelCreator);
+		futureGet.addRequests(futureResponse);
+		futureResponse.addListener(new BaseFutureAdapter<FutureResponse>() {
+			@Override
+			public void operationComplete(final FutureResponse future) throws Exception {
+				final Data data = rangeData(future);
+				final boolean ok = data != null && data.length() == length;
+				if (ok) {
+					// the ranges are disjoint, no need to lock
+					System.arraycopy(data.toBytes(), 0, value, offset, length);
+				} else {
+					LOG.debug("Range {} from {} failed: {}", range, source, future.failedReason());
+				}
+				final boolean complete;
+				final boolean exhausted;
+				synchronized (MultiSourceGet.this) {
+					if (ok) {
+						remaining--;
+						idle.add(source);
+					} else {
+						// the replica is not asked again
+						pending.addFirst(range);
+						sources.remove(source);
+					}
+					complete = remaining == 0;
+					exhausted = !complete && sources.isEmpty();
+					if (exhausted) {
+						finished = true;
+					}
+				}
+				if (complete) {
+					assemble();
+				} else if (exhausted) {
+					futureGet.failed("No replica could serve the ranges");
+				} else {
+					schedule(channelCreator);
+				}
+			}
+		});
+	}
+
+	private static Data rangeData(final FutureResponse future) {
+		if (!future.isSuccess() || !future.responseMessage().isOk()) {
+			return null;
+		}
+		final DataMap dataMap = future.responseMessage().dataMap(0);
+		if (dataMap == null || dataMap.dataMap().isEmpty()) {
+			return null;
+		}
+		return dataMap.dataMap().values().iterator().next();
+	}
+
+	private void assemble() {
+		synchronized (this) {
+			finished = true;
+		}
+		final Number160 hash = Utils.makeSHAHash(value);
+		if (!hash.equals(info.hash())) {
+			futureGet.failed("The hash of the downloaded value does not match: " + hash + " != " + info.hash());
+			return;
+		}
+		final Data data = new Data(value);
+		final Map<PeerAddress, Map<Number640, Data>> rawData = new HashMap<PeerAddress, Map<Number640, Data>>();
+		for (PeerAddress source : sources) {
+			rawData.put(source, Collections.singletonMap(info.key(), data));
+		}
+		done(rawData);
+	}
+
+	private void done(final Map<PeerAddress, Map<Number640, Data>> rawData) {
+		futureGet.receivedData(rawData, Collections.<PeerAddress, DigestResult> emptyMap(), rawStatus,
+				futuresCompleted);
+	}
+
+	/**
+	 * The key, hash, and length of a value as reported by a replica.
+	 */
+	public static final class RangeInfo {
+		private final Number640 key;
+		private final Number160 hash;
+		private final int length;
+
+		public RangeInfo(final Number640 key, final Number160 hash, final int length) {
+			this.key = key;
+			this.hash = hash;
+			this.length = length;
+		}
+
+		/**
+		 * @param message
+		 *            The response to {@link StorageRPC#getRangeInfo(PeerAddress, GetBuilder, ChannelCreator)}
+		 * @return The info or null if the replica does not have the value
+		 */
+		public static RangeInfo fromMessage(final Message message) {
+			final KeyCollection keys = message.keyCollection(0);
+			if (!message.isOk() || keys == null || keys.keys().isEmpty() || message.key(0) == null
+					|| message.intAt(0) == null) {
+				return null;
+			}
+			return new RangeInfo(keys.keys().iterator().next(), message.key(0), message.intAt(0));
+		}
+
+		public Number640 key() {
+			return key;
+		}
+
+		public Number160 hash() {
+			return hash;
+		}
+
+		public int length() {
+			return length;
+		}
+
+		@Override
+		public boolean equals(final Object obj) {
+			if (!(obj instanceof RangeInfo)) {
+				return false;
+			}
+			if (obj == this) {
+				return true;
+			}
+			final RangeInfo other = (RangeInfo) obj;
+			return key.equals(other.key) && hash.equals(other.hash) && length == other.length;
+		}
+
+		@Override
+		public int hashCode() {
+			return key.hashCode() ^ hash.hashCode() ^ length;
+		}
+	}
+}
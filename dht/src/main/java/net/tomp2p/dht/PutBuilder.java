@@ -41,6 +41,10 @@ public class PutBuilder extends DHTBuilder<PutBuilder> {
 
     private boolean putConfim = false;
 
+    private boolean versioned = false;
+
+    private VersionMerger versionMerger = null;
+
     private PublicKey changePublicKey = null;
 
     public PutBuilder(PeerDHT peer, Number160 locationKey) {
@@ -183,6 +187,45 @@ public class PutBuilder extends DHTBuilder<PutBuilder> {
 		return this;
 	}
 
+    public boolean isVersioned() {
+        return versioned;
+    }
+
+    /**
+     * @param versioned
+     *            Set to true to store the data as a new version that is based on the versions in its based on set.
+     *            The new version is prepared on all replicas and confirmed if no replica has a latest version that
+     *            the new version is not based on. Otherwise, the conflict is resolved with the
+     *            {@link #versionMerger(VersionMerger)} and the put is retried. If no version key is set, the version
+     *            key is created from the timestamp of the based on versions and the hash of the data, see
+     *            {@link VersionedPut}.
+     * @return This class
+     */
+    public PutBuilder versioned(boolean versioned) {
+        this.versioned = versioned;
+        return this;
+    }
+
+    public PutBuilder versioned() {
+        this.versioned = true;
+        return this;
+    }
+
+    public VersionMerger versionMerger() {
+        return versionMerger;
+    }
+
+    /**
+     * @param versionMerger
+     *            Resolves the conflicts of a versioned put. If not set, a versioned put fails on a conflict.
+     * @return This class
+     */
+    public PutBuilder versionMerger(VersionMerger versionMerger) {
+        this.versionMerger = versionMerger;
+        this.versioned = true;
+        return this;
+    }
+
     public PutBuilder changePublicKey(PublicKey changePublicKey) {
     	this.changePublicKey = changePublicKey;
     	this.putMeta = true;
@@ -212,6 +255,9 @@ public class PutBuilder extends DHTBuilder<PutBuilder> {
         if (locationKey == null) {
             throw new IllegalArgumentException("You must provide a location key.");
         }
+        if (versioned && (data == null || dataMap.size() != 1 || dataMapConvert != null)) {
+            throw new IllegalArgumentException("A versioned put stores exactly one value set via data().");
+        }
         if (domainKey == null) {
             domainKey = Number160.ZERO;
         }
@@ -49,6 +49,8 @@ public class StorageLayer implements DigestStorage {
 
 	private static final Logger LOG = LoggerFactory.getLogger(StorageLayer.class);
 
+	public static final int DEFAULT_EXPIRY_BATCH_SIZE = 10000;
+
 	public enum ProtectionEnable {
 		ALL, NONE
 	};
@@ -59,7 +61,7 @@ public class StorageLayer implements DigestStorage {
 
 	// The number of PutStatus should never exceed 255.
 	public enum PutStatus {
-		OK, OK_PREPARED, OK_UNCHANGED, FAILED_NOT_ABSENT, FAILED_SECURITY, FAILED, VERSION_FORK, NOT_FOUND, DELETED  
+		OK, OK_PREPARED, OK_UNCHANGED, FAILED_NOT_ABSENT, FAILED_SECURITY, FAILED, VERSION_FORK, NOT_FOUND, DELETED, VERSION_CONFLICT
 	};
 
 	// Hash of public key is always preferred
@@ -83,8 +85,30 @@ public class StorageLayer implements DigestStorage {
 	
 	final private Storage backend;
 
+	// the expiration of all entries, and the number of entries per location key
+	final private ExpiryQueue expiryQueue = new ExpiryQueue();
+
+	private int expiryBatchSize = DEFAULT_EXPIRY_BATCH_SIZE;
+
 	public StorageLayer(Storage backend) {
 		this.backend = backend;
+		// a persistent backend may already have entries
+		for (Map.Entry<Number640, Data> entry : backend.map().entrySet()) {
+			expiryQueue.add(entry.getKey(), entry.getValue().expirationMillis());
+		}
+	}
+
+	/**
+	 * @param expiryBatchSize
+	 *            The maximum number of expired entries that are removed at once, the remaining expired entries are
+	 *            removed in the next batch, but they are not returned anymore
+	 */
+	public void expiryBatchSize(int expiryBatchSize) {
+		this.expiryBatchSize = expiryBatchSize;
+	}
+
+	public int expiryBatchSize() {
+		return expiryBatchSize;
 	}
 
 	public void protection(ProtectionEnable protectionDomainEnable, ProtectionMode protectionDomainMode,
@@ -180,6 +204,7 @@ public class StorageLayer implements DigestStorage {
 		final Number640 max = dataMap.lastKey();
 		final Map<Number640, Enum<?>> retVal = new HashMap<Number640, Enum<?>>();
 		final HashSet<Number480> keysToCheck = new HashSet<Number480>();
+		final long now = System.currentTimeMillis();
 		final RangeLock<Number640>.Range lock = lock(min, max);
 		try {
 			for(Map.Entry<Number640, Data> entry: dataMap.entrySet()) {
@@ -208,18 +233,18 @@ public class StorageLayer implements DigestStorage {
 					continue;
 				}
 				
-				boolean contains = backend.contains(key);
-				if (contains) {
+				// an expired entry that has not been removed yet is absent
+				final Data existingData = backend.get(key);
+				if (existingData != null && !isExpired(existingData, now)) {
 					if(putIfAbsent) {
 						retVal.put(key, PutStatus.FAILED_NOT_ABSENT);
 						continue;
 					}
-					final Data oldData = backend.get(key);
-					if(oldData.isDeleted()) {
+					if(existingData.isDeleted()) {
 						retVal.put(key, PutStatus.DELETED);
 						continue;
 					}
-					if(!oldData.basedOnSet().equals(newData.basedOnSet())) {
+					if(!existingData.basedOnSet().equals(newData.basedOnSet())) {
 						retVal.put(key, PutStatus.VERSION_FORK);
 						continue;
 					}
@@ -229,7 +254,7 @@ public class StorageLayer implements DigestStorage {
 				
 				long expiration = newData.expirationMillis();
 				// handle timeout
-				backend.addTimeout(key, expiration);
+				addTimeout(key, expiration);
 				
 				if(newData.hasPrepareFlag()) {
 					retVal.put(key, PutStatus.OK_PREPARED);
@@ -246,6 +271,7 @@ public class StorageLayer implements DigestStorage {
 				Number640 minVersion = new Number640(key, Number160.ZERO);
 				Number640 maxVersion = new Number640(key, Number160.MAX_VALUE);
 				NavigableMap<Number640, Data> tmp = backend.subMap(minVersion, maxVersion, -1, true);
+				removeExpired(tmp, now);
 				NavigableMap<Number640, Data> heads = getLatestInternal(tmp);
 				if(heads.size() > 1) {
 					for(Number640 fork:heads.keySet()) {
@@ -275,6 +301,85 @@ public class StorageLayer implements DigestStorage {
 		}
 	}
 
+	/**
+	 * Stores a new version as prepared, but only if it is based on all latest versions of its content key. The latest
+	 * versions include the prepared versions of concurrent updates, thus, only one of two concurrent updates can be
+	 * prepared. The check and the put are done under the lock of all versions of the content key.
+	 * 
+	 * @param key
+	 *            The key of the new version
+	 * @param newData
+	 *            The new version, its based on set needs to contain all latest versions
+	 * @param publicKey
+	 *            The public key of the message
+	 * @param sendSelf
+	 *            True if the message was sent to ourself
+	 * @return The status, which is {@link PutStatus#VERSION_CONFLICT} if the new version is not based on all latest
+	 *         versions, and the latest committed versions that the new version is not based on
+	 */
+	public Pair<Enum<?>, NavigableMap<Number640, Data>> putIfLatest(final Number640 key, final Data newData,
+			final PublicKey publicKey, final boolean sendSelf) {
+		final NavigableMap<Number640, Data> conflicts = new TreeMap<Number640, Data>();
+		if (key.versionKey().equals(Number160.ZERO) || key.versionKey().equals(Number160.MAX_VALUE)) {
+			// a versioned put needs a version key, and the bounds of the locked range are reserved
+			return new Pair<Enum<?>, NavigableMap<Number640, Data>>(PutStatus.FAILED, conflicts);
+		}
+		final RangeLock<Number640>.Range lock = lock(key.locationAndDomainAndContentKey());
+		try {
+			final NavigableMap<Number640, Data> tmp = backend.subMap(key.minVersionKey(), key.maxVersionKey(), -1,
+					true);
+			removeExpired(tmp, System.currentTimeMillis());
+			// preparing the same version again is not a conflict
+			tmp.remove(key);
+			boolean conflict = false;
+			for (Map.Entry<Number640, Data> head : getLatestInternal(tmp).entrySet()) {
+				if (!newData.basedOnSet().contains(head.getKey().versionKey())) {
+					conflict = true;
+					// a prepared version is not sent back, it is either confirmed or removed soon
+					if (!head.getValue().hasPrepareFlag()) {
+						conflicts.put(head.getKey(), head.getValue());
+					}
+				}
+			}
+			if (conflict) {
+				return new Pair<Enum<?>, NavigableMap<Number640, Data>>(PutStatus.VERSION_CONFLICT, conflicts);
+			}
+			// the lock is reentrant, put locks a single version within the locked range
+			final Enum<?> status = put(key, newData.prepareFlag(), publicKey, false, false, sendSelf);
+			return new Pair<Enum<?>, NavigableMap<Number640, Data>>(status, conflicts);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes a version that has been prepared with {@link #putIfLatest(Number640, Data, PublicKey, boolean)}. A
+	 * version that has been confirmed in the meantime is not removed.
+	 * 
+	 * @param key
+	 *            The key of the prepared version
+	 * @param publicKey
+	 *            The public key of the message
+	 * @return The status of the removal
+	 */
+	public Enum<?> abortPrepared(final Number640 key, final PublicKey publicKey) {
+		final RangeLock<Number640>.Range lock = lock(key);
+		try {
+			if (!canClaimEntry(key.locationAndDomainAndContentKey(), publicKey)) {
+				return PutStatus.FAILED_SECURITY;
+			}
+			final Data data = backend.get(key);
+			if (data == null || !data.hasPrepareFlag()) {
+				return PutStatus.NOT_FOUND;
+			}
+			removeTimeout(key);
+			backend.remove(key, false);
+			return PutStatus.OK;
+		} finally {
+			lock.unlock();
+		}
+	}
+
 	@Deprecated
 	public Enum<?> putOld(final Number640 key, Data newData, PublicKey publicKey, boolean putIfAbsent,
 	        boolean domainProtection, boolean sendSelf) {
@@ -321,7 +426,7 @@ public class StorageLayer implements DigestStorage {
 			
 			long expiration = newData.expirationMillis();
 			// handle timeout
-			backend.addTimeout(key, expiration);
+			addTimeout(key, expiration);
 			
 
 			if (versionFork) {
@@ -350,7 +455,7 @@ public class StorageLayer implements DigestStorage {
 			if (!backend.contains(key)) {
 				return new Pair<Data, Enum<?>>(null, PutStatus.NOT_FOUND);
 			}
-			backend.removeTimeout(key);
+			removeTimeout(key);
 			return new Pair<Data, Enum<?>>(backend.remove(key, returnData), PutStatus.OK);
 		} finally {
 			lock.unlock();
@@ -368,7 +473,7 @@ public class StorageLayer implements DigestStorage {
 
 	private Data getInternal(Number640 key) {
 		Data data = backend.get(key);
-		if (data != null && !data.hasPrepareFlag()) {
+		if (data != null && !data.hasPrepareFlag() && !isExpired(data, System.currentTimeMillis())) {
 			return data;
 		} else {
 			return null;
@@ -380,6 +485,7 @@ public class StorageLayer implements DigestStorage {
 		try {
 			NavigableMap<Number640, Data> tmp = backend.subMap(from, to, limit, ascending);
 			removePrepared(tmp);
+			removeExpired(tmp, System.currentTimeMillis());
 
 			return tmp;
 		} finally {
@@ -392,6 +498,7 @@ public class StorageLayer implements DigestStorage {
 		try {
 			NavigableMap<Number640, Data> tmp = backend.subMap(key.minVersionKey(), key.maxVersionKey(), -1, true);
 			removePrepared(tmp);
+			removeExpired(tmp, System.currentTimeMillis());
 			return getLatestInternal(tmp);
 		} finally {
 			lock.unlock();
@@ -422,6 +529,22 @@ public class StorageLayer implements DigestStorage {
 	    }
     }
 
+	/**
+	 * Expired entries are not returned, even if they have not been removed yet.
+	 */
+	private static void removeExpired(final Map<Number640, Data> tmp, final long now) {
+		final Iterator<Map.Entry<Number640, Data>> iterator = tmp.entrySet().iterator();
+		while (iterator.hasNext()) {
+			if (isExpired(iterator.next().getValue(), now)) {
+				iterator.remove();
+			}
+		}
+	}
+
+	private static boolean isExpired(final Data data, final long now) {
+		return data.expirationMillis() <= now;
+	}
+
 	//recursive version
 	@Deprecated
 	private void deletePredecessors2(Number640 key, NavigableMap<Number640, Data> sortedMap) {
@@ -460,7 +583,9 @@ public class StorageLayer implements DigestStorage {
 	public NavigableMap<Number640, Data> get() {
 		RangeLock<Number640>.Range lock = lock();
 		try {
-			return backend.map();
+			final NavigableMap<Number640, Data> tmp = backend.map();
+			removeExpired(tmp, System.currentTimeMillis());
+			return tmp;
 		} finally {
 			lock.unlock();
 		}
@@ -469,7 +594,8 @@ public class StorageLayer implements DigestStorage {
 	public boolean contains(Number640 key) {
 		RangeLock<Number640>.Range lock = lock(key);
 		try {
-			return backend.contains(key);
+			final Data data = backend.get(key);
+			return data != null && !isExpired(data, System.currentTimeMillis());
 		} finally {
 			lock.unlock();
 		}
@@ -482,11 +608,12 @@ public class StorageLayer implements DigestStorage {
 		try {
 			NavigableMap<Number640, Data> tmp = backend.subMap(from, to, limit, ascending);
 			Iterator<Map.Entry<Number640, Data>> iterator = tmp.entrySet().iterator();
+			final long now = System.currentTimeMillis();
 
 			while (iterator.hasNext()) {
 				Map.Entry<Number640, Data> entry = iterator.next();
 
-				if (entry.getValue().hasPrepareFlag()) {
+				if (entry.getValue().hasPrepareFlag() || isExpired(entry.getValue(), now)) {
 					iterator.remove();
 					continue;
 				}
@@ -547,6 +674,7 @@ public class StorageLayer implements DigestStorage {
 				if (data.publicKey() == null || data.publicKey().equals(publicKey)) {
 					backend.removeTimeout(entry.getKey());
 				}
+				expiryQueue.remove(entry.getKey());
 			}
 			return result;
 		} finally {
@@ -569,20 +697,47 @@ public class StorageLayer implements DigestStorage {
 		}
 	}
 
+	/**
+	 * Removes all expired entries.
+	 */
 	public void checkTimeout() {
-		long time = System.currentTimeMillis();
-		Collection<Number640> toRemove = backend.subMapTimeout(time);
-		for (Number640 key : toRemove) {
-			RangeLock<Number640>.Range lock = lock(key);
+		while (checkTimeout(expiryBatchSize) >= expiryBatchSize) {
+			LOG.debug("more than {} entries expired, continue", expiryBatchSize);
+		}
+	}
+
+	/**
+	 * Removes expired entries. The entries of a location key are removed under one lock, and the responsibility is
+	 * removed if no entry is left under the location key.
+	 * 
+	 * @param limit
+	 *            The maximum number of expired entries to remove
+	 * @return The number of expired entries that have been looked at, if this equals limit, more entries may have
+	 *         expired
+	 */
+	public int checkTimeout(int limit) {
+		final long now = System.currentTimeMillis();
+		final SortedMap<Number160, List<Number640>> expired = expiryQueue.poll(now, limit);
+		int counter = 0;
+		for (Map.Entry<Number160, List<Number640>> entry : expired.entrySet()) {
+			final Number160 locationKey = entry.getKey();
+			RangeLock<Number640>.Range lock = lock(locationKey);
 			try {
-				backend.remove(key, false);
-				backend.removeTimeout(key);
+				for (Number640 key : entry.getValue()) {
+					counter++;
+					final Long expiration = expiryQueue.expiration(key);
+					// removed or stored again in the meantime
+					if (expiration == null || expiration > now) {
+						continue;
+					}
+					backend.remove(key, false);
+					removeTimeout(key);
+				}
 				// remove responsibility if we don't have any data stored under
 				// locationkey
-				Number160 locationKey = key.locationKey();
-				RangeLock<Number640>.Range lockResp= lockResponsibility(locationKey);
+				RangeLock<Number640>.Range lockResp = lockResponsibility(locationKey);
 				try {
-					if (isEmpty(locationKey)) {
+					if (expiryQueue.references(locationKey) == 0) {
 						backend.removeResponsibility(locationKey);
 					}
 				} finally {
@@ -592,13 +747,17 @@ public class StorageLayer implements DigestStorage {
 				lock.unlock();
 			}
 		}
+		return counter;
+	}
+
+	private void addTimeout(Number640 key, long expiration) {
+		backend.addTimeout(key, expiration);
+		expiryQueue.add(key, expiration);
 	}
 
-	private boolean isEmpty(Number160 locationKey) {
-		Number640 from = new Number640(locationKey, Number160.ZERO, Number160.ZERO, Number160.ZERO);
-		Number640 to = new Number640(locationKey, Number160.MAX_VALUE, Number160.MAX_VALUE, Number160.MAX_VALUE);
-		Map<Number640, Data> tmp = backend.subMap(from, to, 1, false);
-		return tmp.size() == 0;
+	private void removeTimeout(Number640 key) {
+		backend.removeTimeout(key);
+		expiryQueue.remove(key);
 	}
 
 	/* (non-Javadoc)
@@ -610,8 +769,9 @@ public class StorageLayer implements DigestStorage {
 		RangeLock<Number640>.Range lock = rangeLock.lock(from, to);
 		try {
 			Map<Number640, Data> tmp = backend.subMap(from, to, limit, ascending);
+			final long now = System.currentTimeMillis();
 			for (Map.Entry<Number640, Data> entry : tmp.entrySet()) {
-				if (!entry.getValue().hasPrepareFlag()) {
+				if (!entry.getValue().hasPrepareFlag() && !isExpired(entry.getValue(), now)) {
 					digestInfo.put(entry.getKey(), entry.getValue().basedOnSet());
 				}
 			}
@@ -633,6 +793,7 @@ public class StorageLayer implements DigestStorage {
 			Number640 from = new Number640(locationAndDomainKey, Number160.ZERO, Number160.ZERO);
 			Number640 to = new Number640(locationAndDomainKey, Number160.MAX_VALUE, Number160.MAX_VALUE);
 			Map<Number640, Data> tmp = backend.subMap(from, to, limit, ascending);
+			removeExpired(tmp, System.currentTimeMillis());
 			for (Map.Entry<Number640, Data> entry : tmp.entrySet()) {
 				if (isBloomFilterAnd) {
 					if (keyBloomFilter == null || keyBloomFilter.contains(entry.getKey().contentKey())) {
@@ -834,7 +995,7 @@ public class StorageLayer implements DigestStorage {
 						new Number640(locationKey, Number160.MAX_VALUE, Number160.MAX_VALUE, Number160.MAX_VALUE),
 						false);
 					for(Number640 rem:removed.keySet()) {
-						backend.removeTimeout(rem);
+						removeTimeout(rem);
 					}
 				} finally {
 					lock.unlock();
@@ -847,14 +1008,23 @@ public class StorageLayer implements DigestStorage {
 	}
 
 	private class StorageMaintenanceTask implements Runnable {
+		private final ScheduledExecutorService timer;
+
+		private StorageMaintenanceTask(ScheduledExecutorService timer) {
+			this.timer = timer;
+		}
+
 		@Override
 		public void run() {
-			checkTimeout();
+			if (checkTimeout(expiryBatchSize) >= expiryBatchSize) {
+				// continue with the next batch, other tasks can run in between
+				timer.execute(this);
+			}
 		}
 	}
 
 	public void start(ScheduledExecutorService timer, int storageIntervalMillis) {
-		timer.scheduleAtFixedRate(new StorageMaintenanceTask(), storageIntervalMillis, storageIntervalMillis,
+		timer.scheduleAtFixedRate(new StorageMaintenanceTask(timer), storageIntervalMillis, storageIntervalMillis,
 		        TimeUnit.MILLISECONDS);
 	}
 
@@ -891,7 +1061,7 @@ public class StorageLayer implements DigestStorage {
 			if (changed) {
 				long expiration = data.expirationMillis();
 				// handle timeout
-				backend.addTimeout(key, expiration);
+				addTimeout(key, expiration);
 				backend.put(key, data);
 				return PutStatus.OK;
 			} else {
@@ -924,7 +1094,7 @@ public class StorageLayer implements DigestStorage {
 
 				long expiration = data.expirationMillis();
 				// handle timeout
-				backend.addTimeout(key, expiration);
+				addTimeout(key, expiration);
 				backend.put(key, data);
 				return PutStatus.OK;
 			} else {
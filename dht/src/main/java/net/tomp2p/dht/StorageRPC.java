@@ -17,6 +17,7 @@
 package net.tomp2p.dht;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.security.PublicKey;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -70,6 +71,9 @@ public class StorageRPC extends DispatchHandler {
 	public static final SimpleBloomFilter<Number160> EMPTY_FILTER = new SimpleBloomFilter<Number160>(0,0);
 	public static final SimpleBloomFilter<Number160> FULL_FILTER = new SimpleBloomFilter<Number160>(8,1).setAll();
 	
+    // the largest range a peer serves, as the range is copied into a new array
+    public static final int MAX_RANGE_SIZE = 1024 * 1024;
+
     private static final Logger LOG = LoggerFactory.getLogger(StorageRPC.class);
     private static final Random RND = new Random();
 
@@ -99,7 +103,9 @@ public class StorageRPC extends DispatchHandler {
 				RPC.Commands.PUT_CONFIRM.getNr(),
 				RPC.Commands.GET_LATEST.getNr(), 
 				RPC.Commands.GET_LATEST_WITH_DIGEST.getNr(),
-				RPC.Commands.REPLICA_PUT.getNr());
+				RPC.Commands.REPLICA_PUT.getNr(),
+				RPC.Commands.GET_RANGE.getNr(),
+				RPC.Commands.PUT_VERSIONED.getNr());
         this.factory = peerBean.bloomfilterFactory();
         this.storageLayer = storageLayer;
     }
@@ -331,6 +337,102 @@ public class StorageRPC extends DispatchHandler {
 		}
 	}
 
+	/**
+	 * Stores a new version as prepared on a remote peer, if the version is based on all latest versions of the remote
+	 * peer. Otherwise, nothing is stored and the remote peer sends back the latest versions the new version is not
+	 * based on. This is the first step of a versioned put.
+	 * 
+	 * @param remotePeer
+	 *            The remote peer to store the data
+	 * @param key
+	 *            The key of the new version
+	 * @param data
+	 *            The new version
+	 * @param putBuilder
+	 *            The configuration of the request
+	 * @param channelCreator
+	 *            The channel creator
+	 * @return The future response with the status as key map and the conflicting versions as data map
+	 */
+	public FutureResponse putIfLatest(final PeerAddress remotePeer, final Number640 key, final Data data,
+			final PutBuilder putBuilder, final ChannelCreator channelCreator) {
+		final NavigableMap<Number640, Data> dataMap = new TreeMap<Number640, Data>();
+		dataMap.put(key, data);
+		return putVersioned(remotePeer, new DataMap(dataMap), RPC.Commands.PUT_VERSIONED, Type.REQUEST_1,
+				putBuilder, channelCreator);
+	}
+
+	/**
+	 * Confirms a version that has been stored with
+	 * {@link #putIfLatest(PeerAddress, Number640, Data, PutBuilder, ChannelCreator)}. Only the meta data is sent.
+	 * 
+	 * @param remotePeer
+	 *            The remote peer that stored the prepared version
+	 * @param key
+	 *            The key of the prepared version
+	 * @param data
+	 *            The version, its time to live is set on the remote peer
+	 * @param putBuilder
+	 *            The configuration of the request
+	 * @param channelCreator
+	 *            The channel creator
+	 * @return The future response with the status as key map
+	 */
+	public FutureResponse putConfirm(final PeerAddress remotePeer, final Number640 key, final Data data,
+			final PutBuilder putBuilder, final ChannelCreator channelCreator) {
+		final NavigableMap<Number640, Data> dataMap = new TreeMap<Number640, Data>();
+		dataMap.put(key, data.duplicateMeta().prepareFlag(false));
+		return putVersioned(remotePeer, new DataMap(dataMap), RPC.Commands.PUT_CONFIRM, Type.REQUEST_1,
+				putBuilder, channelCreator);
+	}
+
+	/**
+	 * Removes a version that has been stored with
+	 * {@link #putIfLatest(PeerAddress, Number640, Data, PutBuilder, ChannelCreator)}, but that cannot be confirmed
+	 * since another replica reported a conflict.
+	 * 
+	 * @param remotePeer
+	 *            The remote peer that stored the prepared version
+	 * @param key
+	 *            The key of the prepared version
+	 * @param putBuilder
+	 *            The configuration of the request
+	 * @param channelCreator
+	 *            The channel creator
+	 * @return The future response with the status as key map
+	 */
+	public FutureResponse abortPrepared(final PeerAddress remotePeer, final Number640 key,
+			final PutBuilder putBuilder, final ChannelCreator channelCreator) {
+		final NavigableMap<Number640, Data> dataMap = new TreeMap<Number640, Data>();
+		dataMap.put(key, new Data());
+		return putVersioned(remotePeer, new DataMap(dataMap), RPC.Commands.PUT_VERSIONED, Type.REQUEST_2,
+				putBuilder, channelCreator);
+	}
+
+	private FutureResponse putVersioned(final PeerAddress remotePeer, final DataMap dataMap,
+			final RPC.Commands command, final Type type, final PutBuilder putBuilder,
+			final ChannelCreator channelCreator) {
+		Utils.nullCheck(remotePeer);
+
+		final Message message = createMessage(remotePeer, command.getNr(), type);
+
+		if (putBuilder.isSign()) {
+			message.publicKeyAndSign(putBuilder.keyPair());
+		}
+
+		message.setDataMap(dataMap);
+
+		final FutureResponse futureResponse = new FutureResponse(message);
+		final RequestHandler<FutureResponse> request = new RequestHandler<FutureResponse>(futureResponse,
+				peerBean(), connectionBean(), putBuilder);
+
+		if (!putBuilder.isForceUDP()) {
+			return request.sendTCP(channelCreator);
+		} else {
+			return request.sendUDP(channelCreator);
+		}
+	}
+
     /**
      * Adds data on a remote peer. The main difference to
      * {@link #put(PeerAddress, Number160, Number160, Map, Type, boolean, ChannelCreator, boolean)} and
@@ -590,6 +692,112 @@ public class StorageRPC extends DispatchHandler {
 		}
 	}
 
+	/**
+	 * Asks a peer for the keys and the hashes of the latest versions of a value, without the value itself. If all
+	 * replicas report the same latest versions, the value needs to be transferred from only one replica.
+	 * 
+	 * @param remotePeer
+	 *            The remote peer to send this request
+	 * @param getBuilder
+	 *            The location, domain, and content key
+	 * @param channelCreator
+	 *            The channel creator
+	 * @return The future response with the keys of the latest versions mapped to their hash as key map
+	 */
+	public FutureResponse getLatestDigest(final PeerAddress remotePeer, final GetBuilder getBuilder,
+			final ChannelCreator channelCreator) {
+		final Message message = createMessage(remotePeer, RPC.Commands.GET_LATEST.getNr(), Type.REQUEST_2);
+
+		if (getBuilder.isSign()) {
+			message.publicKeyAndSign(getBuilder.keyPair());
+		}
+
+		message.key(getBuilder.locationKey());
+		message.key(getBuilder.domainKey());
+		message.key(getBuilder.contentKey());
+
+		final FutureResponse futureResponse = new FutureResponse(message);
+		final RequestHandler<FutureResponse> request = new RequestHandler<FutureResponse>(futureResponse,
+				peerBean(), connectionBean(), getBuilder);
+		if (!getBuilder.isForceUDP()) {
+			return request.sendTCP(channelCreator);
+		} else {
+			return request.sendUDP(channelCreator);
+		}
+	}
+
+	/**
+	 * Asks a peer for the key, the hash, and the length of the latest version of a value, without the value itself.
+	 * This is the first step of a multi source get.
+	 * 
+	 * @param remotePeer
+	 *            The remote peer to send this request
+	 * @param getBuilder
+	 *            The location, domain, and content key
+	 * @param channelCreator
+	 *            The channel creator
+	 * @return The future response with the key as key collection, the hash as key, and the length as int value
+	 */
+	public FutureResponse getRangeInfo(final PeerAddress remotePeer, final GetBuilder getBuilder,
+			final ChannelCreator channelCreator) {
+		final Message message = createMessage(remotePeer, RPC.Commands.GET_RANGE.getNr(), Type.REQUEST_1);
+
+		if (getBuilder.isSign()) {
+			message.publicKeyAndSign(getBuilder.keyPair());
+		}
+
+		message.key(getBuilder.locationKey());
+		message.key(getBuilder.domainKey());
+		message.key(getBuilder.contentKey());
+
+		final FutureResponse futureResponse = new FutureResponse(message);
+		final RequestHandler<FutureResponse> request = new RequestHandler<FutureResponse>(futureResponse,
+				peerBean(), connectionBean(), getBuilder);
+		if (!getBuilder.isForceUDP()) {
+			return request.sendTCP(channelCreator);
+		} else {
+			return request.sendUDP(channelCreator);
+		}
+	}
+
+	/**
+	 * Gets a range of the bytes of a value from a peer.
+	 * 
+	 * @param remotePeer
+	 *            The remote peer to send this request
+	 * @param key
+	 *            The key of the value, as returned by {@link #getRangeInfo(PeerAddress, GetBuilder, ChannelCreator)}
+	 * @param offset
+	 *            The first byte of the range
+	 * @param length
+	 *            The length of the range, at most {@link #MAX_RANGE_SIZE}
+	 * @param getBuilder
+	 *            The configuration of the request
+	 * @param channelCreator
+	 *            The channel creator
+	 * @return The future response with the range as data map
+	 */
+	public FutureResponse getRange(final PeerAddress remotePeer, final Number640 key, final int offset,
+			final int length, final GetBuilder getBuilder, final ChannelCreator channelCreator) {
+		final Message message = createMessage(remotePeer, RPC.Commands.GET_RANGE.getNr(), Type.REQUEST_2);
+
+		if (getBuilder.isSign()) {
+			message.publicKeyAndSign(getBuilder.keyPair());
+		}
+
+		final Collection<Number640> keys = new ArrayList<Number640>(1);
+		keys.add(key);
+		message.keyCollection(new KeyCollection(keys));
+		message.intValue(offset);
+		message.intValue(length);
+
+		final FutureResponse futureResponse = new FutureResponse(message);
+		final RequestHandler<FutureResponse> request = new RequestHandler<FutureResponse>(futureResponse,
+				peerBean(), connectionBean(), getBuilder);
+		// ranges are large, always use TCP
+		return request.sendTCP(channelCreator);
+	}
+
     /**
      * Removes data from a peer. This is an RPC.
      * 
@@ -667,12 +875,28 @@ public class StorageRPC extends DispatchHandler {
             handlePut(message, responseMessage, isStoreIfAbsent(message), isDomainProtected(message), isReplicaPut(message));
         } else if (message.command() == RPC.Commands.PUT_CONFIRM.getNr()) {
         	handlePutConfirm(message, responseMessage);
+        } else if (message.command() == RPC.Commands.PUT_VERSIONED.getNr()) {
+			if (message.type() == Type.REQUEST_1) {
+				handlePutIfLatest(message, responseMessage);
+			} else {
+				handleAbortPrepared(message, responseMessage);
+			}
         } else if (message.command() == RPC.Commands.GET.getNr()) {
             handleGet(message, responseMessage);
 		} else if (message.command() == RPC.Commands.GET_LATEST.getNr()) {
-			handleGetLatest(message, responseMessage, false);
+			if (message.type() == Type.REQUEST_1) {
+				handleGetLatest(message, responseMessage, false);
+			} else {
+				handleGetLatestDigest(message, responseMessage);
+			}
 		} else if (message.command() == RPC.Commands.GET_LATEST_WITH_DIGEST.getNr()) {
 			handleGetLatest(message, responseMessage, true);
+		} else if (message.command() == RPC.Commands.GET_RANGE.getNr()) {
+			if (message.type() == Type.REQUEST_1) {
+				handleGetRangeInfo(message, responseMessage);
+			} else {
+				handleGetRange(message, responseMessage);
+			}
         } else if (message.command() == RPC.Commands.DIGEST.getNr() 
         		|| message.command() == RPC.Commands.DIGEST_BLOOMFILTER.getNr()
         		|| message.command() == RPC.Commands.DIGEST_META_VALUES.getNr()
@@ -814,6 +1038,40 @@ public class StorageRPC extends DispatchHandler {
 		responseMessage.keyMapByte(new KeyMapByte(result));
 	}
 
+	private void handlePutIfLatest(final Message message, final Message responseMessage) {
+		LOG.debug("handlePutIfLatest {}", message);
+		final PublicKey publicKey = message.publicKey(0);
+		final DataMap toStore = message.dataMap(0);
+		final int dataSize = toStore.size();
+		final Map<Number640, Byte> result = new HashMap<Number640, Byte>(dataSize);
+		final NavigableMap<Number640, Data> conflicts = new TreeMap<Number640, Data>();
+		for (Map.Entry<Number640, Data> entry : toStore.dataMap().entrySet()) {
+			final Pair<Enum<?>, NavigableMap<Number640, Data>> status = storageLayer.putIfLatest(entry.getKey(),
+					entry.getValue(), publicKey, message.isSendSelf());
+			result.put(entry.getKey(), (byte) status.element0().ordinal());
+			conflicts.putAll(status.element1());
+		}
+		// the replication is notified on confirmation
+		responseMessage.type(result.size() == dataSize ? Type.OK : Type.PARTIALLY_OK);
+		responseMessage.keyMapByte(new KeyMapByte(result));
+		if (!conflicts.isEmpty()) {
+			responseMessage.setDataMap(new DataMap(conflicts));
+		}
+	}
+
+	private void handleAbortPrepared(final Message message, final Message responseMessage) {
+		LOG.debug("handleAbortPrepared {}", message);
+		final PublicKey publicKey = message.publicKey(0);
+		final DataMap toRemove = message.dataMap(0);
+		final int dataSize = toRemove.size();
+		final Map<Number640, Byte> result = new HashMap<Number640, Byte>(dataSize);
+		for (Number640 key : toRemove.dataMap().keySet()) {
+			result.put(key, (byte) storageLayer.abortPrepared(key, publicKey).ordinal());
+		}
+		responseMessage.type(result.size() == dataSize ? Type.OK : Type.PARTIALLY_OK);
+		responseMessage.keyMapByte(new KeyMapByte(result));
+	}
+
     private Message handleAdd(final Message message, final Message responseMessage,
             final boolean protectDomain) {
     	LOG.debug("handleAdd {}", message);
@@ -934,6 +1192,91 @@ public class StorageRPC extends DispatchHandler {
 		return responseMessage;
 	}
 
+	private Message handleGetLatestDigest(final Message message, final Message responseMessage) {
+		LOG.debug("handleGetLatestDigest {}", message);
+		final Number160 locationKey = message.key(0);
+		final Number160 domainKey = message.key(1);
+		final Number160 contentKey = message.key(2);
+
+		final Number640 key = new Number640(locationKey, domainKey, contentKey, Number160.ZERO);
+		final NavigableMap<Number640, Collection<Number160>> digest = new TreeMap<Number640, Collection<Number160>>();
+		for (Map.Entry<Number640, Data> entry : storageLayer.getLatestVersion(key).entrySet()) {
+			final Collection<Number160> hash = new ArrayList<Number160>(1);
+			hash.add(entry.getValue().hash());
+			digest.put(entry.getKey(), hash);
+		}
+		responseMessage.keyMap640Keys(new KeyMap640Keys(digest));
+		return responseMessage;
+	}
+
+	private Message handleGetRangeInfo(final Message message, final Message responseMessage) {
+		LOG.debug("handleGetRangeInfo {}", message);
+		final Number160 locationKey = message.key(0);
+		final Number160 domainKey = message.key(1);
+		final Number160 contentKey = message.key(2);
+
+		final Number640 key = new Number640(locationKey, domainKey, contentKey, Number160.ZERO);
+		final NavigableMap<Number640, Data> result = storageLayer.getLatestVersion(key);
+		if (result.isEmpty()) {
+			responseMessage.type(Type.NOT_FOUND);
+			return responseMessage;
+		}
+		// if there are forks, the replicas agree on the latest
+		final Map.Entry<Number640, Data> latest = result.lastEntry();
+		final Collection<Number640> keys = new ArrayList<Number640>(1);
+		keys.add(latest.getKey());
+		responseMessage.keyCollection(new KeyCollection(keys));
+		responseMessage.key(latest.getValue().hash());
+		responseMessage.intValue(latest.getValue().length());
+		return responseMessage;
+	}
+
+	private Message handleGetRange(final Message message, final Message responseMessage) {
+		LOG.debug("handleGetRange {}", message);
+		final KeyCollection keyCollection = message.keyCollection(0);
+		final Integer offsetValue = message.intAt(0);
+		final Integer lengthValue = message.intAt(1);
+		if (keyCollection == null || keyCollection.size() != 1 || offsetValue == null || lengthValue == null) {
+			LOG.warn("Range request without key, offset or length: {}", message);
+			responseMessage.type(Type.EXCEPTION);
+			return responseMessage;
+		}
+		final Number640 key = keyCollection.keys().iterator().next();
+		final int offset = offsetValue;
+		final int length = lengthValue;
+
+		if (length > MAX_RANGE_SIZE) {
+			responseMessage.type(Type.DENIED);
+			return responseMessage;
+		}
+		final Data data = storageLayer.get(key);
+		if (data == null || offset < 0 || length < 0 || length > data.length() - offset) {
+			responseMessage.type(Type.NOT_FOUND);
+			return responseMessage;
+		}
+		final byte[] range = new byte[length];
+		int skip = offset;
+		int copied = 0;
+		for (ByteBuffer buffer : data.toByteBuffers()) {
+			if (skip >= buffer.remaining()) {
+				skip -= buffer.remaining();
+				continue;
+			}
+			buffer.position(buffer.position() + skip);
+			skip = 0;
+			final int n = Math.min(buffer.remaining(), length - copied);
+			buffer.get(range, copied, n);
+			copied += n;
+			if (copied == length) {
+				break;
+			}
+		}
+		final NavigableMap<Number640, Data> result = new TreeMap<Number640, Data>();
+		result.put(key, new Data(range));
+		responseMessage.setDataMap(new DataMap(result));
+		return responseMessage;
+	}
+
     private Message handleDigest(final Message message, final Message responseMessage) {
     	LOG.debug("handleDigest {}", message);
         final Number160 locationKey = message.key(0);
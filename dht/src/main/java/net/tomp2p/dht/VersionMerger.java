@@ -0,0 +1,30 @@
+package net.tomp2p.dht;
+
+import java.util.NavigableMap;
+
+import net.tomp2p.peers.Number640;
+import net.tomp2p.storage.Data;
+
+/**
+ * Resolves the conflict of a versioned put. A conflict occurs if a replica has a latest version that the new version
+ * is not based on, e.g., because another peer stored a version concurrently.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public interface VersionMerger {
+
+	/**
+	 * Merges the new version with the latest versions of the replicas. The merged version is based on the new version's
+	 * based on set and the latest versions, this is set by the caller.
+	 *
+	 * @param update
+	 *            The version that could not be stored
+	 * @param latest
+	 *            The latest versions of the replicas that the update is not based on
+	 * @return The merged version, or null to give up
+	 * @throws Exception
+	 *             If the versions cannot be merged
+	 */
+	Data merge(Data update, NavigableMap<Number640, Data> latest) throws Exception;
+}
@@ -0,0 +1,199 @@
+package net.tomp2p.dht;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import net.tomp2p.connection.ChannelCreator;
+import net.tomp2p.dht.StorageLayer.PutStatus;
+import net.tomp2p.futures.BaseFutureAdapter;
+import net.tomp2p.futures.FutureDone;
+import net.tomp2p.futures.FutureLateJoin;
+import net.tomp2p.futures.FutureResponse;
+import net.tomp2p.message.DataMap;
+import net.tomp2p.message.KeyMap640Keys;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
+import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.rpc.DigestResult;
+import net.tomp2p.rpc.RPC;
+import net.tomp2p.storage.Data;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Gets the latest versions of a value with one round trip. One replica has been asked for the latest versions, the
+ * other replicas only for the keys and hashes of their latest versions. The replicas that report the same latest
+ * versions as the first replica get its versions assigned, thus, if all replicas agree, which is the common case, no
+ * further request is needed. Otherwise, the latest versions are requested from one replica of every group of replicas
+ * that agree among each other.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class VersionedGet {
+
+	private static final Logger LOG = LoggerFactory.getLogger(VersionedGet.class);
+
+	private final StorageRPC storageRPC;
+	private final GetBuilder builder;
+	private final FutureGet futureGet;
+	private final ChannelCreator channelCreator;
+	private final FutureDone<Void> futuresCompleted;
+
+	public VersionedGet(final StorageRPC storageRPC, final GetBuilder builder, final FutureGet futureGet,
+			final ChannelCreator channelCreator, final FutureDone<Void> futuresCompleted) {
+		this.storageRPC = storageRPC;
+		this.builder = builder;
+		this.futureGet = futureGet;
+		this.channelCreator = channelCreator;
+		this.futuresCompleted = futuresCompleted;
+	}
+
+	/**
+	 * Compares the latest versions of the replicas and requests the missing versions.
+	 *
+	 * @param rawData
+	 *            The latest versions of the replicas that have been asked for them
+	 * @param rawDigest
+	 *            The keys and hashes of the latest versions of the other replicas
+	 * @param failed
+	 *            The replicas that did not answer
+	 */
+	public void start(final Map<PeerAddress, Map<Number640, Data>> rawData,
+			final Map<PeerAddress, Map<Number640, Number160>> rawDigest, final Collection<PeerAddress> failed) {
+		final Map<Map<Number640, Number160>, List<PeerAddress>> groups = new HashMap<Map<Number640, Number160>, List<PeerAddress>>();
+		final Map<Map<Number640, Number160>, Map<Number640, Data>> versions = new HashMap<Map<Number640, Number160>, Map<Number640, Data>>();
+		for (Map.Entry<PeerAddress, Map<Number640, Data>> entry : rawData.entrySet()) {
+			final Map<Number640, Number160> digest = digest(entry.getValue());
+			group(groups, digest, entry.getKey());
+			versions.put(digest, entry.getValue());
+		}
+		for (Map.Entry<PeerAddress, Map<Number640, Number160>> entry : rawDigest.entrySet()) {
+			group(groups, entry.getValue(), entry.getKey());
+		}
+
+		final Map<PeerAddress, Map<Number640, Number160>> missing = new HashMap<PeerAddress, Map<Number640, Number160>>();
+		for (Map.Entry<Map<Number640, Number160>, List<PeerAddress>> entry : groups.entrySet()) {
+			if (!entry.getKey().isEmpty() && !versions.containsKey(entry.getKey())) {
+				missing.put(entry.getValue().get(0), entry.getKey());
+			}
+		}
+		if (missing.isEmpty()) {
+			done(groups, versions, failed);
+			return;
+		}
+
+		LOG.debug("The replicas disagree on the latest versions, requesting them from {}", missing.keySet());
+		final FutureLateJoin<FutureResponse> futureLateJoin = new FutureLateJoin<FutureResponse>(missing.size());
+		for (PeerAddress replica : missing.keySet()) {
+			final FutureResponse futureResponse = storageRPC.getLatest(replica, builder, channelCreator,
+					RPC.Commands.GET_LATEST);
+			futureGet.addRequests(futureResponse);
+			futureLateJoin.add(futureResponse);
+		}
+		futureLateJoin.addListener(new BaseFutureAdapter<FutureLateJoin<FutureResponse>>() {
+			@Override
+			public void operationComplete(final FutureLateJoin<FutureResponse> future) throws Exception {
+				final List<PeerAddress> failed2 = new ArrayList<PeerAddress>(failed);
+				for (FutureResponse futureResponse : future.futuresDone()) {
+					final PeerAddress replica = futureResponse.request().recipient();
+					final Map<Number640, Number160> expected = missing.get(replica);
+					final Map<Number640, Data> data = data(futureResponse);
+					if (data != null && digest(data).equals(expected)) {
+						versions.put(expected, data);
+					} else {
+						// the versions changed in the meantime, the replicas of this group are not counted
+						failed2.addAll(groups.remove(expected));
+					}
+				}
+				done(groups, versions, failed2);
+			}
+		});
+	}
+
+	private static void group(final Map<Map<Number640, Number160>, List<PeerAddress>> groups,
+			final Map<Number640, Number160> digest, final PeerAddress replica) {
+		List<PeerAddress> replicas = groups.get(digest);
+		if (replicas == null) {
+			replicas = new ArrayList<PeerAddress>();
+			groups.put(digest, replicas);
+		}
+		replicas.add(replica);
+	}
+
+	private void done(final Map<Map<Number640, Number160>, List<PeerAddress>> groups,
+			final Map<Map<Number640, Number160>, Map<Number640, Data>> versions, final Collection<PeerAddress> failed) {
+		final Map<PeerAddress, Map<Number640, Data>> rawData = new HashMap<PeerAddress, Map<Number640, Data>>();
+		final Map<PeerAddress, Byte> rawStatus = new HashMap<PeerAddress, Byte>();
+		for (Map.Entry<Map<Number640, Number160>, List<PeerAddress>> entry : groups.entrySet()) {
+			final Map<Number640, Data> data = versions.get(entry.getKey());
+			for (PeerAddress replica : entry.getValue()) {
+				if (data == null || data.isEmpty()) {
+					rawStatus.put(replica, (byte) PutStatus.NOT_FOUND.ordinal());
+				} else {
+					rawData.put(replica, data);
+					rawStatus.put(replica, (byte) PutStatus.OK.ordinal());
+				}
+			}
+		}
+		for (PeerAddress replica : failed) {
+			rawStatus.put(replica, (byte) PutStatus.FAILED.ordinal());
+		}
+		futureGet.receivedData(rawData, Collections.<PeerAddress, DigestResult> emptyMap(), rawStatus,
+				futuresCompleted);
+	}
+
+	/**
+	 * @param data
+	 *            The latest versions
+	 * @return The keys of the latest versions with their hashes
+	 */
+	public static Map<Number640, Number160> digest(final Map<Number640, Data> data) {
+		final Map<Number640, Number160> digest = new TreeMap<Number640, Number160>();
+		for (Map.Entry<Number640, Data> entry : data.entrySet()) {
+			digest.put(entry.getKey(), entry.getValue().hash());
+		}
+		return digest;
+	}
+
+	/**
+	 * @param futureResponse
+	 *            The response to {@link StorageRPC#getLatestDigest(PeerAddress, GetBuilder, ChannelCreator)}
+	 * @return The keys of the latest versions with their hashes, or null if the request failed
+	 */
+	public static Map<Number640, Number160> digest(final FutureResponse futureResponse) {
+		if (!futureResponse.isSuccess() || !futureResponse.responseMessage().isOk()) {
+			return null;
+		}
+		final Map<Number640, Number160> digest = new TreeMap<Number640, Number160>();
+		final KeyMap640Keys keyMap = futureResponse.responseMessage().keyMap640Keys(0);
+		if (keyMap != null) {
+			for (Map.Entry<Number640, Collection<Number160>> entry : keyMap.keysMap().entrySet()) {
+				digest.put(entry.getKey(), entry.getValue().iterator().next());
+			}
+		}
+		return digest;
+	}
+
+	/**
+	 * @param futureResponse
+	 *            The response to a get latest request
+	 * @return The latest versions, or null if the request failed
+	 */
+	public static Map<Number640, Data> data(final FutureResponse futureResponse) {
+		if (!futureResponse.isSuccess() || !futureResponse.responseMessage().isOk()) {
+			return null;
+		}
+		final DataMap dataMap = futureResponse.responseMessage().dataMap(0);
+		if (dataMap == null) {
+			return new TreeMap<Number640, Data>();
+		}
+		return dataMap.dataMap();
+	}
+}
@@ -0,0 +1,318 @@
+package net.tomp2p.dht;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import net.tomp2p.connection.ChannelCreator;
+import net.tomp2p.dht.StorageLayer.PutStatus;
+import net.tomp2p.futures.BaseFutureAdapter;
+import net.tomp2p.futures.FutureDone;
+import net.tomp2p.futures.FutureLateJoin;
+import net.tomp2p.futures.FutureResponse;
+import net.tomp2p.message.DataMap;
+import net.tomp2p.message.KeyMapByte;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
+import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.storage.Data;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stores a new version on the replicas with optimistic concurrency control. The new version has been prepared on the
+ * replicas, which only accept it if it is based on all of their latest versions, including the versions that are
+ * prepared by concurrent puts. If all replicas accepted, the version is confirmed on the same replicas. If a replica
+ * reports a conflict, the prepared versions are removed, the new version is merged with the conflicting versions
+ * using the {@link VersionMerger}, and the put is retried after a random backoff on the same replicas. Thus, a put
+ * without a conflict needs two round trips, while doing the same by hand with get latest, put prepared, and put
+ * confirm needs three round trips and three routings.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class VersionedPut {
+
+	private static final Logger LOG = LoggerFactory.getLogger(VersionedPut.class);
+
+	/**
+	 * A prepared version that is never confirmed or removed, e.g., since the peer went offline, blocks other puts for
+	 * this time.
+	 */
+	public static final int PREPARE_TTL_SECONDS = 10;
+	public static final int MAX_ATTEMPTS = 5;
+	private static final int MAX_BACKOFF_MILLIS = 100;
+	private static final Random RND = new Random();
+
+	private final StorageRPC storageRPC;
+	private final PutBuilder builder;
+	private final FuturePut futurePut;
+	private final ChannelCreator channelCreator;
+	private final FutureDone<Void> futuresCompleted;
+
+	// the attempts are made one after the other
+	private int attempt = 1;
+
+	public VersionedPut(final StorageRPC storageRPC, final PutBuilder builder, final FuturePut futurePut,
+			final ChannelCreator channelCreator, final FutureDone<Void> futuresCompleted) {
+		this.storageRPC = storageRPC;
+		this.builder = builder;
+		this.futurePut = futurePut;
+		this.channelCreator = channelCreator;
+		this.futuresCompleted = futuresCompleted;
+	}
+
+	/**
+	 * @param key
+	 *            The key of the value
+	 * @param data
+	 *            The value
+	 * @return The key if it has a version key, otherwise a key with a version key that is one tick newer than the
+	 *         versions it is based on and that contains the hash of the value
+	 */
+	public static Number640 versionKey(final Number640 key, final Data data) {
+		if (!key.versionKey().equals(Number160.ZERO)) {
+			return key;
+		}
+		long timestamp = 0;
+		for (Number160 basedOn : data.basedOnSet()) {
+			timestamp = Math.max(timestamp, basedOn.timestamp());
+		}
+		return new Number640(key.locationAndDomainAndContentKey(), new Number160(timestamp + 1, data.hash()));
+	}
+
+	/**
+	 * @param data
+	 *            The value
+	 * @return A copy of the value that is stored as prepared with a short time to live, the time to live of the value
+	 *         is set on confirmation
+	 */
+	public static Data prepared(final Data data) {
+		return data.duplicate().prepareFlag().ttlSeconds(PREPARE_TTL_SECONDS);
+	}
+
+	/**
+	 * Evaluates the answers of the replicas to a prepared version, and confirms, retries, or gives up.
+	 *
+	 * @param key
+	 *            The key of the prepared version
+	 * @param data
+	 *            The value of the prepared version
+	 * @param rawStatus
+	 *            The status per replica
+	 * @param rawConflicts
+	 *            The latest versions that the prepared version is not based on, per replica
+	 */
+	public void start(final Number640 key, final Data data, final Map<PeerAddress, Byte> rawStatus,
+			final Map<PeerAddress, NavigableMap<Number640, Data>> rawConflicts) {
+		final List<PeerAddress> prepared = new ArrayList<PeerAddress>();
+		boolean conflict = false;
+		for (Map.Entry<PeerAddress, Byte> entry : rawStatus.entrySet()) {
+			if (entry.getValue() == PutStatus.OK_PREPARED.ordinal()) {
+				prepared.add(entry.getKey());
+			} else if (entry.getValue() == PutStatus.VERSION_CONFLICT.ordinal()) {
+				conflict = true;
+			}
+		}
+		if (!conflict) {
+			if (prepared.isEmpty()) {
+				done(key, rawStatus);
+			} else {
+				confirm(key, data, prepared, rawStatus);
+			}
+			return;
+		}
+
+		final NavigableMap<Number640, Data> latest = new TreeMap<Number640, Data>();
+		for (NavigableMap<Number640, Data> conflicts : rawConflicts.values()) {
+			latest.putAll(conflicts);
+		}
+		LOG.debug("Version {} conflicts with {} in attempt {}", key, latest.keySet(), attempt);
+		final Number640 nextKey;
+		final Data next;
+		if (latest.isEmpty()) {
+			// only a concurrent put has been prepared, which is confirmed or removed soon
+			nextKey = key;
+			next = data;
+		} else if (builder.versionMerger() == null) {
+			nextKey = null;
+			next = null;
+		} else {
+			try {
+				next = merge(data, latest);
+			} catch (Exception e) {
+				abort(key, prepared, null);
+				futurePut.failed("Could not merge the versions", e);
+				return;
+			}
+			nextKey = next == null ? null : versionKey(
+					new Number640(key.locationAndDomainAndContentKey(), Number160.ZERO), next);
+		}
+		if (next == null || attempt >= MAX_ATTEMPTS) {
+			// give up, the user sees the conflicts in the raw result
+			abort(key, prepared, new Runnable() {
+				@Override
+				public void run() {
+					done(key, rawStatus);
+				}
+			});
+		} else {
+			abort(key, prepared, new Runnable() {
+				@Override
+				public void run() {
+					backoff(nextKey, next, rawStatus.keySet());
+				}
+			});
+		}
+	}
+
+	private Data merge(final Data data, final NavigableMap<Number640, Data> latest) throws Exception {
+		final Data merged = builder.versionMerger().merge(data, latest);
+		if (merged == null) {
+			return null;
+		}
+		for (Number160 basedOn : data.basedOnSet()) {
+			merged.addBasedOn(basedOn);
+		}
+		for (Number640 version : latest.keySet()) {
+			merged.addBasedOn(version.versionKey());
+		}
+		return merged;
+	}
+
+	/**
+	 * Removes the prepared version from the replicas that accepted it, and runs the next step once all replicas
+	 * answered.
+	 */
+	private void abort(final Number640 key, final List<PeerAddress> prepared, final Runnable then) {
+		if (prepared.isEmpty()) {
+			if (then != null) {
+				then.run();
+			}
+			return;
+		}
+		final FutureLateJoin<FutureResponse> futureLateJoin = new FutureLateJoin<FutureResponse>(prepared.size());
+		for (PeerAddress replica : prepared) {
+			final FutureResponse futureResponse = storageRPC.abortPrepared(replica, key, builder, channelCreator);
+			futurePut.addRequests(futureResponse);
+			futureLateJoin.add(futureResponse);
+		}
+		if (then != null) {
+			futureLateJoin.addListener(new BaseFutureAdapter<FutureLateJoin<FutureResponse>>() {
+				@Override
+				public void operationComplete(final FutureLateJoin<FutureResponse> future) throws Exception {
+					then.run();
+				}
+			});
+		}
+	}
+
+	private void backoff(final Number640 key, final Data data, final Collection<PeerAddress> replicas) {
+		final int delay = RND.nextInt(MAX_BACKOFF_MILLIS * attempt) + 1;
+		try {
+			storageRPC.connectionBean().timer().schedule(new Runnable() {
+				@Override
+				public void run() {
+					prepare(key, data, replicas);
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			futurePut.failed("Peer is shutting down", e);
+		}
+	}
+
+	private void prepare(final Number640 key, final Data data, final Collection<PeerAddress> replicas) {
+		attempt++;
+		final Data prepared = prepared(data);
+		final Map<PeerAddress, Byte> rawStatus = new HashMap<PeerAddress, Byte>();
+		final Map<PeerAddress, NavigableMap<Number640, Data>> rawConflicts = new HashMap<PeerAddress, NavigableMap<Number640, Data>>();
+		final FutureLateJoin<FutureResponse> futureLateJoin = new FutureLateJoin<FutureResponse>(replicas.size());
+		for (PeerAddress replica : replicas) {
+			final FutureResponse futureResponse = storageRPC.putIfLatest(replica, key, prepared, builder,
+					channelCreator);
+			futurePut.addRequests(futureResponse);
+			futureLateJoin.add(futureResponse);
+		}
+		futureLateJoin.addListener(new BaseFutureAdapter<FutureLateJoin<FutureResponse>>() {
+			@Override
+			public void operationComplete(final FutureLateJoin<FutureResponse> future) throws Exception {
+				for (FutureResponse futureResponse : future.futuresDone()) {
+					final PeerAddress replica = futureResponse.request().recipient();
+					rawStatus.put(replica, status(futureResponse, key));
+					final NavigableMap<Number640, Data> conflicts = conflicts(futureResponse);
+					if (conflicts != null) {
+						rawConflicts.put(replica, conflicts);
+					}
+				}
+				start(key, data, rawStatus, rawConflicts);
+			}
+		});
+	}
+
+	private void confirm(final Number640 key, final Data data, final List<PeerAddress> prepared,
+			final Map<PeerAddress, Byte> rawStatus) {
+		final FutureLateJoin<FutureResponse> futureLateJoin = new FutureLateJoin<FutureResponse>(prepared.size());
+		for (PeerAddress replica : prepared) {
+			final FutureResponse futureResponse = storageRPC.putConfirm(replica, key, data, builder, channelCreator);
+			futurePut.addRequests(futureResponse);
+			futureLateJoin.add(futureResponse);
+		}
+		futureLateJoin.addListener(new BaseFutureAdapter<FutureLateJoin<FutureResponse>>() {
+			@Override
+			public void operationComplete(final FutureLateJoin<FutureResponse> future) throws Exception {
+				final Map<PeerAddress, Byte> confirmed = new HashMap<PeerAddress, Byte>(rawStatus);
+				for (FutureResponse futureResponse : future.futuresDone()) {
+					confirmed.put(futureResponse.request().recipient(), status(futureResponse, key));
+				}
+				done(key, confirmed);
+			}
+		});
+	}
+
+	private void done(final Number640 key, final Map<PeerAddress, Byte> rawStatus) {
+		final Map<PeerAddress, Map<Number640, Byte>> rawResult = new HashMap<PeerAddress, Map<Number640, Byte>>();
+		for (Map.Entry<PeerAddress, Byte> entry : rawStatus.entrySet()) {
+			final Map<Number640, Byte> result = new HashMap<Number640, Byte>(1);
+			result.put(key, entry.getValue());
+			rawResult.put(entry.getKey(), result);
+		}
+		futurePut.storedKeys(rawResult, futuresCompleted);
+	}
+
+	/**
+	 * @param futureResponse
+	 *            The response to a prepare, confirm, or abort request
+	 * @param key
+	 *            The key of the version
+	 * @return The status of the version
+	 */
+	public static byte status(final FutureResponse futureResponse, final Number640 key) {
+		if (!futureResponse.isSuccess() || !futureResponse.responseMessage().isOk()) {
+			return (byte) DistributedHashTable.REASON_UNKOWN;
+		}
+		final KeyMapByte keyMapByte = futureResponse.responseMessage().keyMapByte(0);
+		final Byte status = keyMapByte == null ? null : keyMapByte.keysMap().get(key);
+		return status == null ? (byte) PutStatus.FAILED.ordinal() : status;
+	}
+
+	/**
+	 * @param futureResponse
+	 *            The response to a prepare request
+	 * @return The latest versions that the prepared version is not based on, or null if there are none
+	 */
+	public static NavigableMap<Number640, Data> conflicts(final FutureResponse futureResponse) {
+		if (!futureResponse.isSuccess() || !futureResponse.responseMessage().isOk()) {
+			return null;
+		}
+		final DataMap dataMap = futureResponse.responseMessage().dataMap(0);
+		return dataMap == null || dataMap.dataMap().isEmpty() ? null : dataMap.dataMap();
+	}
+}
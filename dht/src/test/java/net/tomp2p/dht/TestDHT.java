@@ -19,6 +19,7 @@ import java.util.Map.Entry;
 import java.util.NavigableMap;
 import java.util.Random;
 import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.UUID;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
@@ -29,7 +30,10 @@ import net.tomp2p.connection.Bindings;
 import net.tomp2p.connection.ChannelClientConfiguration;
 import net.tomp2p.connection.ChannelServerConfiguration;
 import net.tomp2p.connection.PeerException;
+import net.tomp2p.connection.PeerConnection;
 import net.tomp2p.connection.PeerException.AbortCause;
+import net.tomp2p.connection.Responder;
+import net.tomp2p.dht.StorageLayer.PutStatus;
 import net.tomp2p.futures.BaseFuture;
 import net.tomp2p.futures.BaseFutureAdapter;
 import net.tomp2p.futures.FutureBootstrap;
@@ -37,6 +41,7 @@ import net.tomp2p.futures.FutureDirect;
 import net.tomp2p.futures.FutureDone;
 import net.tomp2p.futures.FuturePeerConnection;
 import net.tomp2p.message.Buffer;
+import net.tomp2p.message.Message;
 import net.tomp2p.p2p.AutomaticFuture;
 import net.tomp2p.p2p.DefaultBroadcastHandler;
 import net.tomp2p.p2p.Peer;
@@ -52,7 +57,9 @@ import net.tomp2p.peers.PeerMap;
 import net.tomp2p.peers.PeerMapConfiguration;
 import net.tomp2p.peers.PeerStatistic;
 import net.tomp2p.rpc.DigestResult;
+import net.tomp2p.rpc.DispatchHandler;
 import net.tomp2p.rpc.ObjectDataReply;
+import net.tomp2p.rpc.RPC;
 import net.tomp2p.rpc.RawDataReply;
 import net.tomp2p.storage.Data;
 import net.tomp2p.utils.Utils;
@@ -197,6 +204,61 @@ public class TestDHT {
 		}
 	}
 
+	@Test
+	public void testBenchmarkPutGet() throws Exception {
+		PeerDHT master = null;
+		try {
+			// setup
+			PeerDHT[] peers = UtilsDHT2.createNodes(100, rnd, 4001);
+			master = peers[0];
+			UtilsDHT2.perfectRouting(peers);
+			final int rounds = 1000;
+			// warm up
+			for (int i = 0; i < rounds; i++) {
+				putGet(peers, i);
+			}
+			final long allocatedBefore = allocatedBytes();
+			final long start = System.nanoTime();
+			for (int i = 0; i < rounds; i++) {
+				putGet(peers, i);
+			}
+			final long nanos = System.nanoTime() - start;
+			final long allocated = allocatedBytes() - allocatedBefore;
+			System.err.println("BENCHMARK: loopback put/get with 100 peers. STAT: "
+			        + TimeUnit.NANOSECONDS.toMicros(nanos / rounds) + "us, " + (allocated / rounds / 1024)
+			        + "KB allocated per put/get");
+		} finally {
+			if (master != null) {
+				master.shutdown().await();
+			}
+		}
+	}
+
+	private static void putGet(PeerDHT[] peers, int i) throws ClassNotFoundException, IOException {
+		Number160 key = Number160.createHash(i);
+		FuturePut fp = peers[i % peers.length].put(key).data(new Data(i)).start();
+		fp.awaitUninterruptibly();
+		Assert.assertEquals(true, fp.isSuccess());
+		FutureGet fg = peers[(i + 1) % peers.length].get(key).start();
+		fg.awaitUninterruptibly();
+		Assert.assertEquals(true, fg.isSuccess());
+		Assert.assertEquals(i, fg.data().object());
+	}
+
+	private static long allocatedBytes() {
+		java.lang.management.ThreadMXBean threadMXBean = java.lang.management.ManagementFactory.getThreadMXBean();
+		if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+			long[] allocated = ((com.sun.management.ThreadMXBean) threadMXBean).getThreadAllocatedBytes(threadMXBean
+			        .getAllThreadIds());
+			long sum = 0;
+			for (long bytes : allocated) {
+				sum += Math.max(0, bytes);
+			}
+			return sum;
+		}
+		return 0;
+	}
+
 	@Test
 	public void testPut() throws Exception {
 		PeerDHT master = null;
@@ -2155,6 +2217,411 @@ public class TestDHT {
         Assert.assertEquals( "test", fg2.data().object() );   
 	}
 
+	@Test
+	public void testChunkerInsert() {
+		final Random random = new Random(42L);
+		final byte[] value = new byte[1024 * 1024];
+		random.nextBytes(value);
+		// insert 100 bytes in the middle
+		final byte[] changed = new byte[value.length + 100];
+		System.arraycopy(value, 0, changed, 0, value.length / 2);
+		System.arraycopy(value, value.length / 2, changed, value.length / 2 + 100, value.length / 2);
+
+		final Chunker chunker = new Chunker();
+		final int[] ends1 = chunker.chunk(value);
+		final int[] ends2 = chunker.chunk(changed);
+		Assert.assertEquals(value.length, ends1[ends1.length - 1]);
+		Assert.assertEquals(changed.length, ends2[ends2.length - 1]);
+		int start = 0;
+		for (int end : ends1) {
+			Assert.assertTrue(end - start <= chunker.maxSize());
+			start = end;
+		}
+		// the average is 8KB, allow a large deviation
+		Assert.assertTrue(ends1.length > value.length / chunker.avgSize() / 2);
+		Assert.assertTrue(ends1.length < value.length / chunker.avgSize() * 2);
+
+		final List<Number160> hashes1 = chunkHashes(value, ends1);
+		final List<Number160> hashes2 = chunkHashes(changed, ends2);
+		int same = 0;
+		for (Number160 hash : hashes2) {
+			if (hashes1.contains(hash)) {
+				same++;
+			}
+		}
+		// only the chunks around the insert differ
+		Assert.assertTrue(hashes2.size() - same <= 2);
+	}
+
+	private static List<Number160> chunkHashes(final byte[] value, final int[] ends) {
+		final List<Number160> hashes = new ArrayList<Number160>();
+		int start = 0;
+		for (int end : ends) {
+			hashes.add(Utils.makeSHAHash(value, start, end - start));
+			start = end;
+		}
+		return hashes;
+	}
+
+	@Test
+	public void testChunkedPutGet() throws Exception {
+		PeerDHT master = null;
+		try {
+			// setup
+			PeerDHT[] peers = UtilsDHT2.createNodes(100, rnd, 4001);
+			master = peers[0];
+			UtilsDHT2.perfectRouting(peers);
+			// do testing
+			final byte[] value = new byte[512 * 1024];
+			rnd.nextBytes(value);
+			final Number160 key = Number160.createHash("large");
+			final ChunkedDHT chunked = new ChunkedDHT(peers[10]);
+			final long start = System.currentTimeMillis();
+			FutureDone<ChunkManifest> futurePut = chunked.put(key, value).awaitUninterruptibly();
+			Assert.assertTrue(futurePut.failedReason(), futurePut.isSuccess());
+			final long put = System.currentTimeMillis();
+			final int chunks = futurePut.object().uniqueChunkKeys().size();
+			Assert.assertEquals(chunks, chunked.chunksUploaded());
+
+			FutureDone<byte[]> futureGet = new ChunkedDHT(peers[50]).get(key).awaitUninterruptibly();
+			Assert.assertTrue(futureGet.failedReason(), futureGet.isSuccess());
+			Assert.assertArrayEquals(value, futureGet.object());
+			final long get = System.currentTimeMillis();
+			System.err.println("BENCHMARK: chunked put/get of " + value.length + " bytes in " + chunks + " chunks"
+					+ " STAT: put " + (put - start) + "ms, get " + (get - put) + "ms");
+
+			// change a few bytes, only the chunk around them is uploaded again
+			value[value.length / 3] ^= 1;
+			futurePut = chunked.put(key, value).awaitUninterruptibly();
+			Assert.assertTrue(futurePut.failedReason(), futurePut.isSuccess());
+			Assert.assertEquals(chunks + 1, chunked.chunksUploaded());
+			Assert.assertEquals(chunks - 1, chunked.chunksSkipped());
+
+			futureGet = new ChunkedDHT(peers[70]).get(key).awaitUninterruptibly();
+			Assert.assertTrue(futureGet.failedReason(), futureGet.isSuccess());
+			Assert.assertArrayEquals(value, futureGet.object());
+
+			// nothing stored
+			futureGet = chunked.get(Number160.createHash("nothing")).awaitUninterruptibly();
+			Assert.assertTrue(futureGet.isSuccess());
+			Assert.assertNull(futureGet.object());
+		} finally {
+			if (master != null) {
+				master.shutdown().await();
+			}
+		}
+	}
+
+	@Test
+	public void testChunkedTampered() throws Exception {
+		PeerDHT master = null;
+		try {
+			// setup
+			PeerDHT[] peers = UtilsDHT2.createNodes(100, rnd, 4001);
+			master = peers[0];
+			UtilsDHT2.perfectRouting(peers);
+			// do testing
+			final byte[] value = new byte[64 * 1024];
+			rnd.nextBytes(value);
+			final Number160 key = Number160.createHash("tampered");
+			FutureDone<ChunkManifest> futurePut = new ChunkedDHT(peers[10]).put(key, value).awaitUninterruptibly();
+			Assert.assertTrue(futurePut.failedReason(), futurePut.isSuccess());
+			final Number160 chunkKey = futurePut.object().chunkKeys().get(0);
+			final Number640 chunk640 = new Number640(chunkKey, Number160.ZERO, chunkKey, Number160.ZERO);
+			final List<PeerDHT> replicas = new ArrayList<PeerDHT>();
+			for (PeerDHT peer : peers) {
+				if (peer.storageLayer().contains(chunk640)) {
+					replicas.add(peer);
+				}
+			}
+			Assert.assertTrue(replicas.size() > 1);
+			final byte[] tampered = replicas.get(0).storageLayer().get(chunk640).toBytes();
+			tampered[0] ^= 1;
+
+			// one replica is corrupt, the chunk of an other replica is used
+			replicas.get(0).storageLayer().put(chunk640, new Data(tampered), null, false, false, false);
+			FutureDone<byte[]> futureGet = new ChunkedDHT(peers[50]).get(key).awaitUninterruptibly();
+			Assert.assertTrue(futureGet.failedReason(), futureGet.isSuccess());
+			Assert.assertArrayEquals(value, futureGet.object());
+
+			// all replicas are corrupt
+			for (PeerDHT replica : replicas) {
+				replica.storageLayer().put(chunk640, new Data(tampered), null, false, false, false);
+			}
+			futureGet = new ChunkedDHT(peers[50]).get(key).awaitUninterruptibly();
+			Assert.assertFalse(futureGet.isSuccess());
+		} finally {
+			if (master != null) {
+				master.shutdown().await();
+			}
+		}
+	}
+
+	@Test
+	public void testMultiSourceGet() throws Exception {
+		PeerDHT master = null;
+		try {
+			// setup
+			PeerDHT[] peers = UtilsDHT2.createNodes(100, rnd, 4001);
+			master = peers[0];
+			UtilsDHT2.perfectRouting(peers);
+			// do testing
+			final byte[] value = new byte[2 * 1024 * 1024];
+			rnd.nextBytes(value);
+			final Number160 key = Number160.createHash("large");
+			FuturePut futurePut = peers[10].put(key).data(new Data(value)).start().awaitUninterruptibly();
+			Assert.assertTrue(futurePut.isSuccess());
+
+			// warm up the connections
+			peers[60].get(key).multiSource().start().awaitUninterruptibly();
+			peers[50].get(key).start().awaitUninterruptibly();
+
+			long start = System.currentTimeMillis();
+			FutureGet futureGet = peers[60].get(key).multiSource().start().awaitUninterruptibly();
+			final long multi = System.currentTimeMillis() - start;
+			Assert.assertTrue(futureGet.failedReason(), futureGet.isSuccess());
+			Assert.assertArrayEquals(value, futureGet.data().toBytes());
+			final int replicas = futureGet.rawData().size();
+			Assert.assertTrue(replicas > 1);
+
+			start = System.currentTimeMillis();
+			futureGet = peers[50].get(key).start().awaitUninterruptibly();
+			final long single = System.currentTimeMillis() - start;
+			Assert.assertTrue(futureGet.isSuccess());
+			Assert.assertArrayEquals(value, futureGet.data().toBytes());
+
+			System.err.println("BENCHMARK: get of " + value.length + " bytes STAT: full get " + single
+					+ "ms, multi source get from " + replicas + " replicas " + multi + "ms");
+
+			// many small ranges, the last range is shorter
+			futureGet = peers[70].get(key).multiSource().rangeSize(10000).start().awaitUninterruptibly();
+			Assert.assertTrue(futureGet.failedReason(), futureGet.isSuccess());
+			Assert.assertArrayEquals(value, futureGet.data().toBytes());
+
+			// nothing stored
+			futureGet = peers[70].get(Number160.createHash("nothing")).multiSource().start().awaitUninterruptibly();
+			Assert.assertTrue(futureGet.isEmpty());
+		} finally {
+			if (master != null) {
+				master.shutdown().await();
+			}
+		}
+	}
+
+	@Test
+	public void testVersionedPut() throws Exception {
+		PeerDHT master = null;
+		try {
+			// setup
+			final PeerDHT[] peers = UtilsDHT2.createNodes(100, rnd, 4001);
+			master = peers[0];
+			UtilsDHT2.perfectRouting(peers);
+			final Number160 key = Number160.createHash("versioned");
+			FuturePut futurePut = peers[10].put(key).data(new Data(set("start"))).versioned().start()
+					.awaitUninterruptibly();
+			Assert.assertTrue(futurePut.failedReason(), futurePut.isSuccess());
+
+			// an update that is not based on the latest version fails without a merger
+			futurePut = peers[20].put(key).data(new Data(set("lost"))).versioned().start().awaitUninterruptibly();
+			Assert.assertFalse(futurePut.isSuccess());
+			for (Map<Number640, Byte> result : futurePut.rawResult().values()) {
+				Assert.assertEquals(PutStatus.VERSION_CONFLICT.ordinal(), result.values().iterator().next()
+						.intValue());
+			}
+
+			// concurrent updates are merged
+			final List<FuturePut> futures = new ArrayList<FuturePut>();
+			for (int i = 0; i < 3; i++) {
+				futures.add(peers[30 + i].put(key).data(new Data(set("update " + i)))
+						.versionMerger(new UnionMerger()).start());
+			}
+			for (FuturePut future : futures) {
+				Assert.assertTrue(future.awaitUninterruptibly().failedReason(), future.isSuccess());
+			}
+
+			FutureGet futureGet = peers[40].get(key).versioned().start().awaitUninterruptibly();
+			Assert.assertTrue(futureGet.isSuccess());
+			Assert.assertEquals(set("start", "update 0", "update 1", "update 2"), futureGet.data().object());
+			// all replicas agree on a single latest version
+			Assert.assertEquals(futurePut.rawResult().size(), futureGet.rawData().size());
+			for (Map<Number640, Data> latest : futureGet.rawData().values()) {
+				Assert.assertEquals(1, latest.size());
+			}
+
+			// one replica has a different latest version
+			final PeerAddress replica = futureGet.rawData().keySet().iterator().next();
+			final Number640 head = futureGet.rawData().get(replica).keySet().iterator().next();
+			final Number640 fork = new Number640(head.locationAndDomainAndContentKey(), new Number160(
+					head.versionKey().timestamp() + 1, Number160.ONE));
+			for (PeerDHT peer : peers) {
+				if (peer.peerAddress().equals(replica)) {
+					peer.storageLayer().put(fork, new Data(set("fork")).addBasedOn(head.versionKey()), null, false,
+							false, false);
+				}
+			}
+			futureGet = peers[40].get(key).versioned().start().awaitUninterruptibly();
+			Assert.assertTrue(futureGet.isSuccess());
+			Assert.assertEquals(set("fork"), futureGet.rawData().get(replica).get(fork).object());
+			for (Map.Entry<PeerAddress, Map<Number640, Data>> entry : futureGet.rawData().entrySet()) {
+				if (!entry.getKey().equals(replica)) {
+					Assert.assertEquals(set("start", "update 0", "update 1", "update 2"), entry.getValue()
+							.get(head).object());
+				}
+			}
+
+			// nothing stored
+			futureGet = peers[40].get(Number160.createHash("nothing")).versioned().start().awaitUninterruptibly();
+			Assert.assertTrue(futureGet.isEmpty());
+		} finally {
+			if (master != null) {
+				master.shutdown().await();
+			}
+		}
+	}
+
+	@Test
+	public void testVersionedPutBenchmark() throws Exception {
+		PeerDHT master = null;
+		try {
+			// setup
+			final PeerDHT[] peers = UtilsDHT2.createNodes(100, rnd, 4001);
+			master = peers[0];
+			UtilsDHT2.perfectRouting(peers);
+			final int updates = 20;
+			final Number160 key1 = Number160.createHash("versioned");
+			final Number160 key2 = Number160.createHash("by hand");
+			Assert.assertTrue(peers[10].put(key1).data(new Data(0)).versioned().start().awaitUninterruptibly()
+					.isSuccess());
+			Assert.assertTrue(peers[10].put(key2).data(new Data(0)).start().awaitUninterruptibly().isSuccess());
+
+			long bestVersioned = Long.MAX_VALUE;
+			long bestByHand = Long.MAX_VALUE;
+			for (int round = 0; round < 3; round++) {
+				long start = System.currentTimeMillis();
+				for (int i = 0; i < updates; i++) {
+					incrementVersioned(peers[20], key1);
+				}
+				bestVersioned = Math.min(bestVersioned, System.currentTimeMillis() - start);
+
+				start = System.currentTimeMillis();
+				for (int i = 0; i < updates; i++) {
+					incrementByHand(peers[20], key2);
+				}
+				bestByHand = Math.min(bestByHand, System.currentTimeMillis() - start);
+			}
+			Assert.assertEquals(3 * updates, peers[30].get(key1).versioned().start().awaitUninterruptibly().data()
+					.object());
+			Assert.assertEquals(3 * updates, peers[30].get(key2).getLatest().start().awaitUninterruptibly().data()
+					.object());
+
+			System.err.println("BENCHMARK: " + updates + " read-modify-write updates STAT: versioned get and put "
+					+ bestVersioned + "ms, get latest, put prepared, and put confirm " + bestByHand + "ms");
+		} finally {
+			if (master != null) {
+				master.shutdown().await();
+			}
+		}
+	}
+
+	private static void incrementVersioned(PeerDHT peer, Number160 key) throws Exception {
+		final FutureGet futureGet = peer.get(key).versioned().start().awaitUninterruptibly();
+		final Map.Entry<Number640, Data> latest = futureGet.rawData().values().iterator().next().entrySet()
+				.iterator().next();
+		final Data data = new Data((Integer) latest.getValue().object() + 1).addBasedOn(latest.getKey()
+				.versionKey());
+		Assert.assertTrue(peer.put(key).data(data).versioned().start().awaitUninterruptibly().isSuccess());
+	}
+
+	/**
+	 * Get latest, put prepared, and put confirm, as in the examples.
+	 */
+	private static void incrementByHand(PeerDHT peer, Number160 key) throws Exception {
+		final FutureGet futureGet = peer.get(key).getLatest().start().awaitUninterruptibly();
+		final Map.Entry<Number640, Data> latest = futureGet.rawData().values().iterator().next().entrySet()
+				.iterator().next();
+		final Data data = new Data((Integer) latest.getValue().object() + 1).addBasedOn(latest.getKey()
+				.versionKey());
+		final Number160 versionKey = new Number160(latest.getKey().versionKey().timestamp() + 1, data.hash());
+		FuturePut futurePut = peer.put(key).data(Number160.ZERO, data.prepareFlag(), versionKey).start()
+				.awaitUninterruptibly();
+		Assert.assertTrue(futurePut.isSuccess());
+		futurePut = peer.put(key).versionKey(versionKey).putConfirm().data(new Data()).start()
+				.awaitUninterruptibly();
+		Assert.assertTrue(futurePut.isSuccess());
+	}
+
+	private static TreeSet<String> set(String... values) {
+		return new TreeSet<String>(Arrays.asList(values));
+	}
+
+	private static class UnionMerger implements VersionMerger {
+		@SuppressWarnings("unchecked")
+		@Override
+		public Data merge(Data update, NavigableMap<Number640, Data> latest) throws Exception {
+			final TreeSet<String> union = new TreeSet<String>((TreeSet<String>) update.object());
+			for (Data data : latest.values()) {
+				union.addAll((TreeSet<String>) data.object());
+			}
+			return new Data(union);
+		}
+	}
+
+	@Test
+	public void testHedgedGet() throws Exception {
+		PeerDHT master = null;
+		try {
+			// setup
+			PeerDHT[] peers = UtilsDHT2.createNodes(100, rnd, 4001);
+			master = peers[0];
+			UtilsDHT2.perfectRouting(peers);
+			final Number160 key = Number160.createHash("hedge");
+			FuturePut futurePut = peers[10].put(key).data(new Data("hedge")).start().awaitUninterruptibly();
+			Assert.assertTrue(futurePut.isSuccess());
+			// the closest replica is half dead, it accepts get requests, but never answers
+			PeerDHT slow = peers[0];
+			for (PeerDHT peer : peers) {
+				if (peer.peerID().xor(key).compareTo(slow.peerID().xor(key)) < 0) {
+					slow = peer;
+				}
+			}
+			new DispatchHandler(slow.peer().peerBean(), slow.peer().connectionBean()) {
+				@Override
+				public void handleResponse(Message message, PeerConnection peerConnection, boolean sign,
+						Responder responder) throws Exception {
+				}
+			}.register(RPC.Commands.GET.getNr());
+			// ask only one replica at a time
+			final RequestP2PConfiguration requestP2PConfiguration = new RequestP2PConfiguration(1, 0, 0);
+
+			long maxPlain = 0;
+			long maxHedged = 0;
+			for (int i = 0; i < 5; i++) {
+				long start = System.currentTimeMillis();
+				GetBuilder getBuilder = peers[50 + i].get(key).requestP2PConfiguration(requestP2PConfiguration);
+				getBuilder.idleTCPSeconds(2);
+				FutureGet futureGet = getBuilder.start().awaitUninterruptibly();
+				maxPlain = Math.max(maxPlain, System.currentTimeMillis() - start);
+
+				start = System.currentTimeMillis();
+				getBuilder = peers[60 + i].get(key).requestP2PConfiguration(requestP2PConfiguration)
+						.hedgingPolicy(new HedgingPolicy().defaultDelayMillis(100));
+				getBuilder.idleTCPSeconds(2);
+				futureGet = getBuilder.start().awaitUninterruptibly();
+				maxHedged = Math.max(maxHedged, System.currentTimeMillis() - start);
+				Assert.assertTrue(futureGet.failedReason(), futureGet.isSuccess());
+				Assert.assertEquals("hedge", futureGet.data().object());
+				Assert.assertFalse(futureGet.rawData().containsKey(slow.peerAddress()));
+			}
+			System.err.println("BENCHMARK: get with a half dead replica STAT: max latency " + maxPlain
+					+ "ms, hedged " + maxHedged + "ms");
+			Assert.assertTrue(maxHedged < maxPlain);
+		} finally {
+			if (master != null) {
+				master.shutdown().await();
+			}
+		}
+	}
+
 	private static String generateRandomString() {
 		return UUID.randomUUID().toString();
 	}
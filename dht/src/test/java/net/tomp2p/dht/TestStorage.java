@@ -15,6 +15,7 @@ import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.Number640;
 import net.tomp2p.rpc.DigestInfo;
 import net.tomp2p.storage.Data;
+import net.tomp2p.utils.Pair;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -145,6 +146,48 @@ public class TestStorage {
 		Assert.assertNull(storage.get(key2));
 	}
 
+	@Test
+	public void testPutIfLatest() throws Exception {
+		Storage storageM = createStorage();
+		testPutIfLatest(new StorageLayer(storageM));
+		storageM.close();
+	}
+
+	private void testPutIfLatest(StorageLayer storage) throws IOException, ClassNotFoundException {
+		Number640 key1 = new Number640(locationKey, domainKey, content1, new Number160(1));
+		Number640 key2 = new Number640(locationKey, domainKey, content1, new Number160(2));
+		Number640 key3 = new Number640(locationKey, domainKey, content1, new Number160(3));
+		Number640 key4 = new Number640(locationKey, domainKey, content1, new Number160(4));
+		Assert.assertEquals(PutStatus.OK, storage.put(key1, new Data("test1"), null, false, false, false));
+		// based on the latest version
+		Pair<Enum<?>, NavigableMap<Number640, Data>> status = storage.putIfLatest(key2,
+				new Data("test2").addBasedOn(key1.versionKey()), null, false);
+		Assert.assertEquals(PutStatus.OK_PREPARED, status.element0());
+		Assert.assertTrue(status.element1().isEmpty());
+		// preparing the same version again is fine
+		status = storage.putIfLatest(key2, new Data("test2").addBasedOn(key1.versionKey()), null, false);
+		Assert.assertEquals(PutStatus.OK_PREPARED, status.element0());
+		// a concurrent update conflicts with the prepared version, which is not sent back
+		status = storage.putIfLatest(key3, new Data("test3").addBasedOn(key1.versionKey()), null, false);
+		Assert.assertEquals(PutStatus.VERSION_CONFLICT, status.element0());
+		Assert.assertTrue(status.element1().isEmpty());
+		Assert.assertNull(storage.get(key3));
+		// once the prepared version is gone, the concurrent update wins
+		Assert.assertEquals(PutStatus.OK, storage.abortPrepared(key2, null));
+		Assert.assertEquals(PutStatus.NOT_FOUND, storage.abortPrepared(key2, null));
+		status = storage.putIfLatest(key3, new Data("test3").addBasedOn(key1.versionKey()), null, false);
+		Assert.assertEquals(PutStatus.OK_PREPARED, status.element0());
+		Assert.assertEquals(PutStatus.OK, storage.putConfirm(null, key3, new Data()));
+		// a confirmed version is not removed
+		Assert.assertEquals(PutStatus.NOT_FOUND, storage.abortPrepared(key3, null));
+		// an update based on an old version gets the latest version back
+		status = storage.putIfLatest(key4, new Data("test4").addBasedOn(key1.versionKey()), null, false);
+		Assert.assertEquals(PutStatus.VERSION_CONFLICT, status.element0());
+		Assert.assertEquals(1, status.element1().size());
+		Assert.assertEquals("test3", status.element1().get(key3).object());
+		Assert.assertEquals(1, storage.getLatestVersion(key1).size());
+	}
+
 	@Test
 	public void testPutGetRangePrepare() throws Exception {
 		Storage storageM = createStorage();
@@ -307,6 +350,72 @@ public class TestStorage {
         Assert.assertEquals(true, tmp == null);
     }
 
+    @Test
+    public void testTTLExpiry() throws Exception {
+        Storage storageM = createStorage();
+        testTTLExpiry(new StorageLayer(storageM), storageM);
+        storageM.close();
+    }
+
+    private void testTTLExpiry(StorageLayer storage, Storage backend) throws Exception {
+        final Number160 locationKey2 = new Number160(11);
+        final Number640 key5 = new Number640(locationKey2, domainKey, content1, Number160.ZERO);
+        storage.put(key1, expired(), null, false, false, false);
+        storage.put(key2, expired(), null, false, false, false);
+        storage.put(key3, new Data("alive").ttlSeconds(60), null, false, false, false);
+        storage.put(key5, expired(), null, false, false, false);
+        storage.updateResponsibilities(locationKey, content1);
+        storage.updateResponsibilities(locationKey2, content1);
+        // expired entries are not returned before they are removed
+        Assert.assertNull(storage.get(key1));
+        Assert.assertFalse(storage.contains(key2));
+        Assert.assertEquals(1, storage.get(key1, key4, -1, true).size());
+        Assert.assertEquals(1, storage.digest(key1, key4, -1, true).size());
+        Assert.assertEquals(PutStatus.OK, storage.put(key2, new Data("again"), null, true, false, false));
+        Assert.assertEquals(4, backend.map().size());
+        // removed in batches
+        Assert.assertEquals(1, storage.checkTimeout(1));
+        storage.checkTimeout();
+        Assert.assertEquals(2, backend.map().size());
+        Assert.assertEquals("again", storage.get(key2).object());
+        Assert.assertEquals(content1, storage.findPeerIDsForResponsibleContent(locationKey));
+        Assert.assertNull(storage.findPeerIDsForResponsibleContent(locationKey2));
+        Assert.assertEquals(1, backend.subMapTimeout(Long.MAX_VALUE).size());
+    }
+
+    private static Data expired() throws IOException {
+        Data data = new Data("expired").ttlSeconds(1);
+        data.validFromMillis(System.currentTimeMillis() - 10000);
+        return data;
+    }
+
+    @Test
+    public void testTTLExpiryBenchmark() throws Exception {
+        Storage storageM = createStorage();
+        final int locations = 10000;
+        final int entries = 10;
+        // fill the backend directly, the storage layer picks up the existing entries
+        for (int i = 0; i < locations; i++) {
+            Number160 location = new Number160(i + 1);
+            for (int j = 0; j < entries; j++) {
+                Number640 key = new Number640(location, domainKey, new Number160(j + 1), Number160.ZERO);
+                Data data = expired();
+                storageM.put(key, data);
+                storageM.addTimeout(key, data.expirationMillis());
+            }
+            storageM.updateResponsibilities(location, content1);
+        }
+        StorageLayer storage = new StorageLayer(storageM);
+        long start = System.currentTimeMillis();
+        storage.checkTimeout();
+        long duration = System.currentTimeMillis() - start;
+        Assert.assertEquals(0, storageM.map().size());
+        Assert.assertTrue(storage.findContentForResponsiblePeerID(content1).isEmpty());
+        System.err.println("BENCHMARK: expire " + (locations * entries) + " entries in " + locations
+                + " locations STAT: " + duration + "ms");
+        storageM.close();
+    }
+
     @Test
     public void testResponsibility() throws Exception {
         Storage storageM = createStorage();
@@ -18,10 +18,12 @@ import java.util.TreeMap;
 import net.tomp2p.connection.ChannelCreator;
 import net.tomp2p.connection.ChannelServerConfiguration;
 import net.tomp2p.connection.DefaultConnectionConfiguration;
+import net.tomp2p.connection.RequestHandler;
 import net.tomp2p.dht.StorageLayer.PutStatus;
 import net.tomp2p.futures.FutureChannelCreator;
 import net.tomp2p.futures.FutureResponse;
 import net.tomp2p.message.DataMap;
+import net.tomp2p.message.KeyCollection;
 import net.tomp2p.message.KeyMapByte;
 import net.tomp2p.message.Message;
 import net.tomp2p.message.Message.Type;
@@ -33,6 +35,7 @@ import net.tomp2p.peers.Number640;
 import net.tomp2p.peers.PeerAddress;
 import net.tomp2p.rpc.NeighborRPC;
 import net.tomp2p.rpc.NeighborRPC.SearchValues;
+import net.tomp2p.rpc.RPC;
 import net.tomp2p.rpc.SimpleBloomFilter;
 import net.tomp2p.storage.Data;
 import net.tomp2p.utils.Utils;
@@ -1048,4 +1051,83 @@ public class TestStorageDHT {
             }
 		}
 	}
+
+    @Test
+    public void testGetRangeInvalid() throws Exception {
+        PeerDHT sender = null;
+        PeerDHT recv1 = null;
+        ChannelCreator cc = null;
+        try {
+            sender = new PeerBuilderDHT(new PeerBuilder(new Number160("0x50")).p2pId(55).ports(2424).start()).start();
+            recv1 = new PeerBuilderDHT(new PeerBuilder(new Number160("0x20")).p2pId(55).ports(8088).start()).start();
+            StorageRPC smmSender = sender.storeRPC();
+            final byte[] value = new byte[StorageRPC.MAX_RANGE_SIZE + 1000];
+            new Random(42L).nextBytes(value);
+            NavigableMap<Number160, Data> tmp = new TreeMap<Number160, Data>();
+            tmp.put(Number160.ZERO, new Data(value));
+
+            FutureChannelCreator fcc = recv1.peer().connectionBean().reservation().create(0, 1);
+            fcc.awaitUninterruptibly();
+            cc = fcc.channelCreator();
+
+            PutBuilder putBuilder = new PutBuilder(recv1, new Number160(33));
+            putBuilder.domainKey(Number160.ZERO);
+            putBuilder.dataMapContent(tmp);
+            putBuilder.versionKey(Number160.ZERO);
+            FutureResponse fr = smmSender.put(recv1.peerAddress(), putBuilder, cc);
+            fr.awaitUninterruptibly();
+            Assert.assertTrue(fr.isSuccess());
+
+            GetBuilder getBuilder = new GetBuilder(recv1, new Number160(33));
+            getBuilder.domainKey(Number160.ZERO);
+            getBuilder.contentKey(Number160.ZERO);
+            fr = smmSender.getRangeInfo(recv1.peerAddress(), getBuilder, cc).awaitUninterruptibly();
+            Assert.assertTrue(fr.isSuccess());
+            final Number640 key = fr.responseMessage().keyCollection(0).keys().iterator().next();
+            Assert.assertEquals(value.length, fr.responseMessage().intAt(0).intValue());
+
+            // the length is missing
+            Message message = smmSender.createMessage(recv1.peerAddress(), RPC.Commands.GET_RANGE.getNr(),
+                    Type.REQUEST_2);
+            message.keyCollection(new KeyCollection(Arrays.asList(key)));
+            message.intValue(0);
+            fr = new RequestHandler<FutureResponse>(new FutureResponse(message), sender.peer().peerBean(), sender
+                    .peer().connectionBean(), getBuilder).sendTCP(cc).awaitUninterruptibly();
+            Assert.assertTrue(fr.isFailed());
+            Assert.assertTrue(fr.failedReason(), fr.failedReason().contains("caused an exception on the other side"));
+
+            // offset + length overflows
+            fr = smmSender.getRange(recv1.peerAddress(), key, Integer.MAX_VALUE, 10, getBuilder, cc)
+                    .awaitUninterruptibly();
+            Assert.assertTrue(fr.isSuccess());
+            Assert.assertEquals(Type.NOT_FOUND, fr.responseMessage().type());
+            // larger than the maximum range size
+            fr = smmSender.getRange(recv1.peerAddress(), key, 10, Integer.MAX_VALUE, getBuilder, cc)
+                    .awaitUninterruptibly();
+            Assert.assertEquals(Type.DENIED, fr.responseMessage().type());
+            fr = smmSender.getRange(recv1.peerAddress(), key, 0, StorageRPC.MAX_RANGE_SIZE + 1, getBuilder, cc)
+                    .awaitUninterruptibly();
+            Assert.assertEquals(Type.DENIED, fr.responseMessage().type());
+            // past the end
+            fr = smmSender.getRange(recv1.peerAddress(), key, 1001, StorageRPC.MAX_RANGE_SIZE, getBuilder, cc)
+                    .awaitUninterruptibly();
+            Assert.assertEquals(Type.NOT_FOUND, fr.responseMessage().type());
+
+            fr = smmSender.getRange(recv1.peerAddress(), key, 1000, StorageRPC.MAX_RANGE_SIZE, getBuilder, cc)
+                    .awaitUninterruptibly();
+            Assert.assertEquals(Type.OK, fr.responseMessage().type());
+            Assert.assertArrayEquals(Arrays.copyOfRange(value, 1000, value.length), fr
+                    .responseMessage().dataMap(0).dataMap().values().iterator().next().toBytes());
+        } finally {
+            if (cc != null) {
+                cc.shutdown().awaitListenersUninterruptibly();
+            }
+            if (sender != null) {
+                sender.shutdown().await();
+            }
+            if (recv1 != null) {
+                recv1.shutdown().await();
+            }
+        }
+    }
 }
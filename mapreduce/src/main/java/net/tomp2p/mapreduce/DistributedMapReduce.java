@@ -0,0 +1,95 @@
+package net.tomp2p.mapreduce;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import net.tomp2p.connection.ChannelCreator;
+import net.tomp2p.dht.PeerDHT;
+import net.tomp2p.futures.BaseFutureAdapter;
+import net.tomp2p.futures.FutureDone;
+import net.tomp2p.futures.FutureResponse;
+import net.tomp2p.message.Message;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.storage.Data;
+
+/**
+ * Coordinates jobs. The coordinator sends the job to every worker and collects their reports, the data itself is
+ * only moved between the workers.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class DistributedMapReduce {
+
+	private static final Random RND = new Random();
+
+	private final PeerDHT peer;
+	private final MapReduceRPC mapReduceRPC;
+	private final JobExecutor jobExecutor;
+
+	public DistributedMapReduce(final PeerDHT peer, final MapReduceRPC mapReduceRPC, final JobExecutor jobExecutor) {
+		this.peer = peer;
+		this.mapReduceRPC = mapReduceRPC;
+		this.jobExecutor = jobExecutor;
+	}
+
+	@SuppressWarnings("unchecked")
+	public <K extends Serializable, V extends Serializable> FutureMapReduce<K, V> start(
+			final MapReduceBuilder<K, V> builder) {
+		final Set<PeerAddress> workerSet = new LinkedHashSet<PeerAddress>();
+		if (builder.workers() != null) {
+			workerSet.addAll(builder.workers());
+		} else {
+			workerSet.add(peer.peerAddress());
+			workerSet.addAll(peer.peerBean().peerMap().all());
+		}
+		final List<PeerAddress> workers = new ArrayList<PeerAddress>(workerSet);
+		final Number160 jobId = new Number160(RND);
+		final FutureMapReduce<K, V> futureMapReduce = new FutureMapReduce<K, V>(jobId, workers.size());
+		if (workers.isEmpty()) {
+			return futureMapReduce.failed("A job needs at least one worker");
+		}
+		final MapReduceJob<K, V> job = new MapReduceJob<K, V>(builder.mapper(), builder.combiner(),
+				builder.reducer());
+		final Data jobData;
+		final Data workersData;
+		try {
+			jobData = new Data(job);
+			workersData = new Data((Serializable) workers);
+		} catch (Exception e) {
+			return futureMapReduce.failed("Could not serialize the job", e);
+		}
+		jobExecutor.register(futureMapReduce, builder.timeoutSeconds());
+		for (final PeerAddress worker : workers) {
+			if (worker.peerId().equals(peer.peerID())) {
+				jobExecutor.start(mapReduceRPC, peer.peerAddress(), jobId,
+						(MapReduceJob<Serializable, Serializable>) (MapReduceJob<?, ?>) job, workers,
+						builder.domainKey(), builder.fromLocationKey(), builder.toLocationKey(),
+						builder.batchSize(), builder.timeoutSeconds());
+				continue;
+			}
+			final FutureDone<Message> futureDone = UtilsMapReduce.request(peer.peer(), new UtilsMapReduce.Request() {
+				@Override
+				public FutureResponse create(final ChannelCreator channelCreator) {
+					return mapReduceRPC.start(worker, jobId, builder.domainKey(), builder.fromLocationKey(),
+							builder.toLocationKey(), builder.batchSize(), builder.timeoutSeconds(), jobData,
+							workersData, builder, channelCreator);
+				}
+			});
+			futureDone.addListener(new BaseFutureAdapter<FutureDone<Message>>() {
+				@Override
+				public void operationComplete(final FutureDone<Message> future) throws Exception {
+					if (future.isFailed()) {
+						futureMapReduce.failed("Could not start the job on " + worker, future);
+					}
+				}
+			});
+		}
+		return futureMapReduce;
+	}
+}
@@ -0,0 +1,16 @@
+package net.tomp2p.mapreduce;
+
+/**
+ * Collects the intermediate key value pairs of a map function.
+ *
+ * @author Thomas Bocek
+ *
+ * @param <K>
+ *            The type of the intermediate keys
+ * @param <V>
+ *            The type of the intermediate values
+ */
+public interface Emitter<K, V> {
+
+	void emit(K key, V value);
+}
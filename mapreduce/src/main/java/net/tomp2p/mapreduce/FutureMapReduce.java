@@ -0,0 +1,148 @@
+package net.tomp2p.mapreduce;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import net.tomp2p.futures.BaseFutureImpl;
+import net.tomp2p.futures.FutureProgres;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.PeerAddress;
+
+/**
+ * The future of a job. It finishes when every worker has reduced its keys. The progress of the job can be observed
+ * with {@link #progress()}, every report of a worker finishes a progress future and creates the next one.
+ *
+ * @author Thomas Bocek
+ *
+ * @param <K>
+ *            The type of the intermediate keys
+ * @param <V>
+ *            The type of the values
+ */
+public class FutureMapReduce<K extends Serializable, V extends Serializable> extends
+		BaseFutureImpl<FutureMapReduce<K, V>> {
+
+	private final Number160 jobId;
+	private final int workers;
+	private final FutureProgres<JobProgress> firstProgress = new FutureProgres<JobProgress>();
+
+	private final Set<PeerAddress> mappers = new HashSet<PeerAddress>();
+	private final Set<PeerAddress> reducers = new HashSet<PeerAddress>();
+	private final Map<K, V> result = new HashMap<K, V>();
+	private FutureProgres<JobProgress> progress = firstProgress;
+	private long entriesMapped;
+	private long pairsShuffled;
+
+	public FutureMapReduce(final Number160 jobId, final int workers) {
+		this.jobId = jobId;
+		this.workers = workers;
+		self(this);
+	}
+
+	public Number160 jobId() {
+		return jobId;
+	}
+
+	/**
+	 * @return The number of peers that map and reduce
+	 */
+	public int workers() {
+		return workers;
+	}
+
+	/**
+	 * Called when a worker has mapped its data and shuffled all pairs.
+	 *
+	 * @param worker
+	 *            The worker
+	 * @param entries
+	 *            The number of entries the worker has read
+	 * @param pairs
+	 *            The number of pairs the worker has sent, after combining
+	 * @return This class
+	 */
+	public FutureMapReduce<K, V> mapped(final PeerAddress worker, final long entries, final long pairs) {
+		synchronized (lock) {
+			if (completed || !mappers.add(worker)) {
+				return this;
+			}
+			entriesMapped += entries;
+			pairsShuffled += pairs;
+			progress = progress.progres(snapshot(), false);
+		}
+		return this;
+	}
+
+	/**
+	 * Called when a worker has reduced its keys, finishes the future if this was the last worker.
+	 *
+	 * @param worker
+	 *            The worker
+	 * @param reduced
+	 *            The reduced values of the keys of this worker
+	 * @return This class
+	 */
+	public FutureMapReduce<K, V> reduced(final PeerAddress worker, final Map<K, V> reduced) {
+		synchronized (lock) {
+			if (completed || !reducers.add(worker)) {
+				return this;
+			}
+			result.putAll(reduced);
+			if (reducers.size() < workers) {
+				progress = progress.progres(snapshot(), false);
+				return this;
+			}
+			progress.progres(snapshot(), true);
+			if (!completedAndNotify()) {
+				return this;
+			}
+			type = FutureType.OK;
+		}
+		notifyListeners();
+		return this;
+	}
+
+	@Override
+	public FutureMapReduce<K, V> failed(final String failed) {
+		final FutureProgres<JobProgress> last;
+		synchronized (lock) {
+			last = progress;
+		}
+		super.failed(failed);
+		last.failed(failed);
+		return this;
+	}
+
+	/**
+	 * @return The first progress future, use {@link FutureProgres#next()} to get the following ones
+	 */
+	public FutureProgres<JobProgress> progress() {
+		return firstProgress;
+	}
+
+	/**
+	 * @return The current progress of the job
+	 */
+	public JobProgress currentProgress() {
+		synchronized (lock) {
+			return snapshot();
+		}
+	}
+
+	/**
+	 * @return The reduced value of every intermediate key
+	 */
+	public Map<K, V> result() {
+		synchronized (lock) {
+			return Collections.unmodifiableMap(result);
+		}
+	}
+
+	private JobProgress snapshot() {
+		return new JobProgress(workers, mappers.size(), reducers.size(), entriesMapped, pairsShuffled);
+	}
+}
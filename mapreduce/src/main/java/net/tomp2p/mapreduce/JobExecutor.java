@@ -0,0 +1,450 @@
+package net.tomp2p.mapreduce;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import net.tomp2p.connection.ChannelCreator;
+import net.tomp2p.connection.DefaultConnectionConfiguration;
+import net.tomp2p.dht.PeerDHT;
+import net.tomp2p.futures.FutureDone;
+import net.tomp2p.futures.FutureResponse;
+import net.tomp2p.message.Message;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
+import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.storage.Data;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the jobs on this peer. As a worker, this peer maps the entries it is responsible for, sends the intermediate
+ * pairs in batches to the reducers and reduces the keys that hash to it. As a coordinator, this peer collects the
+ * reports of the workers of its jobs.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class JobExecutor {
+
+	private static final Logger LOG = LoggerFactory.getLogger(JobExecutor.class);
+
+	private static final int CHUNK_SIZE = 1024;
+
+	private final PeerDHT peer;
+	private final ExecutorService executorService;
+	private final DefaultConnectionConfiguration configuration = new DefaultConnectionConfiguration();
+
+	private final ConcurrentMap<Number160, Task> tasks = new ConcurrentHashMap<Number160, Task>();
+	private final ConcurrentMap<Number160, FutureMapReduce<Serializable, Serializable>> jobs = new ConcurrentHashMap<Number160, FutureMapReduce<Serializable, Serializable>>();
+
+	public JobExecutor(final PeerDHT peer, final ExecutorService executorService) {
+		this.peer = peer;
+		this.executorService = executorService;
+	}
+
+	/**
+	 * The state of a job on a worker. The job is null until the start request arrives, batches of faster mappers may
+	 * arrive before.
+	 */
+	private static class Task {
+		private final Number160 jobId;
+		private final Map<Serializable, List<Serializable>> values = new HashMap<Serializable, List<Serializable>>();
+		private MapReduceJob<Serializable, Serializable> job;
+		private PeerAddress coordinator;
+		private List<PeerAddress> workers;
+		private int timeoutSeconds;
+		private int mappersDone;
+		private boolean reducing;
+
+		private Task(final Number160 jobId) {
+			this.jobId = jobId;
+		}
+	}
+
+	/**
+	 * Registers a job that this peer coordinates. The job fails if it does not finish in time.
+	 *
+	 * @param futureMapReduce
+	 *            The future of the job
+	 * @param timeoutSeconds
+	 *            The time the job has to finish
+	 */
+	@SuppressWarnings("unchecked")
+	public void register(final FutureMapReduce<?, ?> futureMapReduce, final int timeoutSeconds) {
+		final Number160 jobId = futureMapReduce.jobId();
+		jobs.put(jobId, (FutureMapReduce<Serializable, Serializable>) futureMapReduce);
+		peer.peer().connectionBean().timer().schedule(new Runnable() {
+			@Override
+			public void run() {
+				jobs.remove(jobId);
+				futureMapReduce.failed("Job did not finish within " + timeoutSeconds + " seconds");
+			}
+		}, timeoutSeconds, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Handles the report of a worker of a job that this peer coordinates.
+	 *
+	 * @param data
+	 *            The reduced values, the reason of a failure, or null
+	 */
+	@SuppressWarnings("unchecked")
+	public void report(final Number160 jobId, final PeerAddress worker, final int phase, final long entries,
+			final long pairs, final Object data) {
+		final FutureMapReduce<Serializable, Serializable> futureMapReduce = jobs.get(jobId);
+		if (futureMapReduce == null) {
+			LOG.debug("report of an unknown or finished job {} from {}", jobId, worker);
+			return;
+		}
+		if (phase == MapReduceRPC.PHASE_MAPPED) {
+			futureMapReduce.mapped(worker, entries, pairs);
+		} else if (phase == MapReduceRPC.PHASE_REDUCED) {
+			futureMapReduce.reduced(worker, (Map<Serializable, Serializable>) data);
+		} else {
+			futureMapReduce.failed("Worker " + worker + " failed: " + data);
+		}
+		if (futureMapReduce.isCompleted()) {
+			jobs.remove(jobId);
+		}
+	}
+
+	/**
+	 * Starts a job on this worker, the entries are mapped in the background.
+	 *
+	 * @param workers
+	 *            All workers of the job, the same list on every worker
+	 * @param domainKey
+	 *            The domain of the entries that are mapped
+	 * @param fromLocationKey
+	 *            The first location key of the entries that are mapped
+	 * @param toLocationKey
+	 *            The last location key of the entries that are mapped
+	 * @param batchSize
+	 *            The number of intermediate values that are buffered before they are combined and sent
+	 * @param timeoutSeconds
+	 *            The time after which the state of the job is removed
+	 */
+	public void start(final MapReduceRPC rpc, final PeerAddress coordinator, final Number160 jobId,
+			final MapReduceJob<Serializable, Serializable> job, final List<PeerAddress> workers,
+			final Number160 domainKey, final Number160 fromLocationKey, final Number160 toLocationKey,
+			final int batchSize, final int timeoutSeconds) {
+		if (peer.peer().isShutdown()) {
+			return;
+		}
+		final Task task = task(jobId, timeoutSeconds);
+		synchronized (task) {
+			if (task.job != null) {
+				return;
+			}
+			final List<PeerAddress> sorted = new ArrayList<PeerAddress>(workers);
+			Collections.sort(sorted);
+			task.job = job;
+			task.coordinator = coordinator;
+			task.workers = sorted;
+			task.timeoutSeconds = timeoutSeconds;
+		}
+		executorService.execute(new Runnable() {
+			@Override
+			public void run() {
+				map(rpc, task, domainKey, fromLocationKey, toLocationKey, batchSize);
+			}
+		});
+	}
+
+	/**
+	 * Adds a batch of intermediate pairs to the keys that this worker reduces. The keys are reduced once every mapper
+	 * has sent its last batch.
+	 */
+	public void shuffle(final MapReduceRPC rpc, final Number160 jobId,
+			final Map<Serializable, List<Serializable>> batch, final boolean last, final int timeoutSeconds) {
+		if (peer.peer().isShutdown()) {
+			return;
+		}
+		final Task task = task(jobId, timeoutSeconds);
+		synchronized (task) {
+			if (task.reducing) {
+				LOG.warn("batch after the last batch for job {}", jobId);
+				return;
+			}
+			for (Map.Entry<Serializable, List<Serializable>> entry : batch.entrySet()) {
+				final List<Serializable> values = task.values.get(entry.getKey());
+				if (values == null) {
+					task.values.put(entry.getKey(), new ArrayList<Serializable>(entry.getValue()));
+				} else {
+					values.addAll(entry.getValue());
+				}
+			}
+			if (last) {
+				task.mappersDone++;
+			}
+		}
+		reduceIfReady(rpc, task);
+	}
+
+	/**
+	 * @return The number of jobs that this peer works on
+	 */
+	public int tasks() {
+		return tasks.size();
+	}
+
+	/**
+	 * @return The number of jobs that this peer coordinates
+	 */
+	public int jobs() {
+		return jobs.size();
+	}
+
+	public void shutdown() {
+		executorService.shutdownNow();
+	}
+
+	private Task task(final Number160 jobId, final int timeoutSeconds) {
+		final Task task = new Task(jobId);
+		final Task existing = tasks.putIfAbsent(jobId, task);
+		if (existing != null) {
+			return existing;
+		}
+		// the state of a job that failed or whose start request never arrived is removed eventually
+		try {
+			peer.peer().connectionBean().timer().schedule(new Runnable() {
+				@Override
+				public void run() {
+					tasks.remove(jobId, task);
+				}
+			}, timeoutSeconds, TimeUnit.SECONDS);
+		} catch (RejectedExecutionException e) {
+			LOG.debug("timer is shut down, job {} is not removed", jobId);
+		}
+		return task;
+	}
+
+	private void map(final MapReduceRPC rpc, final Task task, final Number160 domainKey,
+			final Number160 fromLocationKey, final Number160 toLocationKey, final int batchSize) {
+		final Shuffle shuffle = new Shuffle(rpc, task, batchSize);
+		final Number640 to = new Number640(toLocationKey, domainKey, Number160.MAX_VALUE, Number160.MAX_VALUE);
+		Number640 from = new Number640(fromLocationKey, domainKey, Number160.ZERO, Number160.ZERO);
+		Number640 last = null;
+		Number160 locationKey = null;
+		boolean responsible = false;
+		long entries = 0;
+		try {
+			while (true) {
+				final NavigableMap<Number640, Data> chunk = peer.storageLayer().get(from, to, CHUNK_SIZE, true);
+				boolean progress = false;
+				for (Map.Entry<Number640, Data> entry : chunk.entrySet()) {
+					final Number640 key = entry.getKey();
+					// the last entry of the previous chunk
+					if (last != null && key.compareTo(last) <= 0) {
+						continue;
+					}
+					progress = true;
+					last = key;
+					if (!key.domainKey().equals(domainKey)) {
+						continue;
+					}
+					// only the worker closest to a location key maps it, such that replicas are not counted twice
+					if (!key.locationKey().equals(locationKey)) {
+						locationKey = key.locationKey();
+						responsible = UtilsMapReduce.responsible(task.workers, locationKey).peerId()
+								.equals(peer.peerID());
+					}
+					if (!responsible) {
+						continue;
+					}
+					task.job.mapper().map(key, entry.getValue(), shuffle);
+					entries++;
+					if (shuffle.isFull()) {
+						shuffle.send(shuffle.drain(false), false);
+					}
+				}
+				// expired entries are removed after the limit is applied, thus, only an empty chunk marks the end
+				if (!progress) {
+					break;
+				}
+				from = last;
+			}
+			final Map<PeerAddress, HashMap<Serializable, List<Serializable>>> batches = shuffle.drain(true);
+			// the coordinator learns that this mapper is done before any reducer can finish
+			report(rpc, task, MapReduceRPC.PHASE_MAPPED, entries, shuffle.pairs(), null);
+			shuffle.send(batches, true);
+		} catch (Exception e) {
+			LOG.warn("map of job {} failed", task.jobId, e);
+			tasks.remove(task.jobId, task);
+			report(rpc, task, MapReduceRPC.PHASE_FAILED, entries, shuffle.pairs(), e.toString());
+		}
+	}
+
+	private void reduceIfReady(final MapReduceRPC rpc, final Task task) {
+		synchronized (task) {
+			if (task.job == null || task.reducing || task.mappersDone < task.workers.size()) {
+				return;
+			}
+			task.reducing = true;
+		}
+		executorService.execute(new Runnable() {
+			@Override
+			public void run() {
+				final HashMap<Serializable, Serializable> result = new HashMap<Serializable, Serializable>();
+				try {
+					for (Map.Entry<Serializable, List<Serializable>> entry : task.values.entrySet()) {
+						result.put(entry.getKey(), task.job.reducer().reduce(entry.getKey(), entry.getValue()));
+					}
+				} catch (Exception e) {
+					LOG.warn("reduce of job {} failed", task.jobId, e);
+					report(rpc, task, MapReduceRPC.PHASE_FAILED, 0, 0, e.toString());
+					return;
+				} finally {
+					tasks.remove(task.jobId, task);
+				}
+				report(rpc, task, MapReduceRPC.PHASE_REDUCED, 0, 0, result);
+			}
+		});
+	}
+
+	private void report(final MapReduceRPC rpc, final Task task, final int phase, final long entries,
+			final long pairs, final Serializable data) {
+		if (task.coordinator.peerId().equals(peer.peerID())) {
+			report(task.jobId, peer.peerAddress(), phase, entries, pairs, data);
+			return;
+		}
+		try {
+			final Data encoded = data == null ? null : new Data(data);
+			final FutureDone<Message> futureDone = UtilsMapReduce.request(peer.peer(),
+					new UtilsMapReduce.Request() {
+						@Override
+						public FutureResponse create(final ChannelCreator channelCreator) {
+							return rpc.report(task.coordinator, task.jobId, phase, entries, pairs, encoded,
+									configuration, channelCreator);
+						}
+					});
+			if (!futureDone.awaitUninterruptibly().isSuccess()) {
+				LOG.warn("could not report job {} to {}: {}", task.jobId, task.coordinator,
+						futureDone.failedReason());
+			}
+		} catch (Exception e) {
+			LOG.warn("could not report job {} to {}", task.jobId, task.coordinator, e);
+		}
+	}
+
+	/**
+	 * Buffers the intermediate pairs of a mapper. If the buffer is full, the values of a key are combined and sent to
+	 * the reducers, unless combining has freed enough room to keep on buffering.
+	 */
+	private class Shuffle implements Emitter<Serializable, Serializable> {
+		private final MapReduceRPC rpc;
+		private final Task task;
+		private final int batchSize;
+		private final Map<Serializable, List<Serializable>> buffer = new HashMap<Serializable, List<Serializable>>();
+		private int values;
+		private long pairs;
+
+		private Shuffle(final MapReduceRPC rpc, final Task task, final int batchSize) {
+			this.rpc = rpc;
+			this.task = task;
+			this.batchSize = batchSize;
+		}
+
+		@Override
+		public void emit(final Serializable key, final Serializable value) {
+			List<Serializable> list = buffer.get(key);
+			if (list == null) {
+				list = new ArrayList<Serializable>(1);
+				buffer.put(key, list);
+			}
+			list.add(value);
+			values++;
+		}
+
+		private boolean isFull() {
+			return values >= batchSize;
+		}
+
+		private long pairs() {
+			return pairs;
+		}
+
+		/**
+		 * Combines the buffered values and removes them from the buffer.
+		 *
+		 * @return The batch of every reducer, or null if combining has freed enough room to keep on buffering
+		 */
+		private Map<PeerAddress, HashMap<Serializable, List<Serializable>>> drain(final boolean last)
+				throws Exception {
+			final Reducer<Serializable, Serializable> combiner = task.job.combiner();
+			if (combiner != null) {
+				for (Map.Entry<Serializable, List<Serializable>> entry : buffer.entrySet()) {
+					if (entry.getValue().size() > 1) {
+						final List<Serializable> combined = new ArrayList<Serializable>(1);
+						combined.add(combiner.reduce(entry.getKey(), entry.getValue()));
+						entry.setValue(combined);
+					}
+				}
+				values = buffer.size();
+				if (!last && values < batchSize / 2) {
+					return null;
+				}
+			}
+			final Map<PeerAddress, HashMap<Serializable, List<Serializable>>> batches = new HashMap<PeerAddress, HashMap<Serializable, List<Serializable>>>();
+			if (last) {
+				// every reducer needs the last batch of every mapper, even if it is empty
+				for (PeerAddress worker : task.workers) {
+					batches.put(worker, new HashMap<Serializable, List<Serializable>>());
+				}
+			}
+			for (Map.Entry<Serializable, List<Serializable>> entry : buffer.entrySet()) {
+				final PeerAddress reducer = UtilsMapReduce.reducer(task.workers, entry.getKey());
+				HashMap<Serializable, List<Serializable>> batch = batches.get(reducer);
+				if (batch == null) {
+					batch = new HashMap<Serializable, List<Serializable>>();
+					batches.put(reducer, batch);
+				}
+				batch.put(entry.getKey(), entry.getValue());
+			}
+			pairs += values;
+			buffer.clear();
+			values = 0;
+			return batches;
+		}
+
+		private void send(final Map<PeerAddress, HashMap<Serializable, List<Serializable>>> batches,
+				final boolean last) throws Exception {
+			if (batches == null) {
+				return;
+			}
+			final List<FutureDone<Message>> futures = new ArrayList<FutureDone<Message>>(batches.size());
+			for (Map.Entry<PeerAddress, HashMap<Serializable, List<Serializable>>> entry : batches.entrySet()) {
+				final PeerAddress reducer = entry.getKey();
+				if (reducer.peerId().equals(peer.peerID())) {
+					shuffle(rpc, task.jobId, entry.getValue(), last, task.timeoutSeconds);
+					continue;
+				}
+				final Data batch = new Data(entry.getValue());
+				futures.add(UtilsMapReduce.request(peer.peer(), new UtilsMapReduce.Request() {
+					@Override
+					public FutureResponse create(final ChannelCreator channelCreator) {
+						return rpc.shuffle(reducer, task.jobId, batch, last, task.timeoutSeconds, configuration,
+								channelCreator);
+					}
+				}));
+			}
+			// the next batch is sent after the reducers have received this one, such that the last batch arrives last
+			for (FutureDone<Message> futureDone : futures) {
+				if (!futureDone.awaitUninterruptibly().isSuccess()) {
+					throw new Exception("Could not send a batch: " + futureDone.failedReason());
+				}
+			}
+		}
+	}
+}
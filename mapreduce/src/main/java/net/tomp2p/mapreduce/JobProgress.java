@@ -0,0 +1,73 @@
+package net.tomp2p.mapreduce;
+
+/**
+ * A snapshot of the progress of a job.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class JobProgress {
+
+	private final int workers;
+	private final int mappersDone;
+	private final int reducersDone;
+	private final long entriesMapped;
+	private final long pairsShuffled;
+
+	public JobProgress(final int workers, final int mappersDone, final int reducersDone, final long entriesMapped,
+			final long pairsShuffled) {
+		this.workers = workers;
+		this.mappersDone = mappersDone;
+		this.reducersDone = reducersDone;
+		this.entriesMapped = entriesMapped;
+		this.pairsShuffled = pairsShuffled;
+	}
+
+	/**
+	 * @return The number of peers that map and reduce
+	 */
+	public int workers() {
+		return workers;
+	}
+
+	/**
+	 * @return The number of peers that have mapped their data and shuffled all pairs
+	 */
+	public int mappersDone() {
+		return mappersDone;
+	}
+
+	/**
+	 * @return The number of peers that have reduced their keys
+	 */
+	public int reducersDone() {
+		return reducersDone;
+	}
+
+	/**
+	 * @return The number of entries that the finished mappers have read
+	 */
+	public long entriesMapped() {
+		return entriesMapped;
+	}
+
+	/**
+	 * @return The number of pairs that the finished mappers have sent to reducers, after combining
+	 */
+	public long pairsShuffled() {
+		return pairsShuffled;
+	}
+
+	/**
+	 * @return True if all peers have reduced their keys
+	 */
+	public boolean isDone() {
+		return reducersDone == workers;
+	}
+
+	@Override
+	public String toString() {
+		return "progress[mapped " + mappersDone + "/" + workers + ", reduced " + reducersDone + "/" + workers
+				+ ", entries " + entriesMapped + ", shuffled " + pairsShuffled + "]";
+	}
+}
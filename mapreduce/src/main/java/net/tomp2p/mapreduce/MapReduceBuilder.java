@@ -0,0 +1,181 @@
+package net.tomp2p.mapreduce;
+
+import java.io.Serializable;
+import java.util.Collection;
+
+import net.tomp2p.connection.DefaultConnectionConfiguration;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.PeerAddress;
+
+/**
+ * Runs a map function over the entries stored in the DHT and reduces the intermediate pairs on the workers. Every
+ * worker maps the entries it is responsible for, thus, only the reduced values are sent to this peer.
+ *
+ * @author Thomas Bocek
+ *
+ * @param <K>
+ *            The type of the intermediate keys
+ * @param <V>
+ *            The type of the values
+ */
+public class MapReduceBuilder<K extends Serializable, V extends Serializable> extends DefaultConnectionConfiguration {
+
+	public static final int DEFAULT_BATCH_SIZE = 1000;
+
+	public static final int DEFAULT_TIMEOUT_SECONDS = 60;
+
+	private final PeerMapReduce peer;
+	private final Mapper<K, V> mapper;
+	private final Reducer<K, V> reducer;
+
+	private Reducer<K, V> combiner;
+	private Number160 domainKey;
+	private Number160 fromLocationKey;
+	private Number160 toLocationKey;
+	private Collection<PeerAddress> workers;
+	private int batchSize = -1;
+	private int timeoutSeconds = -1;
+
+	public MapReduceBuilder(final PeerMapReduce peer, final Mapper<K, V> mapper, final Reducer<K, V> reducer) {
+		this.peer = peer;
+		this.mapper = mapper;
+		this.reducer = reducer;
+	}
+
+	public Mapper<K, V> mapper() {
+		return mapper;
+	}
+
+	public Reducer<K, V> reducer() {
+		return reducer;
+	}
+
+	public Reducer<K, V> combiner() {
+		return combiner;
+	}
+
+	/**
+	 * @param combiner
+	 *            Combines the values of a key on the mapping peer before they are sent to the reducer
+	 * @return This class
+	 */
+	public MapReduceBuilder<K, V> combiner(final Reducer<K, V> combiner) {
+		this.combiner = combiner;
+		return this;
+	}
+
+	public Number160 domainKey() {
+		return domainKey;
+	}
+
+	public MapReduceBuilder<K, V> domainKey(final Number160 domainKey) {
+		this.domainKey = domainKey;
+		return this;
+	}
+
+	public Number160 fromLocationKey() {
+		return fromLocationKey;
+	}
+
+	public MapReduceBuilder<K, V> fromLocationKey(final Number160 fromLocationKey) {
+		this.fromLocationKey = fromLocationKey;
+		return this;
+	}
+
+	public Number160 toLocationKey() {
+		return toLocationKey;
+	}
+
+	public MapReduceBuilder<K, V> toLocationKey(final Number160 toLocationKey) {
+		this.toLocationKey = toLocationKey;
+		return this;
+	}
+
+	/**
+	 * Maps only the entries of one location key.
+	 *
+	 * @param locationKey
+	 *            The location key
+	 * @return This class
+	 */
+	public MapReduceBuilder<K, V> locationKey(final Number160 locationKey) {
+		this.fromLocationKey = locationKey;
+		this.toLocationKey = locationKey;
+		return this;
+	}
+
+	public Collection<PeerAddress> workers() {
+		return workers;
+	}
+
+	/**
+	 * @param workers
+	 *            The peers that map and reduce. The default is this peer and all peers in its peer map. Entries
+	 *            whose closest worker does not store them are not mapped.
+	 * @return This class
+	 */
+	public MapReduceBuilder<K, V> workers(final Collection<PeerAddress> workers) {
+		this.workers = workers;
+		return this;
+	}
+
+	public int batchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * @param batchSize
+	 *            The number of intermediate values a mapper buffers before it combines them and sends them to the
+	 *            reducers
+	 * @return This class
+	 */
+	public MapReduceBuilder<K, V> batchSize(final int batchSize) {
+		this.batchSize = batchSize;
+		return this;
+	}
+
+	public int timeoutSeconds() {
+		return timeoutSeconds;
+	}
+
+	/**
+	 * @param timeoutSeconds
+	 *            The time the job has to finish, after which the future fails and the workers drop the job
+	 * @return This class
+	 */
+	public MapReduceBuilder<K, V> timeoutSeconds(final int timeoutSeconds) {
+		this.timeoutSeconds = timeoutSeconds;
+		return this;
+	}
+
+	public FutureMapReduce<K, V> start() {
+		if (peer.peer().isShutdown()) {
+			return new FutureMapReduce<K, V>(Number160.ZERO, 0).failed("Peer is shutting down");
+		}
+		if (mapper == null || reducer == null) {
+			throw new IllegalArgumentException("A job needs a mapper and a reducer");
+		}
+		if (domainKey == null) {
+			domainKey = Number160.ZERO;
+		}
+		if (fromLocationKey == null) {
+			fromLocationKey = Number160.ZERO;
+		}
+		if (toLocationKey == null) {
+			toLocationKey = Number160.MAX_VALUE;
+		}
+		if (batchSize == -1) {
+			batchSize = DEFAULT_BATCH_SIZE;
+		}
+		if (batchSize <= 0) {
+			throw new IllegalArgumentException("The batch size must be positive");
+		}
+		if (timeoutSeconds == -1) {
+			timeoutSeconds = DEFAULT_TIMEOUT_SECONDS;
+		}
+		if (timeoutSeconds <= 0) {
+			throw new IllegalArgumentException("The timeout must be positive");
+		}
+		return peer.distributedMapReduce().start(this);
+	}
+}
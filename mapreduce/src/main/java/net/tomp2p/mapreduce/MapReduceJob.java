@@ -0,0 +1,43 @@
+package net.tomp2p.mapreduce;
+
+import java.io.Serializable;
+
+/**
+ * The functions of a job, this is what is sent to the workers.
+ *
+ * @author Thomas Bocek
+ *
+ * @param <K>
+ *            The type of the intermediate keys
+ * @param <V>
+ *            The type of the values
+ */
+public class MapReduceJob<K extends Serializable, V extends Serializable> implements Serializable {
+
+	private static final long serialVersionUID = -2893471830364553817L;
+
+	private final Mapper<K, V> mapper;
+	private final Reducer<K, V> combiner;
+	private final Reducer<K, V> reducer;
+
+	public MapReduceJob(final Mapper<K, V> mapper, final Reducer<K, V> combiner, final Reducer<K, V> reducer) {
+		this.mapper = mapper;
+		this.combiner = combiner;
+		this.reducer = reducer;
+	}
+
+	public Mapper<K, V> mapper() {
+		return mapper;
+	}
+
+	/**
+	 * @return The combiner that is applied on the mapping peer before the shuffle, or null
+	 */
+	public Reducer<K, V> combiner() {
+		return combiner;
+	}
+
+	public Reducer<K, V> reducer() {
+		return reducer;
+	}
+}
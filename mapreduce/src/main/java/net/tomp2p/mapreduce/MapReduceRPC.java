@@ -0,0 +1,189 @@
+package net.tomp2p.mapreduce;
+
+import java.io.Serializable;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import net.tomp2p.connection.ChannelCreator;
+import net.tomp2p.connection.ConnectionBean;
+import net.tomp2p.connection.ConnectionConfiguration;
+import net.tomp2p.connection.PeerBean;
+import net.tomp2p.connection.PeerConnection;
+import net.tomp2p.connection.RequestHandler;
+import net.tomp2p.connection.Responder;
+import net.tomp2p.futures.FutureResponse;
+import net.tomp2p.message.DataMap;
+import net.tomp2p.message.Message;
+import net.tomp2p.message.Message.Type;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
+import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.rpc.DispatchHandler;
+import net.tomp2p.rpc.RPC;
+import net.tomp2p.storage.Data;
+import net.tomp2p.utils.Utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The RPC between the coordinator and the workers of a job. All requests use TCP, since jobs and batches do not fit
+ * into a UDP packet.
+ * <ul>
+ * <li>REQUEST_1 starts a job on a worker, the worker maps its data in the background</li>
+ * <li>REQUEST_2 sends a batch of intermediate pairs from a mapper to a reducer</li>
+ * <li>REQUEST_3 reports the progress of a worker to the coordinator</li>
+ * </ul>
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class MapReduceRPC extends DispatchHandler {
+
+	private static final Logger LOG = LoggerFactory.getLogger(MapReduceRPC.class);
+
+	public static final int PHASE_MAPPED = 1;
+	public static final int PHASE_REDUCED = 2;
+	public static final int PHASE_FAILED = 3;
+
+	private final JobExecutor jobExecutor;
+
+	public MapReduceRPC(final PeerBean peerBean, final ConnectionBean connectionBean, final JobExecutor jobExecutor) {
+		super(peerBean, connectionBean);
+		register(RPC.Commands.MAP_REDUCE.getNr());
+		this.jobExecutor = jobExecutor;
+	}
+
+	/**
+	 * Starts a job on a worker.
+	 *
+	 * @param job
+	 *            The serialized {@link MapReduceJob}
+	 * @param workers
+	 *            The serialized list of all workers
+	 */
+	public FutureResponse start(final PeerAddress remotePeer, final Number160 jobId, final Number160 domainKey,
+			final Number160 fromLocationKey, final Number160 toLocationKey, final int batchSize,
+			final int timeoutSeconds, final Data job, final Data workers, final ConnectionConfiguration configuration,
+			final ChannelCreator channelCreator) {
+		Utils.nullCheck(remotePeer, jobId, domainKey, fromLocationKey, toLocationKey, job, workers);
+		final Message message = createMessage(remotePeer, RPC.Commands.MAP_REDUCE.getNr(), Type.REQUEST_1);
+		message.key(jobId);
+		message.key(domainKey);
+		message.key(fromLocationKey);
+		message.key(toLocationKey);
+		message.intValue(batchSize);
+		message.intValue(timeoutSeconds);
+		message.setDataMap(dataMap(jobId, job, workers));
+		return send(message, configuration, channelCreator);
+	}
+
+	/**
+	 * Sends a batch of intermediate pairs to a reducer.
+	 *
+	 * @param batch
+	 *            The serialized map of intermediate keys to their values
+	 * @param last
+	 *            True if this is the last batch of the mapper for this reducer
+	 */
+	public FutureResponse shuffle(final PeerAddress remotePeer, final Number160 jobId, final Data batch,
+			final boolean last, final int timeoutSeconds, final ConnectionConfiguration configuration,
+			final ChannelCreator channelCreator) {
+		Utils.nullCheck(remotePeer, jobId, batch);
+		final Message message = createMessage(remotePeer, RPC.Commands.MAP_REDUCE.getNr(), Type.REQUEST_2);
+		message.key(jobId);
+		message.intValue(last ? 1 : 0);
+		message.intValue(timeoutSeconds);
+		message.setDataMap(dataMap(jobId, batch));
+		return send(message, configuration, channelCreator);
+	}
+
+	/**
+	 * Reports the progress of a worker to the coordinator.
+	 *
+	 * @param phase
+	 *            {@link #PHASE_MAPPED}, {@link #PHASE_REDUCED} or {@link #PHASE_FAILED}
+	 * @param data
+	 *            The serialized reduced values, or the reason of a failure
+	 */
+	public FutureResponse report(final PeerAddress remotePeer, final Number160 jobId, final int phase,
+			final long entries, final long pairs, final Data data, final ConnectionConfiguration configuration,
+			final ChannelCreator channelCreator) {
+		Utils.nullCheck(remotePeer, jobId);
+		final Message message = createMessage(remotePeer, RPC.Commands.MAP_REDUCE.getNr(), Type.REQUEST_3);
+		message.key(jobId);
+		message.intValue(phase);
+		message.longValue(entries);
+		message.longValue(pairs);
+		if (data != null) {
+			message.setDataMap(dataMap(jobId, data));
+		}
+		return send(message, configuration, channelCreator);
+	}
+
+	private FutureResponse send(final Message message, final ConnectionConfiguration configuration,
+			final ChannelCreator channelCreator) {
+		final FutureResponse futureResponse = new FutureResponse(message);
+		final RequestHandler<FutureResponse> requestHandler = new RequestHandler<FutureResponse>(futureResponse,
+				peerBean(), connectionBean(), configuration);
+		LOG.debug("map reduce {}", message);
+		return requestHandler.sendTCP(channelCreator);
+	}
+
+	private static DataMap dataMap(final Number160 jobId, final Data... data) {
+		final NavigableMap<Number640, Data> dataMap = new TreeMap<Number640, Data>();
+		for (int i = 0; i < data.length; i++) {
+			dataMap.put(new Number640(jobId, Number160.ZERO, new Number160(i), Number160.ZERO), data[i]);
+		}
+		return new DataMap(dataMap);
+	}
+
+	private static Object object(final Message message, final int index) throws Exception {
+		final DataMap dataMap = message.dataMap(0);
+		if (dataMap == null || dataMap.size() <= index) {
+			throw new IllegalArgumentException("Message content is wrong");
+		}
+		final Data data = dataMap.dataMap().get(
+				new Number640(message.key(0), Number160.ZERO, new Number160(index), Number160.ZERO));
+		if (data == null) {
+			throw new IllegalArgumentException("Message content is wrong");
+		}
+		return data.object();
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public void handleResponse(final Message message, final PeerConnection peerConnection, final boolean sign,
+			final Responder responder) throws Exception {
+		if (!((message.type() == Type.REQUEST_1 || message.type() == Type.REQUEST_2 || message.type() == Type.REQUEST_3)
+				&& message.key(0) != null && message.intAt(0) != null)) {
+			throw new IllegalArgumentException("Message content is wrong");
+		}
+		final Number160 jobId = message.key(0);
+		if (message.type() == Type.REQUEST_1) {
+			if (message.key(3) == null || message.intAt(1) == null) {
+				throw new IllegalArgumentException("Message content is wrong");
+			}
+			jobExecutor.start(this, message.sender(), jobId,
+					(MapReduceJob<Serializable, Serializable>) object(message, 0),
+					(List<PeerAddress>) object(message, 1), message.key(1), message.key(2), message.key(3),
+					message.intAt(0), message.intAt(1));
+		} else if (message.type() == Type.REQUEST_2) {
+			if (message.intAt(1) == null) {
+				throw new IllegalArgumentException("Message content is wrong");
+			}
+			jobExecutor.shuffle(this, jobId, (Map<Serializable, List<Serializable>>) object(message, 0),
+					message.intAt(0) == 1, message.intAt(1));
+		} else {
+			if (message.longAt(1) == null) {
+				throw new IllegalArgumentException("Message content is wrong");
+			}
+			final int phase = message.intAt(0);
+			jobExecutor.report(jobId, message.sender(), phase, message.longAt(0), message.longAt(1),
+					phase == PHASE_MAPPED ? null : object(message, 0));
+		}
+		responder.response(createResponseMessage(message, Type.OK));
+	}
+}
@@ -0,0 +1,32 @@
+package net.tomp2p.mapreduce;
+
+import java.io.Serializable;
+
+import net.tomp2p.peers.Number640;
+import net.tomp2p.storage.Data;
+
+/**
+ * A map function, it runs on the peer that is responsible for the data and emits intermediate key value pairs. The
+ * function is serialized and sent to every worker, thus, its class needs to be on the classpath of every peer.
+ *
+ * @author Thomas Bocek
+ *
+ * @param <K>
+ *            The type of the intermediate keys
+ * @param <V>
+ *            The type of the intermediate values
+ */
+public interface Mapper<K extends Serializable, V extends Serializable> extends Serializable {
+
+	/**
+	 * @param key
+	 *            The key of an entry stored on this peer
+	 * @param data
+	 *            The data of the entry
+	 * @param emitter
+	 *            Receives the intermediate key value pairs
+	 * @throws Exception
+	 *             Fails the job
+	 */
+	void map(Number640 key, Data data, Emitter<K, V> emitter) throws Exception;
+}
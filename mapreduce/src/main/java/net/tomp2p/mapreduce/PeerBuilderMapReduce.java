@@ -0,0 +1,64 @@
+package net.tomp2p.mapreduce;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import java.util.concurrent.Executors;
+
+import net.tomp2p.dht.PeerDHT;
+import net.tomp2p.futures.BaseFuture;
+import net.tomp2p.futures.FutureDone;
+import net.tomp2p.p2p.Shutdown;
+
+public class PeerBuilderMapReduce {
+
+	/**
+	 * Map and reduce functions run on these threads, such that they do not block the network threads. The threads
+	 * wait for the batches they send, thus, their names must not start with the name of the network threads.
+	 */
+	public static final int DEFAULT_THREADS = 2;
+
+	private final PeerDHT peerDHT;
+
+	private int threads = -1;
+
+	public PeerBuilderMapReduce(PeerDHT peerDHT) {
+		this.peerDHT = peerDHT;
+	}
+
+	public PeerMapReduce start() {
+		if (threads == -1) {
+			threads = DEFAULT_THREADS;
+		}
+		if (threads <= 0) {
+			throw new IllegalArgumentException("The number of threads must be positive");
+		}
+		final JobExecutor jobExecutor = new JobExecutor(peerDHT, Executors.newFixedThreadPool(threads,
+		        new DefaultThreadFactory("mapreduce")));
+		final MapReduceRPC mapReduceRPC = new MapReduceRPC(peerDHT.peerBean(), peerDHT.peer().connectionBean(),
+		        jobExecutor);
+		final DistributedMapReduce distributedMapReduce = new DistributedMapReduce(peerDHT, mapReduceRPC,
+		        jobExecutor);
+		peerDHT.peer().addShutdownListener(new Shutdown() {
+			@Override
+			public BaseFuture shutdown() {
+				jobExecutor.shutdown();
+				return new FutureDone<Void>().done();
+			}
+		});
+		return new PeerMapReduce(peerDHT, mapReduceRPC, jobExecutor, distributedMapReduce);
+	}
+
+	public int threads() {
+		return threads;
+	}
+
+	/**
+	 * @param threads
+	 *            The number of threads that run map and reduce functions
+	 * @return This class
+	 */
+	public PeerBuilderMapReduce threads(int threads) {
+		this.threads = threads;
+		return this;
+	}
+}
@@ -0,0 +1,52 @@
+package net.tomp2p.mapreduce;
+
+import java.io.Serializable;
+
+import net.tomp2p.dht.PeerDHT;
+import net.tomp2p.p2p.Peer;
+import net.tomp2p.peers.PeerAddress;
+
+public class PeerMapReduce {
+
+	private final PeerDHT peerDHT;
+	private final MapReduceRPC mapReduceRPC;
+	private final JobExecutor jobExecutor;
+	private final DistributedMapReduce distributedMapReduce;
+
+	public PeerMapReduce(PeerDHT peerDHT, MapReduceRPC mapReduceRPC, JobExecutor jobExecutor,
+	        DistributedMapReduce distributedMapReduce) {
+		this.peerDHT = peerDHT;
+		this.mapReduceRPC = mapReduceRPC;
+		this.jobExecutor = jobExecutor;
+		this.distributedMapReduce = distributedMapReduce;
+	}
+
+	public PeerDHT peerDHT() {
+		return peerDHT;
+	}
+
+	public Peer peer() {
+		return peerDHT.peer();
+	}
+
+	public PeerAddress peerAddress() {
+		return peerDHT.peerAddress();
+	}
+
+	public MapReduceRPC mapReduceRPC() {
+		return mapReduceRPC;
+	}
+
+	public JobExecutor jobExecutor() {
+		return jobExecutor;
+	}
+
+	public DistributedMapReduce distributedMapReduce() {
+		return distributedMapReduce;
+	}
+
+	public <K extends Serializable, V extends Serializable> MapReduceBuilder<K, V> mapReduce(Mapper<K, V> mapper,
+	        Reducer<K, V> reducer) {
+		return new MapReduceBuilder<K, V>(this, mapper, reducer);
+	}
+}
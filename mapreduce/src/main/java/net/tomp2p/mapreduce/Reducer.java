@@ -0,0 +1,30 @@
+package net.tomp2p.mapreduce;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * A reduce function, it runs on the peer that is chosen by the hash of the intermediate key. A reducer can also be
+ * used as a combiner, if the function is associative and commutative and returns a value of the same type. The
+ * function is serialized and sent to every worker, thus, its class needs to be on the classpath of every peer.
+ *
+ * @author Thomas Bocek
+ *
+ * @param <K>
+ *            The type of the intermediate keys
+ * @param <V>
+ *            The type of the values
+ */
+public interface Reducer<K extends Serializable, V extends Serializable> extends Serializable {
+
+	/**
+	 * @param key
+	 *            The intermediate key
+	 * @param values
+	 *            All values that were emitted for this key, or that were combined before
+	 * @return The reduced value
+	 * @throws Exception
+	 *             Fails the job
+	 */
+	V reduce(K key, List<V> values) throws Exception;
+}
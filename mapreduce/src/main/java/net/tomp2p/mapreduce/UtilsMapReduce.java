@@ -0,0 +1,92 @@
+package net.tomp2p.mapreduce;
+
+import java.util.List;
+
+import net.tomp2p.connection.ChannelCreator;
+import net.tomp2p.futures.BaseFutureAdapter;
+import net.tomp2p.futures.FutureChannelCreator;
+import net.tomp2p.futures.FutureDone;
+import net.tomp2p.futures.FutureResponse;
+import net.tomp2p.message.Message;
+import net.tomp2p.p2p.Peer;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.utils.Utils;
+
+public class UtilsMapReduce {
+
+	/**
+	 * Creates a request with a reserved channel.
+	 */
+	public interface Request {
+		FutureResponse create(ChannelCreator channelCreator);
+	}
+
+	/**
+	 * Reserves a TCP channel, sends the request and releases the channel.
+	 *
+	 * @param peer
+	 *            The peer that sends the request
+	 * @param request
+	 *            The request
+	 * @return The future that finishes with the response, it fails if the response is not OK
+	 */
+	public static FutureDone<Message> request(final Peer peer, final Request request) {
+		final FutureDone<Message> futureDone = new FutureDone<Message>();
+		final FutureChannelCreator futureChannelCreator = peer.connectionBean().reservation().create(0, 1);
+		Utils.addReleaseListener(futureChannelCreator, futureDone);
+		futureChannelCreator.addListener(new BaseFutureAdapter<FutureChannelCreator>() {
+			@Override
+			public void operationComplete(final FutureChannelCreator future) throws Exception {
+				if (future.isFailed()) {
+					futureDone.failed(future);
+					return;
+				}
+				request.create(future.channelCreator()).addListener(new BaseFutureAdapter<FutureResponse>() {
+					@Override
+					public void operationComplete(final FutureResponse future) throws Exception {
+						if (future.isFailed()) {
+							futureDone.failed(future);
+						} else if (!future.responseMessage().isOk()) {
+							futureDone.failed("MapReduce request returned " + future.responseMessage().type());
+						} else {
+							futureDone.done(future.responseMessage());
+						}
+					}
+				});
+			}
+		});
+		return futureDone;
+	}
+
+	/**
+	 * @param workers
+	 *            The workers of a job, sorted
+	 * @param locationKey
+	 *            A location key
+	 * @return The worker that maps the entries of the location key, which is the worker closest to the location key
+	 */
+	public static PeerAddress responsible(final List<PeerAddress> workers, final Number160 locationKey) {
+		PeerAddress closest = null;
+		Number160 closestDistance = null;
+		for (PeerAddress worker : workers) {
+			final Number160 distance = worker.peerId().xor(locationKey);
+			if (closestDistance == null || distance.compareTo(closestDistance) < 0) {
+				closest = worker;
+				closestDistance = distance;
+			}
+		}
+		return closest;
+	}
+
+	/**
+	 * @param workers
+	 *            The workers of a job, sorted
+	 * @param key
+	 *            An intermediate key, its hash code needs to be the same on every peer
+	 * @return The worker that reduces the key
+	 */
+	public static PeerAddress reducer(final List<PeerAddress> workers, final Object key) {
+		return workers.get((key.hashCode() & Integer.MAX_VALUE) % workers.size());
+	}
+}
@@ -0,0 +1,250 @@
+package net.tomp2p.mapreduce;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import net.tomp2p.dht.FutureGet;
+import net.tomp2p.dht.PeerBuilderDHT;
+import net.tomp2p.futures.BaseFuture;
+import net.tomp2p.futures.FutureProgres;
+import net.tomp2p.p2p.PeerBuilder;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
+import net.tomp2p.storage.Data;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestMapReduce {
+
+	private static final String[] WORDS = { "apple", "banana", "cherry", "date", "elder", "fig", "grape" };
+
+	@Test
+	public void testWordCount() throws Exception {
+		final Random rnd = new Random(42L);
+		PeerMapReduce master = null;
+		try {
+			PeerMapReduce[] nodes = createNodes(20, rnd, 4001);
+			master = nodes[0];
+			final int documents = 300;
+			final Map<String, Integer> expected = put(nodes[3], documents);
+
+			FutureMapReduce<String, Integer> futureMapReduce = nodes[7]
+					.mapReduce(new WordCountMapper(), new SumReducer()).combiner(new SumReducer()).batchSize(50)
+					.start();
+			final List<JobProgress> progress = new ArrayList<JobProgress>();
+			FutureProgres<JobProgress> futureProgres = futureMapReduce.progress();
+			while (futureProgres != null) {
+				Assert.assertTrue(futureProgres.awaitUninterruptibly().isSuccess());
+				progress.add(futureProgres.object());
+				futureProgres = futureProgres.next();
+			}
+			Assert.assertTrue(futureMapReduce.awaitUninterruptibly().isSuccess());
+			Assert.assertEquals(expected, futureMapReduce.result());
+
+			// every worker reports once after mapping and once after reducing
+			Assert.assertEquals(2 * nodes.length, progress.size());
+			final JobProgress last = progress.get(progress.size() - 1);
+			Assert.assertTrue(last.isDone());
+			Assert.assertEquals(nodes.length, last.mappersDone());
+			// every document is mapped once, even though it is stored on several peers
+			Assert.assertEquals(documents, last.entriesMapped());
+			// the combiners leave at most one pair per word and mapper
+			Assert.assertTrue(last.pairsShuffled() <= WORDS.length * nodes.length);
+			// the workers drop the job once they have reduced their keys
+			for (PeerMapReduce node : nodes) {
+				Assert.assertEquals(0, node.jobExecutor().tasks());
+			}
+
+			// without a combiner, every word is shuffled
+			futureMapReduce = nodes[11].mapReduce(new WordCountMapper(), new SumReducer()).batchSize(50).start()
+					.awaitUninterruptibly();
+			Assert.assertTrue(futureMapReduce.isSuccess());
+			Assert.assertEquals(expected, futureMapReduce.result());
+			int words = 0;
+			for (int count : expected.values()) {
+				words += count;
+			}
+			Assert.assertEquals(words, futureMapReduce.currentProgress().pairsShuffled());
+
+			// only the documents of one location key
+			futureMapReduce = nodes[5].mapReduce(new WordCountMapper(), new SumReducer())
+					.locationKey(locationKey(0)).start().awaitUninterruptibly();
+			Assert.assertTrue(futureMapReduce.isSuccess());
+			Assert.assertEquals(count(text(0)), futureMapReduce.result());
+		} finally {
+			if (master != null) {
+				master.peer().shutdown().await();
+			}
+		}
+	}
+
+	@Test
+	public void testFailure() throws Exception {
+		final Random rnd = new Random(42L);
+		PeerMapReduce master = null;
+		try {
+			PeerMapReduce[] nodes = createNodes(10, rnd, 4001);
+			master = nodes[0];
+			put(nodes[3], 50);
+			FutureMapReduce<String, Integer> futureMapReduce = nodes[7]
+					.mapReduce(new FailingMapper(), new SumReducer()).start();
+			Assert.assertFalse(futureMapReduce.awaitUninterruptibly().isSuccess());
+			Assert.assertTrue(futureMapReduce.failedReason().contains("map failed"));
+			Assert.assertFalse(futureMapReduce.progress().awaitUninterruptibly().isSuccess());
+		} finally {
+			if (master != null) {
+				master.peer().shutdown().await();
+			}
+		}
+	}
+
+	@Test
+	public void testWordCountBenchmark() throws Exception {
+		final Random rnd = new Random(42L);
+		PeerMapReduce master = null;
+		try {
+			PeerMapReduce[] nodes = createNodes(20, rnd, 4001);
+			master = nodes[0];
+			final int documents = 1000;
+			final Map<String, Integer> expected = put(nodes[3], documents);
+			long bestMapReduce = Long.MAX_VALUE;
+			long bestNaive = Long.MAX_VALUE;
+			for (int round = 0; round < 3; round++) {
+				long start = System.nanoTime();
+				FutureMapReduce<String, Integer> futureMapReduce = nodes[9]
+						.mapReduce(new WordCountMapper(), new SumReducer()).combiner(new SumReducer()).start()
+						.awaitUninterruptibly();
+				bestMapReduce = Math.min(bestMapReduce, System.nanoTime() - start);
+				Assert.assertEquals(expected, futureMapReduce.result());
+
+				// the naive way: the client gets every document and counts the words itself
+				start = System.nanoTime();
+				final Map<String, Integer> result = new HashMap<String, Integer>();
+				final List<FutureGet> futures = new ArrayList<FutureGet>();
+				for (int i = 0; i < documents; i++) {
+					futures.add(nodes[9].peerDHT().get(locationKey(i)).start());
+					if (futures.size() == 50 || i == documents - 1) {
+						for (FutureGet futureGet : futures) {
+							Assert.assertTrue(futureGet.awaitUninterruptibly().isSuccess());
+							for (Map.Entry<String, Integer> entry : count((String) futureGet.data().object())
+									.entrySet()) {
+								add(result, entry.getKey(), entry.getValue());
+							}
+						}
+						futures.clear();
+					}
+				}
+				bestNaive = Math.min(bestNaive, System.nanoTime() - start);
+				Assert.assertEquals(expected, result);
+			}
+			System.err.println("BENCHMARK: word count over " + documents + " documents on " + nodes.length
+					+ " peers. STAT: map reduce " + (bestMapReduce / 1000000.0) + "ms, " + expected.size()
+					+ " counts transferred to the client; naive get " + (bestNaive / 1000000.0) + "ms, "
+					+ documents + " documents transferred to the client");
+		} finally {
+			if (master != null) {
+				master.peer().shutdown().await();
+			}
+		}
+	}
+
+	private static class WordCountMapper implements Mapper<String, Integer> {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public void map(Number640 key, Data data, Emitter<String, Integer> emitter) throws Exception {
+			for (String word : ((String) data.object()).split(" ")) {
+				emitter.emit(word, 1);
+			}
+		}
+	}
+
+	private static class FailingMapper implements Mapper<String, Integer> {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public void map(Number640 key, Data data, Emitter<String, Integer> emitter) throws Exception {
+			throw new Exception("map failed");
+		}
+	}
+
+	private static class SumReducer implements Reducer<String, Integer> {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public Integer reduce(String key, List<Integer> values) {
+			int sum = 0;
+			for (int value : values) {
+				sum += value;
+			}
+			return sum;
+		}
+	}
+
+	private static Map<String, Integer> put(PeerMapReduce peer, int documents) throws Exception {
+		final Map<String, Integer> expected = new HashMap<String, Integer>();
+		final List<BaseFuture> futures = new ArrayList<BaseFuture>();
+		for (int i = 0; i < documents; i++) {
+			futures.add(peer.peerDHT().put(locationKey(i)).data(new Data(text(i))).start());
+			for (Map.Entry<String, Integer> entry : count(text(i)).entrySet()) {
+				add(expected, entry.getKey(), entry.getValue());
+			}
+			if (futures.size() == 50) {
+				for (BaseFuture future : futures) {
+					Assert.assertTrue(future.awaitUninterruptibly().isSuccess());
+				}
+				futures.clear();
+			}
+		}
+		for (BaseFuture future : futures) {
+			Assert.assertTrue(future.awaitUninterruptibly().isSuccess());
+		}
+		return expected;
+	}
+
+	private static Number160 locationKey(int i) {
+		return Number160.createHash("document " + i);
+	}
+
+	private static String text(int i) {
+		final StringBuilder sb = new StringBuilder();
+		for (int j = 0; j <= i % 5; j++) {
+			sb.append(j == 0 ? "" : " ").append(WORDS[(i + j * j) % WORDS.length]);
+		}
+		return sb.toString();
+	}
+
+	private static Map<String, Integer> count(String text) {
+		final Map<String, Integer> counts = new HashMap<String, Integer>();
+		for (String word : text.split(" ")) {
+			add(counts, word, 1);
+		}
+		return counts;
+	}
+
+	private static void add(Map<String, Integer> counts, String word, int count) {
+		final Integer old = counts.get(word);
+		counts.put(word, old == null ? count : old + count);
+	}
+
+	private static PeerMapReduce[] createNodes(int nr, Random rnd, int port) throws Exception {
+		PeerMapReduce[] nodes = new PeerMapReduce[nr + 1];
+		PeerBuilder master = new PeerBuilder(new Number160(rnd)).p2pId(1).ports(port);
+		nodes[0] = new PeerBuilderMapReduce(new PeerBuilderDHT(master.start()).start()).start();
+		for (int i = 0; i < nr; i++) {
+			nodes[i + 1] = new PeerBuilderMapReduce(new PeerBuilderDHT(new PeerBuilder(new Number160(rnd)).p2pId(1)
+					.masterPeer(nodes[0].peer()).start()).start()).start();
+		}
+		// perfect routing
+		for (int i = 0; i < nodes.length; i++) {
+			for (int j = 0; j < nodes.length; j++) {
+				nodes[i].peer().peerBean().peerMap().peerFound(nodes[j].peerAddress(), null, null, null);
+			}
+		}
+		return nodes;
+	}
+}
@@ -1,6 +1,9 @@
 package net.tomp2p.holep;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 import net.tomp2p.connection.HolePInitiator;
+import net.tomp2p.futures.BaseFutureAdapter;
 import net.tomp2p.futures.FutureDone;
 import net.tomp2p.futures.FutureResponse;
 import net.tomp2p.holep.strategy.HolePStrategy;
@@ -24,6 +27,14 @@ public class HolePInitiatorImpl implements HolePInitiator {
 	private final Peer peer;
 	private boolean testCase = false;
 
+	private static final int DEFAULT_MAX_CONCURRENT_PUNCHES = 32;
+	private static final long DEFAULT_PUNCH_INTERVAL_MILLIS = 1000;
+	private int maxConcurrentPunches = DEFAULT_MAX_CONCURRENT_PUNCHES;
+	private long punchIntervalMillis = DEFAULT_PUNCH_INTERVAL_MILLIS;
+	private double punchBackoffFactor = 1.0;
+	private double punchJitter = 0.0;
+	private final AtomicInteger activePunches = new AtomicInteger();
+
 	public HolePInitiatorImpl(final Peer peer) {
 		this.peer = peer;
 		this.natTypeDetection = new NATTypeDetection(peer);
@@ -66,4 +77,81 @@ public class HolePInitiatorImpl implements HolePInitiator {
 		this.testCase = testCase;
 	}
 
+	/**
+	 * Creates a {@link HolePScheduler} for the given strategy, if less than maxConcurrentPunches are active. The slot
+	 * is freed when the future of the scheduler is done or failed, thus, the future has to be failed if the scheduler
+	 * is never started.
+	 * 
+	 * @param holePuncher
+	 *            The strategy that punches the holes
+	 * @return The scheduler or null if too many punches are active
+	 */
+	public HolePScheduler createScheduler(final HolePStrategy holePuncher) {
+		while (true) {
+			final int active = activePunches.get();
+			if (active >= maxConcurrentPunches) {
+				LOG.warn("Already {} hole punches active, not punching more holes", active);
+				return null;
+			}
+			if (activePunches.compareAndSet(active, active + 1)) {
+				break;
+			}
+		}
+		final HolePScheduler holePScheduler = new HolePScheduler(peer.peerBean().holePNumberOfPunches(), holePuncher)
+				.intervalMillis(punchIntervalMillis).backoffFactor(punchBackoffFactor).jitter(punchJitter);
+		holePScheduler.futureDone().addListener(new BaseFutureAdapter<FutureDone<Void>>() {
+			@Override
+			public void operationComplete(final FutureDone<Void> future) throws Exception {
+				releasePunch();
+			}
+		});
+		return holePScheduler;
+	}
+
+	private void releasePunch() {
+		activePunches.decrementAndGet();
+	}
+
+	/**
+	 * @return The number of hole punches that are currently active
+	 */
+	public int activePunches() {
+		return activePunches.get();
+	}
+
+	public HolePInitiatorImpl maxConcurrentPunches(final int maxConcurrentPunches) {
+		this.maxConcurrentPunches = maxConcurrentPunches;
+		return this;
+	}
+
+	public int maxConcurrentPunches() {
+		return maxConcurrentPunches;
+	}
+
+	public HolePInitiatorImpl punchIntervalMillis(final long punchIntervalMillis) {
+		this.punchIntervalMillis = punchIntervalMillis;
+		return this;
+	}
+
+	public long punchIntervalMillis() {
+		return punchIntervalMillis;
+	}
+
+	public HolePInitiatorImpl punchBackoffFactor(final double punchBackoffFactor) {
+		this.punchBackoffFactor = punchBackoffFactor;
+		return this;
+	}
+
+	public double punchBackoffFactor() {
+		return punchBackoffFactor;
+	}
+
+	public HolePInitiatorImpl punchJitter(final double punchJitter) {
+		this.punchJitter = punchJitter;
+		return this;
+	}
+
+	public double punchJitter() {
+		return punchJitter;
+	}
 }
@@ -73,9 +73,15 @@ public class HolePRPC extends DispatchHandler {
 	 */
 	@SuppressWarnings("static-access")
 	private void handleHolePunch(final Message message, final Responder responder) {
-		final NATType type = ((HolePInitiatorImpl) peer.peerBean().holePunchInitiator()).natType();
+		final HolePInitiatorImpl holePInitiator = (HolePInitiatorImpl) peer.peerBean().holePunchInitiator();
+		final NATType type = holePInitiator.natType();
 		final HolePStrategy holePuncher = type.holePuncher(peer, message.intAt(0), peer.connectionBean().DEFAULT_UDP_IDLE_SECONDS, message);
-		final FutureDone<Message> replyMessage = holePuncher.replyHolePunch();
+		final HolePScheduler holePScheduler = holePInitiator.createScheduler(holePuncher);
+		if (holePScheduler == null) {
+			handleFail(message, responder, "Too many concurrent hole punches");
+			return;
+		}
+		final FutureDone<Message> replyMessage = holePuncher.replyHolePunch(holePScheduler);
 		LOG.warn("Hole Punch attempt received. Start reply procedure.");
 		replyMessage.addListener(new BaseFutureAdapter<FutureDone<Message>>() {
 
@@ -1,21 +1,45 @@
 package net.tomp2p.holep;
 
+import java.util.Random;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import net.tomp2p.futures.FutureDone;
 import net.tomp2p.holep.strategy.HolePStrategy;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 /**
- * This class is used as a {@link Thread} specifically for the
- * {@link HolePStrategy}. It calls the tryConnect() method on the
- * {@link HolePStrategy} every second until it reached the given numberOfPunches.
- * 
+ * This class punches the holes for a {@link HolePStrategy}. It calls the tryConnect() method on the
+ * {@link HolePStrategy} until it reached the given numberOfPunches. The punches are scheduled on the timer of the
+ * peer, thus, no thread is blocked between two punches. The interval between two punches starts with
+ * intervalMillis and grows with the backoff factor. A random jitter avoids that many punches are fired at the same
+ * time.
+ *
  * @author Jonas Wagner
- * 
+ *
  */
 public class HolePScheduler implements Runnable {
 
+	private static final Logger LOG = LoggerFactory.getLogger(HolePScheduler.class);
+	private static final Random RND = new Random();
+
 	private static final int FIVE_MINUTES = 300;
 	private static final int ONE_SECOND_MILLIS = 1000;
-	private int numberOfPunches;
+	private static final long MAX_INTERVAL_MILLIS = 60 * ONE_SECOND_MILLIS;
+	private final int numberOfPunches;
 	private final HolePStrategy holePuncher;
+	private final FutureDone<Void> futureDone = new FutureDone<Void>();
+
+	private long intervalMillis = ONE_SECOND_MILLIS;
+	private double backoffFactor = 1.0;
+	private double jitter = 0.0;
+
+	private ScheduledExecutorService timer;
+	// only accessed by the timer, one punch at a time
+	private volatile int punches = 0;
 
 	public HolePScheduler(final int numberOfTrials, final HolePStrategy holePuncher) {
 		// 300 -> 5min
@@ -31,20 +55,111 @@ public class HolePScheduler implements Runnable {
 		}
 	}
 
+	/**
+	 * @param intervalMillis
+	 *            The time between the first and the second punch
+	 * @return this instance
+	 */
+	public HolePScheduler intervalMillis(final long intervalMillis) {
+		if (intervalMillis < 1) {
+			throw new IllegalArgumentException("intervalMillis must be at least 1!");
+		}
+		this.intervalMillis = intervalMillis;
+		return this;
+	}
+
+	public long intervalMillis() {
+		return intervalMillis;
+	}
+
+	/**
+	 * @param backoffFactor
+	 *            The factor the interval grows after each punch, 1.0 for a constant interval
+	 * @return this instance
+	 */
+	public HolePScheduler backoffFactor(final double backoffFactor) {
+		if (backoffFactor < 1.0) {
+			throw new IllegalArgumentException("backoffFactor must be at least 1.0!");
+		}
+		this.backoffFactor = backoffFactor;
+		return this;
+	}
+
+	public double backoffFactor() {
+		return backoffFactor;
+	}
+
+	/**
+	 * @param jitter
+	 *            The fraction of the interval that is randomly added or subtracted, between 0.0 and 1.0
+	 * @return this instance
+	 */
+	public HolePScheduler jitter(final double jitter) {
+		if (jitter < 0.0 || jitter > 1.0) {
+			throw new IllegalArgumentException("jitter must be between 0.0 and 1.0!");
+		}
+		this.jitter = jitter;
+		return this;
+	}
+
+	public double jitter() {
+		return jitter;
+	}
+
+	/**
+	 * Starts punching the holes. The first punch is done immediately.
+	 *
+	 * @param timer
+	 *            The timer of the peer that runs the punches
+	 * @return A future that is done after the last punch
+	 */
+	public FutureDone<Void> start(final ScheduledExecutorService timer) {
+		this.timer = timer;
+		schedule(0);
+		return futureDone;
+	}
+
+	/**
+	 * @return A future that is done after the last punch
+	 */
+	public FutureDone<Void> futureDone() {
+		return futureDone;
+	}
+
 	@Override
 	public void run() {
-		while (numberOfPunches != 0) {
-			try {
-				holePuncher.tryConnect();
-			} catch (Exception e1) {
-				e1.printStackTrace();
-			}
-			numberOfPunches--;
-			try {
-				Thread.sleep(ONE_SECOND_MILLIS);
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-			}
+		try {
+			holePuncher.tryConnect();
+		} catch (Exception e) {
+			LOG.error("Could not punch the holes", e);
 		}
+		final int punch = ++punches;
+		if (punch < numberOfPunches) {
+			schedule(nextDelay(punch));
+		} else {
+			futureDone.done();
+		}
+	}
+
+	private void schedule(final long delayMillis) {
+		try {
+			timer.schedule(this, delayMillis, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// the peer is shutting down
+			futureDone.failed(e);
+		}
+	}
+
+	/**
+	 * Calculates the delay until the next punch.
+	 *
+	 * @param punch
+	 *            The number of punches done so far
+	 * @return The delay in milliseconds
+	 */
+	long nextDelay(final int punch) {
+		final double delay = Math.min(MAX_INTERVAL_MILLIS, intervalMillis * Math.pow(backoffFactor, punch - 1));
+		final double spread = delay * jitter * (2 * RND.nextDouble() - 1);
+		return Math.max(0, Math.round(delay + spread));
 	}
 }
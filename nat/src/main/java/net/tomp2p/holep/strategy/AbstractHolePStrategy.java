@@ -237,13 +237,25 @@ public abstract class AbstractHolePStrategy implements HolePStrategy {
 
 	/**
 	 * This method initiates the hole punch procedure on the target peer side.
+	 * The holes are punched by the given {@link HolePScheduler} on the timer
+	 * of the peer. If the procedure fails, the scheduler is not started and
+	 * its future fails.
 	 * 
+	 * @param holePScheduler
+	 *            The scheduler that punches the holes for this strategy
 	 * @return
 	 */
-	public FutureDone<Message> replyHolePunch() {
+	public FutureDone<Message> replyHolePunch(final HolePScheduler holePScheduler) {
 		originalSender = (PeerAddress) originalMessage.neighborsSetList().get(0).neighbors().toArray()[0];
 		final FutureDone<Message> replyMessageFuture = new FutureDone<Message>();
-		final HolePStrategy thisInstance = this;
+		replyMessageFuture.addListener(new BaseFutureAdapter<FutureDone<Message>>() {
+			@Override
+			public void operationComplete(final FutureDone<Message> future) throws Exception {
+				if (!future.isSuccess()) {
+					holePScheduler.futureDone().failed(future);
+				}
+			}
+		});
 		final FutureDone<List<ChannelFuture>> rmfChannelFutures = createChannelFutures(prepareHandlers(false, replyMessageFuture),
 				replyMessageFuture, numberOfHoles);
 		rmfChannelFutures.addListener(new BaseFutureAdapter<FutureDone<List<ChannelFuture>>>() {
@@ -255,13 +267,15 @@ public abstract class AbstractHolePStrategy implements HolePStrategy {
 					replyMessageFuture2.addListener(new BaseFutureAdapter<FutureDone<Message>>() {
 						@Override
 						public void operationComplete(final FutureDone<Message> future) throws Exception {
-							if (future.isSuccess()) {
+							if (replyMessageFuture.isCompleted()) {
+								LOG.debug("Hole punching already failed, not punching any holes");
+							} else if (future.isSuccess()) {
 								final Message replyMessage = future.object();
-								final Thread holePunchScheduler = new Thread(new HolePScheduler(peer.peerBean().holePNumberOfPunches(), thisInstance));
-								holePunchScheduler.start();
+								// all holes are punched at once, the punches are repeated by the timer
+								holePScheduler.start(peer.connectionBean().timer());
 								replyMessageFuture.done(replyMessage);
 							} else {
-								replyMessageFuture2.failed("No ReplyMessage could be created!");
+								replyMessageFuture.failed("No ReplyMessage could be created!");
 							}
 						}
 					});
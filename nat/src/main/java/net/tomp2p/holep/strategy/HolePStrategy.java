@@ -2,6 +2,7 @@ package net.tomp2p.holep.strategy;
 
 import net.tomp2p.futures.FutureDone;
 import net.tomp2p.futures.FutureResponse;
+import net.tomp2p.holep.HolePScheduler;
 import net.tomp2p.message.Message;
 
 public interface HolePStrategy {
@@ -12,7 +13,7 @@ public interface HolePStrategy {
 
 	public FutureDone<Message> initiateHolePunch(final FutureDone<Message> mainFutureDone, final FutureResponse originalFutureResponse);
 
-	public FutureDone<Message> replyHolePunch();
+	public FutureDone<Message> replyHolePunch(final HolePScheduler holePScheduler);
 
 	public void tryConnect() throws Exception;
 }
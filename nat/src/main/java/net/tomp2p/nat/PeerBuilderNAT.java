@@ -32,6 +32,12 @@ public class PeerBuilderNAT {
 	private int holePNumberOfHoles = DEFAULT_NUMBER_OF_HOLEP_HOLES;
 	private static final int DEFAULT_NUMBER_OF_HOLE_PUNCHES = 3;
 	private int holePNumberOfPunches = DEFAULT_NUMBER_OF_HOLE_PUNCHES;
+	private static final int DEFAULT_MAX_CONCURRENT_HOLE_PUNCHES = 32;
+	private int holePMaxConcurrentPunches = DEFAULT_MAX_CONCURRENT_HOLE_PUNCHES;
+	private static final long DEFAULT_HOLE_PUNCH_INTERVAL_MILLIS = 1000;
+	private long holePPunchIntervalMillis = DEFAULT_HOLE_PUNCH_INTERVAL_MILLIS;
+	private double holePPunchBackoffFactor = 1.0;
+	private double holePPunchJitter = 0.0;
 
 	public PeerBuilderNAT(Peer peer) {
 		this.peer = peer;
@@ -108,7 +114,8 @@ public class PeerBuilderNAT {
 	 * specifies how many times the hole will be punched (e.g. if
 	 * holePNumberOfPunches = 3, then then all holes will be punched with dummy
 	 * messages 3 times in a row with 1 second delay (see {@link HolePScheduler}
-	 * ).
+	 * ). The delay can be changed with {@link #holePPunchIntervalMillis(long)}
+	 * and {@link #holePPunchBackoffFactor(double)}.
 	 * 
 	 * @param holePNumberOfPunches
 	 * @return this instance
@@ -122,12 +129,78 @@ public class PeerBuilderNAT {
 		return holePNumberOfPunches;
 	}
 
+	/**
+	 * Specifies how many hole punches can be active at the same time. If a
+	 * peer is asked to punch more holes, the hole punching fails and the
+	 * message is sent over the relay.
+	 * 
+	 * @param holePMaxConcurrentPunches
+	 * @return this instance
+	 */
+	public PeerBuilderNAT holePMaxConcurrentPunches(final int holePMaxConcurrentPunches) {
+		this.holePMaxConcurrentPunches = holePMaxConcurrentPunches;
+		return this;
+	}
+
+	public int holePMaxConcurrentPunches() {
+		return holePMaxConcurrentPunches;
+	}
+
+	/**
+	 * Specifies the delay between the first and the second punch.
+	 * 
+	 * @param holePPunchIntervalMillis
+	 * @return this instance
+	 */
+	public PeerBuilderNAT holePPunchIntervalMillis(final long holePPunchIntervalMillis) {
+		this.holePPunchIntervalMillis = holePPunchIntervalMillis;
+		return this;
+	}
+
+	public long holePPunchIntervalMillis() {
+		return holePPunchIntervalMillis;
+	}
+
+	/**
+	 * Specifies how much the delay grows after each punch (e.g. 2.0 doubles
+	 * the delay). The default is 1.0, a constant delay.
+	 * 
+	 * @param holePPunchBackoffFactor
+	 * @return this instance
+	 */
+	public PeerBuilderNAT holePPunchBackoffFactor(final double holePPunchBackoffFactor) {
+		this.holePPunchBackoffFactor = holePPunchBackoffFactor;
+		return this;
+	}
+
+	public double holePPunchBackoffFactor() {
+		return holePPunchBackoffFactor;
+	}
+
+	/**
+	 * Specifies the fraction of the delay that is randomly added or
+	 * subtracted, so that punches of many peers do not fire at the same time.
+	 * 
+	 * @param holePPunchJitter
+	 * @return this instance
+	 */
+	public PeerBuilderNAT holePPunchJitter(final double holePPunchJitter) {
+		this.holePPunchJitter = holePPunchJitter;
+		return this;
+	}
+
+	public double holePPunchJitter() {
+		return holePPunchJitter;
+	}
+
 	public PeerNAT start() {
 		final NATUtils natUtils = new NATUtils();
 		final RconRPC rconRPC = new RconRPC(peer);
 		final HolePRPC holePunchRPC = new HolePRPC(peer);
 		
-		peer.peerBean().holePunchInitiator(new HolePInitiatorImpl(peer));
+		peer.peerBean().holePunchInitiator(
+				new HolePInitiatorImpl(peer).maxConcurrentPunches(holePMaxConcurrentPunches).punchIntervalMillis(holePPunchIntervalMillis)
+						.punchBackoffFactor(holePPunchBackoffFactor).punchJitter(holePPunchJitter));
 		peer.peerBean().holePNumberOfHoles(holePNumberOfHoles);
 		peer.peerBean().holePNumberOfPunches(holePNumberOfPunches);
 
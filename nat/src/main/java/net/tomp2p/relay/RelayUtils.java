@@ -101,6 +101,39 @@ public class RelayUtils {
 		return buffer;
 	}
 
+	/**
+	 * Encodes a message for the buffer of an unreachable peer. The returned off-heap buffer contains the size of the
+	 * message followed by the message, the same format as a single entry of
+	 * {@link #composeMessageBuffer(List, SignatureFactory)}. Thus, the message is encoded only once and needs not
+	 * to be kept on the heap.
+	 *
+	 * @param message the message to encode
+	 * @param signatureFactory the signature factory, necessary for encoding the message
+	 * @return a direct buffer with the size and the encoded message
+	 */
+	public static ByteBuf encodeBufferedMessage(Message message, SignatureFactory signatureFactory)
+			throws InvalidKeyException, SignatureException, IOException {
+		message.restoreContentReferences();
+		message.restoreBuffers();
+		Buffer encoded = encodeMessage(message, signatureFactory);
+		ByteBuf buf = Unpooled.directBuffer(4 + encoded.length());
+		buf.writeInt(encoded.length());
+		buf.writeBytes(encoded.buffer());
+		return buf;
+	}
+
+	/**
+	 * Composes messages encoded with {@link #encodeBufferedMessage(Message, SignatureFactory)} into a single
+	 * buffer without copying them. The result has the same format as
+	 * {@link #composeMessageBuffer(List, SignatureFactory)} and can be written with a single gathering write.
+	 *
+	 * @param encodedMessages the encoded messages
+	 * @return a composite buffer holding all messages of the list
+	 */
+	public static ByteBuf composeEncodedMessages(List<ByteBuf> encodedMessages) {
+		return Unpooled.wrappedBuffer(encodedMessages.toArray(new ByteBuf[encodedMessages.size()]));
+	}
+
 	/**
 	 * Decomposes a buffer containing multiple buffers into an (ordered) list of small buffers. Alternating,
 	 * the size of the message and the message itself are encoded in the message buffer. First, the size is
@@ -19,23 +19,27 @@ import net.tomp2p.relay.RelayUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public abstract class BufferedRelayServer extends BaseRelayServer implements MessageBufferListener<Message> {
+public abstract class BufferedRelayServer extends BaseRelayServer implements MessageBufferListener<ByteBuf> {
 
 	private static final Logger LOG = LoggerFactory.getLogger(BufferedRelayServer.class);
 
-	private final MessageBuffer<Message> buffer;
+	// holds the encoded messages off-heap
+	private final MessageBuffer<ByteBuf> buffer;
 	private final MessageBufferConfiguration bufferConfig;
 
 	// holds the messages that have already been released from the buffer (because any limit has been
 	// triggered or the buffer has been flushed)
-	private final List<Message> bufferedMessages;
+	private final List<ByteBuf> bufferedMessages;
+
+	// guarded by bufferedMessages
+	private boolean shutdown = false;
 
 	protected BufferedRelayServer(Peer peer, PeerAddress unreachablePeer, RelayType relayType,
 			MessageBufferConfiguration bufferConfig) {
 		super(peer, unreachablePeer, relayType);
 		this.bufferConfig = bufferConfig;
-		this.buffer = new MessageBuffer<Message>(bufferConfig);
-		this.bufferedMessages = Collections.synchronizedList(new ArrayList<Message>());
+		this.buffer = new MessageBuffer<ByteBuf>(bufferConfig);
+		this.bufferedMessages = Collections.synchronizedList(new ArrayList<ByteBuf>());
 
 		buffer.addListener(this);
 	}
@@ -49,9 +53,13 @@ public abstract class BufferedRelayServer extends BaseRelayServer implements Mes
 		response.sender(unreachablePeerAddress());
 
 		try {
-			int messageSize = RelayUtils.getMessageSize(message, connectionBean().channelServer().channelServerConfiguration()
-					.signatureFactory());
-			buffer.addMessage(message, messageSize);
+			ByteBuf encoded = RelayUtils.encodeBufferedMessage(message, connectionBean().channelServer()
+					.channelServerConfiguration().signatureFactory());
+			buffer.addMessage(encoded, encoded.readableBytes());
+			if (isShutdown()) {
+				// the buffer was cleared before this message was added
+				release(buffer.clear());
+			}
 		} catch (Exception e) {
 			LOG.error("Cannot encode the message", e);
 			return futureDone.done(createResponseMessage(message, Type.EXCEPTION));
@@ -62,9 +70,9 @@ public abstract class BufferedRelayServer extends BaseRelayServer implements Mes
 	}
 	
 	@Override
-	public void bufferFull(List<Message> messages) {
-		synchronized (bufferedMessages) {
-			bufferedMessages.addAll(messages);
+	public void bufferFull(List<ByteBuf> messages) {
+		if (!keep(messages)) {
+			return;
 		}
 
 		onBufferFull();
@@ -77,9 +85,55 @@ public abstract class BufferedRelayServer extends BaseRelayServer implements Mes
 	public abstract void onBufferFull();
 
 	@Override
-	public void bufferFlushed(List<Message> messages) {
+	public void bufferFlushed(List<ByteBuf> messages) {
+		keep(messages);
+	}
+
+	private boolean keep(List<ByteBuf> messages) {
 		synchronized (bufferedMessages) {
+			if (shutdown) {
+				release(messages);
+				return false;
+			}
 			bufferedMessages.addAll(messages);
+			return true;
+		}
+	}
+
+	private boolean isShutdown() {
+		synchronized (bufferedMessages) {
+			return shutdown;
+		}
+	}
+
+	/**
+	 * Releases the encoded messages that have not been collected by the unreachable peer. They are held in direct
+	 * buffers, thus, they are not freed by the garbage collector. Messages that arrive afterwards are released
+	 * right away.
+	 */
+	public void shutdown() {
+		synchronized (bufferedMessages) {
+			shutdown = true;
+			release(bufferedMessages);
+			bufferedMessages.clear();
+		}
+		release(buffer.clear());
+		LOG.debug("Released the buffered messages for {}", unreachablePeerAddress());
+	}
+
+	/**
+	 * Releases the buffered messages before the listeners are notified, since the unreachable peer will not collect
+	 * them anymore.
+	 */
+	@Override
+	protected void notifyOfflineListeners() {
+		shutdown();
+		super.notifyOfflineListeners();
+	}
+
+	private static void release(List<ByteBuf> messages) {
+		for (ByteBuf message : messages) {
+			message.release();
 		}
 	}
 
@@ -94,13 +148,12 @@ public abstract class BufferedRelayServer extends BaseRelayServer implements Mes
 		// flush the current buffer to get all messages
 		buffer.flushNow();
 
-		Buffer buffer = null;;
+		Buffer buffer = null;
 		synchronized (bufferedMessages) {
 			if (bufferedMessages.isEmpty()) {
 				LOG.trace("Currently there are no buffered messages");
 			} else {
-				ByteBuf byteBuffer = RelayUtils.composeMessageBuffer(bufferedMessages, connectionBean().channelServer()
-						.channelServerConfiguration().signatureFactory());
+				ByteBuf byteBuffer = RelayUtils.composeEncodedMessages(bufferedMessages);
 				LOG.debug("Buffer of {} messages collected", bufferedMessages.size());
 				bufferedMessages.clear();
 				buffer = new Buffer(byteBuffer);
@@ -1,16 +1,15 @@
 package net.tomp2p.relay.buffer;
 
-import java.io.IOException;
-import java.security.InvalidKeyException;
-import java.security.SignatureException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -19,7 +18,13 @@ import org.slf4j.LoggerFactory;
  * Buffers messages for the unreachable peers. This class is thread-safe.
  * If the buffer is full, the {@link MessageBufferListener}s are triggered. In the mean time, another list
  * holds the previously buffered messages, until the buffer is collected.
- * 
+ * <p>
+ * The messages are stored in a bounded ring with many producers and a single consumer. Producers claim a slot
+ * with a compare-and-set on the tail and account the size with atomic counters, thus, adding a message never
+ * locks. Only the consumer, which empties the buffer and notifies the listeners, is serialized. Since the slots
+ * are fixed, the number of messages in the buffer is limited to {@link #MAX_SLOTS}, even if the configured
+ * count limit is higher.
+ *
  * @author Nico Rutishauser
  *
  */
@@ -28,20 +33,32 @@ public class MessageBuffer<T> {
 	private static final Logger LOG = LoggerFactory.getLogger(MessageBuffer.class);
 	private static final ScheduledExecutorService worker = Executors.newSingleThreadScheduledExecutor();
 
+	/**
+	 * The maximum number of slots in the ring
+	 */
+	public static final int MAX_SLOTS = 1024;
+
 	private final int messageCountLimit;
 	private final long bufferSizeLimit;
 	private final long bufferAgeLimitMS;
 
-	private final AtomicLong bufferSize;
 	private final List<MessageBufferListener<T>> listeners;
 
-	private final List<T> buffer;
+	private final AtomicReferenceArray<T> slots;
+	private final long[] sizes;
+	private final int mask;
 
-	private BufferAgeRunnable task;
+	// the next slot to claim by a producer
+	private final AtomicLong tail = new AtomicLong();
+	// the next slot to read by the consumer, only written while holding the consumer lock
+	private volatile long head = 0;
+	private final AtomicLong bufferSize = new AtomicLong();
+	private final AtomicInteger messageCount = new AtomicInteger();
+	private final Object consumerLock = new Object();
 
 	/**
 	 * Create a new buffer using the configuration
-	 * 
+	 *
 	 * @param config the buffer limit configuration
 	 */
 	public MessageBuffer(MessageBufferConfiguration config) {
@@ -50,7 +67,7 @@ public class MessageBuffer<T> {
 
 	/**
 	 * Create a new buffer with given limits
-	 * 
+	 *
 	 * @param bufferCountLimit the number of messages
 	 * @param bufferSizeLimit the size of all messages (in bytes)
 	 * @param bufferAgeLimitMS the maximum age of the oldest message
@@ -59,9 +76,15 @@ public class MessageBuffer<T> {
 		this.messageCountLimit = bufferCountLimit;
 		this.bufferSizeLimit = bufferSizeLimit;
 		this.bufferAgeLimitMS = bufferAgeLimitMS;
-		this.listeners = new ArrayList<MessageBufferListener<T>>();
-		this.buffer = Collections.synchronizedList(new ArrayList<T>());
-		this.bufferSize = new AtomicLong();
+		this.listeners = new CopyOnWriteArrayList<MessageBufferListener<T>>();
+		// round up to the next power of two, such that the slot index is a mask of the sequence
+		int capacity = 1;
+		while (capacity < Math.min(bufferCountLimit, MAX_SLOTS)) {
+			capacity <<= 1;
+		}
+		this.slots = new AtomicReferenceArray<T>(capacity);
+		this.sizes = new long[capacity];
+		this.mask = capacity - 1;
 	}
 
 	public void addListener(MessageBufferListener<T> listener) {
@@ -69,24 +92,36 @@ public class MessageBuffer<T> {
 	}
 
 	/**
-	 * Add an encoded message to the buffer
-	 * 
-	 * @throws IOException
-	 * @throws SignatureException
-	 * @throws InvalidKeyException
+	 * Add a message to the buffer. If the buffer reaches a limit, the listeners are notified in the calling
+	 * thread.
+	 *
+	 * @param message the message to add, for example already encoded bytes
+	 * @param messageSize the size of the message in bytes
 	 */
 	public void addMessage(T message, long messageSize) {
-		synchronized (buffer) {
-			if (buffer.isEmpty()) {
-				task = new BufferAgeRunnable();
-				// schedule the task
-				worker.schedule(task, bufferAgeLimitMS, TimeUnit.MILLISECONDS);
+		long sequence;
+		while (true) {
+			sequence = tail.get();
+			if (sequence - head >= slots.length()) {
+				// all slots are taken, empty the buffer and try again
+				LOG.debug("All {} slots of the buffer are in use", slots.length());
+				notifyAndClear(true);
+				continue;
+			}
+			if (tail.compareAndSet(sequence, sequence + 1)) {
+				break;
 			}
-
-			buffer.add(message);
 		}
+		final int index = (int) (sequence & mask);
+		sizes[index] = messageSize;
+		// publishes the size as well
+		slots.set(index, message);
 
 		bufferSize.addAndGet(messageSize);
+		if (messageCount.getAndIncrement() == 0) {
+			// first message in the buffer, schedule the age check for this message
+			worker.schedule(new BufferAgeRunnable(sequence), bufferAgeLimitMS, TimeUnit.MILLISECONDS);
+		}
 
 		LOG.debug("Added to the buffer: {}", message);
 		checkFull();
@@ -99,18 +134,12 @@ public class MessageBuffer<T> {
 			notify = true;
 		}
 
-		synchronized (buffer) {
-			if (buffer.size() >= messageCountLimit) {
-				LOG.debug("The number of messages exceeds the maximum message count of {}", messageCountLimit);
-				notify = true;
-			}
+		if (messageCount.get() >= messageCountLimit) {
+			LOG.debug("The number of messages exceeds the maximum message count of {}", messageCountLimit);
+			notify = true;
 		}
 
 		if (notify) {
-			if (task != null) {
-				// cancel such that it does not notify the listener twice
-				task.cancel();
-			}
 			notifyAndClear(true);
 		}
 	}
@@ -120,69 +149,106 @@ public class MessageBuffer<T> {
 	 */
 	public void flushNow() {
 		// no need to flush the buffer because it's empty
-		synchronized (buffer) {
-			if(buffer.isEmpty()) {
-				return;
-			}
+		if (tail.get() == head) {
+			return;
 		}
-		
+
 		LOG.trace("Flushing buffer...");
-		if (task != null) {
-			// cancel such that it does not notify the listener twice
-			task.cancel();
-		}
 		notifyAndClear(false);
 	}
 
+	/**
+	 * Removes all messages from the buffer without notifying the listeners.
+	 *
+	 * @return the messages that were in the buffer, in the order they were added
+	 */
+	public List<T> clear() {
+		synchronized (consumerLock) {
+			return drain();
+		}
+	}
+
+	/**
+	 * @return the number of messages currently in the buffer
+	 */
+	public int messageCount() {
+		return messageCount.get();
+	}
+
+	/**
+	 * @return the size of the messages currently in the buffer in bytes
+	 */
+	public long bufferSize() {
+		return bufferSize.get();
+	}
+
 	/**
 	 * Called when the buffer exceeds either the message count limit. the maximally
 	 * allowed buffer size or the maximally allowed age of the first buffer entry. Otherwise
 	 * <code>false</code>.
-	 * 
+	 *
 	 * @param wasFull <code>true</code> if this method was triggered because of buffer overflow.
 	 *            <code>False</code> if this method was triggered manually (because messages need to be ready now.
 	 */
 	private void notifyAndClear(boolean wasFull) {
-		List<T> copy;
-		synchronized (buffer) {
-			if (buffer.isEmpty()) {
-				LOG.warn("Buffer is empty. Listener won't be notified.");
+		// the listeners are notified while holding the lock, such that the messages are delivered in order
+		synchronized (consumerLock) {
+			List<T> copy = drain();
+			if (copy.isEmpty()) {
+				LOG.trace("Buffer is empty. Listener won't be notified.");
 				return;
 			}
 
-			copy = new ArrayList<T>(buffer);
-			buffer.clear();
-			bufferSize.set(0);
+			// notify the listeners with a copy of the buffer
+			for (MessageBufferListener<T> listener : listeners) {
+				if (wasFull) {
+					listener.bufferFull(copy);
+				} else {
+					listener.bufferFlushed(copy);
+				}
+			}
 		}
+	}
 
-		// notify the listeners with a copy of the buffer and the segmentation indices
-		for (MessageBufferListener<T> listener : listeners) {
-			if(wasFull) {
-				listener.bufferFull(copy);
-			} else {
-				listener.bufferFlushed(copy);
+	private List<T> drain() {
+		final long end = tail.get();
+		if (end == head) {
+			return Collections.emptyList();
+		}
+		final List<T> copy = new ArrayList<T>((int) (end - head));
+		long size = 0;
+		for (long sequence = head; sequence < end; sequence++) {
+			final int index = (int) (sequence & mask);
+			T message;
+			// the slot is claimed, but the producer may not have published the message yet
+			while ((message = slots.get(index)) == null) {
+				Thread.yield();
 			}
+			size += sizes[index];
+			slots.set(index, null);
+			copy.add(message);
 		}
+		head = end;
+		bufferSize.addAndGet(-size);
+		messageCount.addAndGet(-copy.size());
+		return copy;
 	}
 
 	private class BufferAgeRunnable implements Runnable {
 
-		private final AtomicBoolean cancelled;
+		private final long sequence;
 
-		public BufferAgeRunnable() {
-			this.cancelled = new AtomicBoolean(false);
+		public BufferAgeRunnable(long sequence) {
+			this.sequence = sequence;
 		}
 
 		@Override
 		public void run() {
-			if (!cancelled.get()) {
+			// if the message has been removed in the meantime, a newer message scheduled its own check
+			if (head <= sequence) {
 				LOG.debug("Buffer age exceeds the limit of {}ms", bufferAgeLimitMS);
 				notifyAndClear(true);
 			}
 		}
-
-		public void cancel() {
-			cancelled.set(true);
-		}
 	}
 }
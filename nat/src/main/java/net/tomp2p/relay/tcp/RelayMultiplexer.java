@@ -0,0 +1,220 @@
+package net.tomp2p.relay.tcp;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.util.concurrent.GenericFutureListener;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.tomp2p.futures.BaseFutureAdapter;
+import net.tomp2p.futures.FutureResponse;
+import net.tomp2p.message.Message;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends requests from the relay peer to the unreachable peer over the permanent connection, without waiting for
+ * the response of the previous request. The {@link net.tomp2p.connection.PeerConnection} only allows one request at a
+ * time, since every request installs its own handler for the response. This handler is installed once instead and
+ * matches the responses by their message ID, thus, a slow request does not block the following requests. Requests
+ * of the unreachable peer to the relay peer are passed on to the dispatcher, as are responses to requests that were
+ * not sent by this multiplexer.
+ *
+ * @author Nico Rutishauser
+ *
+ */
+public class RelayMultiplexer extends SimpleChannelInboundHandler<Message> {
+
+	private static final Logger LOG = LoggerFactory.getLogger(RelayMultiplexer.class);
+	private static final Random RND = new Random();
+
+	/**
+	 * The name of the multiplexer in the pipeline. It is not "handler", since {@link net.tomp2p.connection.Sender}
+	 * replaces that handler for every request sent over a peer connection.
+	 */
+	public static final String NAME = "multiplexer";
+
+	private final Channel channel;
+	private final ScheduledExecutorService timer;
+	private final int timeoutSeconds;
+	private final ConcurrentHashMap<Integer, FutureResponse> pending = new ConcurrentHashMap<Integer, FutureResponse>();
+	private final AtomicInteger messageIds = new AtomicInteger(RND.nextInt());
+
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong maxPending = new AtomicLong();
+
+	/**
+	 * Creates the multiplexer and installs it in the pipeline of the channel, in front of the handler that is
+	 * used by {@link net.tomp2p.connection.Sender} for a single request. The handler of the request that opened the
+	 * connection is done and removed.
+	 *
+	 * @param channel
+	 *            The permanent channel to the unreachable peer
+	 * @param timer
+	 *            The timer to fail requests without response
+	 * @param timeoutSeconds
+	 *            The time to wait for a response
+	 */
+	public RelayMultiplexer(final Channel channel, final ScheduledExecutorService timer, final int timeoutSeconds) {
+		this.channel = channel;
+		this.timer = timer;
+		this.timeoutSeconds = timeoutSeconds;
+		final ChannelPipeline pipeline = channel.pipeline();
+		if (pipeline.names().contains("handler")) {
+			pipeline.replace("handler", NAME, this);
+		} else if (pipeline.names().contains("dispatcher")) {
+			pipeline.addBefore("dispatcher", NAME, this);
+		} else {
+			pipeline.addLast(NAME, this);
+		}
+	}
+
+	/**
+	 * Sends a request to the unreachable peer. The request is sent immediately, even if other requests are still
+	 * waiting for their response.
+	 *
+	 * @param message
+	 *            The request, its message ID is replaced by one that is unique on this connection
+	 * @return The future that is done with the response of the unreachable peer
+	 */
+	public FutureResponse send(final Message message) {
+		final FutureResponse futureResponse = new FutureResponse(message);
+		if (!channel.isActive()) {
+			return futureResponse.failed("The connection to the unreachable peer is closed");
+		}
+		// the message ID is only unique per sender, take the next one of this connection. Only after a wrap-around
+		// it may still be in use by a request that waits for its response
+		do {
+			message.messageId(messageIds.incrementAndGet());
+		} while (pending.putIfAbsent(message.messageId(), futureResponse) != null);
+		final int messageId = message.messageId();
+		requests.incrementAndGet();
+		updateMaxPending();
+
+		final ScheduledFuture<?> timeout = scheduleTimeout(messageId, futureResponse);
+		futureResponse.addListener(new BaseFutureAdapter<FutureResponse>() {
+			@Override
+			public void operationComplete(final FutureResponse future) throws Exception {
+				pending.remove(messageId);
+				if (timeout != null) {
+					timeout.cancel(false);
+				}
+			}
+		});
+
+		channel.writeAndFlush(message).addListener(new GenericFutureListener<ChannelFuture>() {
+			@Override
+			public void operationComplete(final ChannelFuture future) throws Exception {
+				if (!future.isSuccess()) {
+					futureResponse.failed(future.cause());
+				}
+			}
+		});
+		return futureResponse;
+	}
+
+	private ScheduledFuture<?> scheduleTimeout(final int messageId, final FutureResponse futureResponse) {
+		try {
+			return timer.schedule(new Runnable() {
+				@Override
+				public void run() {
+					futureResponse.failed("No response from the unreachable peer within " + timeoutSeconds + "s");
+				}
+			}, timeoutSeconds, TimeUnit.SECONDS);
+		} catch (RejectedExecutionException e) {
+			// the peer shuts down, the channel will be closed
+			return null;
+		}
+	}
+
+	private void updateMaxPending() {
+		final int size = pending.size();
+		long max;
+		while (size > (max = maxPending.get())) {
+			if (maxPending.compareAndSet(max, size)) {
+				break;
+			}
+		}
+	}
+
+	@Override
+	protected void channelRead0(final ChannelHandlerContext ctx, final Message message) throws Exception {
+		if (message.isRequest()) {
+			// a request of the unreachable peer to the relay peer
+			ctx.fireChannelRead(message);
+			return;
+		}
+		if (!pending.containsKey(message.messageId())) {
+			// a response to a request that was sent by the handler of the sender
+			LOG.debug("Got a response from the unreachable peer without a pending request: {}", message);
+			ctx.fireChannelRead(message);
+			return;
+		}
+		if (!message.isDone()) {
+			LOG.debug("Response {} is streaming, wait for the rest", message);
+			return;
+		}
+		final FutureResponse futureResponse = pending.remove(message.messageId());
+		if (futureResponse == null) {
+			// failed in the meantime
+			return;
+		}
+		if (message.type() == Message.Type.UNKNOWN_ID || message.type() == Message.Type.EXCEPTION) {
+			futureResponse.failed("The unreachable peer could not handle the request: " + message);
+		} else {
+			futureResponse.response(message);
+		}
+	}
+
+	@Override
+	public void channelInactive(final ChannelHandlerContext ctx) throws Exception {
+		failAll("The connection to the unreachable peer has been closed");
+		ctx.fireChannelInactive();
+	}
+
+	@Override
+	public void exceptionCaught(final ChannelHandlerContext ctx, final Throwable cause) throws Exception {
+		LOG.warn("Error on the connection to the unreachable peer", cause);
+		failAll("Error on the connection to the unreachable peer: " + cause);
+		ctx.close();
+	}
+
+	private void failAll(final String reason) {
+		for (FutureResponse futureResponse : pending.values()) {
+			futureResponse.failed(reason);
+		}
+		pending.clear();
+	}
+
+	/**
+	 * @return The number of requests that wait for a response
+	 */
+	public int pendingRequests() {
+		return pending.size();
+	}
+
+	/**
+	 * @return The number of requests sent over this connection
+	 */
+	public long requests() {
+		return requests.get();
+	}
+
+	/**
+	 * @return The maximum number of requests that waited for a response at the same time
+	 */
+	public long maxPendingRequests() {
+		return maxPending.get();
+	}
+}
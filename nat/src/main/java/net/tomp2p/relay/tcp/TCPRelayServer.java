@@ -37,6 +37,8 @@ public class TCPRelayServer extends BaseRelayServer {
 
 	// connection to unreachable peer
 	private final PeerConnection peerConnection;
+	// sends the requests over the connection without waiting for the previous response
+	private final RelayMultiplexer multiplexer;
 
 	/**
 	 * 
@@ -50,6 +52,8 @@ public class TCPRelayServer extends BaseRelayServer {
 	public TCPRelayServer(final PeerConnection peerConnection, final Peer peer) {
 		super(peer, peerConnection.remotePeer(), RelayType.OPENTCP);
 		this.peerConnection = peerConnection.changeRemotePeer(unreachablePeerAddress());
+		this.multiplexer = new RelayMultiplexer(peerConnection.channelFuture().channel(), peer.connectionBean().timer(),
+				peer.connectionBean().channelServer().channelServerConfiguration().idleTCPSeconds());
 
 		// add a listener when the connection is closed
 		peerConnection.closeFuture().addListener(new BaseFutureAdapter<FutureDone<Void>>() {
@@ -88,8 +92,9 @@ public class TCPRelayServer extends BaseRelayServer {
 		// holds the message that will be returned to he requester
 		final FutureDone<Message> futureDone = new FutureDone<Message>();
 
-		// Forward a message through the open peer connection to the unreachable peer.
-		FutureResponse fr = RelayUtils.send(peerConnection, peerBean(), connectionBean(), envelope);
+		// Forward a message through the open peer connection to the unreachable peer. Multiple messages can be on
+		// the way at the same time, the responses are matched by the message id.
+		FutureResponse fr = multiplexer.send(envelope);
 		fr.addListener(new BaseFutureAdapter<FutureResponse>() {
 			public void operationComplete(FutureResponse future) throws Exception {
 				if (future.isSuccess()) {
@@ -116,6 +121,13 @@ public class TCPRelayServer extends BaseRelayServer {
 		return futureDone;
 	}
 	
+	/**
+	 * @return The multiplexer that sends the messages to the unreachable peer
+	 */
+	public RelayMultiplexer multiplexer() {
+		return multiplexer;
+	}
+
 	@Override
 	protected void peerMapUpdated(Message originalMessage, Message preparedResponse) {
 		// ignore
@@ -1,5 +1,16 @@
 package net.tomp2p.holep;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.tomp2p.futures.FutureDone;
+import net.tomp2p.futures.FutureResponse;
+import net.tomp2p.holep.strategy.HolePStrategy;
+import net.tomp2p.message.Message;
+
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -27,4 +38,66 @@ public class TestHolePunchScheduler {
 		}
 		Assert.assertNull(holePunchScheduler);
 	}
+
+	@Test
+	public void testHolePunchSchedulerBackoff() {
+		HolePScheduler holePunchScheduler = new HolePScheduler(10, new CountingStrategy()).intervalMillis(100).backoffFactor(2.0);
+		Assert.assertEquals(100, holePunchScheduler.nextDelay(1));
+		Assert.assertEquals(200, holePunchScheduler.nextDelay(2));
+		Assert.assertEquals(400, holePunchScheduler.nextDelay(3));
+		// the interval is capped at one minute
+		Assert.assertEquals(60 * 1000, holePunchScheduler.nextDelay(20));
+
+		holePunchScheduler.jitter(0.5);
+		for (int i = 0; i < 100; i++) {
+			long delay = holePunchScheduler.nextDelay(2);
+			Assert.assertTrue(delay >= 100 && delay <= 300);
+		}
+	}
+
+	@Test
+	public void testHolePunchSchedulerTimer() throws Exception {
+		final int schedulers = 1000;
+		final int punches = 3;
+		final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+		try {
+			final CountingStrategy strategy = new CountingStrategy();
+			final int threadsBefore = Thread.activeCount();
+			final List<FutureDone<Void>> futures = new ArrayList<FutureDone<Void>>(schedulers);
+			final long start = System.currentTimeMillis();
+			for (int i = 0; i < schedulers; i++) {
+				futures.add(new HolePScheduler(punches, strategy).intervalMillis(10).jitter(0.5).start(timer));
+			}
+			// punching does not need a thread per scheduler
+			Assert.assertTrue(Thread.activeCount() - threadsBefore <= 1);
+			for (FutureDone<Void> future : futures) {
+				Assert.assertTrue(future.awaitUninterruptibly(10000));
+				Assert.assertTrue(future.isSuccess());
+			}
+			Assert.assertEquals(schedulers * punches, strategy.punches.get());
+			System.err.println("BENCHMARK: " + schedulers + " hole punches with " + punches
+					+ " punches each on one timer thread. STAT: " + (System.currentTimeMillis() - start) + "ms");
+		} finally {
+			timer.shutdown();
+		}
+	}
+
+	private static class CountingStrategy implements HolePStrategy {
+		private final AtomicInteger punches = new AtomicInteger();
+
+		@Override
+		public FutureDone<Message> initiateHolePunch(final FutureDone<Message> mainFutureDone, final FutureResponse originalFutureResponse) {
+			return mainFutureDone;
+		}
+
+		@Override
+		public FutureDone<Message> replyHolePunch(final HolePScheduler holePScheduler) {
+			return new FutureDone<Message>();
+		}
+
+		@Override
+		public void tryConnect() throws Exception {
+			punches.incrementAndGet();
+		}
+	}
 }
@@ -340,6 +340,66 @@ public class TestRelay {
 		}
 	}
 
+	/**
+	 * Tests sending many messages at the same time from reachable peers to an unreachable peer. The relay forwards
+	 * them over the same connection without waiting for the previous response.
+	 */
+	@Test
+	public void testRelaySendDirectConcurrent() throws Exception {
+		final int nrOfNodes = 100;
+		final int nrOfMessages = 20;
+		Peer master = null;
+		Peer unreachablePeer = null;
+		try {
+			// setup test peers
+			Peer[] peers = UtilsNAT.createNodes(nrOfNodes, rnd, 4001);
+			master = peers[0];
+			UtilsNAT.perfectRouting(peers);
+			for (Peer peer : peers) {
+				new PeerBuilderNAT(peer).addRelayServerConfiguration(relayType, serverConfig).start();
+			}
+
+			// setup relay
+			unreachablePeer = new PeerBuilder(Number160.createHash(rnd.nextInt())).ports(13337).start();
+			PeerNAT uNat = new PeerBuilderNAT(unreachablePeer).start();
+			FutureRelayNAT startRelay = uNat.startRelay(clientConfig, peers[0].peerAddress()).awaitUninterruptibly();
+			Assert.assertTrue(startRelay.isSuccess());
+
+			unreachablePeer.objectDataReply(new ObjectDataReply() {
+				public Object reply(PeerAddress sender, Object request) throws Exception {
+					// returning the request itself would mean no reply
+					return "reply " + request;
+				}
+			});
+
+			// warm up
+			Assert.assertTrue(peers[1].sendDirect(unreachablePeer.peerAddress()).object(-1).start()
+					.awaitUninterruptibly().isSuccess());
+
+			long start = System.nanoTime();
+			FutureDirect[] futures = new FutureDirect[nrOfMessages];
+			for (int i = 0; i < nrOfMessages; i++) {
+				futures[i] = peers[1 + (i % (nrOfNodes - 1))].sendDirect(unreachablePeer.peerAddress()).object(i)
+						.start();
+			}
+			for (int i = 0; i < nrOfMessages; i++) {
+				futures[i].awaitUninterruptibly();
+				Assert.assertTrue(futures[i].failedReason(), futures[i].isSuccess());
+				Assert.assertEquals("reply " + i, futures[i].object());
+			}
+			long micros = (System.nanoTime() - start) / 1000;
+			System.err.println("BENCHMARK: relay " + relayType + " " + nrOfMessages + " concurrent messages. STAT: "
+					+ (micros / 1000) + " ms total, " + (micros / nrOfMessages) + " us per message");
+		} finally {
+			if (unreachablePeer != null) {
+				unreachablePeer.shutdown().await();
+			}
+			if (master != null) {
+				master.shutdown().await();
+			}
+		}
+	}
+
 	/**
 	 * Tests sending a message from an unreachable peer to a reachable peer
 	 */
@@ -1,6 +1,11 @@
 package net.tomp2p.relay.buffer;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 
 import java.io.IOException;
 import java.security.InvalidKeyException;
@@ -8,11 +13,23 @@ import java.security.NoSuchAlgorithmException;
 import java.security.SignatureException;
 import java.security.spec.InvalidKeySpecException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.tomp2p.connection.DSASignatureFactory;
 import net.tomp2p.connection.SignatureFactory;
 import net.tomp2p.message.Message;
+import net.tomp2p.p2p.Peer;
+import net.tomp2p.p2p.PeerBuilder;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.relay.BaseRelayServer;
+import net.tomp2p.relay.OfflineListener;
+import net.tomp2p.relay.RelayType;
 import net.tomp2p.relay.RelayUtils;
 import net.tomp2p.relay.UtilsNAT;
 
@@ -172,6 +189,246 @@ public class TestMessageBuffer {
 		assertEquals(2, listener.getBuffer().size());
 	}
 	
+	@Test
+	public void testConcurrentProducers() throws InterruptedException {
+		final int producers = 8;
+		final int messages = 1000;
+		final List<Integer> received = Collections.synchronizedList(new ArrayList<Integer>());
+		final MessageBuffer<Integer> buffer = new MessageBuffer<Integer>(7, Long.MAX_VALUE, Long.MAX_VALUE);
+		buffer.addListener(new MessageBufferListener<Integer>() {
+			@Override
+			public void bufferFull(List<Integer> messages) {
+				received.addAll(messages);
+			}
+
+			@Override
+			public void bufferFlushed(List<Integer> messages) {
+				received.addAll(messages);
+			}
+		});
+
+		Thread[] threads = new Thread[producers];
+		for (int i = 0; i < producers; i++) {
+			final int producer = i;
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int j = 0; j < messages; j++) {
+						buffer.addMessage(producer * messages + j, 1);
+					}
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		buffer.flushNow();
+
+		// every message is delivered once and the order of each producer is kept
+		assertEquals(producers * messages, received.size());
+		assertEquals(0, buffer.messageCount());
+		assertEquals(0, buffer.bufferSize());
+		int[] last = new int[producers];
+		Arrays.fill(last, -1);
+		for (Integer message : received) {
+			int producer = message / messages;
+			assertTrue(message > last[producer]);
+			last[producer] = message;
+		}
+	}
+
+	@Test
+	public void testEncodedMessages() throws InvalidKeyException, SignatureException, IOException {
+		CountingByteBufListener listener = new CountingByteBufListener();
+		MessageBuffer<ByteBuf> buffer = new MessageBuffer<ByteBuf>(3, Long.MAX_VALUE, Long.MAX_VALUE);
+		buffer.addListener(listener);
+
+		Message first = UtilsNAT.createRandomMessage();
+		Message second = UtilsNAT.createRandomMessage();
+		Message third = UtilsNAT.createRandomMessage();
+		for (Message message : new Message[] { first, second, third }) {
+			ByteBuf encoded = RelayUtils.encodeBufferedMessage(message, signature);
+			assertTrue(encoded.isDirect());
+			buffer.addMessage(encoded, encoded.readableBytes());
+		}
+
+		// compose without copying and decode the messages again
+		ByteBuf composed = RelayUtils.composeEncodedMessages(listener.buffer);
+		List<Message> decoded = RelayUtils.decomposeCompositeBuffer(composed, first.recipientSocket(),
+				first.senderSocket(), signature);
+		assertEquals(3, decoded.size());
+		assertTrue(UtilsNAT.messagesEqual(first, decoded.get(0)));
+		assertTrue(UtilsNAT.messagesEqual(second, decoded.get(1)));
+		assertTrue(UtilsNAT.messagesEqual(third, decoded.get(2)));
+	}
+
+	@Test
+	public void testShutdownReleasesMessages() throws Exception {
+		Peer peer = new PeerBuilder(new Number160(1)).ports(4001).start();
+		try {
+			BufferedRelayServer server = new BufferedRelayServer(peer, UtilsNAT.createAddress(), RelayType.BUFFERED_OPENTCP,
+					new MessageBufferConfiguration().bufferCountLimit(2)) {
+				@Override
+				public void onBufferFull() {
+					// keep the messages
+				}
+
+				@Override
+				protected void onBufferCollected() {
+					// ignore
+				}
+
+				@Override
+				protected boolean isAlive() {
+					return true;
+				}
+			};
+
+			// two messages have been released from the buffer, one is still in it
+			ByteBuf first = Unpooled.directBuffer().writeInt(1);
+			ByteBuf second = Unpooled.directBuffer().writeInt(2);
+			ByteBuf third = Unpooled.directBuffer().writeInt(3);
+			server.bufferFull(Arrays.asList(second, third));
+			server.forwardToUnreachable(UtilsNAT.createRandomMessage());
+			server.shutdown();
+			assertEquals(0, second.refCnt());
+			assertEquals(0, third.refCnt());
+			assertNull(server.collectBufferedMessages());
+
+			// messages released from the buffer after the shutdown are not kept
+			server.bufferFull(Collections.singletonList(first));
+			assertEquals(0, first.refCnt());
+			assertNull(server.collectBufferedMessages());
+		} finally {
+			peer.shutdown().awaitUninterruptibly();
+		}
+	}
+
+	@Test
+	public void testOfflineReleasesMessages() throws Exception {
+		class OfflineServer extends BufferedRelayServer {
+			OfflineServer(Peer peer, PeerAddress unreachablePeer) {
+				super(peer, unreachablePeer, RelayType.ANDROID, new MessageBufferConfiguration()
+						.bufferCountLimit(1));
+			}
+
+			@Override
+			public void onBufferFull() {
+				// keep the messages
+			}
+
+			@Override
+			protected void onBufferCollected() {
+				// ignore
+			}
+
+			@Override
+			protected boolean isAlive() {
+				// like a mobile peer that did not send an update for too long
+				notifyOfflineListeners();
+				return false;
+			}
+		}
+		Peer peer = new PeerBuilder(new Number160(1)).ports(4001).start();
+		try {
+			OfflineServer server = new OfflineServer(peer, UtilsNAT.createAddress());
+			final AtomicBoolean notified = new AtomicBoolean();
+			server.addOfflineListener(new OfflineListener() {
+				@Override
+				public void onUnreachableOffline(PeerAddress unreachablePeer, BaseRelayServer relayServer) {
+					notified.set(true);
+				}
+			});
+			ByteBuf message = Unpooled.directBuffer().writeInt(1);
+			server.bufferFull(Collections.singletonList(message));
+			assertFalse(server.isAlive());
+			assertTrue(notified.get());
+			assertEquals(0, message.refCnt());
+			assertNull(server.collectBufferedMessages());
+		} finally {
+			peer.shutdown().awaitUninterruptibly();
+		}
+	}
+
+	@Test
+	public void testBenchmarkManyClients() throws Exception {
+		final int clients = 10000;
+		final int messagesPerClient = 25;
+		final int producers = 4;
+		final Message message = UtilsNAT.createRandomMessage();
+		final ByteBuf encoded = RelayUtils.encodeBufferedMessage(message, signature);
+		final int messageSize = encoded.readableBytes();
+
+		final MessageBufferConfiguration config = new MessageBufferConfiguration();
+		final CountingByteBufListener listener = new CountingByteBufListener();
+		@SuppressWarnings("unchecked")
+		final MessageBuffer<ByteBuf>[] buffers = new MessageBuffer[clients];
+		System.gc();
+		final Runtime runtime = Runtime.getRuntime();
+		final long heapBefore = runtime.totalMemory() - runtime.freeMemory();
+		for (int i = 0; i < clients; i++) {
+			buffers[i] = new MessageBuffer<ByteBuf>(config);
+			buffers[i].addListener(listener);
+		}
+
+		final long start = System.nanoTime();
+		Thread[] threads = new Thread[producers];
+		for (int i = 0; i < producers; i++) {
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int j = 0; j < messagesPerClient; j++) {
+						for (int k = 0; k < clients; k++) {
+							// each message is a separate off-heap copy, as it would be for a real relay
+							ByteBuf copy = Unpooled.directBuffer(messageSize);
+							copy.writeBytes(encoded, encoded.readerIndex(), messageSize);
+							buffers[k].addMessage(copy, messageSize);
+						}
+					}
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		final long time = System.nanoTime() - start;
+		System.gc();
+		final long heapAfter = runtime.totalMemory() - runtime.freeMemory();
+
+		int buffered = 0;
+		for (MessageBuffer<ByteBuf> buffer : buffers) {
+			buffered += buffer.messageCount();
+		}
+		assertEquals(clients * messagesPerClient * producers, listener.count.get() + buffered);
+		System.err.println("BENCHMARK: " + (clients * messagesPerClient * producers) + " messages of " + messageSize
+				+ " bytes to " + clients + " clients with " + producers + " producers in "
+				+ TimeUnit.NANOSECONDS.toMillis(time) + " ms. STAT: "
+				+ (time / (clients * messagesPerClient * producers)) + " ns per message, "
+				+ ((heapAfter - heapBefore) / clients) + " heap bytes per client with " + buffered
+				+ " messages still buffered");
+	}
+
+	private class CountingByteBufListener implements MessageBufferListener<ByteBuf> {
+
+		private final List<ByteBuf> buffer = Collections.synchronizedList(new ArrayList<ByteBuf>());
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public void bufferFull(List<ByteBuf> messages) {
+			if (buffer.size() < 1000) {
+				buffer.addAll(messages);
+			}
+			count.addAndGet(messages.size());
+		}
+
+		@Override
+		public void bufferFlushed(List<ByteBuf> messages) {
+			bufferFull(messages);
+		}
+	}
+
 	private class CountingBufferListener implements MessageBufferListener<Message> {
 
 		private final List<Message> buffer;
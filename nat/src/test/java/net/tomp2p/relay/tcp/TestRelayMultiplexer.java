@@ -0,0 +1,88 @@
+package net.tomp2p.relay.tcp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import net.tomp2p.futures.FutureResponse;
+import net.tomp2p.message.Message;
+import net.tomp2p.message.Message.Type;
+
+import org.junit.Test;
+
+public class TestRelayMultiplexer {
+
+	/**
+	 * The sender replaces the "handler" for every request over a peer connection, the multiplexer must stay in the
+	 * pipeline and pass on the responses that are not its own.
+	 */
+	@Test
+	public void testSenderHandlerDoesNotReplaceMultiplexer() {
+		final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+		try {
+			final List<Message> dispatched = new ArrayList<Message>();
+			// the embedded channel needs a handler to start with, it is replaced by the dispatcher
+			final EmbeddedChannel channel = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+			channel.pipeline().replace(channel.pipeline().names().get(0), "dispatcher", new RecordingHandler(dispatched));
+			channel.pipeline().addBefore("dispatcher", "handler", new RecordingHandler(new ArrayList<Message>()));
+
+			final RelayMultiplexer multiplexer = new RelayMultiplexer(channel, timer, 10);
+			assertTrue(channel.pipeline().names().contains(RelayMultiplexer.NAME));
+			assertFalse(channel.pipeline().names().contains("handler"));
+
+			// what the sender does for a request over the peer connection
+			final List<Message> handled = new ArrayList<Message>();
+			channel.pipeline().addBefore("dispatcher", "handler", new RecordingHandler(handled));
+			assertTrue(channel.pipeline().names().contains(RelayMultiplexer.NAME));
+
+			// the same message ID from two senders
+			final Message request1 = new Message().type(Type.REQUEST_1).messageId(7);
+			final Message request2 = new Message().type(Type.REQUEST_1).messageId(7);
+			final FutureResponse future1 = multiplexer.send(request1);
+			final FutureResponse future2 = multiplexer.send(request2);
+			assertNotEquals(request1.messageId(), request2.messageId());
+			assertEquals(2, multiplexer.pendingRequests());
+
+			channel.writeInbound(new Message().type(Type.OK).messageId(request2.messageId()).setDone());
+			channel.writeInbound(new Message().type(Type.OK).messageId(request1.messageId()).setDone());
+			assertTrue(future1.isSuccess());
+			assertTrue(future2.isSuccess());
+			assertEquals(request1.messageId(), future1.responseMessage().messageId());
+			assertEquals(0, multiplexer.pendingRequests());
+
+			// a response to the request of the sender
+			final int otherId = request2.messageId() + 1000;
+			channel.writeInbound(new Message().type(Type.OK).messageId(otherId).setDone());
+			assertEquals(1, handled.size());
+			assertEquals(otherId, handled.get(0).messageId());
+			assertTrue(dispatched.isEmpty());
+			channel.finish();
+		} finally {
+			timer.shutdownNow();
+		}
+	}
+
+	private static class RecordingHandler extends SimpleChannelInboundHandler<Message> {
+
+		private final List<Message> messages;
+
+		private RecordingHandler(final List<Message> messages) {
+			this.messages = messages;
+		}
+
+		@Override
+		protected void channelRead0(final ChannelHandlerContext ctx, final Message message) throws Exception {
+			messages.add(message);
+		}
+	}
+}
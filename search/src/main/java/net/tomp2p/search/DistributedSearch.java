@@ -0,0 +1,428 @@
+package net.tomp2p.search;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+
+import net.tomp2p.connection.ChannelCreator;
+import net.tomp2p.futures.BaseFutureAdapter;
+import net.tomp2p.futures.FutureChannelCreator;
+import net.tomp2p.futures.FutureDone;
+import net.tomp2p.futures.FutureResponse;
+import net.tomp2p.futures.FutureRouting;
+import net.tomp2p.message.Message;
+import net.tomp2p.message.Message.Type;
+import net.tomp2p.p2p.Peer;
+import net.tomp2p.p2p.RoutingConfiguration;
+import net.tomp2p.p2p.builder.RoutingBuilder;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.peers.PeerMap;
+import net.tomp2p.rpc.SimpleBloomFilter;
+import net.tomp2p.utils.Utils;
+
+/**
+ * Evaluates AND queries at the peers that are responsible for the posting lists. Every shard is searched
+ * independently:
+ * <ol>
+ * <li>The responsible peers of the posting lists of all terms are looked up, and each returns the size and a Bloom
+ * filter of its posting list.</li>
+ * <li>The peer of the shortest posting list reads a page of its list and drops the documents that are not in the
+ * filters of the other terms.</li>
+ * <li>The peers of the other terms remove the false positives of the filters from the page.</li>
+ * </ol>
+ * Thus, a query costs the routing and three round trips, independent of the length of the posting lists, and only
+ * a page of document keys is transferred. Single term queries skip the filters and the verification. The pages of
+ * the shards are merged in document key order.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class DistributedSearch {
+
+	private final Peer peer;
+	private final SearchRPC searchRPC;
+	private final PostingLists postingLists;
+	private final int shards;
+
+	public DistributedSearch(final Peer peer, final SearchRPC searchRPC, final PostingLists postingLists,
+			final int shards) {
+		this.peer = peer;
+		this.searchRPC = searchRPC;
+		this.postingLists = postingLists;
+		this.shards = shards;
+	}
+
+	/**
+	 * The posting list of a term in a shard.
+	 */
+	private static class Posting {
+		private final Number160 locationKey;
+		// null if no peer has this posting list
+		private final PeerAddress peerAddress;
+		// -1 if unknown
+		private final int size;
+		private final SimpleBloomFilter<Number160> filter;
+
+		Posting(final Number160 locationKey, final PeerAddress peerAddress, final int size,
+				final SimpleBloomFilter<Number160> filter) {
+			this.locationKey = locationKey;
+			this.peerAddress = peerAddress;
+			this.size = size;
+			this.filter = filter;
+		}
+
+		boolean isEmpty() {
+			return peerAddress == null || size == 0;
+		}
+	}
+
+	/**
+	 * The verified documents of a page of a shard.
+	 */
+	private static class ShardPage {
+		private final List<Number160> documentKeys;
+		// the last document that has been read, null if none
+		private final Number160 last;
+		private final boolean more;
+
+		ShardPage(final List<Number160> documentKeys, final PostingLists.Page page) {
+			this.documentKeys = documentKeys;
+			final List<Number160> candidates = page.documentKeys();
+			this.last = candidates.isEmpty() ? null : candidates.get(candidates.size() - 1);
+			this.more = page.hasMore();
+		}
+	}
+
+	private interface Request {
+		FutureResponse create(ChannelCreator channelCreator);
+	}
+
+	private static final Comparator<Posting> SIZE_COMPARATOR = new Comparator<Posting>() {
+		@Override
+		public int compare(final Posting o1, final Posting o2) {
+			return o1.size < o2.size ? -1 : (o1.size == o2.size ? 0 : 1);
+		}
+	};
+
+	private static final ShardPage EMPTY_SHARD_PAGE = new ShardPage(Collections.<Number160> emptyList(),
+			new PostingLists.Page(Collections.<Number160> emptyList(), false));
+
+	public FutureSearch search(final SearchBuilder builder) {
+		final FutureSearch futureSearch = new FutureSearch();
+		final List<String> terms = new ArrayList<String>(builder.terms());
+		final List<FutureDone<?>> futureShards = new ArrayList<FutureDone<?>>(shards);
+		for (int shard = 0; shard < shards; shard++) {
+			futureShards.add(searchShard(builder, terms, shard));
+		}
+		FutureDone.whenAll(futureShards).addListener(new BaseFutureAdapter<FutureDone<List<FutureDone<?>>>>() {
+			@Override
+			public void operationComplete(final FutureDone<List<FutureDone<?>>> future) throws Exception {
+				final List<ShardPage> shardPages = new ArrayList<ShardPage>(shards);
+				for (FutureDone<?> futureShard : futureShards) {
+					if (futureShard.isFailed()) {
+						futureSearch.failed("Search failed", futureShard);
+						return;
+					}
+					shardPages.add((ShardPage) futureShard.object());
+				}
+				merge(futureSearch, shardPages, builder.pageSize());
+			}
+		});
+		return futureSearch;
+	}
+
+	/**
+	 * Merges the pages of the shards. A shard with more documents has only been read up to its last document, thus,
+	 * documents of other shards after the smallest such document are not returned yet.
+	 */
+	private static void merge(final FutureSearch futureSearch, final List<ShardPage> shardPages, final int pageSize) {
+		Number160 cutoff = null;
+		for (ShardPage shardPage : shardPages) {
+			if (shardPage.more && (cutoff == null || shardPage.last.compareTo(cutoff) < 0)) {
+				cutoff = shardPage.last;
+			}
+		}
+		final NavigableSet<Number160> merged = new TreeSet<Number160>();
+		for (ShardPage shardPage : shardPages) {
+			for (Number160 documentKey : shardPage.documentKeys) {
+				if (cutoff == null || documentKey.compareTo(cutoff) <= 0) {
+					merged.add(documentKey);
+				}
+			}
+		}
+		final List<Number160> documentKeys = new ArrayList<Number160>(Math.min(pageSize, merged.size()));
+		for (Number160 documentKey : merged) {
+			if (documentKeys.size() == pageSize) {
+				break;
+			}
+			documentKeys.add(documentKey);
+		}
+		final Number160 cursor;
+		if (merged.size() > pageSize) {
+			cursor = documentKeys.get(documentKeys.size() - 1);
+		} else {
+			cursor = cutoff;
+		}
+		futureSearch.done(documentKeys, cursor);
+	}
+
+	private FutureDone<ShardPage> searchShard(final SearchBuilder builder, final List<String> terms, final int shard) {
+		final FutureDone<ShardPage> futureDone = new FutureDone<ShardPage>();
+		final boolean filter = terms.size() > 1;
+		final List<FutureDone<?>> futurePostings = new ArrayList<FutureDone<?>>(terms.size());
+		for (String term : terms) {
+			futurePostings.add(posting(builder, UtilsSearch.locationKey(term, shard), filter));
+		}
+		FutureDone.whenAll(futurePostings).addListener(new BaseFutureAdapter<FutureDone<List<FutureDone<?>>>>() {
+			@Override
+			public void operationComplete(final FutureDone<List<FutureDone<?>>> future) throws Exception {
+				final List<Posting> postings = new ArrayList<Posting>(terms.size());
+				for (FutureDone<?> futurePosting : futurePostings) {
+					if (futurePosting.isFailed()) {
+						futureDone.failed(futurePosting);
+						return;
+					}
+					final Posting posting = (Posting) futurePosting.object();
+					if (posting.isEmpty()) {
+						// one term is not in this shard
+						futureDone.done(EMPTY_SHARD_PAGE);
+						return;
+					}
+					postings.add(posting);
+				}
+				Collections.sort(postings, SIZE_COMPARATOR);
+				final Posting driver = postings.get(0);
+				final List<Posting> others = postings.subList(1, postings.size());
+				final List<SimpleBloomFilter<Number160>> filters = new ArrayList<SimpleBloomFilter<Number160>>();
+				for (int i = 0; i < others.size() && i < SearchRPC.MAX_FILTERS; i++) {
+					filters.add(others.get(i).filter);
+				}
+				page(builder, driver, filters).addListener(new BaseFutureAdapter<FutureDone<PostingLists.Page>>() {
+					@Override
+					public void operationComplete(final FutureDone<PostingLists.Page> future) throws Exception {
+						if (future.isFailed()) {
+							futureDone.failed(future);
+							return;
+						}
+						final PostingLists.Page page = future.object();
+						if (others.isEmpty() || page.documentKeys().isEmpty()) {
+							futureDone.done(new ShardPage(page.documentKeys(), page));
+							return;
+						}
+						verify(builder, others, page, futureDone);
+					}
+				});
+			}
+		});
+		return futureDone;
+	}
+
+	/**
+	 * Removes the false positives of the filters, and the documents of the terms whose filters did not fit into the
+	 * page request.
+	 */
+	private void verify(final SearchBuilder builder, final List<Posting> others, final PostingLists.Page page,
+			final FutureDone<ShardPage> futureDone) {
+		final List<FutureDone<?>> futureRetains = new ArrayList<FutureDone<?>>(others.size());
+		for (Posting other : others) {
+			futureRetains.add(retain(builder, other, page.documentKeys()));
+		}
+		FutureDone.whenAll(futureRetains).addListener(new BaseFutureAdapter<FutureDone<List<FutureDone<?>>>>() {
+			@Override
+			public void operationComplete(final FutureDone<List<FutureDone<?>>> future) throws Exception {
+				final List<Number160> documentKeys = new ArrayList<Number160>(page.documentKeys());
+				for (FutureDone<?> futureRetain : futureRetains) {
+					if (futureRetain.isFailed()) {
+						futureDone.failed(futureRetain);
+						return;
+					}
+					@SuppressWarnings("unchecked")
+					final List<Number160> retained = (List<Number160>) futureRetain.object();
+					documentKeys.retainAll(new HashSet<Number160>(retained));
+				}
+				futureDone.done(new ShardPage(documentKeys, page));
+			}
+		});
+	}
+
+	private FutureDone<Posting> posting(final SearchBuilder builder, final Number160 locationKey,
+			final boolean filter) {
+		final FutureDone<Posting> futureDone = new FutureDone<Posting>();
+		responsible(builder, locationKey).addListener(new BaseFutureAdapter<FutureDone<PeerAddress>>() {
+			@Override
+			public void operationComplete(final FutureDone<PeerAddress> future) throws Exception {
+				if (future.isFailed()) {
+					futureDone.failed(future);
+					return;
+				}
+				final PeerAddress peerAddress = future.object();
+				if (peerAddress == null || !filter) {
+					futureDone.done(new Posting(locationKey, peerAddress, -1, null));
+				} else if (peerAddress.equals(peer.peerAddress())) {
+					final List<Number160> documentKeys = new ArrayList<Number160>(postingLists.documentKeys(
+							locationKey, builder.domainKey()));
+					futureDone.done(new Posting(locationKey, peerAddress, documentKeys.size(), PostingLists
+							.filter(documentKeys)));
+				} else {
+					request(new Request() {
+						@Override
+						public FutureResponse create(final ChannelCreator channelCreator) {
+							return searchRPC.filter(peerAddress, locationKey, builder.domainKey(), builder,
+									channelCreator);
+						}
+					}).addListener(new BaseFutureAdapter<FutureDone<Message>>() {
+						@Override
+						public void operationComplete(final FutureDone<Message> future) throws Exception {
+							if (future.isFailed()) {
+								futureDone.failed(future);
+								return;
+							}
+							final Message message = future.object();
+							futureDone.done(new Posting(locationKey, peerAddress, message.intAt(0), message
+									.bloomFilter(0)));
+						}
+					});
+				}
+			}
+		});
+		return futureDone;
+	}
+
+	private FutureDone<PostingLists.Page> page(final SearchBuilder builder, final Posting posting,
+			final List<SimpleBloomFilter<Number160>> filters) {
+		if (posting.peerAddress.equals(peer.peerAddress())) {
+			return new FutureDone<PostingLists.Page>().done(postingLists.intersect(posting.locationKey,
+					builder.domainKey(), builder.after(), builder.pageSize(), filters));
+		}
+		final FutureDone<PostingLists.Page> futureDone = new FutureDone<PostingLists.Page>();
+		request(new Request() {
+			@Override
+			public FutureResponse create(final ChannelCreator channelCreator) {
+				return searchRPC.intersect(posting.peerAddress, posting.locationKey, builder.domainKey(),
+						builder.after(), builder.pageSize(), filters, builder, channelCreator);
+			}
+		}).addListener(new BaseFutureAdapter<FutureDone<Message>>() {
+			@Override
+			public void operationComplete(final FutureDone<Message> future) throws Exception {
+				if (future.isFailed()) {
+					futureDone.failed(future);
+					return;
+				}
+				final Message message = future.object();
+				futureDone.done(new PostingLists.Page(SearchRPC.documentKeys(message),
+						message.type() == Type.PARTIALLY_OK));
+			}
+		});
+		return futureDone;
+	}
+
+	private FutureDone<List<Number160>> retain(final SearchBuilder builder, final Posting posting,
+			final List<Number160> documentKeys) {
+		if (posting.peerAddress.equals(peer.peerAddress())) {
+			return new FutureDone<List<Number160>>().done(postingLists.retain(posting.locationKey,
+					builder.domainKey(), documentKeys));
+		}
+		final FutureDone<List<Number160>> futureDone = new FutureDone<List<Number160>>();
+		request(new Request() {
+			@Override
+			public FutureResponse create(final ChannelCreator channelCreator) {
+				return searchRPC.retain(posting.peerAddress, posting.locationKey, builder.domainKey(),
+						documentKeys, builder, channelCreator);
+			}
+		}).addListener(new BaseFutureAdapter<FutureDone<Message>>() {
+			@Override
+			public void operationComplete(final FutureDone<Message> future) throws Exception {
+				if (future.isFailed()) {
+					futureDone.failed(future);
+					return;
+				}
+				futureDone.done(SearchRPC.documentKeys(future.object()));
+			}
+		});
+		return futureDone;
+	}
+
+	/**
+	 * Finds the peer that is responsible for a posting list, this is the closest peer that reports to have it.
+	 *
+	 * @return The future with the peer, or with null if no peer has the posting list
+	 */
+	private FutureDone<PeerAddress> responsible(final SearchBuilder builder, final Number160 locationKey) {
+		final FutureDone<PeerAddress> futureDone = new FutureDone<PeerAddress>();
+		final RoutingConfiguration routingConfiguration = builder.routingConfiguration();
+		final FutureChannelCreator futureChannelCreator = peer.connectionBean().reservation()
+				.create(routingConfiguration, null, builder);
+		Utils.addReleaseListener(futureChannelCreator, futureDone);
+		futureChannelCreator.addListener(new BaseFutureAdapter<FutureChannelCreator>() {
+			@Override
+			public void operationComplete(final FutureChannelCreator future) throws Exception {
+				if (future.isFailed()) {
+					futureDone.failed(future);
+					return;
+				}
+				final RoutingBuilder routingBuilder = new RoutingBuilder();
+				routingBuilder.parallel(routingConfiguration.parallel());
+				routingBuilder.setMaxNoNewInfo(routingConfiguration.maxNoNewInfo(0));
+				routingBuilder.maxDirectHits(routingConfiguration.maxDirectHits());
+				routingBuilder.maxFailures(routingConfiguration.maxFailures());
+				routingBuilder.maxSuccess(routingConfiguration.maxSuccess());
+				routingBuilder.locationKey(locationKey);
+				routingBuilder.domainKey(builder.domainKey());
+				final FutureRouting futureRouting = peer.distributedRouting().route(routingBuilder, Type.REQUEST_2,
+						future.channelCreator());
+				futureRouting.addListener(new BaseFutureAdapter<FutureRouting>() {
+					@Override
+					public void operationComplete(final FutureRouting future) throws Exception {
+						if (future.isFailed()) {
+							futureDone.failed(future);
+							return;
+						}
+						final NavigableSet<PeerAddress> candidates = new TreeSet<PeerAddress>(
+								PeerMap.createXORAddressComparator(locationKey));
+						if (future.directHits() != null) {
+							candidates.addAll(future.directHits());
+						}
+						if (postingLists.contains(locationKey, builder.domainKey())) {
+							candidates.add(peer.peerAddress());
+						}
+						futureDone.done(candidates.isEmpty() ? null : candidates.first());
+					}
+				});
+			}
+		});
+		return futureDone;
+	}
+
+	private FutureDone<Message> request(final Request request) {
+		final FutureDone<Message> futureDone = new FutureDone<Message>();
+		final FutureChannelCreator futureChannelCreator = peer.connectionBean().reservation().create(0, 1);
+		Utils.addReleaseListener(futureChannelCreator, futureDone);
+		futureChannelCreator.addListener(new BaseFutureAdapter<FutureChannelCreator>() {
+			@Override
+			public void operationComplete(final FutureChannelCreator future) throws Exception {
+				if (future.isFailed()) {
+					futureDone.failed(future);
+					return;
+				}
+				request.create(future.channelCreator()).addListener(new BaseFutureAdapter<FutureResponse>() {
+					@Override
+					public void operationComplete(final FutureResponse future) throws Exception {
+						if (future.isFailed()) {
+							futureDone.failed(future);
+						} else if (!future.responseMessage().isOk()) {
+							futureDone.failed("Search request returned " + future.responseMessage().type());
+						} else {
+							futureDone.done(future.responseMessage());
+						}
+					}
+				});
+			}
+		});
+		return futureDone;
+	}
+}
@@ -0,0 +1,74 @@
+package net.tomp2p.search;
+
+import java.util.Collections;
+import java.util.List;
+
+import net.tomp2p.futures.BaseFutureImpl;
+import net.tomp2p.peers.Number160;
+
+/**
+ * The future of a search. It holds one page of the documents that contain all terms, in ascending order of the
+ * document keys. The next page is requested with {@link SearchBuilder#next(FutureSearch)}.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class FutureSearch extends BaseFutureImpl<FutureSearch> {
+
+	private List<Number160> documentKeys = Collections.emptyList();
+	private Number160 cursor;
+
+	public FutureSearch() {
+		self(this);
+	}
+
+	/**
+	 * Sets the page and finishes the future.
+	 *
+	 * @param documentKeys
+	 *            The documents of this page
+	 * @param cursor
+	 *            The next page starts after this document key, or null if this is the last page
+	 * @return This class
+	 */
+	public FutureSearch done(final List<Number160> documentKeys, final Number160 cursor) {
+		synchronized (lock) {
+			if (!completedAndNotify()) {
+				return this;
+			}
+			this.documentKeys = documentKeys;
+			this.cursor = cursor;
+			this.type = FutureType.OK;
+		}
+		notifyListeners();
+		return this;
+	}
+
+	/**
+	 * @return The documents of this page in ascending order
+	 */
+	public List<Number160> documentKeys() {
+		synchronized (lock) {
+			return documentKeys;
+		}
+	}
+
+	/**
+	 * @return The next page starts after this document key, or null if this is the last page
+	 */
+	public Number160 cursor() {
+		synchronized (lock) {
+			return cursor;
+		}
+	}
+
+	/**
+	 * @return True if there may be more documents. A page can be shorter than the page size and still have a next
+	 *         page, since false positives of the filters are only removed after the page has been read.
+	 */
+	public boolean hasMore() {
+		synchronized (lock) {
+			return cursor != null;
+		}
+	}
+}
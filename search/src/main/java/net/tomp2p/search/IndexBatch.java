@@ -0,0 +1,195 @@
+package net.tomp2p.search;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.tomp2p.dht.FutureDHT;
+import net.tomp2p.futures.BaseFutureAdapter;
+import net.tomp2p.futures.FutureDone;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.storage.Data;
+
+/**
+ * Collects updates of the index and sends them in one DHT operation per posting list shard. Indexing n documents
+ * with the same term costs one put instead of n puts. The batch can be reused after {@link #flush()}. This class is
+ * not thread safe.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class IndexBatch {
+
+	private final PeerSearch peer;
+
+	private Number160 domainKey = UtilsSearch.DEFAULT_DOMAIN;
+	private Map<Number160, NavigableMap<Number160, Data>> adds = new HashMap<Number160, NavigableMap<Number160, Data>>();
+	private Map<Number160, Set<Number160>> removes = new HashMap<Number160, Set<Number160>>();
+
+	public IndexBatch(final PeerSearch peer) {
+		this.peer = peer;
+	}
+
+	public Number160 domainKey() {
+		return domainKey;
+	}
+
+	public IndexBatch domainKey(final Number160 domainKey) {
+		this.domainKey = domainKey;
+		return this;
+	}
+
+	/**
+	 * Adds a document with the terms of a text.
+	 *
+	 * @param documentKey
+	 *            The key of the document
+	 * @param text
+	 *            The text, it is split with {@link UtilsSearch#terms(String)}
+	 * @return This class
+	 */
+	public IndexBatch add(final Number160 documentKey, final String text) {
+		return add(documentKey, UtilsSearch.terms(text));
+	}
+
+	/**
+	 * Adds a document with terms.
+	 *
+	 * @param documentKey
+	 *            The key of the document
+	 * @param terms
+	 *            The terms of the document
+	 * @return This class
+	 */
+	public IndexBatch add(final Number160 documentKey, final Collection<String> terms) {
+		final int shard = UtilsSearch.shard(documentKey, peer.shards());
+		for (String term : UtilsSearch.terms(terms)) {
+			final Number160 locationKey = UtilsSearch.locationKey(term, shard);
+			final Set<Number160> removed = removes.get(locationKey);
+			if (removed != null) {
+				removed.remove(documentKey);
+			}
+			NavigableMap<Number160, Data> postings = adds.get(locationKey);
+			if (postings == null) {
+				postings = new TreeMap<Number160, Data>();
+				adds.put(locationKey, postings);
+			}
+			postings.put(documentKey, new Data());
+		}
+		return this;
+	}
+
+	/**
+	 * Removes a document from the posting lists of the terms of a text.
+	 *
+	 * @param documentKey
+	 *            The key of the document
+	 * @param text
+	 *            The text the document has been added with
+	 * @return This class
+	 */
+	public IndexBatch remove(final Number160 documentKey, final String text) {
+		return remove(documentKey, UtilsSearch.terms(text));
+	}
+
+	/**
+	 * Removes a document from the posting lists of terms.
+	 *
+	 * @param documentKey
+	 *            The key of the document
+	 * @param terms
+	 *            The terms the document has been added with
+	 * @return This class
+	 */
+	public IndexBatch remove(final Number160 documentKey, final Collection<String> terms) {
+		final int shard = UtilsSearch.shard(documentKey, peer.shards());
+		for (String term : UtilsSearch.terms(terms)) {
+			final Number160 locationKey = UtilsSearch.locationKey(term, shard);
+			final NavigableMap<Number160, Data> postings = adds.get(locationKey);
+			if (postings != null) {
+				postings.remove(documentKey);
+			}
+			Set<Number160> removed = removes.get(locationKey);
+			if (removed == null) {
+				removed = new TreeSet<Number160>();
+				removes.put(locationKey, removed);
+			}
+			removed.add(documentKey);
+		}
+		return this;
+	}
+
+	/**
+	 * @return The number of DHT operations of the next flush
+	 */
+	public int operations() {
+		int operations = 0;
+		for (NavigableMap<Number160, Data> postings : adds.values()) {
+			if (!postings.isEmpty()) {
+				operations++;
+			}
+		}
+		for (Set<Number160> removed : removes.values()) {
+			if (!removed.isEmpty()) {
+				operations++;
+			}
+		}
+		return operations;
+	}
+
+	/**
+	 * Sends the updates and clears this batch.
+	 *
+	 * @return The future that is done when all updates are done. It fails if an update failed, the other updates
+	 *         are stored nevertheless.
+	 */
+	public FutureDone<Void> flush() {
+		final List<FutureDHT<?>> futures = new ArrayList<FutureDHT<?>>();
+		for (Map.Entry<Number160, NavigableMap<Number160, Data>> entry : adds.entrySet()) {
+			if (!entry.getValue().isEmpty()) {
+				futures.add(peer.peerDHT().put(entry.getKey()).domainKey(domainKey)
+						.dataMapContent(entry.getValue()).start());
+			}
+		}
+		for (Map.Entry<Number160, Set<Number160>> entry : removes.entrySet()) {
+			if (!entry.getValue().isEmpty()) {
+				futures.add(peer.peerDHT().remove(entry.getKey()).domainKey(domainKey)
+						.contentKeys(entry.getValue()).start());
+			}
+		}
+		adds = new HashMap<Number160, NavigableMap<Number160, Data>>();
+		removes = new HashMap<Number160, Set<Number160>>();
+
+		final FutureDone<Void> futureDone = new FutureDone<Void>();
+		if (futures.isEmpty()) {
+			return futureDone.done();
+		}
+		final AtomicInteger counter = new AtomicInteger();
+		final AtomicInteger failed = new AtomicInteger();
+		for (FutureDHT<?> future : futures) {
+			future.addListener(new BaseFutureAdapter<FutureDHT<?>>() {
+				@Override
+				public void operationComplete(final FutureDHT<?> future) throws Exception {
+					if (future.isFailed()) {
+						failed.incrementAndGet();
+					}
+					if (counter.incrementAndGet() == futures.size()) {
+						if (failed.get() == 0) {
+							futureDone.done();
+						} else {
+							futureDone.failed(failed.get() + " of " + futures.size() + " index updates failed");
+						}
+					}
+				}
+			});
+		}
+		return futureDone;
+	}
+}
@@ -0,0 +1,48 @@
+package net.tomp2p.search;
+
+import net.tomp2p.dht.PeerDHT;
+
+public class PeerBuilderSearch {
+
+	/**
+	 * One shard keeps queries on small indexes cheap, large indexes should spread their posting lists over more
+	 * peers.
+	 */
+	public static final int DEFAULT_SHARDS = 1;
+
+	private final PeerDHT peerDHT;
+
+	private int shards = -1;
+
+	public PeerBuilderSearch(PeerDHT peerDHT) {
+		this.peerDHT = peerDHT;
+	}
+
+	public PeerSearch start() {
+		if (shards == -1) {
+			shards = DEFAULT_SHARDS;
+		}
+		if (shards <= 0) {
+			throw new IllegalArgumentException("The number of shards must be positive");
+		}
+		final PostingLists postingLists = new PostingLists(peerDHT.storageLayer());
+		final SearchRPC searchRPC = new SearchRPC(peerDHT.peerBean(), peerDHT.peer().connectionBean(), postingLists);
+		final DistributedSearch distributedSearch = new DistributedSearch(peerDHT.peer(), searchRPC, postingLists,
+				shards);
+		return new PeerSearch(peerDHT, searchRPC, postingLists, distributedSearch, shards);
+	}
+
+	public int shards() {
+		return shards;
+	}
+
+	/**
+	 * @param shards
+	 *            The number of shards of every posting list, all peers of an index need the same number
+	 * @return This class
+	 */
+	public PeerBuilderSearch shards(int shards) {
+		this.shards = shards;
+		return this;
+	}
+}
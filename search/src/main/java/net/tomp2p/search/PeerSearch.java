@@ -0,0 +1,75 @@
+package net.tomp2p.search;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collection;
+
+import net.tomp2p.dht.PeerDHT;
+import net.tomp2p.p2p.Peer;
+import net.tomp2p.peers.PeerAddress;
+
+public class PeerSearch {
+
+	private final PeerDHT peerDHT;
+	private final SearchRPC searchRPC;
+	private final PostingLists postingLists;
+	private final DistributedSearch distributedSearch;
+	private final int shards;
+
+	public PeerSearch(PeerDHT peerDHT, SearchRPC searchRPC, PostingLists postingLists,
+	        DistributedSearch distributedSearch, int shards) {
+		this.peerDHT = peerDHT;
+		this.searchRPC = searchRPC;
+		this.postingLists = postingLists;
+		this.distributedSearch = distributedSearch;
+		this.shards = shards;
+	}
+
+	public PeerDHT peerDHT() {
+		return peerDHT;
+	}
+
+	public Peer peer() {
+		return peerDHT.peer();
+	}
+
+	public PeerAddress peerAddress() {
+		return peerDHT.peerAddress();
+	}
+
+	public SearchRPC searchRPC() {
+		return searchRPC;
+	}
+
+	public PostingLists postingLists() {
+		return postingLists;
+	}
+
+	public DistributedSearch distributedSearch() {
+		return distributedSearch;
+	}
+
+	/**
+	 * @return The number of shards of every posting list, all peers of an index need the same number
+	 */
+	public int shards() {
+		return shards;
+	}
+
+	public IndexBatch index() {
+		return new IndexBatch(this);
+	}
+
+	public SearchBuilder search(String... terms) {
+		return search(Arrays.asList(terms));
+	}
+
+	public SearchBuilder search(Collection<String> terms) {
+		return new SearchBuilder(this, UtilsSearch.terms(terms));
+	}
+
+	public <K extends Comparable<? super K> & Serializable> RangeIndex<K> rangeIndex(String name,
+	        RangeIndex.KeyMapper<K> keyMapper) {
+		return new RangeIndex<K>(peerDHT, name, keyMapper);
+	}
+}
@@ -0,0 +1,205 @@
+package net.tomp2p.search;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.NavigableMap;
+
+import net.tomp2p.dht.StorageLayer;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
+import net.tomp2p.rpc.SimpleBloomFilter;
+import net.tomp2p.storage.Data;
+
+/**
+ * Evaluates queries on the posting lists stored on this peer. A posting list of a term is stored under the location
+ * key of the term, every document is an entry with the document key as content key. Since the storage is sorted, a
+ * posting list is read in document key order and a page can continue after a document key.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class PostingLists {
+
+	/**
+	 * The false positive probability of the filter of a posting list.
+	 */
+	public static final double FALSE_POSITIVE_PROBABILITY = 0.01;
+
+	/**
+	 * The largest filter that can be encoded, larger posting lists get a filter with more false positives.
+	 */
+	public static final int MAX_FILTER_BYTES = 0xffff - SimpleBloomFilter.SIZE_HEADER;
+
+	private static final int CHUNK_SIZE = 1024;
+
+	private final StorageLayer storageLayer;
+
+	public PostingLists(final StorageLayer storageLayer) {
+		this.storageLayer = storageLayer;
+	}
+
+	/**
+	 * A page of a posting list.
+	 */
+	public static class Page {
+		private final List<Number160> documentKeys;
+		private final boolean more;
+
+		public Page(final List<Number160> documentKeys, final boolean more) {
+			this.documentKeys = documentKeys;
+			this.more = more;
+		}
+
+		/**
+		 * @return The document keys in ascending order
+		 */
+		public List<Number160> documentKeys() {
+			return documentKeys;
+		}
+
+		/**
+		 * @return True if the posting list has more matching documents after the last document of this page
+		 */
+		public boolean hasMore() {
+			return more;
+		}
+	}
+
+	/**
+	 * @param locationKey
+	 *            The location key of the posting list
+	 * @param domainKey
+	 *            The domain key of the index
+	 * @return True if this peer stores documents of the posting list
+	 */
+	public boolean contains(final Number160 locationKey, final Number160 domainKey) {
+		return !storageLayer.get(from(locationKey, domainKey, null), to(locationKey, domainKey), 1, true).isEmpty();
+	}
+
+	/**
+	 * @param locationKey
+	 *            The location key of the posting list
+	 * @param domainKey
+	 *            The domain key of the index
+	 * @return The document keys of the posting list
+	 */
+	public Collection<Number160> documentKeys(final Number160 locationKey, final Number160 domainKey) {
+		final NavigableMap<Number640, Data> postings = storageLayer.get(from(locationKey, domainKey, null),
+				to(locationKey, domainKey), -1, true);
+		final List<Number160> documentKeys = new ArrayList<Number160>(postings.size());
+		for (Number640 key : postings.keySet()) {
+			documentKeys.add(key.contentKey());
+		}
+		return documentKeys;
+	}
+
+	/**
+	 * Creates a Bloom filter of a posting list, such that other peers can drop the documents that are not in this
+	 * posting list before sending them.
+	 *
+	 * @param documentKeys
+	 *            The document keys of the posting list
+	 * @return The filter, sized to the posting list
+	 */
+	public static SimpleBloomFilter<Number160> filter(final Collection<Number160> documentKeys) {
+		if (documentKeys.isEmpty()) {
+			return new SimpleBloomFilter<Number160>(0, 0);
+		}
+		SimpleBloomFilter<Number160> filter = new SimpleBloomFilter<Number160>(FALSE_POSITIVE_PROBABILITY,
+				documentKeys.size());
+		if (filter.size() - SimpleBloomFilter.SIZE_HEADER > MAX_FILTER_BYTES) {
+			filter = new SimpleBloomFilter<Number160>(MAX_FILTER_BYTES, documentKeys.size());
+		}
+		filter.addAll(documentKeys);
+		return filter;
+	}
+
+	/**
+	 * Reads a page of a posting list and drops every document that is not in all filters.
+	 *
+	 * @param locationKey
+	 *            The location key of the posting list
+	 * @param domainKey
+	 *            The domain key of the index
+	 * @param after
+	 *            The page starts after this document key, or null to start at the beginning
+	 * @param limit
+	 *            The maximum number of documents of the page
+	 * @param filters
+	 *            The filters of the posting lists of the other terms
+	 * @return The page
+	 */
+	public Page intersect(final Number160 locationKey, final Number160 domainKey, final Number160 after,
+			final int limit, final Collection<SimpleBloomFilter<Number160>> filters) {
+		final List<Number160> result = new ArrayList<Number160>();
+		final Number640 to = to(locationKey, domainKey);
+		Number640 from = from(locationKey, domainKey, after);
+		Number160 last = after;
+		while (true) {
+			final NavigableMap<Number640, Data> chunk = storageLayer.get(from, to, CHUNK_SIZE, true);
+			boolean progress = false;
+			for (Number640 key : chunk.keySet()) {
+				final Number160 documentKey = key.contentKey();
+				// the cursor or the last entry of the previous chunk
+				if (last != null && documentKey.compareTo(last) <= 0) {
+					continue;
+				}
+				if (result.size() == limit) {
+					return new Page(result, true);
+				}
+				progress = true;
+				last = documentKey;
+				if (containsAll(filters, documentKey)) {
+					result.add(documentKey);
+				}
+			}
+			// expired entries are removed after the limit is applied, thus, only an empty chunk marks the end
+			if (!progress) {
+				return new Page(result, false);
+			}
+			from = from(locationKey, domainKey, last);
+		}
+	}
+
+	/**
+	 * @param locationKey
+	 *            The location key of the posting list
+	 * @param domainKey
+	 *            The domain key of the index
+	 * @param documentKeys
+	 *            The candidates
+	 * @return The candidates that are in the posting list, in the order of the candidates
+	 */
+	public List<Number160> retain(final Number160 locationKey, final Number160 domainKey,
+			final Collection<Number160> documentKeys) {
+		final List<Number160> result = new ArrayList<Number160>(documentKeys.size());
+		for (Number160 documentKey : documentKeys) {
+			if (storageLayer.get(new Number640(locationKey, domainKey, documentKey, Number160.ZERO)) != null) {
+				result.add(documentKey);
+			}
+		}
+		return result;
+	}
+
+	private static boolean containsAll(final Collection<SimpleBloomFilter<Number160>> filters,
+			final Number160 documentKey) {
+		for (SimpleBloomFilter<Number160> filter : filters) {
+			if (!filter.contains(documentKey)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static Number640 from(final Number160 locationKey, final Number160 domainKey, final Number160 after) {
+		if (after == null) {
+			return new Number640(locationKey, domainKey, Number160.ZERO, Number160.ZERO);
+		}
+		return new Number640(locationKey, domainKey, after, Number160.MAX_VALUE);
+	}
+
+	private static Number640 to(final Number160 locationKey, final Number160 domainKey) {
+		return new Number640(locationKey, domainKey, Number160.MAX_VALUE, Number160.MAX_VALUE);
+	}
+}
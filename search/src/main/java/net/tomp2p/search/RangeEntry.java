@@ -0,0 +1,56 @@
+package net.tomp2p.search;
+
+import java.io.Serializable;
+
+import net.tomp2p.utils.Utils;
+
+/**
+ * An entry of a range index, a key with a value.
+ *
+ * @author Thomas Bocek
+ *
+ * @param <K>
+ *            The type of the key
+ */
+public class RangeEntry<K extends Comparable<? super K> & Serializable> implements Serializable {
+
+	private static final long serialVersionUID = 4416519387317462208L;
+
+	private final K key;
+	private final Serializable value;
+
+	public RangeEntry(final K key, final Serializable value) {
+		this.key = key;
+		this.value = value;
+	}
+
+	public K key() {
+		return key;
+	}
+
+	public Serializable value() {
+		return value;
+	}
+
+	@Override
+	public int hashCode() {
+		return key.hashCode() ^ (value == null ? 0 : value.hashCode());
+	}
+
+	@Override
+	public boolean equals(final Object obj) {
+		if (!(obj instanceof RangeEntry)) {
+			return false;
+		}
+		if (obj == this) {
+			return true;
+		}
+		final RangeEntry<?> other = (RangeEntry<?>) obj;
+		return key.equals(other.key) && Utils.equals(value, other.value);
+	}
+
+	@Override
+	public String toString() {
+		return key + "=" + value;
+	}
+}
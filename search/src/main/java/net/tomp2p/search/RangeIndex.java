@@ -0,0 +1,471 @@
+package net.tomp2p.search;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.tomp2p.dht.FutureDHT;
+import net.tomp2p.dht.FutureDigest;
+import net.tomp2p.dht.FutureGet;
+import net.tomp2p.dht.PeerDHT;
+import net.tomp2p.futures.BaseFuture;
+import net.tomp2p.futures.BaseFutureAdapter;
+import net.tomp2p.futures.FutureDone;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
+import net.tomp2p.storage.Data;
+import net.tomp2p.utils.ConcurrentCacheMap;
+
+/**
+ * A range index on top of the DHT, implemented as distributed segment tree (DST). The keys are mapped to unsigned 64
+ * bit positions that preserve the order of the keys. An entry is stored in every node of the tree that covers its
+ * position, from the root down to the leaf. These puts are sent in parallel. A range query is decomposed into the
+ * minimal set of nodes that covers the range, and the nodes are fetched in parallel.
+ * <p>
+ * A node stores at most {@link #threshold()} entries. Once it is full, it is marked as saturated and new entries are
+ * only stored in its children. A query that hits a saturated node fetches its children instead. Since a node never
+ * becomes unsaturated, the saturated nodes are cached, queries and inserts skip the upper nodes of a large index
+ * without a round trip. Leaves are never saturated, thus, the height limits the number of round trips of a query.
+ * <p>
+ * All peers of an index need the same height and threshold.
+ *
+ * @author Thomas Bocek
+ *
+ * @param <K>
+ *            The type of the key
+ */
+public class RangeIndex<K extends Comparable<? super K> & Serializable> {
+
+	/**
+	 * Maps a key to a position in the tree.
+	 *
+	 * @param <K>
+	 *            The type of the key
+	 */
+	public interface KeyMapper<K> {
+		/**
+		 * @param key
+		 *            The key
+		 * @return The position of the key, if key1 < key2 then position1 <= position2 as unsigned numbers
+		 */
+		long position(K key);
+	}
+
+	/**
+	 * Maps a long to its position, negative numbers come first. All longs are covered, use
+	 * {@link #numeric(long, long)} if the keys are in a smaller domain.
+	 */
+	public static final KeyMapper<Long> NUMERIC = new KeyMapper<Long>() {
+		@Override
+		public long position(final Long key) {
+			return key ^ Long.MIN_VALUE;
+		}
+	};
+
+	/**
+	 * Creates a mapper for numbers in a known domain. The domain is spread over all positions, thus, the keys are
+	 * spread over all leaves. With {@link #NUMERIC}, small numbers share the few leaves around zero.
+	 *
+	 * @param min
+	 *            The smallest key, smaller keys are mapped to the first position
+	 * @param max
+	 *            The largest key, larger keys are mapped to the last position
+	 * @return The mapper
+	 */
+	public static KeyMapper<Long> numeric(final long min, final long max) {
+		if (max < min) {
+			throw new IllegalArgumentException("The domain is empty");
+		}
+		if (max - min < 0) {
+			// the domain is larger than Long.MAX_VALUE
+			return NUMERIC;
+		}
+		final int shift = Long.numberOfLeadingZeros(max - min);
+		return new KeyMapper<Long>() {
+			@Override
+			public long position(final Long key) {
+				if (key < min) {
+					return 0;
+				}
+				if (key > max) {
+					return -1L;
+				}
+				return (key - min) << shift;
+			}
+		};
+	}
+
+	/**
+	 * Maps a string to its position by its first four characters. Strings with the same first four characters are in
+	 * the same leaf, they are told apart when the entries are filtered.
+	 */
+	public static final KeyMapper<String> LEXICOGRAPHIC = new KeyMapper<String>() {
+		@Override
+		public long position(final String key) {
+			long position = 0;
+			for (int i = 0; i < 4; i++) {
+				position = (position << Character.SIZE) | (i < key.length() ? key.charAt(i) : 0);
+			}
+			return position;
+		}
+	};
+
+	public static final int DEFAULT_HEIGHT = 24;
+	public static final int DEFAULT_THRESHOLD = 128;
+	public static final int DEFAULT_CACHE_SIZE = 1024;
+
+	/**
+	 * Saturation is permanent, the time to live only bounds how long the cache outlives a dropped index.
+	 */
+	private static final int CACHE_TIME_TO_LIVE_SECONDS = 600;
+
+	/**
+	 * The content key of the marker of a saturated node.
+	 */
+	private static final Number160 SATURATED = Number160.MAX_VALUE;
+
+	private final PeerDHT peer;
+	private final String name;
+	private final KeyMapper<K> keyMapper;
+
+	private Number160 domainKey = UtilsSearch.DEFAULT_DOMAIN;
+	private int height = DEFAULT_HEIGHT;
+	private int threshold = DEFAULT_THRESHOLD;
+	private ConcurrentCacheMap<RangeNode, Boolean> saturated = new ConcurrentCacheMap<RangeNode, Boolean>(
+			CACHE_TIME_TO_LIVE_SECONDS, DEFAULT_CACHE_SIZE);
+
+	/**
+	 * @param peer
+	 *            The peer
+	 * @param name
+	 *            The name of the index
+	 * @param keyMapper
+	 *            Maps the keys to positions, e.g. {@link #NUMERIC} or {@link #LEXICOGRAPHIC}
+	 */
+	public RangeIndex(final PeerDHT peer, final String name, final KeyMapper<K> keyMapper) {
+		this.peer = peer;
+		this.name = name;
+		this.keyMapper = keyMapper;
+	}
+
+	public String name() {
+		return name;
+	}
+
+	public Number160 domainKey() {
+		return domainKey;
+	}
+
+	public RangeIndex<K> domainKey(final Number160 domainKey) {
+		this.domainKey = domainKey;
+		return this;
+	}
+
+	public int height() {
+		return height;
+	}
+
+	/**
+	 * @param height
+	 *            The depth of the leaves, an entry is stored in height + 1 nodes
+	 * @return This class
+	 */
+	public RangeIndex<K> height(final int height) {
+		if (height < 0 || height > RangeNode.MAX_DEPTH) {
+			throw new IllegalArgumentException("The height must be between 0 and " + RangeNode.MAX_DEPTH);
+		}
+		this.height = height;
+		return this;
+	}
+
+	public int threshold() {
+		return threshold;
+	}
+
+	/**
+	 * @param threshold
+	 *            The maximum number of entries of an inner node
+	 * @return This class
+	 */
+	public RangeIndex<K> threshold(final int threshold) {
+		if (threshold <= 0) {
+			throw new IllegalArgumentException("The threshold must be positive");
+		}
+		this.threshold = threshold;
+		return this;
+	}
+
+	/**
+	 * @param cacheSize
+	 *            The maximum number of saturated nodes that are cached
+	 * @return This class
+	 */
+	public RangeIndex<K> cacheSize(final int cacheSize) {
+		this.saturated = new ConcurrentCacheMap<RangeNode, Boolean>(CACHE_TIME_TO_LIVE_SECONDS, cacheSize);
+		return this;
+	}
+
+	/**
+	 * @return The number of cached saturated nodes
+	 */
+	public int cachedNodes() {
+		return saturated.size();
+	}
+
+	/**
+	 * Adds an entry to all nodes that cover its key.
+	 *
+	 * @param key
+	 *            The key
+	 * @param value
+	 *            The value
+	 * @return The future that is done when the entry has been stored in all nodes that are not saturated
+	 */
+	public FutureDone<Void> add(final K key, final Serializable value) {
+		final RangeEntry<K> entry = new RangeEntry<K>(key, value);
+		final Data data;
+		try {
+			data = new Data(entry);
+		} catch (IOException e) {
+			return new FutureDone<Void>().failed(e);
+		}
+		final Number160 contentKey = data.hash();
+		final long position = keyMapper.position(key);
+		final List<BaseFuture> futures = new ArrayList<BaseFuture>(height + 1);
+		for (int depth = 0; depth <= height; depth++) {
+			final RangeNode node = RangeNode.covering(depth, position);
+			if (depth == height) {
+				futures.add(put(node, contentKey, data));
+			} else if (!saturated.containsKey(node)) {
+				futures.add(addInner(node, contentKey, data));
+			}
+		}
+		return whenAll(futures, "add");
+	}
+
+	/**
+	 * Stores an entry in an inner node, unless the node is full.
+	 */
+	private FutureDone<Void> addInner(final RangeNode node, final Number160 contentKey, final Data data) {
+		final FutureDone<Void> futureDone = new FutureDone<Void>();
+		final FutureDigest futureDigest = peer.digest(node.locationKey(name)).domainKey(domainKey).all().start();
+		futureDigest.addListener(new BaseFutureAdapter<FutureDigest>() {
+			@Override
+			public void operationComplete(final FutureDigest future) throws Exception {
+				// if no peer answered, the node is empty or unreachable, the put decides
+				final Collection<Number640> keys = future.isSuccess() ? future.digest().keyDigest().keySet()
+						: Collections.<Number640> emptySet();
+				final FutureDHT<?> futurePut;
+				if (keys.size() >= threshold) {
+					saturated.put(node, Boolean.TRUE);
+					if (containsSaturated(keys)) {
+						futureDone.done();
+						return;
+					}
+					// a concurrent insert may put the marker as well, this overwrites an empty marker
+					futurePut = put(node, SATURATED, new Data());
+				} else {
+					futurePut = put(node, contentKey, data);
+				}
+				futurePut.addListener(new BaseFutureAdapter<FutureDHT<?>>() {
+					@Override
+					public void operationComplete(final FutureDHT<?> future) throws Exception {
+						if (future.isSuccess()) {
+							futureDone.done();
+						} else {
+							futureDone.failed(future);
+						}
+					}
+				});
+			}
+		});
+		return futureDone;
+	}
+
+	private FutureDHT<?> put(final RangeNode node, final Number160 contentKey, final Data data) {
+		return peer.put(node.locationKey(name)).domainKey(domainKey).data(contentKey, data).start();
+	}
+
+	/**
+	 * Removes an entry from all nodes that cover its key.
+	 *
+	 * @param key
+	 *            The key
+	 * @param value
+	 *            The value
+	 * @return The future that is done when the entry has been removed
+	 */
+	public FutureDone<Void> remove(final K key, final Serializable value) {
+		final Number160 contentKey;
+		try {
+			contentKey = new Data(new RangeEntry<K>(key, value)).hash();
+		} catch (IOException e) {
+			return new FutureDone<Void>().failed(e);
+		}
+		final long position = keyMapper.position(key);
+		final List<BaseFuture> futures = new ArrayList<BaseFuture>(height + 1);
+		for (int depth = 0; depth <= height; depth++) {
+			final RangeNode node = RangeNode.covering(depth, position);
+			futures.add(peer.remove(node.locationKey(name)).domainKey(domainKey).contentKey(contentKey).start());
+		}
+		return whenAll(futures, "remove");
+	}
+
+	/**
+	 * Finds all entries with a key in a range.
+	 *
+	 * @param from
+	 *            The smallest key, inclusive
+	 * @param to
+	 *            The largest key, inclusive
+	 * @return The future with the entries, sorted by key
+	 */
+	public FutureDone<List<RangeEntry<K>>> query(final K from, final K to) {
+		final FutureDone<List<RangeEntry<K>>> futureDone = new FutureDone<List<RangeEntry<K>>>();
+		if (from.compareTo(to) > 0) {
+			return futureDone.done(Collections.<RangeEntry<K>> emptyList());
+		}
+		final Query query = new Query(from, to, futureDone);
+		final List<RangeNode> nodes = new ArrayList<RangeNode>();
+		RangeNode.ROOT.decompose(keyMapper.position(from), keyMapper.position(to), height, saturated, nodes);
+		query.fetch(nodes);
+		query.release();
+		return futureDone;
+	}
+
+	/**
+	 * The state of a range query. The query is done when no fetch is outstanding.
+	 */
+	private class Query {
+		private final K from;
+		private final K to;
+		private final FutureDone<List<RangeEntry<K>>> futureDone;
+		// the query itself holds one reference, thus, the first fetch can complete before the others are sent
+		private final AtomicInteger outstanding = new AtomicInteger(1);
+		// guarded by this
+		private final Map<Number160, RangeEntry<K>> result = new HashMap<Number160, RangeEntry<K>>();
+		private String failed;
+
+		Query(final K from, final K to, final FutureDone<List<RangeEntry<K>>> futureDone) {
+			this.from = from;
+			this.to = to;
+			this.futureDone = futureDone;
+		}
+
+		void fetch(final List<RangeNode> nodes) {
+			for (final RangeNode node : nodes) {
+				outstanding.incrementAndGet();
+				peer.get(node.locationKey(name)).domainKey(domainKey).all().start()
+						.addListener(new BaseFutureAdapter<FutureGet>() {
+							@Override
+							public void operationComplete(final FutureGet future) throws Exception {
+								try {
+									received(node, future);
+								} finally {
+									release();
+								}
+							}
+						});
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		private void received(final RangeNode node, final FutureGet future) throws Exception {
+			if (future.isFailed()) {
+				synchronized (this) {
+					failed = future.failedReason();
+				}
+				return;
+			}
+			final Map<Number640, Data> dataMap = future.dataMap();
+			if (node.depth() < height && (dataMap.size() >= threshold || containsSaturated(dataMap.keySet()))) {
+				saturated.put(node, Boolean.TRUE);
+				final List<RangeNode> children = new ArrayList<RangeNode>(2);
+				final long fromPosition = keyMapper.position(from);
+				final long toPosition = keyMapper.position(to);
+				node.child(0).decompose(fromPosition, toPosition, height, saturated, children);
+				node.child(1).decompose(fromPosition, toPosition, height, saturated, children);
+				fetch(children);
+				return;
+			}
+			for (Map.Entry<Number640, Data> entry : dataMap.entrySet()) {
+				if (entry.getKey().contentKey().equals(SATURATED)) {
+					continue;
+				}
+				final RangeEntry<K> rangeEntry = (RangeEntry<K>) entry.getValue().object();
+				if (rangeEntry.key().compareTo(from) >= 0 && rangeEntry.key().compareTo(to) <= 0) {
+					synchronized (this) {
+						result.put(entry.getKey().contentKey(), rangeEntry);
+					}
+				}
+			}
+		}
+
+		void release() {
+			if (outstanding.decrementAndGet() != 0) {
+				return;
+			}
+			final List<RangeEntry<K>> entries;
+			final String reason;
+			synchronized (this) {
+				entries = new ArrayList<RangeEntry<K>>(result.values());
+				reason = failed;
+			}
+			if (reason != null) {
+				futureDone.failed(reason);
+				return;
+			}
+			Collections.sort(entries, new Comparator<RangeEntry<K>>() {
+				@Override
+				public int compare(final RangeEntry<K> o1, final RangeEntry<K> o2) {
+					return o1.key().compareTo(o2.key());
+				}
+			});
+			futureDone.done(entries);
+		}
+	}
+
+	private static boolean containsSaturated(final Collection<Number640> keys) {
+		for (Number640 key : keys) {
+			if (key.contentKey().equals(SATURATED)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static FutureDone<Void> whenAll(final List<BaseFuture> futures, final String operation) {
+		final FutureDone<Void> futureDone = new FutureDone<Void>();
+		if (futures.isEmpty()) {
+			return futureDone.done();
+		}
+		final AtomicInteger counter = new AtomicInteger();
+		final AtomicInteger failed = new AtomicInteger();
+		for (BaseFuture future : futures) {
+			future.addListener(new BaseFutureAdapter<BaseFuture>() {
+				@Override
+				public void operationComplete(final BaseFuture future) throws Exception {
+					if (future.isFailed()) {
+						failed.incrementAndGet();
+					}
+					if (counter.incrementAndGet() == futures.size()) {
+						if (failed.get() == 0) {
+							futureDone.done();
+						} else {
+							futureDone.failed(failed.get() + " of " + futures.size() + " " + operation
+									+ " operations failed");
+						}
+					}
+				}
+			});
+		}
+		return futureDone;
+	}
+}
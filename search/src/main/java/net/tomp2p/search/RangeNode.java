@@ -0,0 +1,143 @@
+package net.tomp2p.search;
+
+import java.util.Collection;
+import java.util.Map;
+
+import net.tomp2p.peers.Number160;
+
+/**
+ * A node of a distributed segment tree. The tree is a binary tree over the unsigned 64 bit positions of the keys, a
+ * node at depth d covers all positions whose d highest bits are the prefix of the node.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class RangeNode {
+
+	/**
+	 * The maximum depth of a tree, such that the range of a node always fits into a long.
+	 */
+	public static final int MAX_DEPTH = 63;
+
+	public static final RangeNode ROOT = new RangeNode(0, 0);
+
+	private final int depth;
+	private final long prefix;
+
+	public RangeNode(final int depth, final long prefix) {
+		if (depth < 0 || depth > MAX_DEPTH) {
+			throw new IllegalArgumentException("The depth must be between 0 and " + MAX_DEPTH);
+		}
+		this.depth = depth;
+		this.prefix = prefix;
+	}
+
+	/**
+	 * @param depth
+	 *            The depth of the node
+	 * @param position
+	 *            A position
+	 * @return The node at the depth that covers the position
+	 */
+	public static RangeNode covering(final int depth, final long position) {
+		return new RangeNode(depth, depth == 0 ? 0 : position >>> (Long.SIZE - depth));
+	}
+
+	public int depth() {
+		return depth;
+	}
+
+	public long prefix() {
+		return prefix;
+	}
+
+	/**
+	 * @return The first position of this node
+	 */
+	public long from() {
+		return depth == 0 ? 0 : prefix << (Long.SIZE - depth);
+	}
+
+	/**
+	 * @return The last position of this node
+	 */
+	public long to() {
+		return from() | (-1L >>> depth);
+	}
+
+	/**
+	 * @param bit
+	 *            0 for the lower half, 1 for the upper half
+	 * @return The child node
+	 */
+	public RangeNode child(final int bit) {
+		return new RangeNode(depth + 1, (prefix << 1) | bit);
+	}
+
+	/**
+	 * @param name
+	 *            The name of the index
+	 * @return The location key where the entries of this node are stored
+	 */
+	public Number160 locationKey(final String name) {
+		return Number160.createHash(name + "#" + depth + "#" + prefix);
+	}
+
+	/**
+	 * Decomposes a range into the minimal set of nodes that covers it. Leaves are added if they are partially
+	 * covered, inner nodes are split instead.
+	 *
+	 * @param from
+	 *            The first position of the range
+	 * @param to
+	 *            The last position of the range
+	 * @param height
+	 *            The depth of the leaves
+	 * @param split
+	 *            The inner nodes that are split even if they are fully covered
+	 * @param result
+	 *            The nodes are added to this collection
+	 */
+	public void decompose(final long from, final long to, final int height, final Map<RangeNode, ?> split,
+			final Collection<RangeNode> result) {
+		if (lessThan(to, from()) || lessThan(to(), from)) {
+			return;
+		}
+		final boolean covered = !lessThan(from(), from) && !lessThan(to, to());
+		if (depth >= height || (covered && !split.containsKey(this))) {
+			result.add(this);
+			return;
+		}
+		child(0).decompose(from, to, height, split, result);
+		child(1).decompose(from, to, height, split, result);
+	}
+
+	/**
+	 * @return True if the first position is smaller than the second, both unsigned
+	 */
+	public static boolean lessThan(final long position1, final long position2) {
+		return (position1 ^ Long.MIN_VALUE) < (position2 ^ Long.MIN_VALUE);
+	}
+
+	@Override
+	public int hashCode() {
+		return depth ^ (int) (prefix ^ (prefix >>> 32));
+	}
+
+	@Override
+	public boolean equals(final Object obj) {
+		if (!(obj instanceof RangeNode)) {
+			return false;
+		}
+		if (obj == this) {
+			return true;
+		}
+		final RangeNode other = (RangeNode) obj;
+		return depth == other.depth && prefix == other.prefix;
+	}
+
+	@Override
+	public String toString() {
+		return "node[" + depth + ":" + Long.toHexString(prefix) + "]";
+	}
+}
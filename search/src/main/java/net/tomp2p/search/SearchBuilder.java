@@ -0,0 +1,121 @@
+package net.tomp2p.search;
+
+import java.util.Set;
+
+import net.tomp2p.connection.DefaultConnectionConfiguration;
+import net.tomp2p.p2p.RoutingConfiguration;
+import net.tomp2p.peers.Number160;
+
+/**
+ * Searches for the documents that contain all terms (AND query). The documents are returned page by page in
+ * ascending order of their document keys.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class SearchBuilder extends DefaultConnectionConfiguration {
+
+	public static final int DEFAULT_PAGE_SIZE = 100;
+
+	private static final FutureSearch FUTURE_SEARCH_SHUTDOWN = new FutureSearch().failed("Peer is shutting down");
+
+	private final PeerSearch peer;
+	private final Set<String> terms;
+
+	private Number160 domainKey;
+	private int pageSize = -1;
+	private Number160 after;
+	private RoutingConfiguration routingConfiguration;
+
+	public SearchBuilder(final PeerSearch peer, final Set<String> terms) {
+		this.peer = peer;
+		this.terms = terms;
+	}
+
+	/**
+	 * @return The normalized terms of the query
+	 */
+	public Set<String> terms() {
+		return terms;
+	}
+
+	public Number160 domainKey() {
+		return domainKey;
+	}
+
+	public SearchBuilder domainKey(final Number160 domainKey) {
+		this.domainKey = domainKey;
+		return this;
+	}
+
+	public int pageSize() {
+		return pageSize;
+	}
+
+	/**
+	 * @param pageSize
+	 *            The maximum number of documents of a page
+	 * @return This class
+	 */
+	public SearchBuilder pageSize(final int pageSize) {
+		this.pageSize = pageSize;
+		return this;
+	}
+
+	public Number160 after() {
+		return after;
+	}
+
+	/**
+	 * @param after
+	 *            The page starts after this document key
+	 * @return This class
+	 */
+	public SearchBuilder after(final Number160 after) {
+		this.after = after;
+		return this;
+	}
+
+	/**
+	 * Continues a search with the page after the page of a previous search.
+	 *
+	 * @param previous
+	 *            The previous search with the same terms
+	 * @return This class
+	 */
+	public SearchBuilder next(final FutureSearch previous) {
+		this.after = previous.cursor();
+		return this;
+	}
+
+	public RoutingConfiguration routingConfiguration() {
+		return routingConfiguration;
+	}
+
+	public SearchBuilder routingConfiguration(final RoutingConfiguration routingConfiguration) {
+		this.routingConfiguration = routingConfiguration;
+		return this;
+	}
+
+	public FutureSearch start() {
+		if (peer.peer().isShutdown()) {
+			return FUTURE_SEARCH_SHUTDOWN;
+		}
+		if (terms.isEmpty()) {
+			throw new IllegalArgumentException("A search needs at least one term");
+		}
+		if (domainKey == null) {
+			domainKey = UtilsSearch.DEFAULT_DOMAIN;
+		}
+		if (pageSize == -1) {
+			pageSize = DEFAULT_PAGE_SIZE;
+		}
+		if (pageSize <= 0) {
+			throw new IllegalArgumentException("The page size must be positive");
+		}
+		if (routingConfiguration == null) {
+			routingConfiguration = new RoutingConfiguration(5, 10, 2);
+		}
+		return peer.distributedSearch().search(this);
+	}
+}
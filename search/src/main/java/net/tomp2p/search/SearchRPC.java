@@ -0,0 +1,182 @@
+package net.tomp2p.search;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import net.tomp2p.connection.ChannelCreator;
+import net.tomp2p.connection.ConnectionBean;
+import net.tomp2p.connection.ConnectionConfiguration;
+import net.tomp2p.connection.PeerBean;
+import net.tomp2p.connection.PeerConnection;
+import net.tomp2p.connection.RequestHandler;
+import net.tomp2p.connection.Responder;
+import net.tomp2p.futures.FutureResponse;
+import net.tomp2p.message.KeyCollection;
+import net.tomp2p.message.Message;
+import net.tomp2p.message.Message.Type;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
+import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.rpc.DispatchHandler;
+import net.tomp2p.rpc.RPC;
+import net.tomp2p.rpc.SimpleBloomFilter;
+import net.tomp2p.utils.Utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The RPC to evaluate queries at the peer that is responsible for a posting list. All requests use TCP, since
+ * filters and pages do not fit into a UDP packet.
+ * <ul>
+ * <li>REQUEST_1 returns the size and a Bloom filter of a posting list</li>
+ * <li>REQUEST_2 returns a page of a posting list, without the documents that are not in the filters of the
+ * request</li>
+ * <li>REQUEST_3 returns the candidates of the request that are in a posting list</li>
+ * </ul>
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class SearchRPC extends DispatchHandler {
+
+	private static final Logger LOG = LoggerFactory.getLogger(SearchRPC.class);
+
+	/**
+	 * The maximum number of filters of a page request, a message has room for 8 contents and the request needs 4 for
+	 * the keys and the limit.
+	 */
+	public static final int MAX_FILTERS = 4;
+
+	private final PostingLists postingLists;
+
+	public SearchRPC(final PeerBean peerBean, final ConnectionBean connectionBean, final PostingLists postingLists) {
+		super(peerBean, connectionBean);
+		register(RPC.Commands.SEARCH.getNr());
+		this.postingLists = postingLists;
+	}
+
+	/**
+	 * Requests the size and a Bloom filter of a posting list.
+	 */
+	public FutureResponse filter(final PeerAddress remotePeer, final Number160 locationKey,
+			final Number160 domainKey, final ConnectionConfiguration configuration,
+			final ChannelCreator channelCreator) {
+		Utils.nullCheck(remotePeer, locationKey, domainKey);
+		final Message message = createMessage(remotePeer, RPC.Commands.SEARCH.getNr(), Type.REQUEST_1);
+		message.key(locationKey);
+		message.key(domainKey);
+		return send(message, configuration, channelCreator);
+	}
+
+	/**
+	 * Requests a page of a posting list.
+	 *
+	 * @param after
+	 *            The page starts after this document key, or null to start at the beginning
+	 * @param limit
+	 *            The maximum number of documents of the page
+	 * @param filters
+	 *            The filters of the posting lists of the other terms, at most {@link #MAX_FILTERS}
+	 */
+	public FutureResponse intersect(final PeerAddress remotePeer, final Number160 locationKey,
+			final Number160 domainKey, final Number160 after, final int limit,
+			final Collection<SimpleBloomFilter<Number160>> filters, final ConnectionConfiguration configuration,
+			final ChannelCreator channelCreator) {
+		Utils.nullCheck(remotePeer, locationKey, domainKey);
+		if (filters.size() > MAX_FILTERS) {
+			throw new IllegalArgumentException("At most " + MAX_FILTERS + " filters fit into a request");
+		}
+		final Message message = createMessage(remotePeer, RPC.Commands.SEARCH.getNr(), Type.REQUEST_2);
+		message.key(locationKey);
+		message.key(domainKey);
+		if (after != null) {
+			message.key(after);
+		}
+		message.intValue(limit);
+		for (SimpleBloomFilter<Number160> filter : filters) {
+			message.bloomFilter(filter);
+		}
+		return send(message, configuration, channelCreator);
+	}
+
+	/**
+	 * Requests the candidates that are in a posting list.
+	 */
+	public FutureResponse retain(final PeerAddress remotePeer, final Number160 locationKey,
+			final Number160 domainKey, final Collection<Number160> documentKeys,
+			final ConnectionConfiguration configuration, final ChannelCreator channelCreator) {
+		Utils.nullCheck(remotePeer, locationKey, domainKey);
+		final Message message = createMessage(remotePeer, RPC.Commands.SEARCH.getNr(), Type.REQUEST_3);
+		message.key(locationKey);
+		message.key(domainKey);
+		message.keyCollection(new KeyCollection(locationKey, domainKey, Number160.ZERO, documentKeys));
+		return send(message, configuration, channelCreator);
+	}
+
+	private FutureResponse send(final Message message, final ConnectionConfiguration configuration,
+			final ChannelCreator channelCreator) {
+		final FutureResponse futureResponse = new FutureResponse(message);
+		final RequestHandler<FutureResponse> requestHandler = new RequestHandler<FutureResponse>(futureResponse,
+				peerBean(), connectionBean(), configuration);
+		LOG.debug("search {}", message);
+		return requestHandler.sendTCP(channelCreator);
+	}
+
+	/**
+	 * @param message
+	 *            The response of a page or a retain request
+	 * @return The document keys of the response
+	 */
+	public static List<Number160> documentKeys(final Message message) {
+		final KeyCollection keyCollection = message.keyCollection(0);
+		final List<Number160> documentKeys = new ArrayList<Number160>();
+		if (keyCollection != null) {
+			for (Number640 key : keyCollection.keys()) {
+				documentKeys.add(key.contentKey());
+			}
+		}
+		return documentKeys;
+	}
+
+	@Override
+	public void handleResponse(final Message message, final PeerConnection peerConnection, final boolean sign,
+			final Responder responder) throws Exception {
+		if (!((message.type() == Type.REQUEST_1 || message.type() == Type.REQUEST_2 || message.type() == Type.REQUEST_3)
+				&& message.key(0) != null && message.key(1) != null)) {
+			throw new IllegalArgumentException("Message content is wrong");
+		}
+		final Number160 locationKey = message.key(0);
+		final Number160 domainKey = message.key(1);
+		final Message responseMessage = createResponseMessage(message, Type.OK);
+		if (message.type() == Type.REQUEST_1) {
+			final Collection<Number160> documentKeys = postingLists.documentKeys(locationKey, domainKey);
+			responseMessage.intValue(documentKeys.size());
+			responseMessage.bloomFilter(PostingLists.filter(documentKeys));
+		} else if (message.type() == Type.REQUEST_2) {
+			if (message.intAt(0) == null) {
+				throw new IllegalArgumentException("Message content is wrong");
+			}
+			final PostingLists.Page page = postingLists.intersect(locationKey, domainKey, message.key(2),
+					message.intAt(0), message.bloomFilterList());
+			responseMessage.keyCollection(new KeyCollection(locationKey, domainKey, Number160.ZERO, page
+					.documentKeys()));
+			if (page.hasMore()) {
+				responseMessage.type(Type.PARTIALLY_OK);
+			}
+		} else {
+			final KeyCollection keyCollection = message.keyCollection(0);
+			if (keyCollection == null) {
+				throw new IllegalArgumentException("Message content is wrong");
+			}
+			final List<Number160> candidates = new ArrayList<Number160>(keyCollection.size());
+			for (Number640 key : keyCollection.keys()) {
+				candidates.add(key.contentKey());
+			}
+			responseMessage.keyCollection(new KeyCollection(locationKey, domainKey, Number160.ZERO, postingLists
+					.retain(locationKey, domainKey, candidates)));
+		}
+		responder.response(responseMessage);
+	}
+}
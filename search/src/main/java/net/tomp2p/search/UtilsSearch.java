@@ -0,0 +1,82 @@
+package net.tomp2p.search;
+
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Set;
+
+import net.tomp2p.peers.Number160;
+
+/**
+ * Helper methods to map terms to the location keys of their posting lists.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class UtilsSearch {
+
+	/**
+	 * The domain key of the index if no domain key is set.
+	 */
+	public static final Number160 DEFAULT_DOMAIN = Number160.createHash("search");
+
+	/**
+	 * Splits a text into lower case terms at every character that is not a letter or a digit.
+	 *
+	 * @param text
+	 *            The text
+	 * @return The unique terms in the order they appear in the text
+	 */
+	public static Set<String> terms(final String text) {
+		final Set<String> terms = new LinkedHashSet<String>();
+		final String lower = text.toLowerCase(Locale.ENGLISH);
+		int start = -1;
+		for (int i = 0; i <= lower.length(); i++) {
+			final boolean termChar = i < lower.length() && Character.isLetterOrDigit(lower.charAt(i));
+			if (termChar && start < 0) {
+				start = i;
+			} else if (!termChar && start >= 0) {
+				terms.add(lower.substring(start, i));
+				start = -1;
+			}
+		}
+		return terms;
+	}
+
+	/**
+	 * Normalizes terms the same way as {@link #terms(String)}.
+	 *
+	 * @param terms
+	 *            The terms
+	 * @return The unique terms
+	 */
+	public static Set<String> terms(final Collection<String> terms) {
+		final Set<String> result = new LinkedHashSet<String>();
+		for (String term : terms) {
+			result.addAll(terms(term));
+		}
+		return result;
+	}
+
+	/**
+	 * @param documentKey
+	 *            The key of the document
+	 * @param shards
+	 *            The number of shards of every posting list
+	 * @return The shard the document belongs to, the same for all terms of the document
+	 */
+	public static int shard(final Number160 documentKey, final int shards) {
+		return (documentKey.hashCode() & Integer.MAX_VALUE) % shards;
+	}
+
+	/**
+	 * @param term
+	 *            The term
+	 * @param shard
+	 *            The shard of the posting list
+	 * @return The location key of the shard of the posting list of the term
+	 */
+	public static Number160 locationKey(final String term, final int shard) {
+		return Number160.createHash(term + "#" + shard);
+	}
+}
@@ -0,0 +1,300 @@
+package net.tomp2p.search;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import net.tomp2p.dht.FutureGet;
+import net.tomp2p.dht.PeerBuilderDHT;
+import net.tomp2p.futures.FutureDone;
+import net.tomp2p.p2p.PeerBuilder;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestSearch {
+
+	@Test
+	public void testTerms() {
+		Assert.assertEquals(Arrays.asList("hello", "world", "2014"),
+				new ArrayList<String>(UtilsSearch.terms("Hello, World! hello 2014")));
+		Assert.assertTrue(UtilsSearch.terms(" ,. ").isEmpty());
+	}
+
+	@Test
+	public void testSearch() throws Exception {
+		final Random rnd = new Random(42L);
+		PeerSearch master = null;
+		try {
+			PeerSearch[] nodes = createNodes(20, rnd, 4001, 3);
+			master = nodes[0];
+			IndexBatch batch = nodes[3].index();
+			for (int i = 0; i < 300; i++) {
+				batch.add(documentKey(i), text(i));
+			}
+			// one put per term and shard
+			Assert.assertEquals(5 * 3, batch.operations());
+			FutureDone<Void> futureDone = batch.flush().awaitUninterruptibly();
+			Assert.assertTrue(futureDone.isSuccess());
+
+			FutureSearch futureSearch = nodes[7].search("fizz", "buzz").start().awaitUninterruptibly();
+			Assert.assertTrue(futureSearch.isSuccess());
+			Assert.assertEquals(expected(300, 15), futureSearch.documentKeys());
+			Assert.assertFalse(futureSearch.hasMore());
+
+			Assert.assertEquals(expected(300, 6), all(nodes[11].search("Even", "fizz"), 7));
+			Assert.assertEquals(expected(300, 5), all(nodes[11].search("buzz"), 25));
+			Assert.assertEquals(expected(300, 30), all(nodes[5].search("fizz", "buzz", "even", "all"), 1));
+
+			futureSearch = nodes[2].search("fizz", "unknown").start().awaitUninterruptibly();
+			Assert.assertTrue(futureSearch.isSuccess());
+			Assert.assertTrue(futureSearch.documentKeys().isEmpty());
+			Assert.assertFalse(futureSearch.hasMore());
+
+			batch.remove(documentKey(0), text(0));
+			Assert.assertTrue(batch.flush().awaitUninterruptibly().isSuccess());
+			List<Number160> expected = expected(300, 15);
+			expected.remove(documentKey(0));
+			Assert.assertEquals(expected, all(nodes[13].search("fizz", "buzz"), 100));
+		} finally {
+			if (master != null) {
+				master.peer().shutdown().await();
+			}
+		}
+	}
+
+	@Test
+	public void testSearchBenchmark() throws Exception {
+		final Random rnd = new Random(42L);
+		PeerSearch master = null;
+		try {
+			PeerSearch[] nodes = createNodes(20, rnd, 4001, 1);
+			master = nodes[0];
+			IndexBatch batch = nodes[3].index();
+			final int documents = 5000;
+			for (int i = 0; i < documents; i++) {
+				batch.add(documentKey(i), i % 2 == 0 ? "first second" : "first");
+				if (i % 100 == 0) {
+					batch.add(documentKey(i), "third");
+				}
+			}
+			Assert.assertTrue(batch.flush().awaitUninterruptibly().isSuccess());
+			final List<Number160> expected = expected(documents, 100);
+			long bestSearch = Long.MAX_VALUE;
+			long bestNaive = Long.MAX_VALUE;
+			int transferredNaive = 0;
+			for (int round = 0; round < 5; round++) {
+				long start = System.nanoTime();
+				FutureSearch futureSearch = nodes[9].search("first", "second", "third").start()
+						.awaitUninterruptibly();
+				bestSearch = Math.min(bestSearch, System.nanoTime() - start);
+				Assert.assertEquals(expected, futureSearch.documentKeys());
+
+				// the naive way: one get per term and the intersection on the client
+				start = System.nanoTime();
+				TreeSet<Number160> result = null;
+				transferredNaive = 0;
+				for (String term : Arrays.asList("first", "second", "third")) {
+					FutureGet futureGet = nodes[9].peerDHT().get(UtilsSearch.locationKey(term, 0))
+							.domainKey(UtilsSearch.DEFAULT_DOMAIN).all().start().awaitUninterruptibly();
+					TreeSet<Number160> keys = new TreeSet<Number160>();
+					for (Number640 key : futureGet.dataMap().keySet()) {
+						keys.add(key.contentKey());
+					}
+					transferredNaive += keys.size();
+					if (result == null) {
+						result = keys;
+					} else {
+						result.retainAll(keys);
+					}
+				}
+				bestNaive = Math.min(bestNaive, System.nanoTime() - start);
+				Assert.assertEquals(expected, new ArrayList<Number160>(result));
+			}
+			System.err.println("BENCHMARK: AND query of 3 terms over " + documents + " documents, "
+					+ expected.size() + " results. STAT: search " + (bestSearch / 1000000.0) + "ms, "
+					+ expected.size() + " document keys transferred; naive get " + (bestNaive / 1000000.0) + "ms, "
+					+ transferredNaive + " document keys transferred");
+		} finally {
+			if (master != null) {
+				master.peer().shutdown().await();
+			}
+		}
+	}
+
+	@Test
+	public void testRangeIndex() throws Exception {
+		final Random rnd = new Random(42L);
+		PeerSearch master = null;
+		try {
+			PeerSearch[] nodes = createNodes(20, rnd, 4001, 1);
+			master = nodes[0];
+			RangeIndex<Long> index = nodes[3].rangeIndex("numbers", RangeIndex.NUMERIC).height(12).threshold(8);
+			TreeMap<Long, String> expected = new TreeMap<Long, String>();
+			List<FutureDone<Void>> futures = new ArrayList<FutureDone<Void>>();
+			for (int i = 0; i < 200; i++) {
+				long key = rnd.nextInt(2000) - 1000;
+				expected.put(key, "value" + key);
+				futures.add(index.add(key, "value" + key));
+				awaitBatch(futures, 50);
+			}
+			awaitBatch(futures, 1);
+			RangeIndex<Long> other = nodes[8].rangeIndex("numbers", RangeIndex.NUMERIC).height(12).threshold(8);
+			Assert.assertEquals(expected.subMap(-100L, true, 250L, true), toMap(other.query(-100L, 250L)));
+			Assert.assertEquals(expected, toMap(other.query(Long.MIN_VALUE, Long.MAX_VALUE)));
+			Assert.assertTrue(toMap(other.query(5000L, 6000L)).isEmpty());
+			// the root is full and known to be saturated
+			Assert.assertTrue(other.cachedNodes() > 0);
+
+			long removed = expected.firstKey();
+			Assert.assertTrue(index.remove(removed, "value" + removed).awaitUninterruptibly().isSuccess());
+			expected.remove(removed);
+			Assert.assertEquals(expected, toMap(other.query(Long.MIN_VALUE, Long.MAX_VALUE)));
+
+			RangeIndex<String> words = nodes[5].rangeIndex("words", RangeIndex.LEXICOGRAPHIC).threshold(2);
+			TreeMap<String, String> expectedWords = new TreeMap<String, String>();
+			for (String word : Arrays.asList("apple", "apples", "applet", "banana", "band", "bandana", "cherry",
+					"zebra")) {
+				expectedWords.put(word, word.toUpperCase());
+				Assert.assertTrue(words.add(word, word.toUpperCase()).awaitUninterruptibly().isSuccess());
+			}
+			Assert.assertEquals(expectedWords.subMap("applea", true, "band", true),
+					toMap(nodes[9].rangeIndex("words", RangeIndex.LEXICOGRAPHIC).threshold(2).query("applea", "band")));
+		} finally {
+			if (master != null) {
+				master.peer().shutdown().await();
+			}
+		}
+	}
+
+	@Test
+	public void testRangeIndexBenchmark() throws Exception {
+		final Random rnd = new Random(42L);
+		PeerSearch master = null;
+		try {
+			PeerSearch[] nodes = createNodes(20, rnd, 4001, 1);
+			master = nodes[0];
+			RangeIndex.KeyMapper<Long> domain = RangeIndex.numeric(0, 1000000);
+			RangeIndex<Long> index = nodes[3].rangeIndex("numbers", domain).height(12).threshold(4);
+			List<FutureDone<Void>> futures = new ArrayList<FutureDone<Void>>();
+			for (long i = 0; i < 400; i++) {
+				futures.add(index.add(i * 2500, "value" + i));
+				awaitBatch(futures, 50);
+			}
+			awaitBatch(futures, 1);
+			RangeIndex<Long> warm = nodes[8].rangeIndex("numbers", domain).height(12).threshold(4);
+			Assert.assertEquals(61, warm.query(100000L, 250000L).awaitUninterruptibly().object().size());
+			long bestCold = Long.MAX_VALUE;
+			long bestWarm = Long.MAX_VALUE;
+			for (int round = 0; round < 5; round++) {
+				RangeIndex<Long> cold = nodes[8].rangeIndex("numbers", domain).height(12).threshold(4);
+				long start = System.nanoTime();
+				Assert.assertEquals(61, cold.query(100000L, 250000L).awaitUninterruptibly().object().size());
+				bestCold = Math.min(bestCold, System.nanoTime() - start);
+
+				start = System.nanoTime();
+				Assert.assertEquals(61, warm.query(100000L, 250000L).awaitUninterruptibly().object().size());
+				bestWarm = Math.min(bestWarm, System.nanoTime() - start);
+			}
+			System.err.println("BENCHMARK: range query of 61 out of 400 entries, height 12, threshold 4. STAT: "
+					+ "without node cache " + (bestCold / 1000000.0) + "ms, with node cache "
+					+ (bestWarm / 1000000.0) + "ms, " + warm.cachedNodes() + " cached nodes");
+		} finally {
+			if (master != null) {
+				master.peer().shutdown().await();
+			}
+		}
+	}
+
+	/**
+	 * Waits for the futures once there are enough of them, such that a test does not flood the peers.
+	 */
+	private static void awaitBatch(List<FutureDone<Void>> futures, int batchSize) {
+		if (futures.size() < batchSize) {
+			return;
+		}
+		for (FutureDone<Void> futureDone : futures) {
+			Assert.assertTrue(futureDone.awaitUninterruptibly().isSuccess());
+		}
+		futures.clear();
+	}
+
+	private static <K extends Comparable<? super K> & Serializable> Map<K, Serializable> toMap(
+			FutureDone<List<RangeEntry<K>>> futureDone) {
+		Assert.assertTrue(futureDone.awaitUninterruptibly().isSuccess());
+		Map<K, Serializable> result = new TreeMap<K, Serializable>();
+		K last = null;
+		for (RangeEntry<K> entry : futureDone.object()) {
+			// sorted by key
+			Assert.assertTrue(last == null || last.compareTo(entry.key()) < 0);
+			last = entry.key();
+			result.put(entry.key(), entry.value());
+		}
+		return result;
+	}
+
+	private static List<Number160> all(SearchBuilder searchBuilder, int pageSize) {
+		List<Number160> result = new ArrayList<Number160>();
+		searchBuilder.pageSize(pageSize);
+		while (true) {
+			FutureSearch futureSearch = searchBuilder.start().awaitUninterruptibly();
+			Assert.assertTrue(futureSearch.isSuccess());
+			Assert.assertTrue(futureSearch.documentKeys().size() <= pageSize);
+			result.addAll(futureSearch.documentKeys());
+			if (!futureSearch.hasMore()) {
+				return result;
+			}
+			searchBuilder.next(futureSearch);
+		}
+	}
+
+	private static Number160 documentKey(int i) {
+		return Number160.createHash("document" + i);
+	}
+
+	private static String text(int i) {
+		StringBuilder sb = new StringBuilder("all ");
+		sb.append(i % 2 == 0 ? "even " : "odd ");
+		if (i % 3 == 0) {
+			sb.append("fizz ");
+		}
+		if (i % 5 == 0) {
+			sb.append("buzz");
+		}
+		return sb.toString();
+	}
+
+	private static List<Number160> expected(int documents, int modulo) {
+		TreeSet<Number160> expected = new TreeSet<Number160>();
+		for (int i = 0; i < documents; i++) {
+			if (i % modulo == 0) {
+				expected.add(documentKey(i));
+			}
+		}
+		return new ArrayList<Number160>(expected);
+	}
+
+	private static PeerSearch[] createNodes(int nr, Random rnd, int port, int shards) throws Exception {
+		PeerSearch[] nodes = new PeerSearch[nr + 1];
+		PeerBuilder master = new PeerBuilder(new Number160(rnd)).p2pId(1).ports(port);
+		nodes[0] = new PeerBuilderSearch(new PeerBuilderDHT(master.start()).start()).shards(shards).start();
+		for (int i = 0; i < nr; i++) {
+			nodes[i + 1] = new PeerBuilderSearch(new PeerBuilderDHT(new PeerBuilder(new Number160(rnd)).p2pId(1)
+					.masterPeer(nodes[0].peer()).start()).start()).shards(shards).start();
+		}
+		// perfect routing
+		for (int i = 0; i < nodes.length; i++) {
+			for (int j = 0; j < nodes.length; j++) {
+				nodes[i].peer().peerBean().peerMap().peerFound(nodes[j].peerAddress(), null, null, null);
+			}
+		}
+		return nodes;
+	}
+}
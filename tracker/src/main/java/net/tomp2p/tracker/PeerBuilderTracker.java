@@ -17,7 +17,6 @@ import net.tomp2p.peers.Number320;
 import net.tomp2p.peers.PeerAddress;
 import net.tomp2p.peers.PeerStatistic;
 import net.tomp2p.storage.Data;
-import net.tomp2p.utils.Pair;
 import net.tomp2p.utils.Utils;
 
 public class PeerBuilderTracker {
@@ -27,6 +26,7 @@ public class PeerBuilderTracker {
 
 	private PeerExchangeHandler peerExchangeHandler = null;
 	private int peerExchangeRefreshSec = -1;
+	private int peerExchangeFullSyncInterval = -1;
 	private ConnectionConfiguration connectionConfiguration = null;
 	private int ttl = -1;
 	private int replicationFactor = -1;
@@ -45,6 +45,9 @@ public class PeerBuilderTracker {
 		if (peerExchangeRefreshSec == -1) {
 			peerExchangeRefreshSec = 60;
 		}
+		if (peerExchangeFullSyncInterval == -1) {
+			peerExchangeFullSyncInterval = 10;
+		}
 		if (replicationFactor == -1) {
 			replicationFactor = 20;
 		}
@@ -73,12 +76,19 @@ public class PeerBuilderTracker {
 		final ScheduledFuture<?> scheduledFuture;
 		if (peerExchangeRefreshSec > 0) {
 			scheduledFuture = peer.connectionBean().timer().scheduleAtFixedRate(new Runnable() {
+				private int counter = 0;
 				@Override
 				public void run() {
 					TrackerTriple trackerTriple = peerExchangeHandler.get();
 					if (trackerTriple != null) {
-						FutureDone<Void> future = peerExchange.peerExchange(trackerTriple.remotePeer(),
-						        trackerTriple.key(), trackerTriple.data());
+						// every n-th exchange is a full exchange, to correct false positives of the bloom filter
+						final BaseFuture future;
+						if (peerExchangeFullSyncInterval <= 1 || counter++ % peerExchangeFullSyncInterval == 0) {
+							future = peerExchange.peerExchange(trackerTriple.remotePeer(), trackerTriple.key(),
+							        trackerTriple.data());
+						} else {
+							future = peerExchange.peerExchangeDelta(trackerTriple.remotePeer(), trackerTriple.key());
+						}
 						peer.notifyAutomaticFutures(future);
 					}
 				}
@@ -150,6 +160,21 @@ public class PeerBuilderTracker {
 		return this;
 	}
 
+	public int peerExchangeFullSyncInterval() {
+		return peerExchangeFullSyncInterval;
+	}
+
+	/**
+	 * @param peerExchangeFullSyncInterval
+	 *            Every n-th periodic peer exchange sends all peers, the others only ask for the peers we do not know
+	 *            yet. Set to 1 to always send all peers.
+	 * @return This class
+	 */
+	public PeerBuilderTracker peerExchangeFullSyncInterval(int peerExchangeFullSyncInterval) {
+		this.peerExchangeFullSyncInterval = peerExchangeFullSyncInterval;
+		return this;
+	}
+
 	public static class DefaultPeerExchangeHandler implements PeerExchangeHandler {
 
 		private final TrackerStorage trackerStorage;
@@ -182,18 +207,7 @@ public class PeerBuilderTracker {
 				return null;
 			}
 			
-			Map<PeerAddress, Pair<PeerStatistic, Data>> map = trackerStorage.peers(key);
-			
-			if(map == null || map.size() == 0) {
-				return null;
-			}
-			
-			Collection<Pair<PeerStatistic, Data>> value = map.values();
-			
-			if (value.isEmpty()) {
-				return null;
-			}
-			TrackerData trackerData = new TrackerData(value);
+			TrackerData trackerData = trackerStorage.trackerData(key, null, TrackerRPC.MAX_MSG_SIZE_UDP);
 			
 			Map<PeerAddress, Data> peerStatatisticsMap = trackerData.peerAddresses();
 			
@@ -1,5 +1,7 @@
 package net.tomp2p.tracker;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 import net.tomp2p.connection.ChannelCreator;
 import net.tomp2p.connection.ConnectionConfiguration;
 import net.tomp2p.futures.BaseFutureAdapter;
@@ -8,16 +10,31 @@ import net.tomp2p.futures.FutureDone;
 import net.tomp2p.futures.FutureResponse;
 import net.tomp2p.message.TrackerData;
 import net.tomp2p.p2p.Peer;
+import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.Number320;
 import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.rpc.SimpleBloomFilter;
 import net.tomp2p.utils.Utils;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 public class PeerExchange {
 
+	private static final Logger LOG = LoggerFactory.getLogger(PeerExchange.class);
+
+	// a false positive means that a peer is not sent, the next full exchange corrects this
+	public static final double FALSE_POSITIVE_PROBABILITY = 0.01;
+
 	private final Peer peer;
 	private final PeerExchangeRPC peerExchangeRPC;
 	private final ConnectionConfiguration connectionConfiguration;
 
+	private final AtomicLong bytesSent = new AtomicLong();
+	private final AtomicLong bytesSaved = new AtomicLong();
+	private final AtomicLong fullExchanges = new AtomicLong();
+	private final AtomicLong deltaExchanges = new AtomicLong();
+
 	public PeerExchange(final Peer peer, final PeerExchangeRPC peerExchangeRPC,
 	        ConnectionConfiguration connectionConfiguration) {
 		this.peer = peer;
@@ -41,6 +58,11 @@ public class PeerExchange {
 					final ChannelCreator channelCreator = future.channelCreator();
 					FutureResponse futureResponse = peerExchangeRPC.peerExchange(remotePeer, key, channelCreator, data,
 					        connectionConfiguration);
+					if (data != null && !data.isEmpty()) {
+						bytesSent.addAndGet(UtilsTracker.estimateSize(UtilsTracker.limit(data,
+						        TrackerRPC.MAX_MSG_SIZE_UDP)));
+						fullExchanges.incrementAndGet();
+					}
 					futureResponse.addListener(new BaseFutureAdapter<FutureResponse>() {
 						@Override
 						public void operationComplete(FutureResponse future) throws Exception {
@@ -60,6 +82,100 @@ public class PeerExchange {
 		return futureDone;
 	}
 	
+	/**
+	 * Asks the remote peer for the peers of a swarm that we do not know yet. We send a bloom filter with the peers we
+	 * know and the remote peer sends back only the missing peers, which are stored in our tracker storage. Since a
+	 * false positive in the bloom filter hides a peer, a full exchange with
+	 * {@link #peerExchange(PeerAddress, Number320, TrackerData)} should be done from time to time.
+	 * 
+	 * @param remotePeer
+	 *            The peer to ask
+	 * @param key
+	 *            The location and domain key of the swarm
+	 * @return The future with the number of bytes saved compared to a full exchange. This number can be negative if
+	 *         the bloom filter is larger than the peers it suppressed.
+	 */
+	public FutureDone<Integer> peerExchangeDelta(final PeerAddress remotePeer, final Number320 key) {
+		return peerExchangeDelta(remotePeer, key, connectionConfiguration);
+	}
+
+	public FutureDone<Integer> peerExchangeDelta(final PeerAddress remotePeer, final Number320 key,
+	        final ConnectionConfiguration connectionConfiguration) {
+		final FutureDone<Integer> futureDone = new FutureDone<Integer>();
+		final PeerExchangeHandler peerExchangeHandler = peerExchangeRPC.peerExchangeHandler();
+		final SimpleBloomFilter<Number160> knownPeers = peerExchangeHandler.trackerStorage().knownPeers(key,
+		        FALSE_POSITIVE_PROBABILITY);
+		final boolean tcp = connectionConfiguration.isForceTCP()
+		        || knownPeers.size() >= PeerExchangeRPC.MAX_BLOOM_FILTER_SIZE_UDP;
+		FutureChannelCreator futureChannelCreator = peer.connectionBean().reservation().create(tcp ? 0 : 1, tcp ? 1 : 0);
+		Utils.addReleaseListener(futureChannelCreator, futureDone);
+		futureChannelCreator.addListener(new BaseFutureAdapter<FutureChannelCreator>() {
+			@Override
+			public void operationComplete(FutureChannelCreator future) throws Exception {
+				if (future.isSuccess()) {
+					final ChannelCreator channelCreator = future.channelCreator();
+					FutureResponse futureResponse = peerExchangeRPC.peerExchangeDelta(remotePeer, key, channelCreator,
+					        knownPeers, connectionConfiguration);
+					futureResponse.addListener(new BaseFutureAdapter<FutureResponse>() {
+						@Override
+						public void operationComplete(FutureResponse future) throws Exception {
+							if (future.isSuccess()) {
+								final TrackerData delta = future.responseMessage().trackerData(0);
+								final Integer notSent = future.responseMessage().intAt(0);
+								if (delta != null && !delta.isEmpty()) {
+									peerExchangeHandler.put(key, delta, remotePeer);
+								}
+								final int sent = knownPeers.size()
+								        + (delta == null ? 0 : UtilsTracker.estimateSize(delta));
+								final int saved = (notSent == null ? 0 : notSent) - knownPeers.size();
+								bytesSent.addAndGet(sent);
+								bytesSaved.addAndGet(saved);
+								deltaExchanges.incrementAndGet();
+								LOG.debug("delta PEX with {} for {}, got {} peers, sent {} bytes, saved {} bytes",
+								        remotePeer, key, delta == null ? 0 : delta.size(), sent, saved);
+								futureDone.done(saved);
+							} else {
+								futureDone.failed(future);
+							}
+							channelCreator.shutdown();
+						}
+					});
+				} else {
+					futureDone.failed(future);
+				}
+			}
+		});
+		return futureDone;
+	}
+
+	/**
+	 * @return The estimated number of bytes sent for peer exchanges, including bloom filters
+	 */
+	public long bytesSent() {
+		return bytesSent.get();
+	}
+
+	/**
+	 * @return The estimated number of bytes saved with delta exchanges compared to full exchanges
+	 */
+	public long bytesSaved() {
+		return bytesSaved.get();
+	}
+
+	/**
+	 * @return The number of full exchanges that have been sent
+	 */
+	public long fullExchanges() {
+		return fullExchanges.get();
+	}
+
+	/**
+	 * @return The number of delta exchanges that have been completed
+	 */
+	public long deltaExchanges() {
+		return deltaExchanges.get();
+	}
+
 	public PeerExchangeRPC peerExchangeRPC() {
 		return peerExchangeRPC;
 	}
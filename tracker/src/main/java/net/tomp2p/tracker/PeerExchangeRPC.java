@@ -31,6 +31,8 @@ import net.tomp2p.peers.Number320;
 import net.tomp2p.peers.PeerAddress;
 import net.tomp2p.rpc.DispatchHandler;
 import net.tomp2p.rpc.RPC;
+import net.tomp2p.rpc.SimpleBloomFilter;
+import net.tomp2p.utils.Pair;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -40,6 +42,9 @@ public class PeerExchangeRPC extends DispatchHandler {
 
     public static final int SENT_PEERS_CACHE_SIZE = 1000;
 
+    // larger bloom filters are sent with TCP, as the request would not fit into a datagram
+    public static final int MAX_BLOOM_FILTER_SIZE_UDP = ConnectionBean.UDP_LIMIT / 2;
+
     // since PEX is push based, each peer needs to keep track what was sent to
     // whom.
     // private final Map<Number160, Set<PeerAddress>> sentPeers;
@@ -111,15 +116,68 @@ public class PeerExchangeRPC extends DispatchHandler {
 		}
     }
 
+    /**
+     * Delta peer exchange, the remote peer sends back only the peers that are not in our bloom filter. This is an RPC
+     * with a response. The response contains the missing peers and the estimated number of bytes that the remote peer
+     * did not need to send, compared to a full exchange.
+     * 
+     * @param remotePeer
+     *            The remote peer to send this request
+     * @param key
+     *            The location and domain key of the swarm
+     * @param channelCreator
+     *            The channel creator that creates connections
+     * @param knownPeers
+     *            The peer IDs of the swarm that we already know
+     * @param connectionConfiguration
+     *            The connection configuration, if TCP is not forced, UDP is used if the bloom filter is small
+     * @return The future response to keep track of future events
+     */
+    public FutureResponse peerExchangeDelta(final PeerAddress remotePeer, final Number320 key,
+            final ChannelCreator channelCreator, final SimpleBloomFilter<Number160> knownPeers,
+            final ConnectionConfiguration connectionConfiguration) {
+        final Message message = createMessage(remotePeer, RPC.Commands.PEX.getNr(), Type.REQUEST_2);
+        message.key(key.locationKey());
+        message.key(key.domainKey());
+        message.bloomFilter(knownPeers);
+        LOG.debug("sent delta request ({}) to {} / {} bytes", message.sender().peerId(), remotePeer.peerId(),
+                knownPeers.size());
+        FutureResponse futureResponse = new FutureResponse(message);
+        final RequestHandler<FutureResponse> requestHandler = new RequestHandler<FutureResponse>(futureResponse,
+                peerBean(), connectionBean(), connectionConfiguration);
+        if (!connectionConfiguration.isForceTCP() && knownPeers.size() < MAX_BLOOM_FILTER_SIZE_UDP) {
+            return requestHandler.sendUDP(channelCreator);
+        } else {
+            return requestHandler.sendTCP(channelCreator);
+        }
+    }
+
+    public PeerExchangeHandler peerExchangeHandler() {
+        return peerExchange;
+    }
+
     @Override
     public void handleResponse(final Message message, PeerConnection peerConnection, final boolean sign, Responder responder) throws Exception {
-        if (!((message.type() == Type.REQUEST_FF_1) && message
+        if (!((message.type() == Type.REQUEST_FF_1 || message.type() == Type.REQUEST_2) && message
                 .command() == RPC.Commands.PEX.getNr())) {
             throw new IllegalArgumentException("Message content is wrong");
         }
         final Number160 locationKey = message.key(0);
         final Number160 domainKey = message.key(1);
         Number320 key = new Number320(locationKey, domainKey);
+        if (message.type() == Type.REQUEST_2) {
+            final SimpleBloomFilter<Number160> knownPeers = message.bloomFilter(0);
+            final TrackerStorage trackerStorage = peerExchange.trackerStorage();
+            final Pair<TrackerData, Integer> delta = trackerStorage.trackerDataDelta(key, knownPeers,
+                    TrackerRPC.MAX_MSG_SIZE_UDP);
+            LOG.debug("delta PEX for {}, send {} peers, {} bytes not sent", key, delta.element0().size(),
+                    delta.element1());
+            final Message responseMessage = createResponseMessage(message, Type.OK);
+            responseMessage.trackerData(delta.element0());
+            responseMessage.intValue(delta.element1());
+            responder.response(responseMessage);
+            return;
+        }
         final TrackerData tmp = message.trackerData(0);
         peerExchange.put(key, tmp, message.sender());
        
@@ -0,0 +1,331 @@
+package net.tomp2p.tracker;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import net.tomp2p.message.TrackerData;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.peers.PeerStatistic;
+import net.tomp2p.rpc.SimpleBloomFilter;
+import net.tomp2p.storage.Data;
+import net.tomp2p.utils.Pair;
+
+/**
+ * The peers of a swarm, stored in plain arrays with an index for lookups. Compared to a cache map per swarm, this
+ * needs much less memory for many small swarms and allows to draw a random sample without copying the whole swarm.
+ * Entries expire after the tracker timeout, the timeout is refreshed on every put. This class is thread-safe.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class Swarm {
+
+	/**
+	 * Is notified about the peers that expired and have been removed from a swarm.
+	 */
+	public interface ExpiryListener {
+		/**
+		 * @param swarm
+		 *            The swarm the peer was removed from
+		 * @param peerAddress
+		 *            The expired peer
+		 */
+		void expired(Swarm swarm, PeerAddress peerAddress);
+	}
+
+	private final long timeoutMillis;
+	private final int maxSize;
+	private final ExpiryListener expiryListener;
+
+	private final Map<PeerAddress, Integer> index = new HashMap<PeerAddress, Integer>();
+	private PeerAddress[] peers;
+	private PeerStatistic[] statistics;
+	private Data[] attachements;
+	private long[] expirations;
+	private int size = 0;
+	// lower bound of all expirations, to only scan for expired peers if there are some
+	private long earliestExpiration = Long.MAX_VALUE;
+
+	/**
+	 * @param timeoutSeconds
+	 *            The time after a peer is removed from the swarm, if it does not announce itself again
+	 * @param maxSize
+	 *            The maximum number of peers in this swarm
+	 */
+	public Swarm(final int timeoutSeconds, final int maxSize) {
+		this(timeoutSeconds, maxSize, null);
+	}
+
+	/**
+	 * @param timeoutSeconds
+	 *            The time after a peer is removed from the swarm, if it does not announce itself again
+	 * @param maxSize
+	 *            The maximum number of peers in this swarm
+	 * @param expiryListener
+	 *            Is notified about every expired peer that is removed, can be null
+	 */
+	public Swarm(final int timeoutSeconds, final int maxSize, final ExpiryListener expiryListener) {
+		this.timeoutMillis = timeoutSeconds * 1000L;
+		this.maxSize = maxSize;
+		this.expiryListener = expiryListener;
+		final int initialCapacity = Math.min(4, maxSize);
+		this.peers = new PeerAddress[initialCapacity];
+		this.statistics = new PeerStatistic[initialCapacity];
+		this.attachements = new Data[initialCapacity];
+		this.expirations = new long[initialCapacity];
+	}
+
+	/**
+	 * Adds or updates a peer in this swarm.
+	 *
+	 * @param peerStatistic
+	 *            The statistics of the peer, which also holds its peer address
+	 * @param attachement
+	 *            The data the peer attached
+	 * @return False if the swarm is full
+	 */
+	public synchronized boolean put(final PeerStatistic peerStatistic, final Data attachement) {
+		final long now = System.currentTimeMillis();
+		final PeerAddress peerAddress = peerStatistic.peerAddress();
+		final Integer pos = index.get(peerAddress);
+		if (pos != null) {
+			set(pos, peerAddress, peerStatistic, attachement, now + timeoutMillis);
+			return true;
+		}
+		if (size >= maxSize) {
+			removeExpired(now);
+			if (size >= maxSize) {
+				return false;
+			}
+		}
+		if (size == peers.length) {
+			grow();
+		}
+		set(size, peerAddress, peerStatistic, attachement, now + timeoutMillis);
+		earliestExpiration = Math.min(earliestExpiration, now + timeoutMillis);
+		index.put(peerAddress, size);
+		size++;
+		return true;
+	}
+
+	/**
+	 * @param peerAddress
+	 *            The peer to look for
+	 * @return The statistics and the attached data of the peer or null if not in this swarm
+	 */
+	public synchronized Pair<PeerStatistic, Data> get(final PeerAddress peerAddress) {
+		final Integer pos = index.get(peerAddress);
+		if (pos == null) {
+			return null;
+		}
+		if (expirations[pos] < System.currentTimeMillis()) {
+			removeAt(pos);
+			notifyExpired(peerAddress);
+			return null;
+		}
+		return new Pair<PeerStatistic, Data>(statistics[pos], attachements[pos]);
+	}
+
+	/**
+	 * @param peerAddress
+	 *            The peer to remove
+	 * @return The statistics and the attached data of the removed peer or null if not in this swarm
+	 */
+	public synchronized Pair<PeerStatistic, Data> remove(final PeerAddress peerAddress) {
+		final Integer pos = index.get(peerAddress);
+		if (pos == null) {
+			return null;
+		}
+		final boolean expired = expirations[pos] < System.currentTimeMillis();
+		final Pair<PeerStatistic, Data> pair = new Pair<PeerStatistic, Data>(statistics[pos], attachements[pos]);
+		removeAt(pos);
+		return expired ? null : pair;
+	}
+
+	/**
+	 * Removes all expired peers. The swarm is only scanned if at least one peer may have expired. The expiry
+	 * listener is notified about every removed peer.
+	 *
+	 * @return The peers that have been removed
+	 */
+	public synchronized Collection<PeerAddress> removeExpired() {
+		return removeExpired(System.currentTimeMillis());
+	}
+
+	/**
+	 * @return The number of peers in this swarm, including expired peers that have not been removed yet
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * @return True if there is no peer in this swarm
+	 */
+	public synchronized boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * @return The addresses of all peers in this swarm, including expired peers that have not been removed yet
+	 */
+	public synchronized Collection<PeerAddress> peerAddresses() {
+		final List<PeerAddress> retVal = new ArrayList<PeerAddress>(size);
+		for (int i = 0; i < size; i++) {
+			retVal.add(peers[i]);
+		}
+		return retVal;
+	}
+
+	/**
+	 * @return A copy of all peers in this swarm. This operation is O(n), use {@link #sample(int, SimpleBloomFilter, Random)}
+	 *         to get a limited number of peers.
+	 */
+	public synchronized Collection<Pair<PeerStatistic, Data>> values() {
+		final long now = System.currentTimeMillis();
+		final List<Pair<PeerStatistic, Data>> retVal = new ArrayList<Pair<PeerStatistic, Data>>(size);
+		for (int i = 0; i < size; i++) {
+			if (expirations[i] >= now) {
+				retVal.add(new Pair<PeerStatistic, Data>(statistics[i], attachements[i]));
+			}
+		}
+		return retVal;
+	}
+
+	/**
+	 * Draws a random sample of peers from this swarm. Only the sampled peers are visited, thus, the cost depends on
+	 * the size of the sample and not on the size of the swarm.
+	 *
+	 * @param max
+	 *            The maximum number of peers to return
+	 * @param knownPeers
+	 *            The peers that should not be returned, can be null
+	 * @param rnd
+	 *            The random number generator to draw the sample
+	 * @return The sampled peers with the flag set, if more peers could have been returned
+	 */
+	public TrackerData sample(final int max, final SimpleBloomFilter<Number160> knownPeers, final Random rnd) {
+		return sampleDelta(max, knownPeers, rnd).element0();
+	}
+
+	/**
+	 * Draws a random sample of peers from this swarm, like {@link #sample(int, SimpleBloomFilter, Random)}, and
+	 * estimates in the same pass the size of the known peers that were skipped. Only the known peers that a sample
+	 * without the bloom filter would have returned are counted.
+	 *
+	 * @param max
+	 *            The maximum number of peers to return
+	 * @param knownPeers
+	 *            The peers that should not be returned, can be null
+	 * @param rnd
+	 *            The random number generator to draw the sample
+	 * @return The sampled peers and the estimated number of bytes of the skipped known peers
+	 */
+	public synchronized Pair<TrackerData, Integer> sampleDelta(final int max,
+	        final SimpleBloomFilter<Number160> knownPeers, final Random rnd) {
+		final long now = System.currentTimeMillis();
+		final Map<PeerAddress, Data> retVal = new HashMap<PeerAddress, Data>(Math.min(max, size));
+		int skipped = 0;
+		int skippedSize = 0;
+		// partial Fisher-Yates shuffle on the arrays, the order does not matter for a swarm
+		int i = 0;
+		for (; i < size && retVal.size() < max; i++) {
+			swap(i, i + rnd.nextInt(size - i));
+			if (expirations[i] < now) {
+				continue;
+			}
+			if (knownPeers != null && knownPeers.contains(peers[i].peerId())) {
+				// a full sample would have stopped after max peers
+				if (retVal.size() + skipped < max) {
+					skipped++;
+					skippedSize += UtilsTracker.estimateSize(peers[i], attachements[i]);
+				}
+				continue;
+			}
+			retVal.put(peers[i], attachements[i]);
+		}
+		return new Pair<TrackerData, Integer>(new TrackerData(retVal, i < size), skippedSize);
+	}
+
+	private Collection<PeerAddress> removeExpired(final long now) {
+		if (now <= earliestExpiration) {
+			return Collections.emptyList();
+		}
+		final List<PeerAddress> removed = new ArrayList<PeerAddress>();
+		long earliest = Long.MAX_VALUE;
+		for (int i = size - 1; i >= 0; i--) {
+			if (expirations[i] < now) {
+				removed.add(peers[i]);
+				removeAt(i);
+			} else {
+				earliest = Math.min(earliest, expirations[i]);
+			}
+		}
+		earliestExpiration = earliest;
+		for (PeerAddress peerAddress : removed) {
+			notifyExpired(peerAddress);
+		}
+		return removed;
+	}
+
+	private void notifyExpired(final PeerAddress peerAddress) {
+		if (expiryListener != null) {
+			expiryListener.expired(this, peerAddress);
+		}
+	}
+
+	private void removeAt(final int pos) {
+		index.remove(peers[pos]);
+		final int last = size - 1;
+		if (pos != last) {
+			set(pos, peers[last], statistics[last], attachements[last], expirations[last]);
+			index.put(peers[pos], pos);
+		}
+		set(last, null, null, null, 0);
+		size--;
+	}
+
+	private void swap(final int i, final int j) {
+		if (i == j) {
+			return;
+		}
+		final PeerAddress peerAddress = peers[i];
+		final PeerStatistic peerStatistic = statistics[i];
+		final Data attachement = attachements[i];
+		final long expiration = expirations[i];
+		set(i, peers[j], statistics[j], attachements[j], expirations[j]);
+		set(j, peerAddress, peerStatistic, attachement, expiration);
+		index.put(peers[i], i);
+		index.put(peers[j], j);
+	}
+
+	private void set(final int pos, final PeerAddress peerAddress, final PeerStatistic peerStatistic,
+	        final Data attachement, final long expiration) {
+		peers[pos] = peerAddress;
+		statistics[pos] = peerStatistic;
+		attachements[pos] = attachement;
+		expirations[pos] = expiration;
+	}
+
+	private void grow() {
+		final int newCapacity = Math.min(maxSize, Math.max(peers.length * 2, 1));
+		final PeerAddress[] newPeers = new PeerAddress[newCapacity];
+		final PeerStatistic[] newStatistics = new PeerStatistic[newCapacity];
+		final Data[] newAttachements = new Data[newCapacity];
+		final long[] newExpirations = new long[newCapacity];
+		System.arraycopy(peers, 0, newPeers, 0, size);
+		System.arraycopy(statistics, 0, newStatistics, 0, size);
+		System.arraycopy(attachements, 0, newAttachements, 0, size);
+		System.arraycopy(expirations, 0, newExpirations, 0, size);
+		peers = newPeers;
+		statistics = newStatistics;
+		attachements = newAttachements;
+		expirations = newExpirations;
+	}
+}
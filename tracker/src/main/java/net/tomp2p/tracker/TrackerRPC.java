@@ -16,7 +16,6 @@
 package net.tomp2p.tracker;
 
 import java.security.PublicKey;
-import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -34,12 +33,10 @@ import net.tomp2p.message.TrackerData;
 import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.Number320;
 import net.tomp2p.peers.PeerAddress;
-import net.tomp2p.peers.PeerStatistic;
 import net.tomp2p.rpc.DispatchHandler;
 import net.tomp2p.rpc.RPC;
 import net.tomp2p.rpc.SimpleBloomFilter;
 import net.tomp2p.storage.Data;
-import net.tomp2p.utils.Pair;
 import net.tomp2p.utils.Utils;
 
 import org.slf4j.Logger;
@@ -174,20 +171,15 @@ public class TrackerRPC extends DispatchHandler {
 
 		PublicKey publicKey = message.publicKey(0);
 		//
-		Collection<Pair<PeerStatistic, Data>> value = trackerStorage.peers(new Number320(locationKey, domainKey)).values(); 
-		TrackerData meshPeers = new TrackerData(value);
+		// only sample the peers we need, the swarm may be large
+		TrackerData meshPeers = trackerStorage.trackerData(new Number320(locationKey, domainKey), knownPeers,
+		        TrackerRPC.MAX_MSG_SIZE_UDP);
 		
 		LOG.debug("found peers on tracker: {}", meshPeers == null ? "null " : meshPeers.peerAddresses());
 
 		boolean couldProvideMoreData = false;
 		if (meshPeers != null) {
-			if (knownPeers != null) {
-				meshPeers = UtilsTracker.disjunction(meshPeers, knownPeers);
-			}
-			int size = meshPeers.size();
-
-			meshPeers = UtilsTracker.limit(meshPeers, TrackerRPC.MAX_MSG_SIZE_UDP);
-			couldProvideMoreData = size > meshPeers.size();
+			couldProvideMoreData = meshPeers.couldProvideMoreData();
 			responseMessage.trackerData(meshPeers);
 		}
 
@@ -6,7 +6,8 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.NavigableSet;
-import java.util.SortedSet;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
 
 import net.tomp2p.connection.PeerConnection;
 import net.tomp2p.connection.PeerException;
@@ -22,6 +23,7 @@ import net.tomp2p.peers.PeerStatistic;
 import net.tomp2p.peers.PeerStatusListener;
 import net.tomp2p.peers.RTT;
 import net.tomp2p.rpc.DigestInfo;
+import net.tomp2p.rpc.SimpleBloomFilter;
 import net.tomp2p.storage.Data;
 import net.tomp2p.storage.DigestTracker;
 import net.tomp2p.utils.ConcurrentCacheMap;
@@ -35,8 +37,8 @@ public class TrackerStorage implements Maintainable, PeerMapChangeListener, Peer
     	private static final Logger LOG = LoggerFactory.getLogger(TrackerStorage.class);
 	// Core
 	public static final int TRACKER_CACHE_SIZE = 1000;
-	final private Map<Number320, Map<PeerAddress, Pair<PeerStatistic, Data>>> dataMapUnverified;
-	final private Map<Number320, Map<PeerAddress, Pair<PeerStatistic, Data>>> dataMap;
+	final private Swarms dataMapUnverified;
+	final private Swarms dataMap;
 	private final ConcurrentCacheMap<Number160, Boolean> peerOffline;
 	
 	final private boolean verifyPeersOnTracker;
@@ -45,14 +47,14 @@ public class TrackerStorage implements Maintainable, PeerMapChangeListener, Peer
 	private final int trackerTimoutSeconds;
 	private final PeerMap peerMap;
 	private final int replicationFactor;
+	private final Random rnd = new Random();
 	//comes later
 	private PeerExchange peerExchange;
 
 	public TrackerStorage(int trackerTimoutSeconds, final int[] intervalSeconds,
 	        int replicationFactor, PeerMap peerMap, PeerAddress self, boolean verifyPeersOnTracker) {
-		dataMapUnverified = new ConcurrentCacheMap<Number320, Map<PeerAddress, Pair<PeerStatistic, Data>>>(trackerTimoutSeconds, TRACKER_CACHE_SIZE,
-		        true);
-		dataMap = new ConcurrentCacheMap<Number320, Map<PeerAddress, Pair<PeerStatistic, Data>>>(trackerTimoutSeconds, TRACKER_CACHE_SIZE, true);
+		dataMapUnverified = new Swarms(trackerTimoutSeconds);
+		dataMap = new Swarms(trackerTimoutSeconds);
 		peerOffline = new ConcurrentCacheMap<Number160, Boolean>(trackerTimoutSeconds * 5, TRACKER_CACHE_SIZE, false);
 		this.trackerTimoutSeconds = trackerTimoutSeconds;
 		this.intervalSeconds = intervalSeconds;
@@ -67,7 +69,7 @@ public class TrackerStorage implements Maintainable, PeerMapChangeListener, Peer
 			return false;
 		}
 		// security check
-		Pair<PeerStatistic, Data> pair = findOld(key, peerAddress, dataMapUnverified);
+		Pair<PeerStatistic, Data> pair = dataMapUnverified.find(key, peerAddress);
 		Data oldDataUnverified = pair != null ? pair.element1() : null;
 		
 		boolean isUnverified = false;
@@ -79,7 +81,7 @@ public class TrackerStorage implements Maintainable, PeerMapChangeListener, Peer
 			}
 			isUnverified = true;
 		} else {
-			Pair<PeerStatistic, Data> pair2 = findOld(key, peerAddress, dataMap);
+			Pair<PeerStatistic, Data> pair2 = dataMap.find(key, peerAddress);
 			Data oldData = pair2 != null? pair2.element1() : null;
 			if(oldData != null) {
 				//security check
@@ -95,7 +97,7 @@ public class TrackerStorage implements Maintainable, PeerMapChangeListener, Peer
 		}
 		// now store
 		attachement.publicKey(publicKey);
-		final Map<Number320, Map<PeerAddress, Pair<PeerStatistic, Data>>> dataMapToStore;
+		final Swarms dataMapToStore;
 		if(isUnverified) {
 			dataMapToStore = dataMapUnverified;
 		} else if (isVerified) {
@@ -105,22 +107,7 @@ public class TrackerStorage implements Maintainable, PeerMapChangeListener, Peer
 		} else {
 			dataMapToStore = dataMap;
 		}
-		return add(key, peerAddress, dataMapToStore, attachement);
-	}
-
-	private Pair<PeerStatistic, Data> findOld(Number320 key, PeerAddress peerAddress, Map<Number320, Map<PeerAddress, Pair<PeerStatistic, Data>>> dataMap) {
-		
-		final Map<PeerAddress, Pair<PeerStatistic, Data>> map = dataMap.get(key);
-		if(map == null) {
-			return null;
-		}
-		
-		final Pair<PeerStatistic, Data> pair = map.get(peerAddress);
-		if(pair == null) {
-			return null;
-		}
-		
-		return pair;
+		return dataMapToStore.add(key, peerAddress, attachement);
 	}
 	
 	public PeerExchange peerExchange() {
@@ -134,8 +121,10 @@ public class TrackerStorage implements Maintainable, PeerMapChangeListener, Peer
 
 	@Override
 	public PeerStatistic nextForMaintenance(Collection<PeerAddress> notInterestedAddresses) {
-		for (Map<PeerAddress, Pair<PeerStatistic, Data>> map2 : dataMapUnverified.values()) {
-			for (Pair<PeerStatistic, Data> pair : map2.values()) {
+		// expired swarms are removed from the reverse index, even if no one asks for them anymore
+		dataMap.swarms.cleanUp();
+		for (Swarm swarm : dataMapUnverified.swarms.values()) {
+			for (Pair<PeerStatistic, Data> pair : swarm.values()) {
 				if (DefaultMaintenance.needMaintenance(pair.element0(), intervalSeconds)) {
 					return pair.element0();
 				}
@@ -147,11 +136,15 @@ public class TrackerStorage implements Maintainable, PeerMapChangeListener, Peer
 	@Override
 	public void peerInserted(PeerAddress remotePeer, boolean verified) {
 		if (verified) {
-			for (Map.Entry<Number320, Map<PeerAddress, Pair<PeerStatistic, Data>>> entry : dataMap.entrySet()) {
+			// the responsibility depends on the location key, thus, every swarm needs to be checked here. The close
+			// peers are looked up once per location key.
+			final Map<Number160, NavigableSet<PeerStatistic>> closePeersCache = new HashMap<Number160, NavigableSet<PeerStatistic>>();
+			for (Map.Entry<Number320, Swarm> entry : dataMap.swarms.entrySet()) {
+				final NavigableSet<PeerStatistic> closePeers = closePeers(entry.getKey().locationKey(), closePeersCache);
 				//if I have conetnt and I see a peer as a new responsible, push it.
-				if(isInReplicationRange(entry.getKey().locationKey(), remotePeer, replicationFactor)) {
+				if(isInReplicationRange(closePeers, remotePeer)) {
 					//limit the pushing peer to those that are responsible
-					if(isInReplicationRange(entry.getKey().locationKey(), self, replicationFactor)) {
+					if(isInReplicationRange(closePeers, self)) {
 						TrackerData trackerData = new TrackerData(entry.getValue().values());
 						LOG.debug("other peer is closer, send data {} to peer {}", trackerData, remotePeer);
 						peerExchange.peerExchange(remotePeer, entry.getKey(), trackerData);
@@ -165,12 +158,13 @@ public class TrackerStorage implements Maintainable, PeerMapChangeListener, Peer
 	public void peerRemoved(PeerAddress remotePeer, PeerStatistic storedPeerAddress) {
 		// if a responsible peer is removed, and I see myself as a responsible, 
 		// I should push my content to a random responsible
-		for (Map.Entry<Number320, Map<PeerAddress, Pair<PeerStatistic, Data>>> entry : dataMap.entrySet()) {
+		final Map<Number160, NavigableSet<PeerStatistic>> closePeersCache = new HashMap<Number160, NavigableSet<PeerStatistic>>();
+		for (Map.Entry<Number320, Swarm> entry : dataMap.swarms.entrySet()) {
+			final NavigableSet<PeerStatistic> closePeers = closePeers(entry.getKey().locationKey(), closePeersCache);
 			//if I have conetnt and I see the removed peer as a responsible, push it.
-			if(isInReplicationRange(entry.getKey().locationKey(), remotePeer, replicationFactor)) {
+			if(isInReplicationRange(closePeers, remotePeer)) {
 				//limit the pushing peer to those that are responsible
-				if(isInReplicationRange(entry.getKey().locationKey(), self, replicationFactor)) {
-					NavigableSet<PeerStatistic> closePeers = peerMap.closePeers(entry.getKey().locationKey(), replicationFactor);
+				if(isInReplicationRange(closePeers, self)) {
 					PeerAddress newResponsible = closePeers.headSet(new PeerStatistic(remotePeer)).last().peerAddress();
 					TrackerData trackerData = new TrackerData(entry.getValue().values());
 					LOG.debug("other peer left, make sure we have enough copies {}, send to peer {}", trackerData, remotePeer);
@@ -185,95 +179,81 @@ public class TrackerStorage implements Maintainable, PeerMapChangeListener, Peer
 		// nothing to do
 	}
 
-	private boolean isInReplicationRange(final Number160 locationKey, final PeerAddress peerAddress,
-	        final int replicationFactor) {
-		SortedSet<PeerStatistic> tmp = peerMap.closePeers(locationKey, replicationFactor);
-		tmp.add(new PeerStatistic(self));
-		return tmp.headSet(new PeerStatistic(peerAddress)).size() < replicationFactor;
+	private NavigableSet<PeerStatistic> closePeers(final Number160 locationKey,
+	        final Map<Number160, NavigableSet<PeerStatistic>> closePeersCache) {
+		NavigableSet<PeerStatistic> closePeers = closePeersCache.get(locationKey);
+		if (closePeers == null) {
+			closePeers = peerMap.closePeers(locationKey, replicationFactor);
+			closePeersCache.put(locationKey, closePeers);
+		}
+		return closePeers;
 	}
 
-	private boolean add(Number320 key, PeerAddress peerAddress, Map<Number320, Map<PeerAddress, Pair<PeerStatistic, Data>>> map, Data attachement) {
-		
-		//check size
-		Map<PeerAddress, Pair<PeerStatistic, Data>> map2 = map.get(key);
-		if(map2!=null && map2.size() > TRACKER_CACHE_SIZE) {
-			return false;
-		}
-		
-		Pair<PeerStatistic, Data> trackerData = findOld(key, peerAddress, map);
-		if (trackerData == null) {
-			trackerData = new Pair<PeerStatistic, Data>(new PeerStatistic(peerAddress), attachement);
-		}
-		
-		if(map2 == null) {
-			map2 = new ConcurrentCacheMap<PeerAddress, Pair<PeerStatistic, Data>>(trackerTimoutSeconds, TRACKER_CACHE_SIZE, true);
-			map.put(key, map2);
+	/**
+	 * @param closePeers
+	 *            The close peers of the location key, without this peer
+	 * @param peerAddress
+	 *            The peer to check
+	 * @return True if the peer is one of the replicationFactor closest peers, this peer included
+	 */
+	private boolean isInReplicationRange(final NavigableSet<PeerStatistic> closePeers, final PeerAddress peerAddress) {
+		final PeerStatistic peerStatistic = new PeerStatistic(peerAddress);
+		final PeerStatistic selfStatistic = new PeerStatistic(self);
+		int closer = closePeers.headSet(peerStatistic).size();
+		if (!peerAddress.equals(self) && !closePeers.contains(selfStatistic)
+		        && closePeers.comparator().compare(selfStatistic, peerStatistic) < 0) {
+			closer++;
 		}
-		map2.put(peerAddress, trackerData);
-		
-		return true;
+		return closer < replicationFactor;
 	}
 
 	public Collection<Number320> keys() {
-		return dataMap.keySet();
+		return dataMap.swarms.keySet();
 	}
 
 	@Override
 	public boolean peerFailed(PeerAddress remotePeer, PeerException reason) {
 		peerOffline.put(remotePeer.peerId(), Boolean.TRUE);
 		boolean removed = false;
-		removed = !removeFromMap(remotePeer, dataMapUnverified).isEmpty();
-		removed = (!removeFromMap(remotePeer, dataMap).isEmpty()) || removed;
+		removed = !dataMapUnverified.remove(remotePeer).isEmpty();
+		removed = (!dataMap.remove(remotePeer).isEmpty()) || removed;
 		return removed;
 	}
 
-	private Map<Number320, Map<PeerAddress, Pair<PeerStatistic, Data>>> removeFromMap(PeerAddress remotePeer, Map<Number320, Map<PeerAddress, Pair<PeerStatistic, Data>>> map) {
-		Map<Number320, Map<PeerAddress, Pair<PeerStatistic, Data>>> removed = new HashMap<Number320, Map<PeerAddress,Pair<PeerStatistic,Data>>>();
-	    for (Map.Entry<Number320, Map<PeerAddress, Pair<PeerStatistic, Data>>> entry : map.entrySet()) {
-	    	Pair<PeerStatistic, Data> oldPair = entry.getValue().remove(remotePeer);
-	    	if(oldPair != null) {
-	    		Map<PeerAddress, Pair<PeerStatistic, Data>> map2 = new ConcurrentCacheMap<PeerAddress, Pair<PeerStatistic, Data>>(trackerTimoutSeconds, TRACKER_CACHE_SIZE, true); 
-	    		map2.put(remotePeer, oldPair);
-	    		removed.put(entry.getKey(), map2);
-	    	}
-	    	
-			if(entry.getValue().isEmpty()) {
-				map.remove(entry.getKey());
-				//someone added data in the meantime, but we don't care
-			}
-		}
-	    return removed;
-    }
-
 	@Override
 	public boolean peerFound(PeerAddress remotePeer, PeerAddress referrer, PeerConnection peerConnection, RTT roundTripTime) {
 		boolean firsthand = referrer == null;
 		if (firsthand) {
 			peerOffline.remove(remotePeer.peerId());
 			
-			Map<Number320, Map<PeerAddress, Pair<PeerStatistic, Data>>> removed = removeFromMap(remotePeer, dataMapUnverified);
-			for (Map.Entry<Number320, Map<PeerAddress, Pair<PeerStatistic, Data>>> entry:removed.entrySet()) {
-				for(Pair<PeerStatistic, Data> pair:entry.getValue().values()) {
-					add(entry.getKey(), pair.element0().peerAddress(), dataMap, pair.element1());
-				}
+			Map<Number320, Pair<PeerStatistic, Data>> removed = dataMapUnverified.remove(remotePeer);
+			for (Map.Entry<Number320, Pair<PeerStatistic, Data>> entry:removed.entrySet()) {
+				dataMap.add(entry.getKey(), entry.getValue().element0().peerAddress(), entry.getValue().element1());
 			}
 		}
 		return true;
 	}
 
 	public int size() {
-	    return dataMap.size();
+	    return dataMap.swarms.size();
     }
 
 	public int sizeUnverified() {
-		return dataMapUnverified.size();
+		return dataMapUnverified.swarms.size();
     }
 
+	/**
+	 * @return The number of peers in the reverse indexes of the verified and unverified swarms
+	 */
+	int peerIndexSize() {
+		return dataMap.peerIndex.size() + dataMapUnverified.peerIndex.size();
+	}
+
 	@Override
     public DigestInfo digest(Number160 locationKey, Number160 domainKey, Number160 contentKey) {
 		Number160 contentDigest = Number160.ZERO;
 		int counter = 0;
-		Map<PeerAddress, Pair<PeerStatistic, Data>> trackerData = dataMap.get(new Number320(locationKey, domainKey));
+		Swarm trackerData = dataMap.swarms.get(new Number320(locationKey, domainKey));
 		if(trackerData!=null) {
 			if(contentKey!=null) {
 				PeerAddress tmpAddress = new PeerAddress(contentKey);
@@ -283,8 +263,8 @@ public class TrackerStorage implements Maintainable, PeerMapChangeListener, Peer
 					counter = 1;
 				}
 			} else {
-				for(Map.Entry<PeerAddress, Pair<PeerStatistic, Data>> entry: trackerData.entrySet()) {
-					contentDigest = contentDigest.xor(entry.getValue().element1().hash());
+				for(Pair<PeerStatistic, Data> pair: trackerData.values()) {
+					contentDigest = contentDigest.xor(pair.element1().hash());
 					counter++;
 				}
 			}
@@ -292,15 +272,216 @@ public class TrackerStorage implements Maintainable, PeerMapChangeListener, Peer
 		return new DigestInfo(Number160.ZERO, contentKey, counter);
     }
 
+	/**
+	 * Returns a copy of all peers of a swarm. This operation is O(n), use {@link #trackerData(Number320, SimpleBloomFilter, int)}
+	 * if only a limited number of peers are needed.
+	 * 
+	 * @param number320
+	 *            The location and domain key of the swarm
+	 * @return The peers of the swarm
+	 */
 	public Map<PeerAddress, Pair<PeerStatistic, Data>> peers(Number320 number320) {
-		Map<PeerAddress, Pair<PeerStatistic, Data>> retVal = dataMap.get(number320);
-		if(retVal == null) {
+		Swarm swarm = dataMap.swarms.get(number320);
+		if(swarm == null) {
 			return Collections.emptyMap();
 		}
+		Map<PeerAddress, Pair<PeerStatistic, Data>> retVal = new HashMap<PeerAddress, Pair<PeerStatistic,Data>>();
+		for(Pair<PeerStatistic, Data> pair : swarm.values()) {
+			retVal.put(pair.element0().peerAddress(), pair);
+		}
 		return retVal;
     }
 	
 	public TrackerData trackerData(Number320 number320) {
 		return new TrackerData(peers(number320).values());
 	}
+
+	/**
+	 * Returns a random sample of the peers of a swarm, without copying the whole swarm.
+	 * 
+	 * @param number320
+	 *            The location and domain key of the swarm
+	 * @param knownPeers
+	 *            The peers the requester already knows, can be null
+	 * @param max
+	 *            The maximum number of peers to return
+	 * @return The sampled peers, with couldProvideMoreData set if the swarm has more peers
+	 */
+	public TrackerData trackerData(Number320 number320, SimpleBloomFilter<Number160> knownPeers, int max) {
+		Swarm swarm = dataMap.swarms.get(number320);
+		if(swarm == null) {
+			return new TrackerData(new HashMap<PeerAddress, Data>());
+		}
+		synchronized (rnd) {
+			return swarm.sample(max, knownPeers, rnd);
+		}
+	}
+
+	/**
+	 * Returns a random sample of the peers of a swarm that are not in the bloom filter, like
+	 * {@link #trackerData(Number320, SimpleBloomFilter, int)}, together with the estimated number of bytes of the
+	 * known peers that were not sent.
+	 * 
+	 * @param number320
+	 *            The location and domain key of the swarm
+	 * @param knownPeers
+	 *            The peers the requester already knows
+	 * @param max
+	 *            The maximum number of peers to return
+	 * @return The sampled peers and the estimated number of bytes of the known peers that were skipped
+	 */
+	public Pair<TrackerData, Integer> trackerDataDelta(Number320 number320, SimpleBloomFilter<Number160> knownPeers,
+	        int max) {
+		Swarm swarm = dataMap.swarms.get(number320);
+		if(swarm == null) {
+			return new Pair<TrackerData, Integer>(new TrackerData(new HashMap<PeerAddress, Data>()), 0);
+		}
+		synchronized (rnd) {
+			return swarm.sampleDelta(max, knownPeers, rnd);
+		}
+	}
+
+	/**
+	 * Creates a bloom filter with the peer IDs of a swarm, to tell an other peer which peers we already know.
+	 * 
+	 * @param number320
+	 *            The location and domain key of the swarm
+	 * @param falsePositiveProbability
+	 *            The false positive probability of the filter. A false positive results in a peer that is not sent,
+	 *            which will be corrected with the next full exchange.
+	 * @return The bloom filter with the known peer IDs
+	 */
+	public SimpleBloomFilter<Number160> knownPeers(Number320 number320, double falsePositiveProbability) {
+		// unverified peers are known as well, we do not want them again
+		Collection<Pair<PeerStatistic, Data>> values = dataMap.values(number320);
+		Collection<Pair<PeerStatistic, Data>> valuesUnverified = dataMapUnverified.values(number320);
+		SimpleBloomFilter<Number160> filter = new SimpleBloomFilter<Number160>(falsePositiveProbability, Math.max(1,
+		        values.size() + valuesUnverified.size()));
+		for (Pair<PeerStatistic, Data> pair : values) {
+			filter.add(pair.element0().peerAddress().peerId());
+		}
+		for (Pair<PeerStatistic, Data> pair : valuesUnverified) {
+			filter.add(pair.element0().peerAddress().peerId());
+		}
+		return filter;
+	}
+
+	/**
+	 * The swarms of the verified or unverified peers with a reverse index, that maps a peer to the swarms it is in.
+	 * Thus, a peer event only visits the swarms of that peer and not all swarms.
+	 */
+	private final class Swarms {
+		private static final int LOCK_NR = 16;
+		private final ConcurrentCacheMap<Number320, Swarm> swarms;
+		// the swarm instance is stored, so that a swarm that expired does not remove the entry of a new swarm
+		private final Map<PeerAddress, Map<Number320, Swarm>> peerIndex = new ConcurrentHashMap<PeerAddress, Map<Number320, Swarm>>();
+		// the reverse index is locked per peer, similar to the segments of the concurrent maps
+		private final Object[] locks = new Object[LOCK_NR];
+
+		private Swarms(int trackerTimoutSeconds) {
+			this.swarms = new ConcurrentCacheMap<Number320, Swarm>(trackerTimoutSeconds, TRACKER_CACHE_SIZE, true);
+			this.swarms.removalListener(new ConcurrentCacheMap.RemovalListener<Number320, Swarm>() {
+				@Override
+				public void removed(Number320 key, Swarm swarm) {
+					// expired or evicted swarms
+					for (PeerAddress peerAddress : swarm.peerAddresses()) {
+						removeFromIndex(peerAddress, key, swarm);
+					}
+				}
+			});
+			for (int i = 0; i < LOCK_NR; i++) {
+				locks[i] = new Object();
+			}
+		}
+
+		private Object lock(PeerAddress peerAddress) {
+			return locks[(peerAddress.hashCode() & Integer.MAX_VALUE) % LOCK_NR];
+		}
+
+		private Pair<PeerStatistic, Data> find(Number320 key, PeerAddress peerAddress) {
+			final Swarm swarm = swarms.get(key);
+			if (swarm == null) {
+				return null;
+			}
+			return swarm.get(peerAddress);
+		}
+
+		private Collection<Pair<PeerStatistic, Data>> values(Number320 key) {
+			final Swarm swarm = swarms.get(key);
+			if (swarm == null) {
+				return Collections.emptyList();
+			}
+			return swarm.values();
+		}
+
+		private boolean add(final Number320 key, PeerAddress peerAddress, Data attachement) {
+			Swarm swarm = swarms.get(key);
+			if (swarm == null) {
+				// peers that expire within the swarm are removed from the reverse index
+				swarm = new Swarm(trackerTimoutSeconds, TRACKER_CACHE_SIZE, new Swarm.ExpiryListener() {
+					@Override
+					public void expired(Swarm swarm, PeerAddress peerAddress) {
+						removeFromIndex(peerAddress, key, swarm);
+					}
+				});
+			}
+			// refreshes the timeout of a swarm that is in use
+			final Swarm existing = swarms.putIfAbsent(key, swarm);
+			if (existing != null) {
+				swarm = existing;
+			}
+			// an existing entry is only refreshed
+			Pair<PeerStatistic, Data> old = swarm.get(peerAddress);
+			PeerStatistic peerStatistic = old != null ? old.element0() : new PeerStatistic(peerAddress);
+			if (!swarm.put(peerStatistic, old != null ? old.element1() : attachement)) {
+				return false;
+			}
+			synchronized (lock(peerAddress)) {
+				Map<Number320, Swarm> keys = peerIndex.get(peerAddress);
+				if (keys == null) {
+					keys = new HashMap<Number320, Swarm>(2);
+					peerIndex.put(peerAddress, keys);
+				}
+				keys.put(key, swarm);
+			}
+			swarm.removeExpired();
+			return true;
+		}
+
+		private Map<Number320, Pair<PeerStatistic, Data>> remove(PeerAddress remotePeer) {
+			final Map<Number320, Swarm> keys;
+			synchronized (lock(remotePeer)) {
+				keys = peerIndex.remove(remotePeer);
+			}
+			if (keys == null) {
+				return Collections.emptyMap();
+			}
+			final Map<Number320, Pair<PeerStatistic, Data>> removed = new HashMap<Number320, Pair<PeerStatistic, Data>>(
+			        keys.size());
+			for (Map.Entry<Number320, Swarm> entry : keys.entrySet()) {
+				final Swarm swarm = entry.getValue();
+				final Pair<PeerStatistic, Data> oldPair = swarm.remove(remotePeer);
+				if (oldPair != null) {
+					removed.put(entry.getKey(), oldPair);
+				}
+				if (swarm.isEmpty()) {
+					swarms.remove(entry.getKey(), swarm);
+					//someone added data in the meantime, but we don't care
+				}
+			}
+			return removed;
+		}
+
+		private void removeFromIndex(PeerAddress peerAddress, Number320 key, Swarm swarm) {
+			synchronized (lock(peerAddress)) {
+				final Map<Number320, Swarm> keys = peerIndex.get(peerAddress);
+				if (keys != null && keys.get(key) == swarm) {
+					keys.remove(key);
+					if (keys.isEmpty()) {
+						peerIndex.remove(peerAddress);
+					}
+				}
+			}
+		}
+	}
 }
@@ -47,6 +47,41 @@ public class UtilsTracker {
 		return trackerData;
 	}
 	
+	/**
+	 * Estimates the number of bytes the tracker data needs on the wire. For each entry, the peer address and the
+	 * attachement with the smallest data header is counted.
+	 * 
+	 * @param trackerData
+	 *            The tracker data
+	 * @return The estimated size in bytes
+	 */
+	public static int estimateSize(TrackerData trackerData) {
+		// 1 byte for the number of entries
+		int size = 1;
+		for (Map.Entry<PeerAddress, Data> entry : trackerData.peerAddresses().entrySet()) {
+			size += estimateSize(entry.getKey(), entry.getValue());
+		}
+		return size;
+	}
+
+	/**
+	 * Estimates the number of bytes one entry of the tracker data needs on the wire.
+	 * 
+	 * @param peerAddress
+	 *            The peer address of the entry
+	 * @param attachement
+	 *            The attachement of the entry, can be null
+	 * @return The estimated size in bytes
+	 */
+	public static int estimateSize(PeerAddress peerAddress, Data attachement) {
+		// 2 bytes for the header and length of the data
+		int size = peerAddress.size() + 2;
+		if (attachement != null) {
+			size += attachement.length();
+		}
+		return size;
+	}
+	
 	/**
      * Adds a listener to the response future and releases all aquired channels in channel creator.
      * 
@@ -4,9 +4,11 @@ import java.util.Random;
 
 import net.tomp2p.connection.ChannelCreator;
 import net.tomp2p.futures.FutureChannelCreator;
+import net.tomp2p.futures.FutureDone;
 import net.tomp2p.futures.FutureResponse;
 import net.tomp2p.p2p.PeerBuilder;
 import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number320;
 import net.tomp2p.peers.PeerAddress;
 import net.tomp2p.rpc.SimpleBloomFilter;
 import net.tomp2p.storage.Data;
@@ -238,4 +240,54 @@ public class TestTrackerRPC {
             }
         }
     }
+
+    @Test
+    public void testPeerExchangeDelta() throws Exception {
+        PeerTracker sender = null;
+        PeerTracker recv1 = null;
+        try {
+            sender = new PeerBuilderTracker(new PeerBuilder(new Number160("0x9876")).p2pId(55).ports(2424).start())
+                    .verifyPeersOnTracker(false).start();
+            recv1 = new PeerBuilderTracker(new PeerBuilder(new Number160("0x1234")).p2pId(55).ports(8088).start())
+                    .verifyPeersOnTracker(false).start();
+            Number320 key = new Number320(new Number160(rnd), new Number160(rnd));
+            // the receiver knows 30 peers, the sender 20 of them
+            int entrySize = 0;
+            for (int i = 0; i < 30; i++) {
+                PeerAddress peerAddress = new PeerAddress(new Number160(rnd), "127.0.0.1", 5000 + i, 5000 + i);
+                recv1.trackerStorage().put(key, peerAddress, null, new Data());
+                entrySize = UtilsTracker.estimateSize(peerAddress, new Data());
+                if (i < 20) {
+                    sender.trackerStorage().put(key, peerAddress, null, new Data());
+                }
+            }
+            int bloomFilterSize = sender.trackerStorage()
+                    .knownPeers(key, PeerExchange.FALSE_POSITIVE_PROBABILITY).size();
+            FutureDone<Integer> futureDone = sender.peerExchange().peerExchangeDelta(recv1.peerAddress(), key);
+            futureDone.awaitUninterruptibly();
+            Assert.assertEquals(true, futureDone.isSuccess());
+            // a false positive in the bloom filter may hide a peer
+            int size = sender.trackerStorage().peers(key).size();
+            Assert.assertTrue(size >= 29 && size <= 30);
+            Assert.assertTrue(futureDone.object() > 0);
+            Assert.assertEquals(futureDone.object().longValue(), sender.peerExchange().bytesSaved());
+            Assert.assertEquals(1, sender.peerExchange().deltaExchanges());
+            // a full exchange would have sent the 20 known peers again, a false positive skips a new one as well
+            long skipped = sender.peerExchange().bytesSaved() + bloomFilterSize;
+            Assert.assertEquals(0, skipped % entrySize);
+            Assert.assertTrue(skipped / entrySize >= 20 && skipped / entrySize <= 21);
+            // nothing new, nothing to send
+            futureDone = sender.peerExchange().peerExchangeDelta(recv1.peerAddress(), key);
+            futureDone.awaitUninterruptibly();
+            Assert.assertEquals(true, futureDone.isSuccess());
+            Assert.assertEquals(size, sender.trackerStorage().peers(key).size());
+        } finally {
+            if (sender != null) {
+                sender.peer().shutdown().await();
+            }
+            if (recv1 != null) {
+                recv1.peer().shutdown().await();
+            }
+        }
+    }
 }
@@ -4,6 +4,12 @@ import java.io.IOException;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
 
 import net.tomp2p.connection.PeerException;
 import net.tomp2p.message.TrackerData;
@@ -156,4 +162,103 @@ public class TestTrackerStorage {
 		ps = trackerStorage.nextForMaintenance(null);
 		Assert.assertNull(ps);
 	}
+
+	@Test
+	public void testTrackerSample() throws IOException {
+		Number160 self = Number160.ONE;
+		PeerAddress selfAddress = new PeerAddress(self);
+		PeerMapConfiguration pmc = new PeerMapConfiguration(self);
+		PeerMap pm = new PeerMap(pmc);
+		TrackerStorage trackerStorage = new TrackerStorage(10, new int[] { 10 }, 1, pm, selfAddress, false);
+
+		Number320 n320 = new Number320(Number160.ZERO, Number160.ZERO);
+		for (int i = 1; i <= 100; i++) {
+			trackerStorage.put(n320, new PeerAddress(new Number160(i)), null, new Data("test"));
+		}
+		TrackerData td = trackerStorage.trackerData(n320, null, 30);
+		Assert.assertEquals(30, td.size());
+		Assert.assertTrue(td.couldProvideMoreData());
+		td = trackerStorage.trackerData(n320, null, 200);
+		Assert.assertEquals(100, td.size());
+		Assert.assertFalse(td.couldProvideMoreData());
+	}
+
+	@Test
+	public void testTrackerChurn() throws IOException, InterruptedException {
+		Number160 self = Number160.ONE;
+		PeerAddress selfAddress = new PeerAddress(self);
+		PeerMapConfiguration pmc = new PeerMapConfiguration(self);
+		PeerMap pm = new PeerMap(pmc);
+		TrackerStorage trackerStorage = new TrackerStorage(Integer.MAX_VALUE, new int[] { 10 }, 1, pm, selfAddress, false);
+		Random rnd = new Random(42L);
+		final int nrSwarms = 500;
+		final int nrPeers = 5000;
+		final int peersPerSwarm = 100;
+		List<Number320> swarms = new ArrayList<Number320>();
+		for (int i = 0; i < nrSwarms; i++) {
+			swarms.add(new Number320(new Number160(rnd), Number160.ZERO));
+		}
+		List<PeerAddress> peers = new ArrayList<PeerAddress>();
+		for (int i = 0; i < nrPeers; i++) {
+			peers.add(new PeerAddress(new Number160(rnd)));
+		}
+		for (Number320 swarm : swarms) {
+			for (int i = 0; i < peersPerSwarm; i++) {
+				trackerStorage.put(swarm, peers.get(rnd.nextInt(nrPeers)), null, new Data("test"));
+			}
+		}
+		final int rounds = 20000;
+		long start = System.nanoTime();
+		for (int i = 0; i < rounds; i++) {
+			PeerAddress peerAddress = peers.get(rnd.nextInt(nrPeers));
+			trackerStorage.peerFailed(peerAddress, new PeerException(PeerException.AbortCause.PEER_ABORT, ""));
+			trackerStorage.peerFound(peerAddress, null, null, null);
+			trackerStorage.put(swarms.get(rnd.nextInt(nrSwarms)), peerAddress, null, new Data("test"));
+		}
+		long micros = (System.nanoTime() - start) / 1000;
+		System.err.println("BENCHMARK: " + rounds + " churn events with " + nrSwarms + " swarms in " + (micros / 1000)
+		        + " ms. STAT: micros per event:" + (micros / rounds));
+		PeerAddress failed = peers.get(0);
+		trackerStorage.peerFailed(failed, new PeerException(PeerException.AbortCause.PEER_ABORT, ""));
+		for (Number320 swarm : swarms) {
+			Assert.assertFalse(trackerStorage.peers(swarm).containsKey(failed));
+		}
+		// the reverse index does not keep the peers of evicted swarms
+		for (int i = 0; i < TrackerStorage.TRACKER_CACHE_SIZE; i++) {
+			trackerStorage.put(new Number320(new Number160(rnd), Number160.ZERO), new PeerAddress(new Number160(rnd)),
+			        null, new Data("test"));
+		}
+		Set<PeerAddress> indexed = new HashSet<PeerAddress>();
+		for (Number320 swarm : trackerStorage.keys()) {
+			indexed.addAll(trackerStorage.peers(swarm).keySet());
+		}
+		Assert.assertTrue(trackerStorage.size() <= TrackerStorage.TRACKER_CACHE_SIZE);
+		Assert.assertEquals(indexed.size(), trackerStorage.peerIndexSize());
+		// and not the peers of expired swarms
+		TrackerStorage expiring = new TrackerStorage(1, new int[] { 10 }, 1, pm, selfAddress, false);
+		for (Number320 swarm : swarms) {
+			for (int i = 0; i < peersPerSwarm / 10; i++) {
+				expiring.put(swarm, peers.get(rnd.nextInt(nrPeers)), null, new Data("test"));
+			}
+		}
+		Assert.assertTrue(expiring.peerIndexSize() > 0);
+		Thread.sleep(1100);
+		expiring.nextForMaintenance(Collections.<PeerAddress> emptyList());
+		Assert.assertEquals(0, expiring.size());
+		Assert.assertEquals(0, expiring.peerIndexSize());
+		// and not the expired peers of a swarm that lives on
+		TrackerStorage longLived = new TrackerStorage(1, new int[] { 10 }, 1, pm, selfAddress, false);
+		Number320 key = swarms.get(0);
+		PeerAddress expired = peers.get(0);
+		PeerAddress alive = peers.get(1);
+		longLived.put(key, expired, null, new Data("test"));
+		longLived.put(key, alive, null, new Data("test"));
+		Thread.sleep(700);
+		longLived.put(key, alive, null, new Data("test"));
+		Thread.sleep(700);
+		// the lookup removes the expired peer from the swarm
+		Assert.assertEquals(0, longLived.digest(key.locationKey(), key.domainKey(), expired.peerId()).size());
+		Assert.assertEquals(1, longLived.size());
+		Assert.assertEquals(1, longLived.peerIndexSize());
+	}
 }